@@ -0,0 +1,62 @@
+#!/usr/bin/env bash
+#
+# Checks a compose-only ValueSet against the stub terminology server, once fetching the
+# expansion one page at a time and once with several pages in flight, and prints how long each
+# /check took and how many issues it found. Both runs should find TOTAL / INVALID_EVERY issues.
+#
+# Needs python3, jq and the exec jar. Nothing outside this machine is called.
+#
+#   TOTAL=100000 LATENCY_MS=50 ./paged-expand.sh
+#
+set -euo pipefail
+
+cd "$(dirname "$0")"
+
+JAR=${JAR:-$(ls ../../target/*-exec.jar | head -n 1)}
+TASK=${TASK:-task-compose-only.json}
+PORT=${PORT:-8089}
+STUB_PORT=${STUB_PORT:-8090}
+PAGE_SIZE=${PAGE_SIZE:-1000}
+CONCURRENCY=${CONCURRENCY:-4}
+export TOTAL=${TOTAL:-25000}
+export LATENCY_MS=${LATENCY_MS:-50}
+export INVALID_EVERY=${INVALID_EVERY:-100}
+
+PORT="$STUB_PORT" ./stub-terminology-server.py &
+stub=$!
+trap "kill $stub 2>/dev/null || true" EXIT
+
+run() {
+    local concurrency=$1
+    local stub_url="http://127.0.0.1:$STUB_PORT"
+    java -jar "$JAR" \
+        --server.port="$PORT" \
+        --checks.terminologyServer.endpoint="$stub_url/fhir" \
+        --checks.terminologyServer.authenticationEndpoint="$stub_url/token" \
+        --checks.fhirServer.endpoint="$stub_url/fhir" \
+        --checks.fhirServer.authenticationEndpoint="$stub_url/token" \
+        --checks.resultCache.enabled=false \
+        --checks.expand.enabled=true \
+        --checks.expand.pageSize="$PAGE_SIZE" \
+        --checks.expand.concurrency="$concurrency" \
+        > "server-$concurrency.log" 2>&1 &
+    local pid=$!
+    trap "kill $pid $stub 2>/dev/null || true" EXIT
+
+    until curl -sf "http://127.0.0.1:$PORT/health" > /dev/null; do
+        kill -0 "$pid" 2> /dev/null || { echo "service exited, see server-$concurrency.log"; exit 1; }
+        sleep 0.5
+    done
+
+    local time
+    time=$(curl -s -o "response-$concurrency.json" -w "%{time_total}" -X POST -H "Content-Type: application/fhir+json" --data-binary @"$TASK" "http://127.0.0.1:$PORT/check")
+    echo "concurrency $concurrency: $(jq '[.issue[] | select(.severity == "error")] | length' "response-$concurrency.json") errors for $TOTAL codes in ${time}s"
+
+    kill "$pid"
+    wait "$pid" 2>/dev/null || true
+    trap "kill $stub 2>/dev/null || true" EXIT
+}
+
+echo "expected $((TOTAL / INVALID_EVERY)) errors, $((TOTAL / PAGE_SIZE)) pages of $PAGE_SIZE with ${LATENCY_MS} ms latency each"
+run 1
+run "$CONCURRENCY"
@@ -0,0 +1,104 @@
+#!/usr/bin/env python3
+"""
+Stub terminology and FHIR server for trying out the paged $expand of compose-only ValueSets.
+
+Serves just enough for a /check with checks.expand.enabled:
+  POST /token                      a client credentials token
+  GET  /fhir/ActivityDefinition    a searchset with the code-format ActivityDefinition
+  POST /fhir/ValueSet/$expand      TOTAL generated SNOMED CT codes, paged by offset and count
+
+Every INVALID_EVERY-th code has a bad check digit, so a full check finds TOTAL / INVALID_EVERY
+issues. Each $expand call waits LATENCY_MS, like a real server would.
+
+    PORT=8090 TOTAL=25000 LATENCY_MS=50 ./stub-terminology-server.py
+"""
+import json
+import os
+import time
+from http.server import BaseHTTPRequestHandler, ThreadingHTTPServer
+
+PORT = int(os.environ.get("PORT", "8090"))
+TOTAL = int(os.environ.get("TOTAL", "25000"))
+INVALID_EVERY = int(os.environ.get("INVALID_EVERY", "100"))
+LATENCY_MS = int(os.environ.get("LATENCY_MS", "50"))
+MAX_PAGE = int(os.environ.get("MAX_PAGE", "10000"))
+
+D = [[0, 1, 2, 3, 4, 5, 6, 7, 8, 9], [1, 2, 3, 4, 0, 6, 7, 8, 9, 5], [2, 3, 4, 0, 1, 7, 8, 9, 5, 6],
+     [3, 4, 0, 1, 2, 8, 9, 5, 6, 7], [4, 0, 1, 2, 3, 9, 5, 6, 7, 8], [5, 9, 8, 7, 6, 0, 4, 3, 2, 1],
+     [6, 5, 9, 8, 7, 1, 0, 4, 3, 2], [7, 6, 5, 9, 8, 2, 1, 0, 4, 3], [8, 7, 6, 5, 9, 3, 2, 1, 0, 4],
+     [9, 8, 7, 6, 5, 4, 3, 2, 1, 0]]
+P = [[0, 1, 2, 3, 4, 5, 6, 7, 8, 9], [1, 5, 7, 6, 2, 8, 3, 0, 9, 4], [5, 8, 0, 3, 7, 9, 6, 1, 4, 2],
+     [8, 9, 1, 6, 0, 4, 3, 5, 2, 7], [9, 4, 5, 3, 1, 2, 6, 8, 7, 0], [4, 2, 8, 6, 5, 7, 3, 9, 0, 1],
+     [2, 7, 9, 3, 8, 0, 6, 4, 1, 5], [7, 0, 4, 6, 9, 1, 3, 2, 5, 8]]
+INV = [0, 4, 3, 2, 1, 5, 6, 7, 8, 9]
+
+
+def code(index):
+    # Item identifier, then the concept partition 00, then the Verhoeff check digit
+    payload = str(100000 + index) + "00"
+    check = 0
+    for i, digit in enumerate(reversed(payload)):
+        check = D[check][P[(i + 1) % 8][int(digit)]]
+    digit = INV[check]
+    if index % INVALID_EVERY == INVALID_EVERY - 1:
+        digit = (digit + 1) % 10
+    return payload + str(digit)
+
+
+ACTIVITY_DEFINITIONS = {
+    "resourceType": "Bundle",
+    "type": "searchset",
+    "entry": [{"resource": {
+        "resourceType": "ActivityDefinition",
+        "id": "code-format",
+        "url": "http://dedalus.com/fhir/ActivityDefinition/code-format",
+        "version": "1",
+        "status": "active",
+        "code": {"coding": [{"code": "code-format"}]}
+    }}]
+}
+
+
+class Handler(BaseHTTPRequestHandler):
+    def send_json(self, body, content_type="application/fhir+json"):
+        data = json.dumps(body).encode("utf-8")
+        self.send_response(200)
+        self.send_header("Content-Type", content_type)
+        self.send_header("Content-Length", str(len(data)))
+        self.end_headers()
+        self.wfile.write(data)
+
+    def read_body(self):
+        return self.rfile.read(int(self.headers.get("Content-Length", "0")))
+
+    def do_GET(self):
+        if self.path.startswith("/fhir/ActivityDefinition"):
+            self.send_json(ACTIVITY_DEFINITIONS)
+        else:
+            self.send_error(404)
+
+    def do_POST(self):
+        if self.path == "/token":
+            self.read_body()
+            self.send_json({"access_token": "stub", "token_type": "Bearer", "expires_in": 3600}, "application/json")
+        elif self.path.startswith("/fhir/ValueSet/$expand"):
+            parameters = json.loads(self.read_body() or b"{}")
+            values = {p["name"]: p.get("valueInteger") for p in parameters.get("parameter", []) if "valueInteger" in p}
+            offset = values.get("offset", 0)
+            count = min(values.get("count", MAX_PAGE), MAX_PAGE)
+            time.sleep(LATENCY_MS / 1000.0)
+            contains = [{"system": "http://snomed.info/sct", "code": code(i)} for i in range(offset, min(offset + count, TOTAL))]
+            self.send_json({
+                "resourceType": "ValueSet",
+                "status": "active",
+                "expansion": {"timestamp": "2024-01-01T00:00:00Z", "total": TOTAL, "offset": offset, "contains": contains}
+            })
+        else:
+            self.send_error(404)
+
+    def log_message(self, format, *args):
+        pass
+
+
+if __name__ == "__main__":
+    ThreadingHTTPServer(("127.0.0.1", PORT), Handler).serve_forever()
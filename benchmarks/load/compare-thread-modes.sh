@@ -0,0 +1,61 @@
+#!/usr/bin/env bash
+#
+# Runs the same /check load against the service twice, once on Tomcat's platform thread pool
+# and once with spring.threads.virtual.enabled, and prints both reports.
+#
+# Needs a Java 21 JDK, the exec jar built with the java21 profile and 'hey'
+# (https://github.com/rakyll/hey). The Task should reach the real upstream servers, e.g. with
+# an external focus reference or the code-exists check, otherwise there is no blocking I/O to
+# compare. Point CONFIG at an application.yml with working credentials.
+#
+#   CONFIG=/opt/application.yml TASK=my-task.json ./compare-thread-modes.sh
+#
+set -euo pipefail
+
+cd "$(dirname "$0")"
+
+JAR=${JAR:-$(ls ../../target/*-exec.jar | head -n 1)}
+CONFIG=${CONFIG:-../../src/main/resources/application.yml}
+TASK=${TASK:-task-code-format.json}
+PORT=${PORT:-8089}
+CONCURRENCY=${CONCURRENCY:-400}
+DURATION=${DURATION:-60s}
+TOMCAT_THREADS=${TOMCAT_THREADS:-200}
+
+run() {
+    local mode=$1 virtual=$2
+    java -jar "$JAR" \
+        --spring.config.location="$CONFIG" \
+        --server.port="$PORT" \
+        --server.tomcat.threads.max="$TOMCAT_THREADS" \
+        --spring.threads.virtual.enabled="$virtual" \
+        > "server-$mode.log" 2>&1 &
+    local pid=$!
+    trap "kill $pid 2>/dev/null || true" EXIT
+
+    until curl -sf "http://127.0.0.1:$PORT/health" > /dev/null; do
+        sleep 1
+    done
+
+    # Short warm up so JIT, pools and tokens are settled before measuring
+    hey -z 10s -c 20 -m POST -T application/fhir+json -D "$TASK" "http://127.0.0.1:$PORT/check" > /dev/null
+
+    echo "=== $mode threads: $CONCURRENCY concurrent clients for $DURATION ==="
+    hey -z "$DURATION" -c "$CONCURRENCY" -m POST -T application/fhir+json -D "$TASK" "http://127.0.0.1:$PORT/check" | tee "report-$mode.txt"
+
+    kill "$pid"
+    wait "$pid" 2>/dev/null || true
+    trap - EXIT
+}
+
+run platform false
+run virtual true
+
+# One line per mode, for the README or a commit message
+echo "=== summary ==="
+for mode in platform virtual; do
+    rps=$(awk '/Requests\/sec:/ { print $2 }' "report-$mode.txt")
+    p99=$(awk '/99% in/ { print $3 }' "report-$mode.txt")
+    errors=$(awk '/^Status code distribution:/ { on = 1; next } on && /\[[0-9]+\]/ && $1 != "[200]" { sum += $2 } END { print sum + 0 }' "report-$mode.txt")
+    echo "$mode: $rps req/s, p99 ${p99}s, $errors non-200 responses"
+done
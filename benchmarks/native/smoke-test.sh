@@ -0,0 +1,55 @@
+#!/usr/bin/env bash
+#
+# Smoke test for the native executable. Starts it, checks /validateConceptFormat with a valid
+# and an invalid SNOMED CT code, runs a /check, and reports startup time and resident memory.
+# Exits non-zero if any call gives the wrong status.
+#
+# Build the binary first with ./mvnw -Pnative native:compile. /check has to reach the real
+# servers for its ActivityDefinition, so point CONFIG at an application.yml with working
+# credentials.
+#
+#   CONFIG=/opt/application.yml ./smoke-test.sh
+#
+set -euo pipefail
+
+cd "$(dirname "$0")"
+
+BINARY=${BINARY:-../../target/vsmt-checks}
+CONFIG=${CONFIG:-../../src/main/resources/application.yml}
+TASK=${TASK:-../load/task-code-format.json}
+PORT=${PORT:-8089}
+
+"$BINARY" --spring.config.location="$CONFIG" --server.port="$PORT" > native.log 2>&1 &
+pid=$!
+trap "kill $pid 2>/dev/null || true" EXIT
+
+until curl -sf "http://127.0.0.1:$PORT/health" > /dev/null; do
+    kill -0 "$pid" 2> /dev/null || { echo "native binary exited, see native.log"; exit 1; }
+    sleep 0.05
+done
+
+failures=0
+expect() {
+    local name=$1 expected=$2 path=$3 body=$4
+    local status
+    status=$(curl -s -o "response-$name.json" -w "%{http_code}" -X POST -H "Content-Type: application/fhir+json" --data-binary "$body" "http://127.0.0.1:$PORT$path")
+    if [ "$status" = "$expected" ]; then
+        echo "ok   $name ($status)"
+    else
+        echo "FAIL $name: expected $expected, got $status, see response-$name.json"
+        failures=$((failures + 1))
+    fi
+}
+
+parameters() {
+    echo "{\"resourceType\":\"Parameters\",\"parameter\":[{\"name\":\"concept\",\"valueCoding\":{\"system\":\"http://snomed.info/sct\",\"code\":\"$1\"}}]}"
+}
+
+expect valid-format 200 /validateConceptFormat "$(parameters 22298006)"
+expect invalid-format 400 /validateConceptFormat "$(parameters 22298007)"
+expect check 200 /check "@$TASK"
+
+echo "startup: $(grep -o "Started [A-Za-z]* in [0-9.]* seconds" native.log || echo "not logged")"
+echo "rss:     $(grep VmRSS "/proc/$pid/status" | awk '{print $2 " " $3}')"
+
+exit "$failures"
@@ -0,0 +1,137 @@
+package com.dedalus.uks.ChecksService.benchmarks;
+
+import java.util.Random;
+
+import org.hl7.fhir.r4.model.ValueSet;
+
+import com.dedalus.uks.ChecksService.config.ChecksConfig;
+import com.dedalus.uks.ChecksService.service.ChecksService;
+import com.dedalus.uks.ChecksService.service.EclConceptCache;
+import com.dedalus.uks.ChecksService.service.SCTValidationService;
+import com.dedalus.uks.ChecksService.service.ValueSetExpander;
+import com.dedalus.uks.ChecksService.utils.Utilities;
+
+import ca.uhn.fhir.context.FhirContext;
+
+/**
+ * Generates deterministic inputs for the benchmarks, so runs can be compared with each other.
+ */
+public final class BenchmarkData {
+
+    // Share of generated codes that deliberately fail the format check
+    public static final double INVALID_RATIO = 0.01;
+
+    public static final String[] ECL_EXPRESSIONS = {
+        "< 71388002 |Procedure| : 363704007 |Procedure site| = << 64033007 |Kidney structure|",
+        "<< 404684003 |Clinical finding| : { 363698007 |Finding site| = << 39057004 |Pulmonary valve structure|, 116676008 |Associated morphology| = << 415582006 |Stenosis| }",
+        "(<< 19829001 |Disorder of lung| OR << 301867009 |Edema of trunk|) MINUS << 233604007 |Pneumonia|",
+        "^ 723264001 |Lateralizable body structure reference set| {{ C moduleId = 900000000000207008 }}",
+        // Nested refinements that repeat the same concepts, the case the single-pass visitor is for
+        "<< 404684003 |Clinical finding| : { 363698007 |Finding site| = << 39057004 |Pulmonary valve structure|, 116676008 |Associated morphology| = << 415582006 |Stenosis| }, "
+            + "{ 363698007 |Finding site| = << 39057004 |Pulmonary valve structure|, 116676008 |Associated morphology| = << 415582006 |Stenosis| }, "
+            + "47429007 |Associated with| = (<< 404684003 |Clinical finding| : 363698007 |Finding site| = (<< 39057004 |Pulmonary valve structure| : "
+            + "272741003 |Laterality| = << 7771000 |Left|)), 246075003 |Causative agent| = (<< 404684003 |Clinical finding| : 116676008 |Associated morphology| = << 415582006 |Stenosis|)"
+    };
+
+    private static final int[][] D = {
+        {0, 1, 2, 3, 4, 5, 6, 7, 8, 9},
+        {1, 2, 3, 4, 0, 6, 7, 8, 9, 5},
+        {2, 3, 4, 0, 1, 7, 8, 9, 5, 6},
+        {3, 4, 0, 1, 2, 8, 9, 5, 6, 7},
+        {4, 0, 1, 2, 3, 9, 5, 6, 7, 8},
+        {5, 9, 8, 7, 6, 0, 4, 3, 2, 1},
+        {6, 5, 9, 8, 7, 1, 0, 4, 3, 2},
+        {7, 6, 5, 9, 8, 2, 1, 0, 4, 3},
+        {8, 7, 6, 5, 9, 3, 2, 1, 0, 4},
+        {9, 8, 7, 6, 5, 4, 3, 2, 1, 0}
+    };
+    private static final int[][] P = {
+        {0, 1, 2, 3, 4, 5, 6, 7, 8, 9},
+        {1, 5, 7, 6, 2, 8, 3, 0, 9, 4},
+        {5, 8, 0, 3, 7, 9, 6, 1, 4, 2},
+        {8, 9, 1, 6, 0, 4, 3, 5, 2, 7},
+        {9, 4, 5, 3, 1, 2, 6, 8, 7, 0},
+        {4, 2, 8, 6, 5, 7, 3, 9, 0, 1},
+        {2, 7, 9, 3, 8, 0, 6, 4, 1, 5},
+        {7, 0, 4, 6, 9, 1, 3, 2, 5, 8}
+    };
+    private static final int[] INV = {0, 4, 3, 2, 1, 5, 6, 7, 8, 9};
+
+    private BenchmarkData() {
+    }
+
+    /** A ChecksService wired for pure in-memory checks, no upstream servers are called. */
+    public static ChecksService checksService() {
+        ChecksConfig checksConfig = new ChecksConfig();
+        // Expansion is off in the default config, so the expander never calls out
+        ValueSetExpander valueSetExpander = new ValueSetExpander(checksConfig, null, null, Runnable::run);
+        return new ChecksService(checksConfig, FhirContext.forR4(), null, new SCTValidationService(), new EclConceptCache(checksConfig), null, null, valueSetExpander);
+    }
+
+    /** Appends the Verhoeff check digit to the payload. */
+    public static String withCheckDigit(String payload) {
+        int check = 0;
+        int len = payload.length();
+        for (int i = 0; i < len; i++) {
+            check = D[check][P[(i + 1) % 8][payload.charAt(len - i - 1) - '0']];
+        }
+        return payload + INV[check];
+    }
+
+    /** A concept identifier with the short form '00' partition. */
+    public static String conceptId(long item) {
+        return withCheckDigit(item + "00");
+    }
+
+    /** A concept identifier in the given extension namespace, i.e. with the '10' partition. */
+    public static String longFormConceptId(long item, int namespace) {
+        return withCheckDigit(item + String.format("%07d", namespace) + "10");
+    }
+
+    public static String[] codes(int size, long seed) {
+        Random random = new Random(seed);
+        String[] codes = new String[size];
+        for (int i = 0; i < size; i++) {
+            long item = 100000 + random.nextInt(900_000_000);
+            if (random.nextDouble() < INVALID_RATIO) {
+                // Right shape, wrong check digit
+                String valid = conceptId(item);
+                char last = valid.charAt(valid.length() - 1);
+                codes[i] = valid.substring(0, valid.length() - 1) + (char) ('0' + ((last - '0' + 1) % 10));
+            } else if (i % 10 == 0) {
+                codes[i] = longFormConceptId(item, 1000000 + (i % 1000));
+            } else {
+                codes[i] = conceptId(item);
+            }
+        }
+        return codes;
+    }
+
+    /** A ValueSet with a small compose and an expansion of the given size. */
+    public static ValueSet valueSet(int expansionSize, long seed) {
+        ValueSet valueSet = new ValueSet();
+        valueSet.setId("example-value-set");
+        valueSet.setUrl("http://example.org/fhir/ValueSet/benchmark-" + expansionSize);
+        valueSet.setStatus(org.hl7.fhir.r4.model.Enumerations.PublicationStatus.ACTIVE);
+
+        ValueSet.ConceptSetComponent include = valueSet.getCompose().addInclude();
+        include.setSystem(Utilities.SNOMED_SYSTEM_URI);
+        include.addFilter()
+            .setProperty("expression")
+            .setOp(ValueSet.FilterOperator.EQUAL)
+            .setValue(ECL_EXPRESSIONS[0]);
+        for (String code : codes(Math.min(expansionSize, 100), seed + 1)) {
+            include.addConcept().setCode(code);
+        }
+
+        ValueSet.ValueSetExpansionComponent expansion = valueSet.getExpansion();
+        expansion.setTotal(expansionSize);
+        for (String code : codes(expansionSize, seed)) {
+            expansion.addContains()
+                .setSystem(Utilities.SNOMED_SYSTEM_URI)
+                .setCode(code)
+                .setDisplay("Generated concept " + code);
+        }
+        return valueSet;
+    }
+}
@@ -0,0 +1,48 @@
+package com.dedalus.uks.ChecksService.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.dedalus.uks.ChecksService.service.ChecksService;
+
+/**
+ * The code-format check over generated ValueSets, 1% of the expansion codes fail.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Benchmark)
+public class CheckCodeFormatBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    public int expansionSize;
+
+    private ChecksService checksService;
+    private ValueSet valueSet;
+
+    @Setup
+    public void setup() {
+        checksService = BenchmarkData.checksService();
+        valueSet = BenchmarkData.valueSet(expansionSize, 42);
+    }
+
+    @Benchmark
+    public OperationOutcome checkCodeFormat() {
+        return checksService.checkCodeFormat(valueSet, "code-format");
+    }
+}
@@ -0,0 +1,73 @@
+package com.dedalus.uks.ChecksService.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.snomed.langauges.ecl.ECLObjectFactory;
+import org.snomed.langauges.ecl.ECLQueryBuilder;
+import org.snomed.langauges.ecl.domain.expressionconstraint.ExpressionConstraint;
+
+import com.dedalus.uks.ChecksService.service.ChecksService;
+import com.dedalus.uks.ChecksService.service.EclConceptVisitor;
+
+/**
+ * ECL concept extraction, with and without the ANTLR parse in front of it, and through the cache.
+ * multiPassExtractOnly runs the extraction EclConceptVisitor replaced, for comparison.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EclParseBenchmark {
+
+    // Indexes into BenchmarkData.ECL_EXPRESSIONS
+    @Param({"0", "1", "2", "3", "4"})
+    public int expression;
+
+    private ChecksService checksService;
+    private ECLQueryBuilder eclQueryBuilder;
+    private String ecl;
+    private ExpressionConstraint parsed;
+
+    @Setup
+    public void setup() {
+        checksService = BenchmarkData.checksService();
+        eclQueryBuilder = new ECLQueryBuilder(new ECLObjectFactory());
+        ecl = BenchmarkData.ECL_EXPRESSIONS[expression];
+        parsed = eclQueryBuilder.createQuery(ecl);
+    }
+
+    @Benchmark
+    public List<String> parseAndExtract() {
+        return EclConceptVisitor.conceptIds(eclQueryBuilder.createQuery(ecl));
+    }
+
+    @Benchmark
+    public List<String> extractOnly() {
+        return EclConceptVisitor.conceptIds(parsed);
+    }
+
+    @Benchmark
+    public List<String> multiPassExtractOnly() {
+        return MultiPassEclParser.conceptIds(parsed);
+    }
+
+    // Goes through the ECL cache, so after the first call this is a cache hit
+    @Benchmark
+    public List<String> cachedConceptIds() {
+        return checksService.getEclConceptIds(ecl);
+    }
+}
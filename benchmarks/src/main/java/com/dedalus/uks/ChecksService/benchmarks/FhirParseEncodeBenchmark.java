@@ -0,0 +1,70 @@
+package com.dedalus.uks.ChecksService.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Task;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.dedalus.uks.ChecksService.service.ChecksService;
+
+import ca.uhn.fhir.context.FhirContext;
+
+/**
+ * The HAPI work done by ChecksController.checkTask around the check itself: parsing the
+ * incoming Task with its contained ValueSet and encoding the resulting OperationOutcome.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Benchmark)
+public class FhirParseEncodeBenchmark {
+
+    @Param({"1000", "100000"})
+    public int expansionSize;
+
+    private FhirContext fhirContext;
+    private String taskJson;
+    private OperationOutcome operationOutcome;
+
+    @Setup
+    public void setup() {
+        ChecksService checksService = BenchmarkData.checksService();
+        fhirContext = checksService.getFHIRContext();
+
+        ValueSet valueSet = BenchmarkData.valueSet(expansionSize, 42);
+        Task task = new Task();
+        task.setInstantiatesCanonical("http://dedalus.com/fhir/ActivityDefinition/code-format");
+        task.setStatus(Task.TaskStatus.REQUESTED);
+        task.setIntent(Task.TaskIntent.ORDER);
+        task.addContained(valueSet);
+        task.setFocus(new Reference("#" + valueSet.getIdElement().getIdPart()));
+        taskJson = fhirContext.newJsonParser().encodeResourceToString(task);
+
+        operationOutcome = checksService.checkCodeFormat(valueSet, "code-format");
+    }
+
+    @Benchmark
+    public Task parseTask() {
+        return fhirContext.newJsonParser().parseResource(Task.class, taskJson);
+    }
+
+    @Benchmark
+    public String encodeOperationOutcome() {
+        return fhirContext.newJsonParser().encodeResourceToString(operationOutcome);
+    }
+}
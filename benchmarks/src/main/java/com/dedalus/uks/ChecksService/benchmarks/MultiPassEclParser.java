@@ -0,0 +1,248 @@
+package com.dedalus.uks.ChecksService.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.snomed.langauges.ecl.domain.ConceptReference;
+import org.snomed.langauges.ecl.domain.Pair;
+import org.snomed.langauges.ecl.domain.expressionconstraint.CompoundExpressionConstraint;
+import org.snomed.langauges.ecl.domain.expressionconstraint.DottedExpressionConstraint;
+import org.snomed.langauges.ecl.domain.expressionconstraint.ExpressionConstraint;
+import org.snomed.langauges.ecl.domain.expressionconstraint.RefinedExpressionConstraint;
+import org.snomed.langauges.ecl.domain.expressionconstraint.SubExpressionConstraint;
+import org.snomed.langauges.ecl.domain.filter.ConceptFilterConstraint;
+import org.snomed.langauges.ecl.domain.filter.DescriptionFilterConstraint;
+import org.snomed.langauges.ecl.domain.filter.DescriptionTypeFilter;
+import org.snomed.langauges.ecl.domain.filter.DialectFilter;
+import org.snomed.langauges.ecl.domain.filter.FieldFilter;
+import org.snomed.langauges.ecl.domain.filter.MemberFieldFilter;
+import org.snomed.langauges.ecl.domain.filter.MemberFilterConstraint;
+import org.snomed.langauges.ecl.domain.refinement.EclAttributeGroup;
+import org.snomed.langauges.ecl.domain.refinement.EclAttributeSet;
+import org.snomed.langauges.ecl.domain.refinement.EclRefinement;
+import org.snomed.langauges.ecl.domain.refinement.SubAttributeSet;
+import org.snomed.langauges.ecl.domain.refinement.SubRefinement;
+
+/**
+ * The concept extraction ChecksService used before EclConceptVisitor, kept as the baseline of
+ * EclParseBenchmark. Every level of the expression builds its own list and copies it up, and a
+ * concept is listed each time it appears. Only the stdout printing has been left out.
+ */
+final class MultiPassEclParser {
+
+    private MultiPassEclParser() {
+    }
+
+    static List<String> conceptIds(ExpressionConstraint expressionConstraint) {
+        List<String> concepts = new ArrayList<>();
+        if (expressionConstraint instanceof CompoundExpressionConstraint) {
+            concepts.addAll(parseCompound((CompoundExpressionConstraint) expressionConstraint));
+        } else if (expressionConstraint instanceof DottedExpressionConstraint) {
+            concepts.addAll(parseDotted((DottedExpressionConstraint) expressionConstraint));
+        } else if (expressionConstraint instanceof SubExpressionConstraint) {
+            concepts.addAll(parseSubExpression((SubExpressionConstraint) expressionConstraint));
+        } else if (expressionConstraint instanceof RefinedExpressionConstraint) {
+            concepts.addAll(parseRefined((RefinedExpressionConstraint) expressionConstraint));
+        }
+        return concepts;
+    }
+
+    private static List<String> parseCompound(CompoundExpressionConstraint constraint) {
+        List<String> concepts = new ArrayList<>();
+        if (constraint.getConjunctionExpressionConstraints() != null) {
+            for (SubExpressionConstraint subExpressionConstraint : constraint.getConjunctionExpressionConstraints()) {
+                concepts.addAll(parseSubExpression(subExpressionConstraint));
+            }
+        }
+        if (constraint.getDisjunctionExpressionConstraints() != null) {
+            for (SubExpressionConstraint subExpressionConstraint : constraint.getDisjunctionExpressionConstraints()) {
+                concepts.addAll(parseSubExpression(subExpressionConstraint));
+            }
+        }
+        Pair<SubExpressionConstraint> exclusion = constraint.getExclusionExpressionConstraints();
+        if (exclusion != null) {
+            if (exclusion.getFirst() != null) {
+                concepts.addAll(parseSubExpression(exclusion.getFirst()));
+            }
+            if (exclusion.getSecond() != null) {
+                concepts.addAll(parseSubExpression(exclusion.getSecond()));
+            }
+        }
+        return concepts;
+    }
+
+    private static List<String> parseDotted(DottedExpressionConstraint constraint) {
+        List<String> concepts = new ArrayList<>();
+        if (constraint.getSubExpressionConstraint() != null) {
+            concepts.addAll(parseSubExpression(constraint.getSubExpressionConstraint()));
+        }
+        if (constraint.getDottedAttributes() != null) {
+            for (SubExpressionConstraint dottedAttribute : constraint.getDottedAttributes()) {
+                concepts.addAll(parseSubExpression(dottedAttribute));
+            }
+        }
+        return concepts;
+    }
+
+    private static List<String> parseConceptFilter(ConceptFilterConstraint conceptFilterConstraint) {
+        List<String> concepts = new ArrayList<>();
+        if (conceptFilterConstraint.getDefinitionStatusFilters() != null) {
+            for (FieldFilter fieldFilter : conceptFilterConstraint.getDefinitionStatusFilters()) {
+                if (fieldFilter.getConceptReferences() != null) {
+                    for (ConceptReference conceptReference : fieldFilter.getConceptReferences()) {
+                        if (conceptReference.getConceptId() != null) {
+                            concepts.add(conceptReference.getConceptId());
+                        }
+                    }
+                }
+                if (fieldFilter.getSubExpressionConstraint() != null) {
+                    concepts.addAll(parseSubExpression(fieldFilter.getSubExpressionConstraint()));
+                }
+            }
+        }
+        return concepts;
+    }
+
+    private static List<String> parseMemberFilter(MemberFilterConstraint memberFilterConstraint) {
+        List<String> concepts = new ArrayList<>();
+        if (memberFilterConstraint.getMemberFieldFilters() != null) {
+            for (MemberFieldFilter fieldFilter : memberFilterConstraint.getMemberFieldFilters()) {
+                if (fieldFilter.getSubExpressionConstraint() != null) {
+                    concepts.addAll(parseSubExpression(fieldFilter.getSubExpressionConstraint()));
+                }
+            }
+        }
+        return concepts;
+    }
+
+    private static List<String> parseAttributeGroup(EclAttributeGroup attributeGroup) {
+        List<String> concepts = new ArrayList<>();
+        if (attributeGroup.getAttributeSet() != null) {
+            concepts.addAll(parseAttributeSet(attributeGroup.getAttributeSet()));
+        }
+        return concepts;
+    }
+
+    private static List<String> parseSubAttributeSet(SubAttributeSet subAttributeSet) {
+        List<String> concepts = new ArrayList<>();
+        if (subAttributeSet.getAttribute() != null) {
+            if (subAttributeSet.getAttribute().getAttributeName() != null) {
+                concepts.addAll(parseSubExpression(subAttributeSet.getAttribute().getAttributeName()));
+            }
+            if (subAttributeSet.getAttribute().getValue() != null) {
+                concepts.addAll(parseSubExpression(subAttributeSet.getAttribute().getValue()));
+            }
+        }
+        if (subAttributeSet.getAttributeSet() != null) {
+            concepts.addAll(parseAttributeSet(subAttributeSet.getAttributeSet()));
+        }
+        return concepts;
+    }
+
+    private static List<String> parseAttributeSet(EclAttributeSet attributeSet) {
+        List<String> concepts = new ArrayList<>();
+        if (attributeSet.getSubAttributeSet() != null) {
+            concepts.addAll(parseSubAttributeSet(attributeSet.getSubAttributeSet()));
+        }
+        if (attributeSet.getConjunctionAttributeSet() != null) {
+            for (SubAttributeSet subAttributeSet : attributeSet.getConjunctionAttributeSet()) {
+                concepts.addAll(parseSubAttributeSet(subAttributeSet));
+            }
+        }
+        if (attributeSet.getDisjunctionAttributeSet() != null) {
+            for (SubAttributeSet subAttributeSet : attributeSet.getDisjunctionAttributeSet()) {
+                concepts.addAll(parseSubAttributeSet(subAttributeSet));
+            }
+        }
+        return concepts;
+    }
+
+    private static List<String> parseSubRefinement(SubRefinement subRefinement) {
+        List<String> concepts = new ArrayList<>();
+        if (subRefinement.getEclRefinement() != null) {
+            concepts.addAll(parseRefinement(subRefinement.getEclRefinement()));
+        }
+        if (subRefinement.getEclAttributeGroup() != null) {
+            concepts.addAll(parseAttributeGroup(subRefinement.getEclAttributeGroup()));
+        }
+        if (subRefinement.getEclAttributeSet() != null) {
+            concepts.addAll(parseAttributeSet(subRefinement.getEclAttributeSet()));
+        }
+        return concepts;
+    }
+
+    private static List<String> parseRefinement(EclRefinement refinement) {
+        List<String> concepts = new ArrayList<>();
+        if (refinement.getSubRefinement() != null) {
+            concepts.addAll(parseSubRefinement(refinement.getSubRefinement()));
+        }
+        if (refinement.getConjunctionSubRefinements() != null) {
+            for (SubRefinement subRefinement : refinement.getConjunctionSubRefinements()) {
+                concepts.addAll(parseSubRefinement(subRefinement));
+            }
+        }
+        if (refinement.getDisjunctionSubRefinements() != null) {
+            for (SubRefinement subRefinement : refinement.getDisjunctionSubRefinements()) {
+                concepts.addAll(parseSubRefinement(subRefinement));
+            }
+        }
+        return concepts;
+    }
+
+    private static List<String> parseRefined(RefinedExpressionConstraint constraint) {
+        List<String> concepts = new ArrayList<>();
+        if (constraint.getEclRefinement() != null) {
+            concepts.addAll(parseRefinement(constraint.getEclRefinement()));
+        }
+        if (constraint.getSubexpressionConstraint() != null) {
+            concepts.addAll(conceptIds(constraint.getSubexpressionConstraint()));
+        }
+        return concepts;
+    }
+
+    private static List<String> parseSubExpression(SubExpressionConstraint constraint) {
+        List<String> concepts = new ArrayList<>();
+        if (constraint.getConceptId() != null) {
+            concepts.add(constraint.getConceptId());
+        }
+        if (constraint.getNestedExpressionConstraint() != null) {
+            concepts.addAll(conceptIds(constraint.getNestedExpressionConstraint()));
+        }
+        if (constraint.getMemberFilterConstraints() != null) {
+            for (MemberFilterConstraint memberFilterConstraint : constraint.getMemberFilterConstraints()) {
+                concepts.addAll(parseMemberFilter(memberFilterConstraint));
+            }
+        }
+        if (constraint.getConceptFilterConstraints() != null) {
+            for (ConceptFilterConstraint conceptFilterConstraint : constraint.getConceptFilterConstraints()) {
+                concepts.addAll(parseConceptFilter(conceptFilterConstraint));
+            }
+        }
+        if (constraint.getDescriptionFilterConstraints() != null) {
+            for (DescriptionFilterConstraint descriptionFilterConstraint : constraint.getDescriptionFilterConstraints()) {
+                if (descriptionFilterConstraint.getDialectFilters() != null) {
+                    for (DialectFilter filter : descriptionFilterConstraint.getDialectFilters()) {
+                        if (filter.getSubExpressionConstraint() != null) {
+                            concepts.addAll(parseSubExpression(filter.getSubExpressionConstraint()));
+                        }
+                    }
+                }
+                if (descriptionFilterConstraint.getModuleFilters() != null) {
+                    for (FieldFilter filter : descriptionFilterConstraint.getModuleFilters()) {
+                        if (filter.getSubExpressionConstraint() != null) {
+                            concepts.addAll(parseSubExpression(filter.getSubExpressionConstraint()));
+                        }
+                    }
+                }
+                if (descriptionFilterConstraint.getDescriptionTypeFilters() != null) {
+                    for (DescriptionTypeFilter filter : descriptionFilterConstraint.getDescriptionTypeFilters()) {
+                        if (filter.getSubExpressionConstraint() != null) {
+                            concepts.addAll(parseSubExpression(filter.getSubExpressionConstraint()));
+                        }
+                    }
+                }
+            }
+        }
+        return concepts;
+    }
+}
@@ -0,0 +1,63 @@
+package com.dedalus.uks.ChecksService.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.dedalus.uks.ChecksService.service.SCTValidationService;
+
+/**
+ * The bulk SCTValidationService entry points over a generated batch with 1% invalid codes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SCTBatchValidationBenchmark {
+
+    @Param({"10000"})
+    public int batchSize;
+
+    private SCTValidationService sctValidationService;
+    private char[] packed;
+    private int[] offsets;
+    private long[] numeric;
+
+    @Setup
+    public void setup() {
+        sctValidationService = new SCTValidationService();
+
+        String[] codes = BenchmarkData.codes(batchSize, 42);
+        offsets = new int[codes.length + 1];
+        numeric = new long[codes.length];
+        StringBuilder buffer = new StringBuilder();
+        for (int i = 0; i < codes.length; i++) {
+            buffer.append(codes[i]);
+            offsets[i + 1] = buffer.length();
+            numeric[i] = Long.parseLong(codes[i]);
+        }
+        packed = buffer.toString().toCharArray();
+    }
+
+    @Benchmark
+    public byte[] validatePackedBatch() {
+        return sctValidationService.validateIdentifierFormats(packed, offsets, batchSize);
+    }
+
+    @Benchmark
+    public byte[] validateNumericBatch() {
+        return sctValidationService.validateIdentifierFormats(numeric);
+    }
+}
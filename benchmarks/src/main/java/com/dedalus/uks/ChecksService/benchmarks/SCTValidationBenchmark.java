@@ -0,0 +1,56 @@
+package com.dedalus.uks.ChecksService.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.dedalus.uks.ChecksService.service.SCTValidationService;
+
+/**
+ * SCTValidationService on single valid, invalid and long-form codes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SCTValidationBenchmark {
+
+    @Param({
+        "71388002",            // valid short form
+        "9991000000102",       // valid long form
+        "71388003",            // bad check digit
+        "fake-snomed-code",    // not numeric
+        "991013181000000104"   // long form, bad check digit
+    })
+    public String code;
+
+    private SCTValidationService sctValidationService;
+
+    @Setup
+    public void setup() {
+        sctValidationService = new SCTValidationService();
+    }
+
+    @Benchmark
+    public OperationOutcome validateIdentifierFormat() {
+        return sctValidationService.validateIdentifierFormat(code);
+    }
+
+    @Benchmark
+    public SCTValidationService.FormatResult checkIdentifierFormat() {
+        return sctValidationService.checkIdentifierFormat(code);
+    }
+}
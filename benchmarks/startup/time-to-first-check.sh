@@ -0,0 +1,41 @@
+#!/usr/bin/env bash
+#
+# Measures the time from starting a container to the first successful /check, the number that
+# matters on an autoscale event. Runs the image RUNS times and prints each result, together
+# with the JVM's own figure from the "First successful check" log line.
+#
+# Compare an image built with the defaults against one built with SPRING_AOT=false, or with
+# checks.startup.warmup turned off, to see what each step is worth. The Task has to reach the
+# real servers for its ActivityDefinition, so mount an application.yml with working credentials.
+#
+#   IMAGE=vsmt-checks CONFIG=/opt/application.yml ./time-to-first-check.sh
+#
+set -euo pipefail
+
+cd "$(dirname "$0")"
+
+IMAGE=${IMAGE:-vsmt-checks}
+CONFIG=${CONFIG:-$(pwd)/../../src/main/resources/application.yml}
+TASK=${TASK:-../load/task-code-format.json}
+PORT=${PORT:-8089}
+RUNS=${RUNS:-5}
+
+for run in $(seq 1 "$RUNS"); do
+    started=$(date +%s%N)
+    container=$(docker run -d -p "$PORT:8080" \
+        -v "$CONFIG:/config/application.yml:ro" \
+        -e SPRING_CONFIG_ADDITIONAL_LOCATION=file:/config/application.yml \
+        "$IMAGE")
+    trap "docker rm -f $container > /dev/null 2>&1 || true" EXIT
+
+    until curl -sf -o /dev/null -X POST -H "Content-Type: application/fhir+json" --data-binary "@$TASK" "http://127.0.0.1:$PORT/check"; do
+        sleep 0.1
+    done
+    finished=$(date +%s%N)
+
+    jvm=$(docker logs "$container" 2>&1 | grep -o "First successful check [0-9]* ms" || echo "not logged")
+    echo "run $run: $(( (finished - started) / 1000000 )) ms from docker run, JVM: $jvm"
+
+    docker rm -f "$container" > /dev/null
+    trap - EXIT
+done
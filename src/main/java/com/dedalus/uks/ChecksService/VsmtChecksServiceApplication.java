@@ -2,11 +2,13 @@ package com.dedalus.uks.ChecksService;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
-import org.springframework.context.annotation.Bean;
-import org.springframework.web.client.RestTemplate;
+import org.springframework.context.annotation.ImportRuntimeHints;
+
+import com.dedalus.uks.ChecksService.config.NativeHints;
 
 
 @SpringBootApplication
+@ImportRuntimeHints(NativeHints.class)
 //@EnableConfigurationProperties(S3IndexerConfig.class)
 public class VsmtChecksServiceApplication {
 
@@ -14,9 +16,4 @@ public class VsmtChecksServiceApplication {
 		SpringApplication.run(VsmtChecksServiceApplication.class, args);
 	}
 
-	 @Bean
-    public RestTemplate restTemplate() {
-        return new RestTemplate();
-    }
-
 }
@@ -0,0 +1,31 @@
+package com.dedalus.uks.ChecksService.checks;
+
+import com.dedalus.uks.ChecksService.service.ResolutionContext;
+
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.ValueSet;
+
+import java.util.Set;
+
+/**
+ * A check that can be run against the focus ValueSet of a Task.
+ *
+ * Implementations are Spring beans and are found by the ActivityDefinition code they answer
+ * to, see {@link CheckRegistry}. Adding a check means adding a bean, nothing else changes.
+ */
+public interface Check {
+
+    /**
+     * The ActivityDefinition.code this check is selected by, e.g. code-format.
+     */
+    String getCode();
+
+    /**
+     * What the check needs beyond the ValueSet when it runs. Outcomes of a check with
+     * REMOTE_TERMINOLOGY depend on the terminology server and are only cached when
+     * checks.resultCache.includeRemoteTerminology is set.
+     */
+    Set<CheckRequirement> getRequirements(ValueSet valueSet);
+
+    OperationOutcome run(ValueSet valueSet, ResolutionContext resolutionContext);
+}
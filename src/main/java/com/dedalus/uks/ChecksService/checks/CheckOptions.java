@@ -0,0 +1,114 @@
+package com.dedalus.uks.ChecksService.checks;
+
+import com.dedalus.uks.ChecksService.config.ChecksConfig;
+import com.dedalus.uks.ChecksService.exception.InvalidCheckOptionException;
+
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.Task;
+import org.hl7.fhir.r4.model.Type;
+
+/**
+ * How a check reports its issues, set per request in Task.input. An input is named by the text
+ * or a coding code of its type:
+ *  - maxIssues (valueInteger): keep at most this many issues, the rest are only counted
+ *  - failFast (valueInteger, or valueBoolean for 1): stop checking after this many errors
+ *  - aggregate (valueBoolean): one issue per failure reason, with a count and sample codes
+ * Zero means no limit. Other inputs are ignored, and anything not given comes from checks.issues.
+ */
+public final class CheckOptions {
+
+    public static final String MAX_ISSUES = "maxIssues";
+    public static final String FAIL_FAST = "failFast";
+    public static final String AGGREGATE = "aggregate";
+
+    public static final CheckOptions UNLIMITED = new CheckOptions(0, 0, false, 0);
+
+    private final int maxIssues;
+    private final int failFast;
+    private final boolean aggregate;
+    private final int sampleCodes;
+
+    public CheckOptions(int maxIssues, int failFast, boolean aggregate, int sampleCodes) {
+        this.maxIssues = maxIssues;
+        this.failFast = failFast;
+        this.aggregate = aggregate;
+        this.sampleCodes = sampleCodes;
+    }
+
+    public static CheckOptions fromTask(Task task, ChecksConfig.Issues config) {
+        int maxIssues = config.getMaxIssues();
+        int failFast = config.getFailFast();
+        boolean aggregate = config.isAggregate();
+
+        for (Task.ParameterComponent input : task.getInput()) {
+            String name = nameOf(input.getType());
+            if (MAX_ISSUES.equals(name)) {
+                maxIssues = intValue(name, input.getValue(), false);
+            } else if (FAIL_FAST.equals(name)) {
+                failFast = intValue(name, input.getValue(), true);
+            } else if (AGGREGATE.equals(name)) {
+                if (!(input.getValue() instanceof BooleanType) || !((BooleanType) input.getValue()).hasValue()) {
+                    throw new InvalidCheckOptionException("Task.input " + name + " must have a valueBoolean");
+                }
+                aggregate = ((BooleanType) input.getValue()).booleanValue();
+            }
+        }
+
+        // The server limit applies to requests for no limit as well
+        int limit = config.getMaxIssuesLimit();
+        if (limit > 0 && (maxIssues == 0 || maxIssues > limit)) {
+            maxIssues = limit;
+        }
+        return new CheckOptions(maxIssues, failFast, aggregate, Math.max(0, config.getSampleCodes()));
+    }
+
+    private static String nameOf(CodeableConcept type) {
+        if (type == null) {
+            return null;
+        }
+        if (type.hasText()) {
+            return type.getText();
+        }
+        for (Coding coding : type.getCoding()) {
+            if (MAX_ISSUES.equals(coding.getCode()) || FAIL_FAST.equals(coding.getCode()) || AGGREGATE.equals(coding.getCode())) {
+                return coding.getCode();
+            }
+        }
+        return null;
+    }
+
+    private static int intValue(String name, Type value, boolean booleanAllowed) {
+        if (value instanceof IntegerType && ((IntegerType) value).hasValue() && ((IntegerType) value).getValue() >= 0) {
+            return ((IntegerType) value).getValue();
+        }
+        if (booleanAllowed && value instanceof BooleanType && ((BooleanType) value).hasValue()) {
+            return ((BooleanType) value).booleanValue() ? 1 : 0;
+        }
+        throw new InvalidCheckOptionException("Task.input " + name + " must have a valueInteger of 0 or more" + (booleanAllowed ? ", or a valueBoolean" : ""));
+    }
+
+    public int getMaxIssues() {
+        return maxIssues;
+    }
+
+    public int getFailFast() {
+        return failFast;
+    }
+
+    public boolean isAggregate() {
+        return aggregate;
+    }
+
+    public int getSampleCodes() {
+        return sampleCodes;
+    }
+
+    // Part of the result cache key, options change the outcome
+    @Override
+    public String toString() {
+        return MAX_ISSUES + "=" + maxIssues + "," + FAIL_FAST + "=" + failFast + "," + AGGREGATE + "=" + aggregate + ",sampleCodes=" + sampleCodes;
+    }
+}
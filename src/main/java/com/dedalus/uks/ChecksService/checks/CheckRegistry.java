@@ -0,0 +1,56 @@
+package com.dedalus.uks.ChecksService.checks;
+
+import lombok.extern.slf4j.Slf4j;
+
+import org.hl7.fhir.r4.model.ActivityDefinition;
+import org.hl7.fhir.r4.model.Coding;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * All Check beans, keyed by the ActivityDefinition code they answer to.
+ */
+@Component
+@Slf4j
+public class CheckRegistry {
+
+    private final Map<String, Check> checksByCode = new HashMap<>();
+
+    @Autowired
+    public CheckRegistry(List<Check> checks) {
+        for (Check check : checks) {
+            Check previous = checksByCode.putIfAbsent(check.getCode(), check);
+            if (previous != null) {
+                throw new IllegalStateException("Checks " + previous.getClass().getSimpleName() + " and " + check.getClass().getSimpleName() + " both use the code " + check.getCode());
+            }
+        }
+        log.info("Registered checks " + checksByCode.keySet());
+    }
+
+    public Check find(String code) {
+        return (code == null) ? null : checksByCode.get(code);
+    }
+
+    /**
+     * The check for the first ActivityDefinition.code coding that has one, or null.
+     */
+    public Check find(ActivityDefinition activityDefinition) {
+        for (Coding coding : activityDefinition.getCode().getCoding()) {
+            Check check = find(coding.getCode());
+            if (check != null) {
+                return check;
+            }
+        }
+        return null;
+    }
+
+    public Set<String> getCodes() {
+        return Collections.unmodifiableSet(checksByCode.keySet());
+    }
+}
@@ -0,0 +1,9 @@
+package com.dedalus.uks.ChecksService.checks;
+
+/**
+ * What a check needs beyond the ValueSet in the request.
+ */
+public enum CheckRequirement {
+    // Calls to the terminology server while the check runs
+    REMOTE_TERMINOLOGY
+}
@@ -0,0 +1,41 @@
+package com.dedalus.uks.ChecksService.checks;
+
+import com.dedalus.uks.ChecksService.service.ConceptExistenceService;
+import com.dedalus.uks.ChecksService.service.ResolutionContext;
+
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Checks every code of the compose and expansion exists, and is active, in its CodeSystem.
+ */
+@Component
+public class CodeExistsCheck implements Check {
+
+    private final ConceptExistenceService conceptExistenceService;
+
+    @Autowired
+    public CodeExistsCheck(ConceptExistenceService conceptExistenceService) {
+        this.conceptExistenceService = conceptExistenceService;
+    }
+
+    @Override
+    public String getCode() {
+        return ConceptExistenceService.CHECK_CODE;
+    }
+
+    @Override
+    public Set<CheckRequirement> getRequirements(ValueSet valueSet) {
+        return EnumSet.of(CheckRequirement.REMOTE_TERMINOLOGY);
+    }
+
+    @Override
+    public OperationOutcome run(ValueSet valueSet, ResolutionContext resolutionContext) {
+        return conceptExistenceService.checkCodeExists(valueSet, resolutionContext.getCheckOptions());
+    }
+}
@@ -0,0 +1,51 @@
+package com.dedalus.uks.ChecksService.checks;
+
+import com.dedalus.uks.ChecksService.service.ChecksService;
+import com.dedalus.uks.ChecksService.service.ResolutionContext;
+import com.dedalus.uks.ChecksService.service.ValueSetExpander;
+
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Checks every SNOMED CT code of the compose and expansion is a well formed concept identifier.
+ * With checks.expand.enabled a compose-only ValueSet is expanded on the terminology server
+ * first, so the outcome for it then depends on the server as for code-exists.
+ */
+@Component
+public class CodeFormatCheck implements Check {
+
+    public static final String CODE = "code-format";
+
+    private final ChecksService checksService;
+    private final ValueSetExpander valueSetExpander;
+
+    @Autowired
+    public CodeFormatCheck(ChecksService checksService, ValueSetExpander valueSetExpander) {
+        this.checksService = checksService;
+        this.valueSetExpander = valueSetExpander;
+    }
+
+    @Override
+    public String getCode() {
+        return CODE;
+    }
+
+    @Override
+    public Set<CheckRequirement> getRequirements(ValueSet valueSet) {
+        if (valueSetExpander.needsExpansion(valueSet)) {
+            return EnumSet.of(CheckRequirement.REMOTE_TERMINOLOGY);
+        }
+        return EnumSet.noneOf(CheckRequirement.class);
+    }
+
+    @Override
+    public OperationOutcome run(ValueSet valueSet, ResolutionContext resolutionContext) {
+        return checksService.checkCodeFormat(valueSet, CODE, resolutionContext.getCheckOptions());
+    }
+}
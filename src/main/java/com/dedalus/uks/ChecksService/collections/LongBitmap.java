@@ -0,0 +1,101 @@
+package com.dedalus.uks.ChecksService.collections;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compressed bitmap of longs, in the style of a roaring bitmap.
+ *
+ * Values are grouped by their high 48 bits into chunks of 65536. A chunk starts as a sorted
+ * array of its low 16 bits and turns into a plain 8KB bitset once it holds more than 4096
+ * values, the point where the bitset is the smaller of the two. Worth it for dense id ranges,
+ * such as the item identifiers of a single extension namespace, sparse sets are better held
+ * in a {@link LongHashSet} or {@link SortedLongSet}.
+ */
+public class LongBitmap {
+
+    private static final int ARRAY_LIMIT = 4096;
+    private static final int BITSET_WORDS = 1 << 10;
+
+    private final LongIntHashMap chunkIndex = new LongIntHashMap();
+    private final List<Chunk> chunks = new ArrayList<>();
+    private long cardinality;
+
+    public boolean add(long value) {
+        long high = value >>> 16;
+        char low = (char) value;
+        int index = chunkIndex.get(high, -1);
+        if (index < 0) {
+            index = chunks.size();
+            chunks.add(new Chunk());
+            chunkIndex.put(high, index);
+        }
+        if (chunks.get(index).add(low)) {
+            cardinality++;
+            return true;
+        }
+        return false;
+    }
+
+    public boolean contains(long value) {
+        int index = chunkIndex.get(value >>> 16, -1);
+        return index >= 0 && chunks.get(index).contains((char) value);
+    }
+
+    public long cardinality() {
+        return cardinality;
+    }
+
+    private static final class Chunk {
+        private char[] array = new char[4];
+        private long[] bits;
+        private int size;
+
+        boolean add(char low) {
+            if (bits != null) {
+                long word = bits[low >>> 6];
+                long mask = 1L << low;
+                if ((word & mask) != 0) {
+                    return false;
+                }
+                bits[low >>> 6] = word | mask;
+                size++;
+                return true;
+            }
+
+            int position = Arrays.binarySearch(array, 0, size, low);
+            if (position >= 0) {
+                return false;
+            }
+            if (size == ARRAY_LIMIT) {
+                toBitset();
+                return add(low);
+            }
+            position = -position - 1;
+            if (size == array.length) {
+                array = Arrays.copyOf(array, Math.min(ARRAY_LIMIT, size * 2));
+            }
+            System.arraycopy(array, position, array, position + 1, size - position);
+            array[position] = low;
+            size++;
+            return true;
+        }
+
+        boolean contains(char low) {
+            if (bits != null) {
+                return (bits[low >>> 6] & (1L << low)) != 0;
+            }
+            return Arrays.binarySearch(array, 0, size, low) >= 0;
+        }
+
+        private void toBitset() {
+            bits = new long[BITSET_WORDS];
+            for (int i = 0; i < size; i++) {
+                char low = array[i];
+                bits[low >>> 6] |= 1L << low;
+            }
+            array = null;
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.dedalus.uks.ChecksService.collections;
+
+final class LongHashing {
+
+    private LongHashing() {
+    }
+
+    // SCTIDs end in a partition and check digit, so the low bits alone spread badly, mix them all in
+    static int mix(long value) {
+        long h = value * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,147 @@
+package com.dedalus.uks.ChecksService.collections;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing map from long keys to int values, with linear probing and no boxing.
+ *
+ * As in {@link LongHashSet} the key 0 marks an empty slot, and is held separately if used.
+ * Callers choose the value that stands for a missing key, see {@link #get(long, int)}.
+ */
+public class LongIntHashMap {
+
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private long[] keys;
+    private int[] values;
+    private int mask;
+    private int size;
+    private boolean hasZeroKey;
+    private int zeroValue;
+    private int resizeAt;
+
+    public LongIntHashMap() {
+        this(16);
+    }
+
+    public LongIntHashMap(int expectedSize) {
+        allocate(LongHashSet.capacityFor(expectedSize));
+    }
+
+    public int get(long key, int missingValue) {
+        if (key == 0) {
+            return hasZeroKey ? zeroValue : missingValue;
+        }
+        int slot = LongHashing.mix(key) & mask;
+        while (keys[slot] != 0) {
+            if (keys[slot] == key) {
+                return values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return missingValue;
+    }
+
+    public boolean containsKey(long key) {
+        if (key == 0) {
+            return hasZeroKey;
+        }
+        int slot = LongHashing.mix(key) & mask;
+        while (keys[slot] != 0) {
+            if (keys[slot] == key) {
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    public void put(long key, int value) {
+        insert(key, value, true);
+    }
+
+    /**
+     * Stores the value only if the key is new. Returns the value already held for the key,
+     * or missingValue when the new value was stored.
+     */
+    public int putIfAbsent(long key, int value, int missingValue) {
+        return insert(key, value, false) ? missingValue : get(key, missingValue);
+    }
+
+    // Returns true when the key was not there before
+    private boolean insert(long key, int value, boolean replace) {
+        if (key == 0) {
+            boolean added = !hasZeroKey;
+            if (added || replace) {
+                zeroValue = value;
+            }
+            if (added) {
+                hasZeroKey = true;
+                size++;
+            }
+            return added;
+        }
+        int slot = LongHashing.mix(key) & mask;
+        while (keys[slot] != 0) {
+            if (keys[slot] == key) {
+                if (replace) {
+                    values[slot] = value;
+                }
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        if (++size >= resizeAt) {
+            rehash(keys.length * 2);
+        }
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * The keys in ascending order.
+     */
+    public long[] toSortedKeys() {
+        long[] sorted = new long[size];
+        int count = 0;
+        if (hasZeroKey) {
+            sorted[count++] = 0;
+        }
+        for (long key : keys) {
+            if (key != 0) {
+                sorted[count++] = key;
+            }
+        }
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    private void rehash(int capacity) {
+        long[] previousKeys = keys;
+        int[] previousValues = values;
+        allocate(capacity);
+        for (int i = 0; i < previousKeys.length; i++) {
+            long key = previousKeys[i];
+            if (key != 0) {
+                int slot = LongHashing.mix(key) & mask;
+                while (keys[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = key;
+                values[slot] = previousValues[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+        resizeAt = (int) (capacity * LOAD_FACTOR);
+    }
+}
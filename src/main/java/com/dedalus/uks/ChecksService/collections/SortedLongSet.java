@@ -0,0 +1,183 @@
+package com.dedalus.uks.ChecksService.collections;
+
+import java.util.Arrays;
+
+/**
+ * Immutable set of longs held as one sorted, duplicate free array.
+ *
+ * Eight bytes per element and no per-element objects, which makes it the compact form for
+ * holding a large code set once it is built. Intersection and difference are linear merges,
+ * switching to binary search of the larger side when the sizes are very different.
+ */
+public final class SortedLongSet {
+
+    private static final SortedLongSet EMPTY = new SortedLongSet(new long[0]);
+
+    // Below this size ratio a merge is cheaper than searching the larger set per element
+    private static final int GALLOP_RATIO = 32;
+
+    private final long[] values;
+
+    private SortedLongSet(long[] values) {
+        this.values = values;
+    }
+
+    public static SortedLongSet empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Copies, sorts and deduplicates the values.
+     */
+    public static SortedLongSet of(long... values) {
+        long[] sorted = Arrays.copyOf(values, values.length);
+        Arrays.sort(sorted);
+        return new SortedLongSet(dedup(sorted));
+    }
+
+    public static SortedLongSet of(LongHashSet set) {
+        return new SortedLongSet(set.toSortedArray());
+    }
+
+    public int size() {
+        return values.length;
+    }
+
+    public boolean isEmpty() {
+        return values.length == 0;
+    }
+
+    public boolean contains(long value) {
+        return Arrays.binarySearch(values, value) >= 0;
+    }
+
+    /**
+     * The index of the smallest value not below the given one, or size() when there is none.
+     */
+    public int ceilingIndex(long value) {
+        int index = Arrays.binarySearch(values, value);
+        return (index >= 0) ? index : -index - 1;
+    }
+
+    /**
+     * The i-th smallest value.
+     */
+    public long get(int index) {
+        return values[index];
+    }
+
+    public long[] toArray() {
+        return Arrays.copyOf(values, values.length);
+    }
+
+    public SortedLongSet intersection(SortedLongSet other) {
+        long[] small = (values.length <= other.values.length) ? values : other.values;
+        long[] large = (small == values) ? other.values : values;
+        long[] result = new long[small.length];
+        int count = 0;
+
+        if ((long) small.length * GALLOP_RATIO < large.length) {
+            int from = 0;
+            for (long value : small) {
+                int index = Arrays.binarySearch(large, from, large.length, value);
+                if (index >= 0) {
+                    result[count++] = value;
+                    from = index + 1;
+                } else {
+                    from = -index - 1;
+                }
+            }
+        } else {
+            int i = 0;
+            int j = 0;
+            while (i < small.length && j < large.length) {
+                if (small[i] < large[j]) {
+                    i++;
+                } else if (small[i] > large[j]) {
+                    j++;
+                } else {
+                    result[count++] = small[i];
+                    i++;
+                    j++;
+                }
+            }
+        }
+        return wrap(result, count);
+    }
+
+    /**
+     * The values of this set that are not in the other.
+     */
+    public SortedLongSet difference(SortedLongSet other) {
+        long[] result = new long[values.length];
+        int count = 0;
+
+        if ((long) values.length * GALLOP_RATIO < other.values.length) {
+            int from = 0;
+            for (long value : values) {
+                int index = Arrays.binarySearch(other.values, from, other.values.length, value);
+                if (index < 0) {
+                    result[count++] = value;
+                    from = -index - 1;
+                } else {
+                    from = index + 1;
+                }
+            }
+        } else {
+            int j = 0;
+            for (long value : values) {
+                while (j < other.values.length && other.values[j] < value) {
+                    j++;
+                }
+                if (j == other.values.length || other.values[j] != value) {
+                    result[count++] = value;
+                }
+            }
+        }
+        return wrap(result, count);
+    }
+
+    public SortedLongSet union(SortedLongSet other) {
+        long[] result = new long[values.length + other.values.length];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < values.length && j < other.values.length) {
+            if (values[i] < other.values[j]) {
+                result[count++] = values[i++];
+            } else if (values[i] > other.values[j]) {
+                result[count++] = other.values[j++];
+            } else {
+                result[count++] = values[i++];
+                j++;
+            }
+        }
+        while (i < values.length) {
+            result[count++] = values[i++];
+        }
+        while (j < other.values.length) {
+            result[count++] = other.values[j++];
+        }
+        return wrap(result, count);
+    }
+
+    private static SortedLongSet wrap(long[] result, int count) {
+        if (count == 0) {
+            return EMPTY;
+        }
+        return new SortedLongSet(count == result.length ? result : Arrays.copyOf(result, count));
+    }
+
+    private static long[] dedup(long[] sorted) {
+        if (sorted.length < 2) {
+            return sorted;
+        }
+        int count = 1;
+        for (int i = 1; i < sorted.length; i++) {
+            if (sorted[i] != sorted[count - 1]) {
+                sorted[count++] = sorted[i];
+            }
+        }
+        return (count == sorted.length) ? sorted : Arrays.copyOf(sorted, count);
+    }
+}
@@ -9,6 +9,19 @@ public class ChecksConfig {
 
     private TerminologyServer terminologyServer;
     private FhirServer fhirServer;
+    private Parallel parallel = new Parallel();
+    private EclCache eclCache = new EclCache();
+    private ActivityDefinitions activityDefinitions = new ActivityDefinitions();
+    private Http http = new Http();
+    private Tokens tokens = new Tokens();
+    private CodeExists codeExists = new CodeExists();
+    private LocalIndex localIndex = new LocalIndex();
+    private Async async = new Async();
+    private ResultCache resultCache = new ResultCache();
+    private Fingerprints fingerprints = new Fingerprints();
+    private Startup startup = new Startup();
+    private Issues issues = new Issues();
+    private Expand expand = new Expand();
 
     public FhirServer getFhirServer() {
         return fhirServer;
@@ -25,6 +38,110 @@ public class ChecksConfig {
         this.terminologyServer = terminologyServer;
     }
 
+    public Parallel getParallel() {
+        return parallel;
+    }
+
+    public void setParallel(Parallel parallel) {
+        this.parallel = parallel;
+    }
+
+    public EclCache getEclCache() {
+        return eclCache;
+    }
+
+    public void setEclCache(EclCache eclCache) {
+        this.eclCache = eclCache;
+    }
+
+    public ActivityDefinitions getActivityDefinitions() {
+        return activityDefinitions;
+    }
+
+    public void setActivityDefinitions(ActivityDefinitions activityDefinitions) {
+        this.activityDefinitions = activityDefinitions;
+    }
+
+    public Http getHttp() {
+        return http;
+    }
+
+    public void setHttp(Http http) {
+        this.http = http;
+    }
+
+    public Tokens getTokens() {
+        return tokens;
+    }
+
+    public void setTokens(Tokens tokens) {
+        this.tokens = tokens;
+    }
+
+    public CodeExists getCodeExists() {
+        return codeExists;
+    }
+
+    public void setCodeExists(CodeExists codeExists) {
+        this.codeExists = codeExists;
+    }
+
+    public LocalIndex getLocalIndex() {
+        return localIndex;
+    }
+
+    public void setLocalIndex(LocalIndex localIndex) {
+        this.localIndex = localIndex;
+    }
+
+    public Async getAsync() {
+        return async;
+    }
+
+    public void setAsync(Async async) {
+        this.async = async;
+    }
+
+    public ResultCache getResultCache() {
+        return resultCache;
+    }
+
+    public void setResultCache(ResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    public Fingerprints getFingerprints() {
+        return fingerprints;
+    }
+
+    public void setFingerprints(Fingerprints fingerprints) {
+        this.fingerprints = fingerprints;
+    }
+
+    public Startup getStartup() {
+        return startup;
+    }
+
+    public void setStartup(Startup startup) {
+        this.startup = startup;
+    }
+
+    public Issues getIssues() {
+        return issues;
+    }
+
+    public void setIssues(Issues issues) {
+        this.issues = issues;
+    }
+
+    public Expand getExpand() {
+        return expand;
+    }
+
+    public void setExpand(Expand expand) {
+        this.expand = expand;
+    }
+
     public interface IFhirRestServer {
         String getEndpoint();
         String getAuthenticationEndpoint();
@@ -102,6 +219,460 @@ public class ChecksConfig {
         }   
     }
 
+    /**
+     * Controls the fork-join traversal of large ValueSets. ValueSets with fewer codes than
+     * the threshold are checked serially on the request thread.
+     */
+    public static class Parallel {
+        private boolean enabled = true;
+        private int threshold = 20000;
+        private int leafSize = 4096;
+        private int parallelism = Runtime.getRuntime().availableProcessors();
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getThreshold() {
+            return threshold;
+        }
+        public void setThreshold(int threshold) {
+            this.threshold = threshold;
+        }
+
+        public int getLeafSize() {
+            return leafSize;
+        }
+        public void setLeafSize(int leafSize) {
+            this.leafSize = leafSize;
+        }
+
+        public int getParallelism() {
+            return parallelism;
+        }
+        public void setParallelism(int parallelism) {
+            this.parallelism = parallelism;
+        }
+    }
+
+    public static class EclCache {
+        private int maxSize = 1000;
+
+        public int getMaxSize() {
+            return maxSize;
+        }
+        public void setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+        }
+    }
+
+    public static class ActivityDefinitions {
+        private boolean preload = true;
+        private long refreshIntervalSeconds = 300;
+        private long fullReloadIntervalSeconds = 3600;
+
+        public boolean isPreload() {
+            return preload;
+        }
+        public void setPreload(boolean preload) {
+            this.preload = preload;
+        }
+
+        public long getRefreshIntervalSeconds() {
+            return refreshIntervalSeconds;
+        }
+        public void setRefreshIntervalSeconds(long refreshIntervalSeconds) {
+            this.refreshIntervalSeconds = refreshIntervalSeconds;
+        }
+
+        public long getFullReloadIntervalSeconds() {
+            return fullReloadIntervalSeconds;
+        }
+        public void setFullReloadIntervalSeconds(long fullReloadIntervalSeconds) {
+            this.fullReloadIntervalSeconds = fullReloadIntervalSeconds;
+        }
+    }
+
+    /**
+     * Connection pool and timeouts shared by every outbound HTTP client, and the limit on
+     * inflated gzip request bodies.
+     */
+    public static class Http {
+        private int maxTotalConnections = 100;
+        private int maxConnectionsPerRoute = 50;
+        private int connectTimeoutMillis = 5000;
+        private int socketTimeoutMillis = 60000;
+        private int connectionRequestTimeoutMillis = 5000;
+        private long connectionTimeToLiveSeconds = 300;
+        private long idleTimeoutSeconds = 60;
+        // A gzip request body that inflates past this is refused with 413, see GzipRequestFilter
+        private long maxInflatedBytes = 128L * 1024 * 1024;
+
+        public int getMaxTotalConnections() {
+            return maxTotalConnections;
+        }
+        public void setMaxTotalConnections(int maxTotalConnections) {
+            this.maxTotalConnections = maxTotalConnections;
+        }
+
+        public int getMaxConnectionsPerRoute() {
+            return maxConnectionsPerRoute;
+        }
+        public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+            this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+        }
+
+        public int getConnectTimeoutMillis() {
+            return connectTimeoutMillis;
+        }
+        public void setConnectTimeoutMillis(int connectTimeoutMillis) {
+            this.connectTimeoutMillis = connectTimeoutMillis;
+        }
+
+        public int getSocketTimeoutMillis() {
+            return socketTimeoutMillis;
+        }
+        public void setSocketTimeoutMillis(int socketTimeoutMillis) {
+            this.socketTimeoutMillis = socketTimeoutMillis;
+        }
+
+        public int getConnectionRequestTimeoutMillis() {
+            return connectionRequestTimeoutMillis;
+        }
+        public void setConnectionRequestTimeoutMillis(int connectionRequestTimeoutMillis) {
+            this.connectionRequestTimeoutMillis = connectionRequestTimeoutMillis;
+        }
+
+        public long getConnectionTimeToLiveSeconds() {
+            return connectionTimeToLiveSeconds;
+        }
+        public void setConnectionTimeToLiveSeconds(long connectionTimeToLiveSeconds) {
+            this.connectionTimeToLiveSeconds = connectionTimeToLiveSeconds;
+        }
+
+        public long getIdleTimeoutSeconds() {
+            return idleTimeoutSeconds;
+        }
+        public void setIdleTimeoutSeconds(long idleTimeoutSeconds) {
+            this.idleTimeoutSeconds = idleTimeoutSeconds;
+        }
+
+        public long getMaxInflatedBytes() {
+            return maxInflatedBytes;
+        }
+        public void setMaxInflatedBytes(long maxInflatedBytes) {
+            this.maxInflatedBytes = maxInflatedBytes;
+        }
+    }
+
+    /**
+     * Renewal of the client credentials tokens, see TokenManager.
+     */
+    public static class Tokens {
+        private boolean warmup = true;
+        private long refreshAheadSeconds = 60;
+        private long retryDelaySeconds = 10;
+        // Lifetime assumed when the token response has no positive expires_in
+        private long defaultExpiresInSeconds = 300;
+
+        public boolean isWarmup() {
+            return warmup;
+        }
+        public void setWarmup(boolean warmup) {
+            this.warmup = warmup;
+        }
+
+        public long getRefreshAheadSeconds() {
+            return refreshAheadSeconds;
+        }
+        public void setRefreshAheadSeconds(long refreshAheadSeconds) {
+            this.refreshAheadSeconds = refreshAheadSeconds;
+        }
+
+        public long getRetryDelaySeconds() {
+            return retryDelaySeconds;
+        }
+        public void setRetryDelaySeconds(long retryDelaySeconds) {
+            this.retryDelaySeconds = retryDelaySeconds;
+        }
+
+        public long getDefaultExpiresInSeconds() {
+            return defaultExpiresInSeconds;
+        }
+        public void setDefaultExpiresInSeconds(long defaultExpiresInSeconds) {
+            this.defaultExpiresInSeconds = defaultExpiresInSeconds;
+        }
+    }
+
+    /**
+     * Batching of the terminology server lookups made by the code-exists check.
+     */
+    public static class CodeExists {
+        private int batchSize = 200;
+        private int concurrency = 8;
+
+        public int getBatchSize() {
+            return batchSize;
+        }
+        public void setBatchSize(int batchSize) {
+            this.batchSize = batchSize;
+        }
+
+        public int getConcurrency() {
+            return concurrency;
+        }
+        public void setConcurrency(int concurrency) {
+            this.concurrency = concurrency;
+        }
+    }
+
+    /**
+     * Local SNOMED CT concept index, built from an RF2 snapshot and memory-mapped.
+     */
+    public static class LocalIndex {
+        private boolean enabled = false;
+        private String indexFile;
+        private String rf2SnapshotDirectory;
+        private boolean rebuild = false;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public String getIndexFile() {
+            return indexFile;
+        }
+        public void setIndexFile(String indexFile) {
+            this.indexFile = indexFile;
+        }
+
+        public String getRf2SnapshotDirectory() {
+            return rf2SnapshotDirectory;
+        }
+        public void setRf2SnapshotDirectory(String rf2SnapshotDirectory) {
+            this.rf2SnapshotDirectory = rf2SnapshotDirectory;
+        }
+
+        public boolean isRebuild() {
+            return rebuild;
+        }
+        public void setRebuild(boolean rebuild) {
+            this.rebuild = rebuild;
+        }
+    }
+
+    /**
+     * Background execution of checks requested with Prefer: respond-async.
+     */
+    public static class Async {
+        private int workers = 4;
+        private int queueCapacity = 100;
+        private int maxJobs = 1000;
+        private long resultTtlSeconds = 3600;
+
+        public int getWorkers() {
+            return workers;
+        }
+        public void setWorkers(int workers) {
+            this.workers = workers;
+        }
+
+        public int getQueueCapacity() {
+            return queueCapacity;
+        }
+        public void setQueueCapacity(int queueCapacity) {
+            this.queueCapacity = queueCapacity;
+        }
+
+        public int getMaxJobs() {
+            return maxJobs;
+        }
+        public void setMaxJobs(int maxJobs) {
+            this.maxJobs = maxJobs;
+        }
+
+        public long getResultTtlSeconds() {
+            return resultTtlSeconds;
+        }
+        public void setResultTtlSeconds(long resultTtlSeconds) {
+            this.resultTtlSeconds = resultTtlSeconds;
+        }
+    }
+
+    /**
+     * Check results cached by the content hash of the focus ValueSet. Checks that ask the
+     * terminology server are only cached when includeRemoteTerminology is set, as their result
+     * can change without the ValueSet changing.
+     */
+    public static class ResultCache {
+        private boolean enabled = true;
+        private int maxEntries = 1000;
+        private long ttlSeconds = 3600;
+        private boolean includeRemoteTerminology = false;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getMaxEntries() {
+            return maxEntries;
+        }
+        public void setMaxEntries(int maxEntries) {
+            this.maxEntries = maxEntries;
+        }
+
+        public long getTtlSeconds() {
+            return ttlSeconds;
+        }
+        public void setTtlSeconds(long ttlSeconds) {
+            this.ttlSeconds = ttlSeconds;
+        }
+
+        public boolean isIncludeRemoteTerminology() {
+            return includeRemoteTerminology;
+        }
+        public void setIncludeRemoteTerminology(boolean includeRemoteTerminology) {
+            this.includeRemoteTerminology = includeRemoteTerminology;
+        }
+    }
+
+    /**
+     * Code-exists outcomes kept per ValueSet.url, so a new version only looks up changed codes.
+     * maxCodes bounds the store at 8 bytes per code.
+     */
+    public static class Fingerprints {
+        private boolean enabled = true;
+        private int maxCodes = 2000000;
+        private long ttlSeconds = 86400;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getMaxCodes() {
+            return maxCodes;
+        }
+        public void setMaxCodes(int maxCodes) {
+            this.maxCodes = maxCodes;
+        }
+
+        public long getTtlSeconds() {
+            return ttlSeconds;
+        }
+        public void setTtlSeconds(long ttlSeconds) {
+            this.ttlSeconds = ttlSeconds;
+        }
+    }
+
+    public static class Startup {
+        private boolean warmup = true;
+
+        public boolean isWarmup() {
+            return warmup;
+        }
+        public void setWarmup(boolean warmup) {
+            this.warmup = warmup;
+        }
+    }
+
+    /**
+     * Defaults for the check options a Task can set in Task.input, see CheckOptions. Zero means
+     * no limit. maxIssuesLimit caps what a Task may ask for, sampleCodes is the number of codes
+     * listed in each aggregated issue.
+     */
+    public static class Issues {
+        private int maxIssues = 0;
+        private int maxIssuesLimit = 0;
+        private int failFast = 0;
+        private boolean aggregate = false;
+        private int sampleCodes = 5;
+
+        public int getMaxIssues() {
+            return maxIssues;
+        }
+        public void setMaxIssues(int maxIssues) {
+            this.maxIssues = maxIssues;
+        }
+
+        public int getMaxIssuesLimit() {
+            return maxIssuesLimit;
+        }
+        public void setMaxIssuesLimit(int maxIssuesLimit) {
+            this.maxIssuesLimit = maxIssuesLimit;
+        }
+
+        public int getFailFast() {
+            return failFast;
+        }
+        public void setFailFast(int failFast) {
+            this.failFast = failFast;
+        }
+
+        public boolean isAggregate() {
+            return aggregate;
+        }
+        public void setAggregate(boolean aggregate) {
+            this.aggregate = aggregate;
+        }
+
+        public int getSampleCodes() {
+            return sampleCodes;
+        }
+        public void setSampleCodes(int sampleCodes) {
+            this.sampleCodes = sampleCodes;
+        }
+    }
+
+    /**
+     * Expansion of compose-only ValueSets by the terminology server's $expand before the
+     * code-format check. Pages of pageSize codes are fetched with up to concurrency in flight
+     * per check, and no more than maxCodes codes are fetched in total.
+     */
+    public static class Expand {
+        private boolean enabled = false;
+        private int pageSize = 1000;
+        private int concurrency = 4;
+        private int maxCodes = 1000000;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getPageSize() {
+            return pageSize;
+        }
+        public void setPageSize(int pageSize) {
+            this.pageSize = pageSize;
+        }
+
+        public int getConcurrency() {
+            return concurrency;
+        }
+        public void setConcurrency(int concurrency) {
+            this.concurrency = concurrency;
+        }
+
+        public int getMaxCodes() {
+            return maxCodes;
+        }
+        public void setMaxCodes(int maxCodes) {
+            this.maxCodes = maxCodes;
+        }
+    }
 
-    
 }
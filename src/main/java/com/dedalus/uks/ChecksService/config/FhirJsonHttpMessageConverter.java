@@ -0,0 +1,77 @@
+package com.dedalus.uks.ChecksService.config;
+
+import com.dedalus.uks.ChecksService.service.CheckMetrics;
+
+import ca.uhn.fhir.context.FhirContext;
+import io.micrometer.core.instrument.Timer;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes FHIR resources returned from controllers straight into the response stream, so an
+ * OperationOutcome with thousands of issues is never also held as one large JSON string.
+ *
+ * Spring Boot adds HttpMessageConverter beans ahead of its own converters. The write happens on
+ * the request thread, unlike a StreamingResponseBody, which would need an MVC async executor.
+ */
+@Component
+public class FhirJsonHttpMessageConverter extends AbstractHttpMessageConverter<IBaseResource> {
+
+    public static final MediaType APPLICATION_FHIR_JSON = MediaType.valueOf("application/fhir+json");
+
+    private final FhirContext fhirContext;
+    private final CheckMetrics checkMetrics;
+
+    @Autowired
+    public FhirJsonHttpMessageConverter(FhirContext fhirContext, CheckMetrics checkMetrics) {
+        super(StandardCharsets.UTF_8, APPLICATION_FHIR_JSON, MediaType.APPLICATION_JSON);
+        this.fhirContext = fhirContext;
+        this.checkMetrics = checkMetrics;
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return IBaseResource.class.isAssignableFrom(clazz);
+    }
+
+    @Override
+    protected IBaseResource readInternal(Class<? extends IBaseResource> clazz, HttpInputMessage inputMessage) throws IOException {
+        MediaType contentType = inputMessage.getHeaders().getContentType();
+        Charset charset = (contentType != null && contentType.getCharset() != null) ? contentType.getCharset() : StandardCharsets.UTF_8;
+        try {
+            return fhirContext.newJsonParser().parseResource(clazz, new InputStreamReader(inputMessage.getBody(), charset));
+        } catch (Exception e) {
+            throw new HttpMessageNotReadableException("Could not parse FHIR resource: " + e.getMessage(), e, inputMessage);
+        }
+    }
+
+    @Override
+    protected void writeInternal(IBaseResource resource, HttpOutputMessage outputMessage) throws IOException {
+        // Only the check results are timed, as before. Task status bodies are small
+        Timer.Sample sample = (resource instanceof OperationOutcome) ? checkMetrics.startTimer() : null;
+
+        // Not closed, the converter base class flushes the body and the container closes it
+        Writer writer = new OutputStreamWriter(outputMessage.getBody(), StandardCharsets.UTF_8);
+        fhirContext.newJsonParser().encodeResourceToWriter(resource, writer);
+        writer.flush();
+
+        if (sample != null) {
+            checkMetrics.recordStage(sample, CheckMetrics.OUTCOME_ENCODING);
+        }
+    }
+}
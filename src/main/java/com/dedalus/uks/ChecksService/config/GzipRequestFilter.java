@@ -0,0 +1,179 @@
+package com.dedalus.uks.ChecksService.config;
+
+import com.dedalus.uks.ChecksService.exception.RequestTooLargeException;
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletRequestWrapper;
+import jakarta.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Accepts request bodies sent with Content-Encoding: gzip. The body is inflated as the
+ * controller reads it, so a compressed upload is never held whole, compressed or not.
+ * Responses are compressed by the server itself, see server.compression.
+ *
+ * A few KB of gzip can inflate to GBs, so reading past checks.http.maxInflatedBytes fails
+ * with a RequestTooLargeException, which the controllers answer with 413.
+ */
+@Component
+public class GzipRequestFilter extends OncePerRequestFilter {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final long maxInflatedBytes;
+
+    @Autowired
+    public GzipRequestFilter(ChecksConfig checksConfig) {
+        this.maxInflatedBytes = checksConfig.getHttp().getMaxInflatedBytes();
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain) throws ServletException, IOException {
+        String contentEncoding = request.getHeader(HttpHeaders.CONTENT_ENCODING);
+        if (contentEncoding == null || !"gzip".equalsIgnoreCase(contentEncoding.trim())) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+        filterChain.doFilter(new GzipRequest(request, maxInflatedBytes), response);
+    }
+
+    // Looks like a plain request of unknown length to everything downstream
+    private static class GzipRequest extends HttpServletRequestWrapper {
+        private final long maxInflatedBytes;
+        private ServletInputStream inputStream;
+
+        GzipRequest(HttpServletRequest request, long maxInflatedBytes) {
+            super(request);
+            this.maxInflatedBytes = maxInflatedBytes;
+        }
+
+        @Override
+        public ServletInputStream getInputStream() throws IOException {
+            if (inputStream == null) {
+                inputStream = new GzipInputStream(super.getInputStream(), maxInflatedBytes);
+            }
+            return inputStream;
+        }
+
+        @Override
+        public BufferedReader getReader() throws IOException {
+            String encoding = getCharacterEncoding();
+            Charset charset = (encoding == null) ? StandardCharsets.UTF_8 : Charset.forName(encoding);
+            return new BufferedReader(new InputStreamReader(getInputStream(), charset));
+        }
+
+        @Override
+        public int getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public long getContentLengthLong() {
+            return -1;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return isHidden(name) ? null : super.getHeader(name);
+        }
+
+        @Override
+        public Enumeration<String> getHeaders(String name) {
+            return isHidden(name) ? Collections.emptyEnumeration() : super.getHeaders(name);
+        }
+
+        private static boolean isHidden(String name) {
+            return HttpHeaders.CONTENT_ENCODING.equalsIgnoreCase(name) || HttpHeaders.CONTENT_LENGTH.equalsIgnoreCase(name);
+        }
+    }
+
+    private static class GzipInputStream extends ServletInputStream {
+        private final ServletInputStream source;
+        private final long maxInflatedBytes;
+        private InputStream inflated;
+        private long inflatedBytes;
+        private boolean finished;
+
+        GzipInputStream(ServletInputStream source, long maxInflatedBytes) {
+            this.source = source;
+            this.maxInflatedBytes = maxInflatedBytes;
+        }
+
+        // Opened on the first read, so a body that is not gzip fails as a parse error of the request
+        private InputStream inflated() throws IOException {
+            if (inflated == null) {
+                inflated = new GZIPInputStream(source, BUFFER_SIZE);
+            }
+            return inflated;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = inflated().read();
+            finished = (b < 0);
+            if (!finished) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int count = inflated().read(buffer, offset, length);
+            finished = (count < 0);
+            if (count > 0) {
+                count(count);
+            }
+            return count;
+        }
+
+        private void count(int count) throws IOException {
+            inflatedBytes += count;
+            if (inflatedBytes > maxInflatedBytes) {
+                throw new RequestTooLargeException("The gzip request body inflates to more than " + maxInflatedBytes + " bytes");
+            }
+        }
+
+        @Override
+        public boolean isFinished() {
+            return finished;
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setReadListener(ReadListener readListener) {
+            throw new UnsupportedOperationException("Non-blocking reads of gzip request bodies are not supported");
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (inflated != null) {
+                inflated.close();
+            } else {
+                source.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.dedalus.uks.ChecksService.config;
+
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.web.client.RestTemplate;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IRestfulClientFactory;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long lived, pooled keep-alive HTTP clients for the upstream servers. HAPI's generic clients
+ * are built on Apache HttpClient 4 and the RestTemplate on HttpClient 5, both pools are sized
+ * and timed from checks.http so connections and TLS sessions are reused across requests.
+ */
+@Configuration
+public class HttpClientConfig {
+
+    @Bean
+    public CloseableHttpClient fhirHttpClient(ChecksConfig checksConfig) {
+        ChecksConfig.Http http = checksConfig.getHttp();
+
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(http.getConnectionTimeToLiveSeconds(), TimeUnit.SECONDS);
+        connectionManager.setMaxTotal(http.getMaxTotalConnections());
+        connectionManager.setDefaultMaxPerRoute(http.getMaxConnectionsPerRoute());
+
+        RequestConfig requestConfig = RequestConfig.custom()
+            .setConnectTimeout(http.getConnectTimeoutMillis())
+            .setSocketTimeout(http.getSocketTimeoutMillis())
+            .setConnectionRequestTimeout(http.getConnectionRequestTimeoutMillis())
+            .build();
+
+        return HttpClientBuilder.create()
+            .setConnectionManager(connectionManager)
+            .setDefaultRequestConfig(requestConfig)
+            .evictIdleConnections(http.getIdleTimeoutSeconds(), TimeUnit.SECONDS)
+            .useSystemProperties()
+            .build();
+    }
+
+    // FhirContext is expensive to create and thread safe, so the whole application shares one
+    @Bean
+    public FhirContext fhirContext(CloseableHttpClient fhirHttpClient) {
+        FhirContext fhirContext = FhirContext.forR4();
+        IRestfulClientFactory clientFactory = fhirContext.getRestfulClientFactory();
+        clientFactory.setHttpClient(fhirHttpClient);
+        // Our servers are known, fetching their CapabilityStatement first only costs a round trip
+        clientFactory.setServerValidationMode(ServerValidationModeEnum.NEVER);
+        return fhirContext;
+    }
+
+    @Bean(destroyMethod = "close")
+    public org.apache.hc.client5.http.impl.classic.CloseableHttpClient restHttpClient(ChecksConfig checksConfig) {
+        ChecksConfig.Http http = checksConfig.getHttp();
+
+        ConnectionConfig connectionConfig = ConnectionConfig.custom()
+            .setConnectTimeout(Timeout.ofMilliseconds(http.getConnectTimeoutMillis()))
+            .setSocketTimeout(Timeout.ofMilliseconds(http.getSocketTimeoutMillis()))
+            .setTimeToLive(TimeValue.ofSeconds(http.getConnectionTimeToLiveSeconds()))
+            .build();
+
+        org.apache.hc.client5.http.config.RequestConfig requestConfig = org.apache.hc.client5.http.config.RequestConfig.custom()
+            .setConnectionRequestTimeout(Timeout.ofMilliseconds(http.getConnectionRequestTimeoutMillis()))
+            .build();
+
+        return org.apache.hc.client5.http.impl.classic.HttpClients.custom()
+            .setConnectionManager(PoolingHttpClientConnectionManagerBuilder.create()
+                .setMaxConnTotal(http.getMaxTotalConnections())
+                .setMaxConnPerRoute(http.getMaxConnectionsPerRoute())
+                .setDefaultConnectionConfig(connectionConfig)
+                .build())
+            .setDefaultRequestConfig(requestConfig)
+            .evictIdleConnections(TimeValue.ofSeconds(http.getIdleTimeoutSeconds()))
+            .useSystemProperties()
+            .build();
+    }
+
+    @Bean
+    public RestTemplate restTemplate(org.apache.hc.client5.http.impl.classic.CloseableHttpClient restHttpClient) {
+        return new RestTemplate(new HttpComponentsClientHttpRequestFactory(restHttpClient));
+    }
+}
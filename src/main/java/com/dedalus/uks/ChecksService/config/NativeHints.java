@@ -0,0 +1,85 @@
+package com.dedalus.uks.ChecksService.config;
+
+import ca.uhn.fhir.context.BaseRuntimeElementDefinition;
+import ca.uhn.fhir.context.FhirContext;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.ActivityDefinition;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Task;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.snomed.langauges.ecl.ECLObjectFactory;
+import org.snomed.langauges.ecl.ECLQueryBuilder;
+import org.springframework.aot.hint.MemberCategory;
+import org.springframework.aot.hint.RuntimeHints;
+import org.springframework.aot.hint.RuntimeHintsRegistrar;
+import org.springframework.aot.hint.TypeReference;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Reachability metadata for the native image, registered during Spring AOT processing.
+ *
+ * HAPI builds its model by reflecting over the annotated fields of each resource and datatype
+ * and creates instances through their constructors. Rather than list those classes by hand,
+ * the resources the service reads and writes are scanned with a real FhirContext at build time
+ * and every element class HAPI discovered, with its superclasses, is registered. Jackson is
+ * only used for trees and maps here, which need no hints.
+ */
+public class NativeHints implements RuntimeHintsRegistrar {
+
+    private static final List<Class<? extends IBaseResource>> RESOURCE_TYPES = List.of(
+        Task.class, ValueSet.class, OperationOutcome.class, ActivityDefinition.class, Parameters.class, Bundle.class, CodeSystem.class);
+
+    // Loaded by name inside HAPI
+    private static final String[] HAPI_TYPES_BY_NAME = {
+        "org.hl7.fhir.r4.hapi.ctx.FhirR4",
+        "ca.uhn.fhir.rest.client.apache.ApacheRestfulClientFactory"
+    };
+
+    // Generated ANTLR classes of the ECL parser
+    private static final String[] ECL_PARSER_TYPES = {
+        "org.snomed.langauges.ecl.generated.parser.ECLLexer",
+        "org.snomed.langauges.ecl.generated.parser.ECLParser"
+    };
+
+    @Override
+    public void registerHints(RuntimeHints hints, ClassLoader classLoader) {
+        FhirContext fhirContext = FhirContext.forR4();
+        for (Class<? extends IBaseResource> resourceType : RESOURCE_TYPES) {
+            fhirContext.getResourceDefinition(resourceType);
+        }
+
+        Set<Class<?>> modelTypes = new LinkedHashSet<>();
+        for (BaseRuntimeElementDefinition<?> definition : fhirContext.getElementDefinitions()) {
+            for (Class<?> type = definition.getImplementingClass(); type != null && type != Object.class; type = type.getSuperclass()) {
+                modelTypes.add(type);
+            }
+        }
+        for (Class<?> type : modelTypes) {
+            hints.reflection().registerType(type,
+                MemberCategory.INVOKE_DECLARED_CONSTRUCTORS,
+                MemberCategory.INVOKE_DECLARED_METHODS,
+                MemberCategory.DECLARED_FIELDS);
+        }
+
+        for (String typeName : HAPI_TYPES_BY_NAME) {
+            hints.reflection().registerType(TypeReference.of(typeName), MemberCategory.INVOKE_PUBLIC_CONSTRUCTORS, MemberCategory.INVOKE_PUBLIC_METHODS);
+        }
+        for (String typeName : ECL_PARSER_TYPES) {
+            hints.reflection().registerType(TypeReference.of(typeName), MemberCategory.INVOKE_PUBLIC_CONSTRUCTORS, MemberCategory.INVOKE_PUBLIC_METHODS);
+        }
+        hints.reflection().registerType(ECLQueryBuilder.class, MemberCategory.INVOKE_PUBLIC_CONSTRUCTORS);
+        hints.reflection().registerType(ECLObjectFactory.class, MemberCategory.INVOKE_PUBLIC_CONSTRUCTORS);
+
+        // Version and message bundles HAPI reads from the classpath
+        hints.resources().registerPattern("org/hl7/fhir/r4/model/fhirversion.properties");
+        hints.resources().registerPattern("ca/uhn/fhir/i18n/*.properties");
+        hints.resources().registerResourceBundle("ca.uhn.fhir.i18n.hapi-messages");
+    }
+}
@@ -0,0 +1,96 @@
+package com.dedalus.uks.ChecksService.config;
+
+import com.dedalus.uks.ChecksService.service.ChecksService;
+import com.dedalus.uks.ChecksService.utils.Utilities;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import lombok.extern.slf4j.Slf4j;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.ActivityDefinition;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Task;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+/**
+ * Pays for HAPI's lazy model scanning, and the first ANTLR parse of an ECL expression, while
+ * the context starts rather than on the first /check.
+ *
+ * Runs once all singletons exist, which is before the application reports itself ready and
+ * also inside the Dockerfile's CDS training run, so the classes loaded here end up in the
+ * class data sharing archive. Nothing here calls a remote server.
+ */
+@Component
+@Slf4j
+public class StartupWarmup implements SmartInitializingSingleton {
+
+    private static final List<Class<? extends IBaseResource>> RESOURCE_TYPES = List.of(
+        Task.class, ValueSet.class, OperationOutcome.class, ActivityDefinition.class, Parameters.class, Bundle.class);
+
+    // The SNOMED CT root concept, any valid id would do
+    private static final String WARMUP_CODE = "138875005";
+
+    private final ChecksConfig checksConfig;
+    private final FhirContext fhirContext;
+    private final ChecksService checksService;
+
+    @Autowired
+    public StartupWarmup(ChecksConfig checksConfig, FhirContext fhirContext, ChecksService checksService) {
+        this.checksConfig = checksConfig;
+        this.fhirContext = fhirContext;
+        this.checksService = checksService;
+    }
+
+    @Override
+    public void afterSingletonsInstantiated() {
+        if (!checksConfig.getStartup().isWarmup()) {
+            return;
+        }
+        long started = System.currentTimeMillis();
+        try {
+            for (Class<? extends IBaseResource> resourceType : RESOURCE_TYPES) {
+                fhirContext.getResourceDefinition(resourceType);
+            }
+
+            // A Task shaped like a real request, encoded and parsed back, then an outcome encoded
+            ValueSet valueSet = new ValueSet();
+            valueSet.setId("warmup");
+            valueSet.getCompose().addInclude().setSystem(Utilities.SNOMED_SYSTEM_URI).addConcept().setCode(WARMUP_CODE);
+            valueSet.getExpansion().addContains().setSystem(Utilities.SNOMED_SYSTEM_URI).setCode(WARMUP_CODE);
+            Task task = new Task();
+            task.setStatus(Task.TaskStatus.REQUESTED);
+            task.setIntent(Task.TaskIntent.ORDER);
+            task.addContained(valueSet);
+            task.setFocus(new Reference("#warmup"));
+
+            IParser jsonParser = fhirContext.newJsonParser();
+            jsonParser.parseResource(Task.class, jsonParser.encodeResourceToString(task));
+
+            OperationOutcome operationOutcome = new OperationOutcome();
+            operationOutcome.addIssue()
+                .setSeverity(OperationOutcome.IssueSeverity.INFORMATION)
+                .setCode(OperationOutcome.IssueType.INFORMATIONAL)
+                .setDiagnostics("warmup")
+                .addExpression("ValueSet.expansion.contains");
+            jsonParser.encodeResourceToString(operationOutcome);
+
+            checksService.getEclConceptIds("<< " + WARMUP_CODE);
+        } catch (Exception e) {
+            // Only costs the first request its warmup, never worth failing startup for
+            log.warn("Startup warmup failed: " + e.getMessage());
+            return;
+        }
+        log.info("Warmed up FHIR parsing and ECL in " + (System.currentTimeMillis() - started) + " ms, "
+            + ManagementFactory.getRuntimeMXBean().getUptime() + " ms after JVM start");
+    }
+}
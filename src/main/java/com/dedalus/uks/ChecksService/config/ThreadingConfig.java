@@ -0,0 +1,109 @@
+package com.dedalus.uks.ChecksService.config;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnThreading;
+import org.springframework.boot.autoconfigure.thread.Threading;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.core.task.VirtualThreadTaskExecutor;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+
+/**
+ * Executors for the blocking upstream calls the checks fan out: the code-exists batches, sized
+ * by checks.codeExists.concurrency, and the $expand pages, sized by checks.expand.concurrency.
+ * The asynchronous checks run on checks.async.workers behind a queue of checks.async.queueCapacity.
+ *
+ * With spring.threads.virtual.enabled (Java 21 only) Tomcat already runs every request on a
+ * virtual thread, and these executors start one virtual thread per call as well, limited to the
+ * configured concurrency. Otherwise each is a fixed pool of platform threads of that size.
+ * The scheduler only triggers periodic work and stays on one platform thread.
+ */
+@Configuration
+public class ThreadingConfig {
+
+    public static final String OUTBOUND_EXECUTOR = "outboundExecutor";
+    public static final String EXPAND_EXECUTOR = "expandExecutor";
+    public static final String ASYNC_CHECK_EXECUTOR = "asyncCheckExecutor";
+    public static final String SCHEDULER = "checksScheduler";
+
+    @Bean(name = OUTBOUND_EXECUTOR)
+    @ConditionalOnThreading(Threading.VIRTUAL)
+    public AsyncTaskExecutor virtualOutboundExecutor(ChecksConfig checksConfig) {
+        return virtualExecutor("outbound-", checksConfig.getCodeExists().getConcurrency());
+    }
+
+    @Bean(name = OUTBOUND_EXECUTOR)
+    @ConditionalOnThreading(Threading.PLATFORM)
+    public AsyncTaskExecutor platformOutboundExecutor(ChecksConfig checksConfig) {
+        return platformExecutor("outbound-", checksConfig.getCodeExists().getConcurrency());
+    }
+
+    // Separate from the outbound executor, so paged expansions and code-exists batches do not wait on each other
+    @Bean(name = EXPAND_EXECUTOR)
+    @ConditionalOnThreading(Threading.VIRTUAL)
+    public AsyncTaskExecutor virtualExpandExecutor(ChecksConfig checksConfig) {
+        return virtualExecutor("expand-", checksConfig.getExpand().getConcurrency());
+    }
+
+    @Bean(name = EXPAND_EXECUTOR)
+    @ConditionalOnThreading(Threading.PLATFORM)
+    public AsyncTaskExecutor platformExpandExecutor(ChecksConfig checksConfig) {
+        return platformExecutor("expand-", checksConfig.getExpand().getConcurrency());
+    }
+
+    // A full queue refuses the job rather than blocking the request that submits it, so both are pools
+    @Bean(name = ASYNC_CHECK_EXECUTOR)
+    @ConditionalOnThreading(Threading.VIRTUAL)
+    public AsyncTaskExecutor virtualAsyncCheckExecutor(ChecksConfig checksConfig) {
+        ThreadPoolTaskExecutor executor = asyncCheckExecutor(checksConfig.getAsync());
+        executor.setThreadFactory(new VirtualThreadTaskExecutor("async-check-").getVirtualThreadFactory());
+        return executor;
+    }
+
+    @Bean(name = ASYNC_CHECK_EXECUTOR)
+    @ConditionalOnThreading(Threading.PLATFORM)
+    public AsyncTaskExecutor platformAsyncCheckExecutor(ChecksConfig checksConfig) {
+        return asyncCheckExecutor(checksConfig.getAsync());
+    }
+
+    @Bean(name = SCHEDULER)
+    public TaskScheduler checksScheduler() {
+        ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+        scheduler.setThreadNamePrefix("checks-scheduler-");
+        scheduler.setPoolSize(1);
+        scheduler.setDaemon(true);
+        return scheduler;
+    }
+
+    private static AsyncTaskExecutor virtualExecutor(String threadNamePrefix, int concurrency) {
+        SimpleAsyncTaskExecutor executor = new SimpleAsyncTaskExecutor(threadNamePrefix);
+        executor.setVirtualThreads(true);
+        // Callers wait for a free slot, which bounds the load on the upstream servers
+        executor.setConcurrencyLimit(Math.max(1, concurrency));
+        return executor;
+    }
+
+    private static AsyncTaskExecutor platformExecutor(String threadNamePrefix, int concurrency) {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setThreadNamePrefix(threadNamePrefix);
+        executor.setCorePoolSize(Math.max(1, concurrency));
+        executor.setMaxPoolSize(Math.max(1, concurrency));
+        executor.setDaemon(true);
+        executor.setWaitForTasksToCompleteOnShutdown(false);
+        return executor;
+    }
+
+    private static ThreadPoolTaskExecutor asyncCheckExecutor(ChecksConfig.Async config) {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setThreadNamePrefix("async-check-");
+        executor.setCorePoolSize(Math.max(1, config.getWorkers()));
+        executor.setMaxPoolSize(Math.max(1, config.getWorkers()));
+        executor.setQueueCapacity(Math.max(1, config.getQueueCapacity()));
+        executor.setDaemon(true);
+        executor.setWaitForTasksToCompleteOnShutdown(false);
+        return executor;
+    }
+}
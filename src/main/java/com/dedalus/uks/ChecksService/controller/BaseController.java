@@ -2,25 +2,36 @@ package com.dedalus.uks.ChecksService.controller;
 
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.ActivityDefinition;
-import org.hl7.fhir.r4.model.Coding;
-import org.hl7.fhir.r4.model.Encounter;
 import org.hl7.fhir.r4.model.OperationOutcome;
 import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
 import org.hl7.fhir.r4.model.OperationOutcome.IssueType;
 import org.hl7.fhir.r4.model.OperationOutcome.OperationOutcomeIssueComponent;
-import org.hl7.fhir.r4.model.Parameters;
-import org.hl7.fhir.r4.model.Parameters.ParametersParameterComponent;
 import org.hl7.fhir.r4.model.Task;
 import org.hl7.fhir.r4.model.ValueSet;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import com.dedalus.uks.ChecksService.checks.Check;
+import com.dedalus.uks.ChecksService.checks.CheckRegistry;
 import com.dedalus.uks.ChecksService.exception.ActivityDefinitionManyFoundException;
 import com.dedalus.uks.ChecksService.exception.ActivityDefinitionNotFoundException;
+import com.dedalus.uks.ChecksService.exception.InvalidCheckOptionException;
+import com.dedalus.uks.ChecksService.exception.RequestTooLargeException;
+import com.dedalus.uks.ChecksService.service.CheckMetrics;
 import com.dedalus.uks.ChecksService.service.ChecksService;
+import com.dedalus.uks.ChecksService.service.ResolutionContext;
 import com.dedalus.uks.ChecksService.service.SCTValidationService;
 
+import jakarta.servlet.http.HttpServletRequest;
 import lombok.extern.slf4j.Slf4j;
 import ca.uhn.fhir.parser.IParser;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
 @Slf4j
 public abstract class BaseController {
 
@@ -30,7 +41,36 @@ public abstract class BaseController {
     @Autowired
     public SCTValidationService sctValidationService;
 
-    public RequestParseResult validateTaskRequest(String taskResource) {
+    @Autowired
+    public CheckRegistry checkRegistry;
+
+    @Autowired
+    public CheckMetrics checkMetrics;
+
+    /**
+     * The request body as characters, decoded as it is read. JSON is UTF-8 unless the request
+     * says otherwise, a gzip body has already been unwrapped by GzipRequestFilter.
+     */
+    protected Reader bodyReader(HttpServletRequest request) throws IOException {
+        String encoding = request.getCharacterEncoding();
+        Charset charset = (encoding == null) ? StandardCharsets.UTF_8 : Charset.forName(encoding);
+        return new BufferedReader(new InputStreamReader(request.getInputStream(), charset));
+    }
+
+    /**
+     * Whether reading the body failed because a gzip body inflated past its limit, the parser
+     * may have wrapped the RequestTooLargeException in its own.
+     */
+    protected static boolean isTooLarge(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof RequestTooLargeException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public RequestParseResult validateTaskRequest(Reader taskResource) {
 
         RequestParseResult results = new RequestParseResult();
 
@@ -41,44 +81,28 @@ public abstract class BaseController {
         OperationOutcome operationOutcome = new OperationOutcome();
 
         try {
-            task = jsonParser.parseResource(Task.class, taskResource);
+            // Parsed straight off the request stream, the body is never held as one String
+            task = checkMetrics.time(CheckMetrics.TASK_PARSE, () -> jsonParser.parseResource(Task.class, taskResource));
         } catch (Exception e) {
             // If parsing fails, create an OperationOutcome with an error
             OperationOutcomeIssueComponent issue = new OperationOutcomeIssueComponent();
             issue.setSeverity(IssueSeverity.ERROR);
-            issue.setCode(IssueType.INVALID);
+            issue.setCode(isTooLarge(e) ? IssueType.TOOLONG : IssueType.INVALID);
             issue.setDiagnostics("Failed to parse Task resource: " + e.getMessage());
             operationOutcome.addIssue(issue);
 
             results.setValid(false     );
+            results.setStatus(isTooLarge(e) ? HttpStatus.PAYLOAD_TOO_LARGE : HttpStatus.BAD_REQUEST);
             results.setOperationOutcome(operationOutcome);
             return results;
         }
 
-        // Check if Task.focus is referencing a ValueSet
-        if (task.hasFocus() && task.getFocus().getReference() != null) {
-            log.info("Task focus reference is: " + task.getFocus().getReference() + " Trying to resolve.");
-
-            // Try to resolve the referenced resource (could be contained within the Task or external)
-            IBaseResource focusResource = checkService.resolveFocusResource(task, checkService.getTerminologyServer());
-            
-            // Check if the resource is a ValueSet
-            if (!(focusResource instanceof ValueSet)) {
-                OperationOutcomeIssueComponent issue = new OperationOutcomeIssueComponent();
-                issue.setSeverity(IssueSeverity.ERROR);
-                issue.setCode(IssueType.INVALID);
-                issue.setDiagnostics("Task focus is not a ValueSet, but it should be.");
-                operationOutcome.addIssue(issue);
-
-                results.setValid(false     );
-                results.setOperationOutcome(operationOutcome);
-                return results;
-            } else {
-                log.info("Task focus resolved successfully to ValueSet: " + ((ValueSet)focusResource).getUrl());
-            }
+        // One context per request, every reference below is resolved at most once
+        ResolutionContext resolutionContext = checkService.newResolutionContext(task, checkService.getTerminologyServer());
+        results.setResolutionContext(resolutionContext);
 
-        } else {
-            // If Task.focus is missing, return an error
+        // Without a focus there is nothing to check
+        if (!task.hasFocus() || task.getFocus().getReference() == null) {
             OperationOutcomeIssueComponent issue = new OperationOutcomeIssueComponent();
             issue.setSeverity(IssueSeverity.ERROR);
             issue.setCode(IssueType.REQUIRED);
@@ -89,10 +113,24 @@ public abstract class BaseController {
             return results;
         }
 
+        // Options are read now, so a bad one is a 400 before any work is done
+        try {
+            resolutionContext.getCheckOptions();
+        } catch (InvalidCheckOptionException icoe) {
+            OperationOutcomeIssueComponent issue = new OperationOutcomeIssueComponent();
+            issue.setSeverity(IssueSeverity.ERROR);
+            issue.setCode(IssueType.INVALID);
+            issue.setDiagnostics(icoe.getMessage());
+            operationOutcome.addIssue(issue);
+            results.setValid(false     );
+            results.setOperationOutcome(operationOutcome);
+            return results;
+        }
+
         ActivityDefinition activityDefinition = null;
         //Ensure the instantiteCanonical is an ActivityDefinition
         try {
-             activityDefinition = checkService.resolveActivityDefinition(task.getInstantiatesCanonical());
+             activityDefinition = checkMetrics.time(CheckMetrics.ACTIVITY_DEFINITION_LOOKUP, resolutionContext::getActivityDefinition);
              results.setActivityDefinition(activityDefinition);
         } catch (ActivityDefinitionNotFoundException nfe) {
             OperationOutcomeIssueComponent issue = new OperationOutcomeIssueComponent();
@@ -114,68 +152,43 @@ public abstract class BaseController {
             results.setOperationOutcome(operationOutcome);
             return results;
         }
-       
-
-
 
-        // Check the focus is a valueset
-        IBaseResource focusResource = null;
-        OperationOutcome invalidValueset = isFocusValueSet(task);
-        if (invalidValueset != null) {
+        // An unsupported check is a 400 before the focus is fetched
+        Check check = checkRegistry.find(activityDefinition);
+        if (check == null) {
+            OperationOutcomeIssueComponent issue = new OperationOutcomeIssueComponent();
+            issue.setSeverity(IssueSeverity.ERROR);
+            issue.setCode(IssueType.NOTSUPPORTED);
+            issue.setDiagnostics("Unsupported ActivityDefinition: " + (activityDefinition.getCode().hasCoding() ? activityDefinition.getCode().getCodingFirstRep().getCode() : null) + ". Supported checks are " + checkRegistry.getCodes());
+            operationOutcome.addIssue(issue);
             results.setValid(false     );
             results.setOperationOutcome(operationOutcome);
             return results;
-        } else {
-            focusResource = checkService.resolveFocusResource(task, checkService.getTerminologyServer());
-            if (focusResource == null) {
-                OperationOutcomeIssueComponent issue = new OperationOutcomeIssueComponent();
-                issue.setSeverity(IssueSeverity.ERROR);
-                issue.setCode(IssueType.INVALID);
-                issue.setDiagnostics("Focus resource not resolvable in Focus: " + task.getFocus());
-                operationOutcome.addIssue(issue);
-                results.setValid(false     );
-                results.setOperationOutcome(operationOutcome);
-                return results;
-            } else {
-                results.setFocusResource(focusResource);
-            }
         }
+        results.setCheck(check);
 
-        results.setValid(true     );
-        return results;
-    }
-
-    
+        log.info("Task focus reference is: " + task.getFocus().getReference() + " Trying to resolve.");
 
+        // Try to resolve the referenced resource (could be contained within the Task or external)
+        IBaseResource focusResource = checkMetrics.time(CheckMetrics.FOCUS_RESOLUTION, resolutionContext::getFocusResource);
 
-    private OperationOutcome isFocusValueSet(Task task) {
-        // Check if Task.focus is referencing a ValueSet
-        if (task.hasFocus() && task.getFocus().getReference() != null) {
-            // Try to resolve the referenced resource (could be contained within the Task or external)
-            IBaseResource focusResource = checkService.resolveFocusResource(task, checkService.getTerminologyServer());
-            
-            // Check if the resource is a ValueSet
-            if (!(focusResource instanceof ValueSet)) {
-                OperationOutcomeIssueComponent issue = new OperationOutcomeIssueComponent();
-                issue.setSeverity(IssueSeverity.ERROR);
-                issue.setCode(IssueType.INVALID);
-                issue.setDiagnostics("Task focus is not a ValueSet, but it should be.");
-                OperationOutcome operationOutcome = new OperationOutcome();
-                operationOutcome.addIssue(issue);
-                return operationOutcome;
-            }
-        } else {
-            // If Task.focus is missing, return an error
+        // Check if the resource is a ValueSet
+        if (!(focusResource instanceof ValueSet)) {
             OperationOutcomeIssueComponent issue = new OperationOutcomeIssueComponent();
             issue.setSeverity(IssueSeverity.ERROR);
-            issue.setCode(IssueType.REQUIRED);
-            issue.setDiagnostics("Task.focus is missing or null.");
-            OperationOutcome operationOutcome = new OperationOutcome();
+            issue.setCode(IssueType.INVALID);
+            issue.setDiagnostics("Task focus is not a ValueSet, but it should be.");
             operationOutcome.addIssue(issue);
-            return operationOutcome;
+
+            results.setValid(false     );
+            results.setOperationOutcome(operationOutcome);
+            return results;
         }
+        log.info("Task focus resolved successfully to ValueSet: " + ((ValueSet)focusResource).getUrl());
+        results.setFocusResource(focusResource);
 
-        return null;
+        results.setValid(true     );
+        return results;
     }
 
 
@@ -189,6 +202,15 @@ public abstract class BaseController {
             this.isValid = isValid;
         }
 
+        // The status of the response when the request is not valid
+        private HttpStatus status = HttpStatus.BAD_REQUEST;
+        public HttpStatus getStatus() {
+            return status;
+        }
+        public void setStatus(HttpStatus status) {
+            this.status = status;
+        }
+
         private OperationOutcome operationOutcome;
         public OperationOutcome getOperationOutcome() {
             return operationOutcome;
@@ -214,6 +236,22 @@ public abstract class BaseController {
             this.focusResource = focusResource;
         }
 
+        private Check check;
+        public Check getCheck() {
+            return check;
+        }
+        public void setCheck(Check check) {
+            this.check = check;
+        }
+
+        private ResolutionContext resolutionContext;
+        public ResolutionContext getResolutionContext() {
+            return resolutionContext;
+        }
+        public void setResolutionContext(ResolutionContext resolutionContext) {
+            this.resolutionContext = resolutionContext;
+        }
+
     }
     
 }
@@ -3,38 +3,73 @@ package com.dedalus.uks.ChecksService.controller;
 import org.hl7.fhir.r4.model.OperationOutcome.OperationOutcomeIssueComponent;
 import org.hl7.fhir.r4.model.Parameters;
 import org.hl7.fhir.r4.model.Parameters.ParametersParameterComponent;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
-import org.springframework.web.bind.annotation.RequestBody;
-import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RestController;
-
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+
+import com.dedalus.uks.ChecksService.checks.Check;
+import com.dedalus.uks.ChecksService.checks.CodeFormatCheck;
+import com.dedalus.uks.ChecksService.exception.ActivityDefinitionManyFoundException;
+import com.dedalus.uks.ChecksService.exception.AsyncCapacityException;
+import com.dedalus.uks.ChecksService.exception.ActivityDefinitionNotFoundException;
+import com.dedalus.uks.ChecksService.service.AsyncCheckService;
+import com.dedalus.uks.ChecksService.service.CheckMetrics;
+import com.dedalus.uks.ChecksService.service.CheckResultCache;
+import com.dedalus.uks.ChecksService.service.EclConceptCache;
+import com.dedalus.uks.ChecksService.service.ResolutionContext;
+import com.dedalus.uks.ChecksService.service.SCTValidationService;
+import com.dedalus.uks.ChecksService.service.StreamingCheckService;
 import com.dedalus.uks.ChecksService.utils.Utilities;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import jakarta.servlet.http.HttpServletRequest;
 import lombok.extern.slf4j.Slf4j;
 
 import ca.uhn.fhir.parser.IParser;
+import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.ValueSet;
 import org.hl7.fhir.r4.model.ActivityDefinition;
 import org.hl7.fhir.r4.model.Coding;
 import org.hl7.fhir.r4.model.OperationOutcome;
 import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
 import org.hl7.fhir.r4.model.OperationOutcome.IssueType;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Task;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 @RestController
 @Slf4j
 public class ChecksController extends BaseController {
 
+    @Autowired
+    public StreamingCheckService streamingCheckService;
+
+    @Autowired
+    public EclConceptCache eclConceptCache;
+
+    @Autowired
+    public AsyncCheckService asyncCheckService;
+
+    @Autowired
+    public CheckResultCache checkResultCache;
+
     @GetMapping("/health")
     public ResponseEntity<String> getHealth() {
 
@@ -42,6 +77,21 @@ public class ChecksController extends BaseController {
         Map<String, Object> outerObject = new HashMap<>();
         outerObject.put("health", "Ok!"); // Add the list of objects
 
+        Map<String, Object> eclCache = new HashMap<>();
+        eclCache.put("size", eclConceptCache.size());
+        eclCache.put("hits", eclConceptCache.getHits());
+        eclCache.put("misses", eclConceptCache.getMisses());
+        eclCache.put("evictions", eclConceptCache.getEvictions());
+        outerObject.put("eclCache", eclCache);
+
+        Map<String, Object> resultCache = new HashMap<>();
+        resultCache.put("size", checkResultCache.size());
+        resultCache.put("hits", checkResultCache.getHits());
+        resultCache.put("misses", checkResultCache.getMisses());
+        resultCache.put("coalesced", checkResultCache.getCoalesced());
+        resultCache.put("evictions", checkResultCache.getEvictions());
+        outerObject.put("resultCache", resultCache);
+
         // Create an ObjectMapper instance
         ObjectMapper objectMapper = new ObjectMapper();
 
@@ -60,70 +110,256 @@ public class ChecksController extends BaseController {
 
 
     @PostMapping("/check")
-    public ResponseEntity<String> checkTask(@RequestBody String taskResource) {
+    public ResponseEntity<IBaseResource> checkTask(HttpServletRequest request, @RequestHeader(value = "Prefer", required = false) String prefer) throws IOException {
         
-        RequestParseResult parseResult = validateTaskRequest(taskResource);
+        RequestParseResult parseResult = validateTaskRequest(bodyReader(request));
 
         MultiValueMap<String, String> responseHeaders = new LinkedMultiValueMap<String, String>();
         responseHeaders.add("Content-Type", "application/fhir+json");
 
-        IParser jsonParser = checkService.getFHIRContext().newJsonParser();
-
         if (!parseResult.isValid()) {
-            // Return the OperationOutcome as the response body with a 400 Bad Request status
-            return new ResponseEntity<>(jsonParser.encodeResourceToString(parseResult.getOperationOutcome()), HttpStatus.BAD_REQUEST);
+            // Return the OperationOutcome as the response body with a 400 Bad Request status, or 413 for a body past its limit
+            return new ResponseEntity<>(parseResult.getOperationOutcome(), responseHeaders, parseResult.getStatus());
         }
         
-        ActivityDefinition activityDefinition = parseResult.getActivityDefinition();
-    
-        /// Implement Check Logic Here
+        // The check was looked up from the ActivityDefinition code while the request was validated
+        Check check = parseResult.getCheck();
+
+        if (prefer != null && prefer.contains("respond-async")) {
+            // FHIR asynchronous pattern, the client polls the Content-Location for the result
+            AsyncCheckService.CheckJob job;
+            try {
+                job = asyncCheckService.submit(check, (ValueSet) parseResult.getFocusResource(), parseResult.getResolutionContext());
+            } catch (AsyncCapacityException ace) {
+                return new ResponseEntity<>(errorOutcome(IssueType.THROTTLED, ace.getMessage()), responseHeaders, HttpStatus.TOO_MANY_REQUESTS);
+            }
+            responseHeaders.add(HttpHeaders.CONTENT_LOCATION, ServletUriComponentsBuilder.fromCurrentContextPath().path("/check/status/{id}").buildAndExpand(job.getId()).toUriString());
+            return new ResponseEntity<>(job.toTask(), responseHeaders, HttpStatus.ACCEPTED);
+        }
 
-        OperationOutcome operationOutcome = new OperationOutcome(); 
-        if (activityDefinition.getCode().getCoding().get(0).getCode().equals("code-format")) {
+        ValueSet valueSet = (ValueSet) parseResult.getFocusResource();
+        ResolutionContext resolutionContext = parseResult.getResolutionContext();
 
-            if (parseResult.getFocusResource() instanceof ValueSet) {
-                operationOutcome = checkService.checkCodeFormat((ValueSet)parseResult.getFocusResource(), activityDefinition.getCode().getCoding().get(0).getCode());
-            } else {
-                OperationOutcomeIssueComponent issue = new OperationOutcomeIssueComponent();
-                issue.setSeverity(IssueSeverity.ERROR);
-                issue.setCode(IssueType.INVALID);
-                issue.setDiagnostics("Focus resource needs to be a ValueSet for check code format: " + activityDefinition.getCode().getCoding().get(0).getCode() + ". it is currently a " + parseResult.getFocusResource().getClass().getSimpleName());
-                operationOutcome.addIssue(issue);
-                return new ResponseEntity<>(jsonParser.encodeResourceToString(operationOutcome), responseHeaders, HttpStatus.BAD_REQUEST);
+        log.info("Running check " + check.getCode());
+        OperationOutcome operationOutcome;
+        if (checkResultCache.isCacheable(check, valueSet)) {
+            String resultKey = checkResultCache.key(check, valueSet, resolutionContext);
+            // The same check of the same content always gives the same outcome
+            responseHeaders.add(HttpHeaders.ETAG, "\"" + resultKey + "\"");
+            operationOutcome = checkMetrics.recordCheck(check.getCode(), CheckMetrics.MODE_SYNC, () -> checkResultCache.run(resultKey, check, valueSet, resolutionContext));
+        } else {
+            operationOutcome = checkMetrics.recordCheck(check.getCode(), CheckMetrics.MODE_SYNC, () -> check.run(valueSet, resolutionContext));
+        }
+
+        // Return the OperationOutcome as the response body with a 200 OK status, FhirJsonHttpMessageConverter encodes it as it is sent
+        return new ResponseEntity<>(operationOutcome, responseHeaders, HttpStatus.OK);
+    }
+
+    /**
+     * Status of a check started with Prefer: respond-async. The Task's status follows the job,
+     * and once it is completed Task.output references the contained OperationOutcome.
+     */
+    @GetMapping("/check/status/{id}")
+    public ResponseEntity<IBaseResource> getCheckStatus(@PathVariable("id") String id) {
+
+        MultiValueMap<String, String> responseHeaders = new LinkedMultiValueMap<String, String>();
+        responseHeaders.add("Content-Type", "application/fhir+json");
+
+        AsyncCheckService.CheckJob job = asyncCheckService.get(id);
+        if (job == null) {
+            return new ResponseEntity<>(errorOutcome(IssueType.NOTFOUND, "No asynchronous check " + id + ", it may have expired"), responseHeaders, HttpStatus.NOT_FOUND);
+        }
+        return new ResponseEntity<>(job.toTask(), responseHeaders, HttpStatus.OK);
+    }
+
+    @DeleteMapping("/check/status/{id}")
+    public ResponseEntity<IBaseResource> cancelCheck(@PathVariable("id") String id) {
+
+        MultiValueMap<String, String> responseHeaders = new LinkedMultiValueMap<String, String>();
+        responseHeaders.add("Content-Type", "application/fhir+json");
+
+        AsyncCheckService.CheckJob job = asyncCheckService.cancel(id);
+        if (job == null) {
+            return new ResponseEntity<>(errorOutcome(IssueType.NOTFOUND, "No asynchronous check " + id + ", it may have expired"), responseHeaders, HttpStatus.NOT_FOUND);
+        }
+        return new ResponseEntity<>(job.toTask(), responseHeaders, HttpStatus.ACCEPTED);
+    }
+
+    /**
+     * Streaming variant of /check for very large contained ValueSets. The Task is never held
+     * as a String or a HAPI model, codes are validated straight off the request stream.
+     * The check is looked up in the CheckRegistry as for /check. A contained focus can only be
+     * checked with code-format, the check done while streaming, an external focus is read from
+     * the server and goes to whichever check the ActivityDefinition names.
+     */
+    @PostMapping("/check/streaming")
+    public ResponseEntity<IBaseResource> checkTaskStreaming(InputStream taskStream) {
+
+        MultiValueMap<String, String> responseHeaders = new LinkedMultiValueMap<String, String>();
+        responseHeaders.add("Content-Type", "application/fhir+json");
+
+        StreamingCheckService.StreamingCheckResult streamed;
+        try {
+            streamed = streamingCheckService.checkCodeFormat(taskStream);
+        } catch (Exception e) {
+            if (isTooLarge(e)) {
+                return new ResponseEntity<>(errorOutcome(IssueType.TOOLONG, "Failed to parse Task resource: " + e.getMessage()), responseHeaders, HttpStatus.PAYLOAD_TOO_LARGE);
             }
+            return new ResponseEntity<>(errorOutcome(IssueType.INVALID, "Failed to parse Task resource: " + e.getMessage()), responseHeaders, HttpStatus.BAD_REQUEST);
+        }
+
+        if (!"Task".equals(streamed.getResourceType())) {
+            return new ResponseEntity<>(errorOutcome(IssueType.INVALID, "Failed to parse Task resource: resourceType is " + streamed.getResourceType()), responseHeaders, HttpStatus.BAD_REQUEST);
+        }
+        if (streamed.getFocusReference() == null) {
+            return new ResponseEntity<>(errorOutcome(IssueType.REQUIRED, "Task.focus is missing or null."), responseHeaders, HttpStatus.BAD_REQUEST);
+        }
+
+        // The parts of the Task that were streamed, Task.input is not read in this mode
+        Task streamedTask = new Task();
+        streamedTask.setInstantiatesCanonical(streamed.getInstantiatesCanonical());
+        streamedTask.setFocus(new Reference(streamed.getFocusReference()));
+        ResolutionContext resolutionContext = checkService.newResolutionContext(streamedTask, checkService.getTerminologyServer());
+
+        ActivityDefinition activityDefinition;
+        try {
+            activityDefinition = resolutionContext.getActivityDefinition();
+        } catch (ActivityDefinitionNotFoundException nfe) {
+            return new ResponseEntity<>(errorOutcome(IssueType.INVALID, "ActivityDefinition not found for canonical URL: " + streamed.getInstantiatesCanonical()), responseHeaders, HttpStatus.BAD_REQUEST);
+        } catch (ActivityDefinitionManyFoundException mfe) {
+            return new ResponseEntity<>(errorOutcome(IssueType.INVALID, "Multiple ActivityDefinitions found for canonical URL: " + streamed.getInstantiatesCanonical()), responseHeaders, HttpStatus.BAD_REQUEST);
+        }
 
+        Check check = checkRegistry.find(activityDefinition);
+        if (check == null) {
+            return new ResponseEntity<>(errorOutcome(IssueType.NOTSUPPORTED, "Unsupported ActivityDefinition: " + (activityDefinition.getCode().hasCoding() ? activityDefinition.getCode().getCodingFirstRep().getCode() : null) + ". Supported checks are " + checkRegistry.getCodes()), responseHeaders, HttpStatus.BAD_REQUEST);
+        }
+
+        OperationOutcome operationOutcome = new OperationOutcome();
+        if (streamed.getFocusContainedId() != null) {
+            if (!CodeFormatCheck.CODE.equals(check.getCode())) {
+                return new ResponseEntity<>(errorOutcome(IssueType.NOTSUPPORTED, "Streaming mode only checks a contained ValueSet with " + CodeFormatCheck.CODE + ", not " + check.getCode()), responseHeaders, HttpStatus.BAD_REQUEST);
+            }
+            List<OperationOutcomeIssueComponent> issues = streamed.getFocusIssues();
+            if (issues == null) {
+                return new ResponseEntity<>(errorOutcome(IssueType.INVALID, "Task focus is not a ValueSet, but it should be."), responseHeaders, HttpStatus.BAD_REQUEST);
+            }
+            operationOutcome.setIssue(issues);
         } else {
-            throw new RuntimeException("Unsupported ActivityDefinition: " + activityDefinition.getCode().getCoding().get(0).getCode());
+            // An external focus is read from the server rather than the request, so the registered check runs on the model
+            IBaseResource focusResource = checkMetrics.time(CheckMetrics.FOCUS_RESOLUTION, resolutionContext::getFocusResource);
+            if (!(focusResource instanceof ValueSet)) {
+                return new ResponseEntity<>(errorOutcome(IssueType.INVALID, "Task focus is not a ValueSet, but it should be."), responseHeaders, HttpStatus.BAD_REQUEST);
+            }
+            log.info("Running check " + check.getCode());
+            operationOutcome = checkMetrics.recordCheck(check.getCode(), CheckMetrics.MODE_SYNC, () -> check.run((ValueSet) focusResource, resolutionContext));
         }
 
-        // Return the OperationOutcome as the response body with a 200 OK status
-        String operationOutcomeJson = jsonParser.encodeResourceToString(operationOutcome);
-        return new ResponseEntity<>(operationOutcomeJson, responseHeaders, HttpStatus.OK);
+        return new ResponseEntity<>(operationOutcome, responseHeaders, HttpStatus.OK);
     }
 
     @PostMapping("/validateConceptFormat")
-    public ResponseEntity<String> validateConceptFormat(@RequestBody String parameters) {
+    public ResponseEntity<IBaseResource> validateConceptFormat(HttpServletRequest request) throws IOException {
         
-        RequestParseResult parseResult = validateFormatCodingRequest(parameters);
+        RequestParseResult parseResult = validateFormatCodingRequest(bodyReader(request));
 
         MultiValueMap<String, String> responseHeaders = new LinkedMultiValueMap<String, String>();
         responseHeaders.add("Content-Type", "application/fhir+json");
 
-        IParser jsonParser = checkService.getFHIRContext().newJsonParser();
-
         if (!parseResult.isValid()) {
-            // Return the OperationOutcome as the response body with a 400 Bad Request status
-            return new ResponseEntity<>(jsonParser.encodeResourceToString(parseResult.getOperationOutcome()), responseHeaders, HttpStatus.BAD_REQUEST);
+            // Return the OperationOutcome as the response body with a 400 Bad Request status, or 413 for a body past its limit
+            return new ResponseEntity<>(parseResult.getOperationOutcome(), responseHeaders, parseResult.getStatus());
         }
         
         OperationOutcome operationOutcome = new OperationOutcome(); 
 
         // Return the OperationOutcome as the response body with a 200 OK status
-        String operationOutcomeJson = jsonParser.encodeResourceToString(operationOutcome);
-        return new ResponseEntity<>(operationOutcomeJson, responseHeaders, HttpStatus.OK);
+        return new ResponseEntity<>(operationOutcome, responseHeaders, HttpStatus.OK);
+    }
+
+    @PostMapping("/validateConceptFormat/batch")
+    public ResponseEntity<IBaseResource> validateConceptFormatBatch(HttpServletRequest request) {
+
+        MultiValueMap<String, String> responseHeaders = new LinkedMultiValueMap<String, String>();
+        responseHeaders.add("Content-Type", "application/fhir+json");
+
+        IParser jsonParser = checkService.getFHIRContext().newJsonParser();
+
+        Parameters parsedParameters;
+        try {
+            parsedParameters = jsonParser.parseResource(Parameters.class, bodyReader(request));
+        } catch (Exception e) {
+            OperationOutcome operationOutcome = new OperationOutcome();
+            OperationOutcomeIssueComponent issue = new OperationOutcomeIssueComponent();
+            issue.setSeverity(IssueSeverity.ERROR);
+            issue.setCode(isTooLarge(e) ? IssueType.TOOLONG : IssueType.INVALID);
+            issue.setDiagnostics("Failed to parse Parameters resource: " + e.getMessage());
+            operationOutcome.addIssue(issue);
+            return new ResponseEntity<>(operationOutcome, responseHeaders, isTooLarge(e) ? HttpStatus.PAYLOAD_TOO_LARGE : HttpStatus.BAD_REQUEST);
+        }
+
+        // One issue per failing code, the request itself was processed so this is a 200 OK
+        OperationOutcome operationOutcome = validateFormatCodingBatch(parsedParameters);
+        return new ResponseEntity<>(operationOutcome, responseHeaders, HttpStatus.OK);
+    }
+
+    private OperationOutcome validateFormatCodingBatch(Parameters parameters) {
+
+        OperationOutcome operationOutcome = new OperationOutcome();
+        List<ParametersParameterComponent> params = parameters.getParameter();
+
+        // Pack every SNOMED CT code into one buffer so the whole batch is validated in a single call
+        int[] paramIndexes = new int[params.size()];
+        int count = 0;
+        int totalLength = 0;
+        for (int i = 0; i < params.size(); i++) {
+            ParametersParameterComponent param = params.get(i);
+            if (!"concept".equals(param.getName())) {
+                continue;
+            }
+            if (!(param.getValue() instanceof Coding)) {
+                OperationOutcomeIssueComponent issue = new OperationOutcomeIssueComponent();
+                issue.setSeverity(IssueSeverity.ERROR);
+                issue.setCode(IssueType.INVALID);
+                issue.setDiagnostics("Parameter 'concept' must have a valueCoding");
+                issue.addExpression("Parameters.parameter[" + i + "]");
+                operationOutcome.addIssue(issue);
+                continue;
+            }
+            Coding coding = (Coding) param.getValue();
+            if (coding.getSystem() != null && coding.getSystem().equalsIgnoreCase(Utilities.SNOMED_SYSTEM_URI)) {
+                paramIndexes[count++] = i;
+                totalLength += (coding.getCode() == null) ? 0 : coding.getCode().length();
+            }
+        }
+
+        char[] buffer = new char[totalLength];
+        int[] offsets = new int[count + 1];
+        for (int c = 0; c < count; c++) {
+            String code = ((Coding) params.get(paramIndexes[c]).getValue()).getCode();
+            int length = (code == null) ? 0 : code.length();
+            if (length > 0) {
+                code.getChars(0, length, buffer, offsets[c]);
+            }
+            offsets[c + 1] = offsets[c] + length;
+        }
+
+        byte[] results = sctValidationService.validateIdentifierFormats(buffer, offsets, count);
+        log.info("Validated a batch of " + count + " SNOMED CT codes");
+
+        for (int c = 0; c < count; c++) {
+            SCTValidationService.FormatResult result = SCTValidationService.FormatResult.fromCode(results[c]);
+            if (!result.isValid()) {
+                String code = ((Coding) params.get(paramIndexes[c]).getValue()).getCode();
+                OperationOutcomeIssueComponent issue = sctValidationService.createIssue(result, code);
+                issue.addExpression("Parameters.parameter[" + paramIndexes[c] + "].value");
+                operationOutcome.addIssue(issue);
+            }
+        }
+        return operationOutcome;
     }
 
-    private RequestParseResult validateFormatCodingRequest(String parametersResource) {
+    private RequestParseResult validateFormatCodingRequest(Reader parametersResource) {
 
         RequestParseResult results = new RequestParseResult();
 
@@ -139,11 +375,12 @@ public class ChecksController extends BaseController {
             // If parsing fails, create an OperationOutcome with an error
             OperationOutcomeIssueComponent issue = new OperationOutcomeIssueComponent();
             issue.setSeverity(IssueSeverity.ERROR);
-            issue.setCode(IssueType.INVALID);
+            issue.setCode(isTooLarge(e) ? IssueType.TOOLONG : IssueType.INVALID);
             issue.setDiagnostics("Failed to parse Parameters resource: " + e.getMessage());
             operationOutcome.addIssue(issue);
 
             results.setValid(false     );
+            results.setStatus(isTooLarge(e) ? HttpStatus.PAYLOAD_TOO_LARGE : HttpStatus.BAD_REQUEST);
             results.setOperationOutcome(operationOutcome);
             return results;
         }
@@ -171,4 +408,14 @@ public class ChecksController extends BaseController {
         return results;
     }
 
+    private OperationOutcome errorOutcome(IssueType issueType, String diagnostics) {
+        OperationOutcome operationOutcome = new OperationOutcome();
+        OperationOutcomeIssueComponent issue = new OperationOutcomeIssueComponent();
+        issue.setSeverity(IssueSeverity.ERROR);
+        issue.setCode(issueType);
+        issue.setDiagnostics(diagnostics);
+        operationOutcome.addIssue(issue);
+        return operationOutcome;
+    }
+
 }
@@ -0,0 +1,7 @@
+package com.dedalus.uks.ChecksService.exception;
+
+public class AsyncCapacityException extends RuntimeException {
+    public AsyncCapacityException(String message) {
+        super(message);
+    }
+}
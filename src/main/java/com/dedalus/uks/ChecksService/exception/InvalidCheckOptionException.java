@@ -0,0 +1,7 @@
+package com.dedalus.uks.ChecksService.exception;
+
+public class InvalidCheckOptionException extends RuntimeException {
+    public InvalidCheckOptionException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,10 @@
+package com.dedalus.uks.ChecksService.exception;
+
+import java.io.IOException;
+
+// Thrown while the body is read, so it reaches the parser like any other read failure
+public class RequestTooLargeException extends IOException {
+    public RequestTooLargeException(String message) {
+        super(message);
+    }
+}
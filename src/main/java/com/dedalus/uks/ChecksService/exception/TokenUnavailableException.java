@@ -0,0 +1,7 @@
+package com.dedalus.uks.ChecksService.exception;
+
+public class TokenUnavailableException extends RuntimeException {
+    public TokenUnavailableException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,203 @@
+package com.dedalus.uks.ChecksService.service;
+
+import com.dedalus.uks.ChecksService.config.ChecksConfig;
+import com.dedalus.uks.ChecksService.exception.ActivityDefinitionManyFoundException;
+import com.dedalus.uks.ChecksService.exception.ActivityDefinitionNotFoundException;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.gclient.IQuery;
+import ca.uhn.fhir.rest.param.DateRangeParam;
+import lombok.extern.slf4j.Slf4j;
+
+import org.hl7.fhir.r4.model.ActivityDefinition;
+import org.hl7.fhir.r4.model.Bundle;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import jakarta.annotation.PreDestroy;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory catalogue of the ActivityDefinitions on the FHIR server, keyed by canonical URL.
+ *
+ * The catalogue is loaded once the application is ready and then kept current in the
+ * background with _lastUpdated searches, which come back empty when nothing changed. A full
+ * reload now and then picks up deletions. If the FHIR server is unavailable during a
+ * refresh, the entries already held keep being served.
+ */
+@Service
+@Slf4j
+public class ActivityDefinitionCatalogue {
+
+    // Overlap between delta searches, so clock skew against the server cannot lose an update
+    private static final long REFRESH_OVERLAP_MILLIS = 60 * 1000;
+
+    private final ChecksConfig checksConfig;
+    private final TokenManager tokenManager;
+    private final FhirClientProvider fhirClientProvider;
+
+    private final Map<String, List<ActivityDefinition>> byUrl = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "activity-definition-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile Date lastSynced;
+    private volatile long lastFullReload;
+
+    @Autowired
+    public ActivityDefinitionCatalogue(ChecksConfig checksConfig, TokenManager tokenManager, FhirClientProvider fhirClientProvider) {
+        this.checksConfig = checksConfig;
+        this.tokenManager = tokenManager;
+        this.fhirClientProvider = fhirClientProvider;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void preload() {
+        ChecksConfig.ActivityDefinitions config = checksConfig.getActivityDefinitions();
+        if (config.isPreload()) {
+            refresh();
+        }
+        long interval = config.getRefreshIntervalSeconds();
+        if (interval > 0) {
+            refresher.scheduleWithFixedDelay(this::refresh, interval, interval, TimeUnit.SECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        refresher.shutdownNow();
+    }
+
+    /**
+     * Resolves a canonical reference, optionally versioned as url|version. Unknown URLs are
+     * searched for on the server, they may have been added since the last refresh.
+     */
+    public ActivityDefinition resolve(String canonicalUrl) {
+        String url = canonicalUrl;
+        String version = null;
+        int bar = (canonicalUrl == null) ? -1 : canonicalUrl.indexOf('|');
+        if (bar >= 0) {
+            url = canonicalUrl.substring(0, bar);
+            version = canonicalUrl.substring(bar + 1);
+        }
+
+        List<ActivityDefinition> candidates = byUrl.get(url);
+        if (candidates == null) {
+            log.info("ActivityDefinition " + url + " is not in the catalogue, searching the FHIR server");
+            candidates = search(url, null);
+            if (!candidates.isEmpty()) {
+                byUrl.put(url, List.copyOf(candidates));
+            }
+        }
+
+        List<ActivityDefinition> matches = new ArrayList<>();
+        for (ActivityDefinition candidate : candidates) {
+            if (version == null || version.equals(candidate.getVersion())) {
+                matches.add(candidate);
+            }
+        }
+
+        if (matches.isEmpty()) {
+            throw new ActivityDefinitionNotFoundException("ActivityDefinition not found for canonical URL '" + canonicalUrl + "'");
+        } else if (matches.size() > 1) {
+            throw new ActivityDefinitionManyFoundException("Multiple ActivityDefinitions found for canonical URL '" + canonicalUrl + "'");
+        }
+        return matches.get(0);
+    }
+
+    public int size() {
+        return byUrl.size();
+    }
+
+    void refresh() {
+        long fullReloadMillis = checksConfig.getActivityDefinitions().getFullReloadIntervalSeconds() * 1000;
+        long now = System.currentTimeMillis();
+        boolean fullReload = lastSynced == null || now - lastFullReload >= fullReloadMillis;
+        Date since = fullReload ? null : lastSynced;
+
+        try {
+            List<ActivityDefinition> activityDefinitions = search(null, since);
+            if (fullReload) {
+                Map<String, List<ActivityDefinition>> reloaded = new HashMap<>();
+                for (ActivityDefinition activityDefinition : activityDefinitions) {
+                    reloaded.computeIfAbsent(activityDefinition.getUrl(), url -> new ArrayList<>()).add(activityDefinition);
+                }
+                reloaded.forEach((url, list) -> byUrl.put(url, List.copyOf(list)));
+                byUrl.keySet().retainAll(reloaded.keySet());
+                lastFullReload = now;
+            } else {
+                for (ActivityDefinition activityDefinition : activityDefinitions) {
+                    merge(activityDefinition);
+                }
+            }
+            lastSynced = new Date(now - REFRESH_OVERLAP_MILLIS);
+            log.info("Refreshed ActivityDefinition catalogue, " + activityDefinitions.size() + " " + (fullReload ? "loaded" : "changed") + ", " + byUrl.size() + " canonical URLs held");
+        } catch (Exception e) {
+            // Keep serving what we have, the next refresh will try again
+            log.warn("Unable to refresh ActivityDefinition catalogue, serving " + byUrl.size() + " cached canonical URLs: " + e.getMessage());
+        }
+    }
+
+    private void merge(ActivityDefinition activityDefinition) {
+        String id = activityDefinition.getIdElement().getIdPart();
+        byUrl.compute(activityDefinition.getUrl(), (url, existing) -> {
+            List<ActivityDefinition> merged = new ArrayList<>();
+            if (existing != null) {
+                for (ActivityDefinition candidate : existing) {
+                    if (!candidate.getIdElement().getIdPart().equals(id)) {
+                        merged.add(candidate);
+                    }
+                }
+            }
+            merged.add(activityDefinition);
+            return List.copyOf(merged);
+        });
+    }
+
+    private List<ActivityDefinition> search(String url, Date lastUpdatedSince) {
+        ChecksConfig.FhirServer fhirServer = checksConfig.getFhirServer();
+        IGenericClient client = fhirClientProvider.getClient(fhirServer);
+
+        String token = tokenManager.getToken(fhirServer);
+
+        IQuery<Bundle> query = client
+            .search()
+            .forResource(ActivityDefinition.class)
+            .returnBundle(Bundle.class);
+        if (url != null) {
+            query = query.where(ActivityDefinition.URL.matches().value(url));
+        }
+        if (lastUpdatedSince != null) {
+            query = query.lastUpdated(new DateRangeParam(lastUpdatedSince, null));
+        }
+
+        List<ActivityDefinition> found = new ArrayList<>();
+        Bundle bundle = query.withAdditionalHeader("Authorization", "Bearer " + token).execute();
+        while (bundle != null) {
+            for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+                if (entry.getResource() instanceof ActivityDefinition) {
+                    found.add((ActivityDefinition) entry.getResource());
+                }
+            }
+            bundle = (bundle.getLink(Bundle.LINK_NEXT) == null) ? null : client
+                .loadPage()
+                .next(bundle)
+                .withAdditionalHeader("Authorization", "Bearer " + token)
+                .execute();
+        }
+        return found;
+    }
+}
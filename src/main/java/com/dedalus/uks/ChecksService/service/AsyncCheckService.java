@@ -0,0 +1,265 @@
+package com.dedalus.uks.ChecksService.service;
+
+import com.dedalus.uks.ChecksService.checks.Check;
+import com.dedalus.uks.ChecksService.config.ChecksConfig;
+import com.dedalus.uks.ChecksService.config.ThreadingConfig;
+import com.dedalus.uks.ChecksService.exception.AsyncCapacityException;
+
+import lombok.extern.slf4j.Slf4j;
+
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueType;
+import org.hl7.fhir.r4.model.OperationOutcome.OperationOutcomeIssueComponent;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Task;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Service;
+
+import jakarta.annotation.PreDestroy;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Date;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs checks in the background for the FHIR asynchronous request pattern.
+ *
+ * Jobs run on the asynchronous check executor of ThreadingConfig, a fixed number of workers
+ * behind a bounded queue, and the job table is bounded too. Finished jobs are kept for checks.async.resultTtlSeconds so the client can collect the
+ * result, then dropped. When the queue or the table is full new jobs are refused rather than
+ * piling up.
+ */
+@Service
+@Slf4j
+public class AsyncCheckService {
+
+    private final ChecksConfig checksConfig;
+    private final CheckResultCache checkResultCache;
+    private final CheckMetrics checkMetrics;
+    private final AsyncTaskExecutor workers;
+    private final Map<String, CheckJob> jobs = new ConcurrentHashMap<>();
+    // Slots of the job table, taken before a job is put in and given back when it is removed
+    private final AtomicInteger heldJobs = new AtomicInteger();
+    private final ScheduledFuture<?> sweep;
+
+    @Autowired
+    public AsyncCheckService(ChecksConfig checksConfig, CheckResultCache checkResultCache, CheckMetrics checkMetrics,
+            @Qualifier(ThreadingConfig.ASYNC_CHECK_EXECUTOR) AsyncTaskExecutor workers, @Qualifier(ThreadingConfig.SCHEDULER) TaskScheduler scheduler) {
+        this.checksConfig = checksConfig;
+        this.checkResultCache = checkResultCache;
+        this.checkMetrics = checkMetrics;
+        this.workers = workers;
+        this.sweep = scheduler.scheduleWithFixedDelay(this::expire, Instant.now().plusSeconds(60), Duration.ofSeconds(60));
+    }
+
+    // The executor and the scheduler are shut down with the context, running jobs are interrupted then
+    @PreDestroy
+    public void shutdown() {
+        sweep.cancel(false);
+    }
+
+    /**
+     * Queues the check, throwing AsyncCapacityException when it cannot be accepted.
+     */
+    public CheckJob submit(Check check, ValueSet valueSet, ResolutionContext resolutionContext) {
+        if (!reserveSlot()) {
+            expire();
+            if (!reserveSlot()) {
+                throw new AsyncCapacityException("Too many asynchronous checks, " + heldJobs.get() + " are held");
+            }
+        }
+
+        Task task = resolutionContext.getTask();
+        CheckJob job = new CheckJob(UUID.randomUUID().toString(), check.getCode(), task.getInstantiatesCanonical(), resolutionContext.getFocusReference());
+        jobs.put(job.getId(), job);
+
+        try {
+            job.future = workers.submit(() -> run(job, check, valueSet, resolutionContext));
+        } catch (RejectedExecutionException e) {
+            remove(job);
+            throw new AsyncCapacityException("The asynchronous check queue is full");
+        }
+        log.info("Accepted asynchronous " + check.getCode() + " check as job " + job.getId());
+        return job;
+    }
+
+    private void run(CheckJob job, Check check, ValueSet valueSet, ResolutionContext resolutionContext) {
+        if (!job.start()) {
+            return;
+        }
+        try {
+            OperationOutcome outcome;
+            if (checkResultCache.isCacheable(check, valueSet)) {
+                String resultKey = checkResultCache.key(check, valueSet, resolutionContext);
+                outcome = checkMetrics.recordCheck(check.getCode(), CheckMetrics.MODE_ASYNC, () -> checkResultCache.run(resultKey, check, valueSet, resolutionContext));
+            } else {
+                outcome = checkMetrics.recordCheck(check.getCode(), CheckMetrics.MODE_ASYNC, () -> check.run(valueSet, resolutionContext));
+            }
+            job.finish(Task.TaskStatus.COMPLETED, outcome);
+        } catch (Exception e) {
+            log.error("Asynchronous check " + job.getId() + " failed: " + e.getMessage(), e);
+            OperationOutcome outcome = new OperationOutcome();
+            OperationOutcomeIssueComponent issue = new OperationOutcomeIssueComponent();
+            issue.setSeverity(IssueSeverity.FATAL);
+            issue.setCode(IssueType.EXCEPTION);
+            issue.setDiagnostics("Check failed: " + e.getMessage());
+            outcome.addIssue(issue);
+            job.finish(Task.TaskStatus.FAILED, outcome);
+        }
+    }
+
+    public CheckJob get(String id) {
+        return jobs.get(id);
+    }
+
+    /**
+     * Cancels the job if it has not finished yet. Returns the job, or null for an unknown job.
+     */
+    public CheckJob cancel(String id) {
+        CheckJob job = jobs.get(id);
+        if (job == null) {
+            return null;
+        }
+        if (!job.isFinished()) {
+            job.finish(Task.TaskStatus.CANCELLED, null);
+            if (job.future != null) {
+                job.future.cancel(true);
+            }
+            log.info("Cancelled asynchronous check " + id);
+        }
+        return job;
+    }
+
+    // Compare and set, so concurrent submits cannot take more slots than maxJobs between them
+    private boolean reserveSlot() {
+        int maxJobs = checksConfig.getAsync().getMaxJobs();
+        while (true) {
+            int held = heldJobs.get();
+            if (held >= maxJobs) {
+                return false;
+            }
+            if (heldJobs.compareAndSet(held, held + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void remove(CheckJob job) {
+        if (jobs.remove(job.getId(), job)) {
+            heldJobs.decrementAndGet();
+        }
+    }
+
+    private void expire() {
+        long cutoff = System.currentTimeMillis() - checksConfig.getAsync().getResultTtlSeconds() * 1000;
+        for (CheckJob job : jobs.values()) {
+            if (job.isFinished() && job.finishedAt < cutoff) {
+                remove(job);
+            }
+        }
+    }
+
+    /**
+     * One asynchronous check. Status and result are published through volatile fields, as the
+     * job is written by a worker and read by the polling request threads.
+     */
+    public static class CheckJob {
+        private final String id;
+        private final String checkCode;
+        private final String instantiatesCanonical;
+        private final String focusReference;
+        private final Date created = new Date();
+        private volatile Task.TaskStatus status = Task.TaskStatus.ACCEPTED;
+        private volatile OperationOutcome outcome;
+        private volatile long finishedAt;
+        private volatile Future<?> future;
+
+        CheckJob(String id, String checkCode, String instantiatesCanonical, String focusReference) {
+            this.id = id;
+            this.checkCode = checkCode;
+            this.instantiatesCanonical = instantiatesCanonical;
+            this.focusReference = focusReference;
+        }
+
+        // False when the job was cancelled while it was queued
+        private synchronized boolean start() {
+            if (status != Task.TaskStatus.ACCEPTED) {
+                return false;
+            }
+            status = Task.TaskStatus.INPROGRESS;
+            return true;
+        }
+
+        private synchronized void finish(Task.TaskStatus finalStatus, OperationOutcome result) {
+            // A cancel can race with the worker finishing, whichever comes first wins
+            if (isFinished()) {
+                return;
+            }
+            this.outcome = result;
+            this.finishedAt = System.currentTimeMillis();
+            this.status = finalStatus;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getCheckCode() {
+            return checkCode;
+        }
+
+        public Task.TaskStatus getStatus() {
+            return status;
+        }
+
+        public OperationOutcome getOutcome() {
+            return outcome;
+        }
+
+        public boolean isFinished() {
+            Task.TaskStatus current = status;
+            return current == Task.TaskStatus.COMPLETED || current == Task.TaskStatus.FAILED || current == Task.TaskStatus.CANCELLED;
+        }
+
+        /**
+         * The job as a Task. Once finished, a copy of the OperationOutcome is contained and
+         * referenced from Task.output, so concurrent polls never encode the same instance.
+         */
+        public Task toTask() {
+            Task task = new Task();
+            task.setId(id);
+            task.setStatus(status);
+            task.setIntent(Task.TaskIntent.ORDER);
+            task.setInstantiatesCanonical(instantiatesCanonical);
+            if (focusReference != null) {
+                task.setFocus(new Reference(focusReference));
+            }
+            task.setAuthoredOn(created);
+            task.setLastModified(finishedAt > 0 ? new Date(finishedAt) : created);
+
+            OperationOutcome result = outcome;
+            if (result != null) {
+                OperationOutcome contained = result.copy();
+                contained.setId("outcome");
+                task.addContained(contained);
+                task.addOutput()
+                    .setType(new CodeableConcept().setText(checkCode))
+                    .setValue(new Reference(contained));
+            }
+            return task;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.dedalus.uks.ChecksService.service;
+
+import com.dedalus.uks.ChecksService.utils.Utilities;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Meters for each stage of the check pipeline, all under the checks. prefix.
+ *
+ * Stage timers are published with histograms, see management.metrics.distribution in
+ * application.yml, so latency percentiles can be aggregated across instances. Format results
+ * are read from the counters SCTValidationService keeps, a LongAdder per result, rather than
+ * looking up a meter for every code.
+ */
+@Component
+@Slf4j
+public class CheckMetrics {
+
+    public static final String TASK_PARSE = "checks.task.parse";
+    public static final String FOCUS_RESOLUTION = "checks.focus.resolution";
+    public static final String ACTIVITY_DEFINITION_LOOKUP = "checks.activitydefinition.lookup";
+    public static final String OUTCOME_ENCODING = "checks.outcome.encoding";
+
+    public static final String MODE_SYNC = "sync";
+    public static final String MODE_ASYNC = "async";
+
+    private static final String CHECK_RUN = "checks.check";
+    private static final String TOKEN_REFRESH = "checks.token.refresh";
+    private static final String TOKEN_WAIT = "checks.token.wait";
+    private static final String CODES_FORMAT = "checks.codes.format";
+    private static final String CODES_EXISTS = "checks.codes.exists";
+    private static final String IN_FLIGHT = "checks.in.flight";
+    private static final String RESULT_CACHE = "checks.result.cache";
+    private static final String FIRST_CHECK = "checks.startup.first.check";
+
+    private final MeterRegistry meterRegistry;
+    private final AtomicInteger syncInFlight = new AtomicInteger();
+    private final AtomicInteger asyncInFlight = new AtomicInteger();
+    // JVM uptime when the first check succeeded, -1 until then
+    private final AtomicLong firstCheckUptimeMillis = new AtomicLong(-1);
+
+    @Autowired
+    public CheckMetrics(MeterRegistry meterRegistry, SCTValidationService sctValidationService, CheckResultCache checkResultCache) {
+        this.meterRegistry = meterRegistry;
+
+        Gauge.builder(IN_FLIGHT, syncInFlight, AtomicInteger::get)
+            .description("Checks running now")
+            .tag("mode", MODE_SYNC)
+            .register(meterRegistry);
+        Gauge.builder(IN_FLIGHT, asyncInFlight, AtomicInteger::get)
+            .description("Checks running now")
+            .tag("mode", MODE_ASYNC)
+            .register(meterRegistry);
+
+        for (SCTValidationService.FormatResult result : SCTValidationService.FormatResult.values()) {
+            FunctionCounter.builder(CODES_FORMAT, sctValidationService, service -> service.getResultCount(result))
+                .description("Identifiers whose format was checked, by result")
+                .tag("system", Utilities.SNOMED_SYSTEM_URI)
+                .tag("result", result.name())
+                .register(meterRegistry);
+        }
+
+        FunctionCounter.builder(RESULT_CACHE, checkResultCache, CheckResultCache::getHits).tag("result", "hit").register(meterRegistry);
+        FunctionCounter.builder(RESULT_CACHE, checkResultCache, CheckResultCache::getMisses).tag("result", "miss").register(meterRegistry);
+        FunctionCounter.builder(RESULT_CACHE, checkResultCache, CheckResultCache::getCoalesced).tag("result", "coalesced").register(meterRegistry);
+        Gauge.builder(RESULT_CACHE + ".size", checkResultCache, CheckResultCache::size).register(meterRegistry);
+
+        TimeGauge.builder(FIRST_CHECK, firstCheckUptimeMillis, TimeUnit.MILLISECONDS, uptime -> uptime.get() < 0 ? Double.NaN : uptime.get())
+            .description("Time from JVM start to the first successful check")
+            .register(meterRegistry);
+    }
+
+    /**
+     * Times one stage, recorded whether or not it throws.
+     */
+    public <T> T time(String stage, Supplier<T> work) {
+        return meterRegistry.timer(stage).record(work);
+    }
+
+    /**
+     * Runs a check, timed by check code and outcome and counted as in flight while it runs.
+     */
+    public OperationOutcome recordCheck(String checkCode, String mode, Supplier<OperationOutcome> check) {
+        AtomicInteger inFlight = MODE_ASYNC.equals(mode) ? asyncInFlight : syncInFlight;
+        inFlight.incrementAndGet();
+        Timer.Sample sample = Timer.start(meterRegistry);
+        String outcome = "failure";
+        try {
+            OperationOutcome operationOutcome = check.get();
+            outcome = "success";
+            if (firstCheckUptimeMillis.get() < 0) {
+                long uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+                if (firstCheckUptimeMillis.compareAndSet(-1, uptime)) {
+                    log.info("First successful check " + uptime + " ms after JVM start");
+                }
+            }
+            return operationOutcome;
+        } finally {
+            inFlight.decrementAndGet();
+            sample.stop(meterRegistry.timer(CHECK_RUN, "check", checkCode, "mode", mode, "outcome", outcome));
+        }
+    }
+
+    public Timer.Sample startTimer() {
+        return Timer.start(meterRegistry);
+    }
+
+    // For stages that cannot be wrapped in a Supplier, e.g. writing a response
+    public void recordStage(Timer.Sample sample, String stage) {
+        sample.stop(meterRegistry.timer(stage));
+    }
+
+    // A call to the authentication server, on the refresh thread
+    public void recordTokenRefresh(Timer.Sample sample, String clientId, boolean success) {
+        sample.stop(meterRegistry.timer(TOKEN_REFRESH, "client", String.valueOf(clientId), "outcome", success ? "success" : "failure"));
+    }
+
+    // A request thread that had no usable token and waited for the refresh
+    public void recordTokenWait(Timer.Sample sample, String clientId) {
+        sample.stop(meterRegistry.timer(TOKEN_WAIT, "client", String.valueOf(clientId)));
+    }
+
+    public void countExistenceResults(String system, String result, long count) {
+        meterRegistry.counter(CODES_EXISTS, "system", system, "result", result).increment(count);
+    }
+}
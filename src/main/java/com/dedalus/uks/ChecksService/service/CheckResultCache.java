@@ -0,0 +1,218 @@
+package com.dedalus.uks.ChecksService.service;
+
+import com.dedalus.uks.ChecksService.checks.Check;
+import com.dedalus.uks.ChecksService.checks.CheckRequirement;
+import com.dedalus.uks.ChecksService.config.ChecksConfig;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import lombok.extern.slf4j.Slf4j;
+
+import org.hl7.fhir.r4.model.ActivityDefinition;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Check results keyed by what they depend on, so an unchanged ValueSet is only checked once.
+ *
+ * The key is a SHA-256 over the check code, the ActivityDefinition version, the check options
+ * and the compose and expansion of the focus ValueSet. Everything else about the ValueSet, and the expansion
+ * identifier and timestamp that change on every $expand, is left out. Element order is kept,
+ * issue expressions carry indexes so a reordered ValueSet gets a different outcome. The key is
+ * also the ETag of the /check response.
+ *
+ * Concurrent requests for the same key wait for the one computation in progress. Entries
+ * expire after checks.resultCache.ttlSeconds and the least recently used are dropped beyond
+ * checks.resultCache.maxEntries. Failures are never cached.
+ */
+@Service
+@Slf4j
+public class CheckResultCache {
+
+    // Changed by every $expand, so never part of the key
+    private static final Set<String> UNKEYED_ELEMENTS = Set.of("ValueSet.expansion.identifier", "ValueSet.expansion.timestamp");
+
+    private final ChecksConfig.ResultCache config;
+    private final FhirContext fhirContext;
+    private final Map<String, Entry> entries;
+    private final Map<String, CompletableFuture<OperationOutcome>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    @Autowired
+    public CheckResultCache(ChecksConfig checksConfig, FhirContext fhirContext) {
+        this.config = checksConfig.getResultCache();
+        this.fhirContext = fhirContext;
+        int maxEntries = config.getMaxEntries();
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > maxEntries) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * The content hash of the check against the ValueSet, as lower case hex.
+     */
+    public String key(Check check, ValueSet valueSet, ResolutionContext resolutionContext) {
+        ActivityDefinition activityDefinition = resolutionContext.getActivityDefinition();
+        String checkVersion = (activityDefinition != null && activityDefinition.hasVersion()) ? activityDefinition.getVersion() : "";
+
+        // Shares the focus ValueSet's compose and expansion rather than copying them, neither is changed
+        ValueSet normalised = new ValueSet();
+        normalised.setCompose(valueSet.hasCompose() ? valueSet.getCompose() : null);
+        normalised.setExpansion(valueSet.hasExpansion() ? valueSet.getExpansion() : null);
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        digest.update((check.getCode() + "\n" + checkVersion + "\n" + resolutionContext.getCheckOptions() + "\n").getBytes(StandardCharsets.UTF_8));
+
+        // Digested as it is encoded, a large expansion is never held as one String
+        IParser parser = fhirContext.newJsonParser().setPrettyPrint(false).setDontEncodeElements(UNKEYED_ELEMENTS);
+        try (Writer writer = new OutputStreamWriter(new DigestOutputStream(OutputStream.nullOutputStream(), digest), StandardCharsets.UTF_8)) {
+            parser.encodeResourceToWriter(normalised, writer);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Runs the check, or returns the cached outcome for the key. Every caller gets its own
+     * copy of the outcome, so it is free to change it.
+     */
+    public OperationOutcome run(String key, Check check, ValueSet valueSet, ResolutionContext resolutionContext) {
+        if (!isCacheable(check, valueSet)) {
+            return check.run(valueSet, resolutionContext);
+        }
+
+        OperationOutcome cached = lookup(key);
+        if (cached != null) {
+            hits.incrementAndGet();
+            return cached.copy();
+        }
+
+        CompletableFuture<OperationOutcome> computation = new CompletableFuture<>();
+        CompletableFuture<OperationOutcome> running = inFlight.putIfAbsent(key, computation);
+        if (running != null) {
+            coalesced.incrementAndGet();
+            log.debug("Waiting for the {} check already running for {}", check.getCode(), key);
+            try {
+                return running.join().copy();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+
+        try {
+            // Another request may have finished between the lookup and taking the key
+            OperationOutcome outcome = lookup(key);
+            if (outcome == null) {
+                misses.incrementAndGet();
+                outcome = check.run(valueSet, resolutionContext).copy();
+                long expiresAt = System.currentTimeMillis() + config.getTtlSeconds() * 1000;
+                synchronized (entries) {
+                    entries.put(key, new Entry(outcome, expiresAt));
+                }
+            }
+            computation.complete(outcome);
+            return outcome.copy();
+        } catch (RuntimeException e) {
+            computation.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, computation);
+        }
+    }
+
+    /**
+     * Whether outcomes of the check against the ValueSet are cached. Callers only need the key when it is.
+     */
+    public boolean isCacheable(Check check, ValueSet valueSet) {
+        if (!config.isEnabled()) {
+            return false;
+        }
+        return config.isIncludeRemoteTerminology() || !check.getRequirements(valueSet).contains(CheckRequirement.REMOTE_TERMINOLOGY);
+    }
+
+    private OperationOutcome lookup(String key) {
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.expiresAt < System.currentTimeMillis()) {
+                entries.remove(key);
+                return null;
+            }
+            return entry.outcome;
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    private static class Entry {
+        private final OperationOutcome outcome;
+        private final long expiresAt;
+
+        Entry(OperationOutcome outcome, long expiresAt) {
+            this.outcome = outcome;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
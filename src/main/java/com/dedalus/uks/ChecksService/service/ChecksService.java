@@ -1,14 +1,10 @@
 package com.dedalus.uks.ChecksService.service;
+import com.dedalus.uks.ChecksService.checks.CheckOptions;
 import com.dedalus.uks.ChecksService.config.ChecksConfig;
 import com.dedalus.uks.ChecksService.config.ChecksConfig.IFhirRestServer;
-import com.dedalus.uks.ChecksService.exception.ActivityDefinitionManyFoundException;
-import com.dedalus.uks.ChecksService.exception.ActivityDefinitionNotFoundException;
 import com.dedalus.uks.ChecksService.utils.Utilities;
-import com.fasterxml.jackson.core.JsonProcessingException;
 
 import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.rest.api.SortOrderEnum;
-import ca.uhn.fhir.rest.api.SortSpec;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
 import lombok.extern.slf4j.Slf4j;
 
@@ -17,58 +13,75 @@ import org.springframework.stereotype.Service;
 
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.ActivityDefinition;
-import org.hl7.fhir.r4.model.Bundle;
-import org.hl7.fhir.r4.model.CodeType;
-import org.hl7.fhir.r4.model.Coding;
 import org.hl7.fhir.r4.model.OperationOutcome;
 import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
 import org.hl7.fhir.r4.model.OperationOutcome.IssueType;
 import org.hl7.fhir.r4.model.OperationOutcome.OperationOutcomeIssueComponent;
-import org.hl7.fhir.r4.model.Parameters;
-import org.hl7.fhir.r4.model.Resource;
-import org.hl7.fhir.r4.model.StringType;
 import org.hl7.fhir.r4.model.Task;
-import org.hl7.fhir.r4.model.UriType;
 import org.hl7.fhir.r4.model.ValueSet;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import jakarta.annotation.PreDestroy;
 
 import org.snomed.langauges.ecl.ECLObjectFactory;
 import org.snomed.langauges.ecl.ECLQueryBuilder;
-import org.snomed.langauges.ecl.domain.ConceptReference;
-import org.snomed.langauges.ecl.domain.Pair;
-import org.snomed.langauges.ecl.domain.expressionconstraint.CompoundExpressionConstraint;
-import org.snomed.langauges.ecl.domain.expressionconstraint.DottedExpressionConstraint;
-import org.snomed.langauges.ecl.domain.expressionconstraint.ExpressionConstraint;
-import org.snomed.langauges.ecl.domain.expressionconstraint.RefinedExpressionConstraint;
-import org.snomed.langauges.ecl.domain.expressionconstraint.SubExpressionConstraint;
-import org.snomed.langauges.ecl.domain.filter.*;
-import org.snomed.langauges.ecl.domain.refinement.EclAttributeGroup;
-import org.snomed.langauges.ecl.domain.refinement.EclAttributeSet;
-import org.snomed.langauges.ecl.domain.refinement.EclRefinement;
-import org.snomed.langauges.ecl.domain.refinement.SubAttributeSet;
-import org.snomed.langauges.ecl.domain.refinement.SubRefinement;
 
 @Service
 @Slf4j
 public class ChecksService {
 
     private final ChecksConfig checksConfig;
-    private final FhirTokenService fhirTokenService;
-    private final TerminologyTokenService terminologyTokenService;
+    private final TokenManager tokenManager;
     private final SCTValidationService sctValidationService;
     private final ECLQueryBuilder eclQueryBuilder;
+    private final EclConceptCache eclConceptCache;
+
+    private final FhirContext fhirContext;
+    private final ActivityDefinitionCatalogue activityDefinitionCatalogue;
+    private final FhirClientProvider fhirClientProvider;
+    private final ValueSetExpander valueSetExpander;
 
-    private FhirContext fhirContext = FhirContext.forR4();
+    static final String EXPANSION_CONTAINS_PATH = "ValueSet.expansion.contains";
+    static final String EXPANSION_NESTED_CONTAINS_PATH = "ValueSet.expansion.contains.contains";
+
+    // Dedicated, bounded pool for the parallel traversal of large ValueSets
+    private final ForkJoinPool checkPool;
 
     @Autowired
-    public ChecksService(ChecksConfig checksConfig, FhirTokenService fhirTokenService, TerminologyTokenService terminologyTokenService, SCTValidationService sctValidationService) {
+    public ChecksService(ChecksConfig checksConfig, FhirContext fhirContext, TokenManager tokenManager, SCTValidationService sctValidationService, EclConceptCache eclConceptCache, ActivityDefinitionCatalogue activityDefinitionCatalogue, FhirClientProvider fhirClientProvider, ValueSetExpander valueSetExpander) {
         this.checksConfig = checksConfig;
-        this.fhirTokenService = fhirTokenService;
-        this.terminologyTokenService = terminologyTokenService;
+        this.fhirContext = fhirContext;
+        this.activityDefinitionCatalogue = activityDefinitionCatalogue;
+        this.fhirClientProvider = fhirClientProvider;
+        this.valueSetExpander = valueSetExpander;
+        this.tokenManager = tokenManager;
         this.sctValidationService = sctValidationService;
         this.eclQueryBuilder = new ECLQueryBuilder(new ECLObjectFactory());
+        this.eclConceptCache = eclConceptCache;
+        this.checkPool = createCheckPool(checksConfig.getParallel().getParallelism());
+    }
+
+    private static ForkJoinPool createCheckPool(int parallelism) {
+        ForkJoinPool.ForkJoinWorkerThreadFactory threadFactory = pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("check-worker-" + thread.getPoolIndex());
+            return thread;
+        };
+        // Never grows beyond twice the parallelism, and saturation just means no compensating thread
+        return new ForkJoinPool(parallelism, threadFactory, null, false, 0, parallelism * 2, 1, pool -> true, 60, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        checkPool.shutdown();
     }
 
     public FhirContext getFHIRContext() {
@@ -83,308 +96,290 @@ public class ChecksService {
     }
 
     public OperationOutcome checkCodeFormat(ValueSet valueSet, String checkCode) {
+        return checkCodeFormat(valueSet, checkCode, CheckOptions.UNLIMITED);
+    }
+
+    public OperationOutcome checkCodeFormat(ValueSet valueSet, String checkCode, CheckOptions checkOptions) {
         log.info("Carrying out check for concept format");
         OperationOutcome operationOutcome = new OperationOutcome();
 
-        if (valueSet.getExpansion() == null ) {
-            OperationOutcomeIssueComponent issue = new OperationOutcomeIssueComponent();
-            issue.setSeverity(IssueSeverity.ERROR);
-            issue.setCode(IssueType.INVALID);
-            issue.setDiagnostics("ValueSet does not have an expansion");
-            operationOutcome.addIssue(issue);
+        if (valueSetExpander.needsExpansion(valueSet)) {
+            return checkCodeFormatExpanded(valueSet, checkOptions);
+        }
+
+        List<ValueSet.ConceptSetComponent> includes = valueSet.getCompose().getInclude();
+        List<ValueSet.ValueSetExpansionContainsComponent> contains = valueSet.getExpansion().getContains();
+
+        int codeCount = contains.size();
+        for (ValueSet.ConceptSetComponent conceptSet : includes) {
+            codeCount += conceptSet.getConcept().size();
+        }
+
+        ChecksConfig.Parallel parallel = checksConfig.getParallel();
+        if (parallel.isEnabled() && codeCount >= parallel.getThreshold()) {
+            log.info("Checking " + codeCount + " codes in parallel");
+            operationOutcome.setIssue(checkCodeFormatParallel(includes, contains, parallel.getLeafSize(), new IssueCollector(checkOptions)).toIssues());
             return operationOutcome;
         }
 
+        IssueCollector issues = new IssueCollector(checkOptions);
         // Iterate the ValueSet Compose Include to check each code
-        for (ValueSet.ConceptSetComponent conceptSet : valueSet.getCompose().getInclude()) {
+        for (ValueSet.ConceptSetComponent conceptSet : includes) {
+            checkComposeConceptFormat(conceptSet, 0, conceptSet.getConcept().size(), issues);
+            checkComposeFilterFormat(conceptSet, issues);
+        }
+        // Iterate the ValueSet expansion contains to check each code
+        checkExpansionFormat(contains, 0, contains.size(), issues);
 
-            if (conceptSet.getConcept() != null) {
-                for (ValueSet.ConceptReferenceComponent conceptRef : conceptSet.getConcept()) {
-
-                    if (conceptSet.getSystem().equals(Utilities.SNOMED_SYSTEM_URI)) {
-                        OperationOutcome validationResult = sctValidationService.validateIdentifierFormat(conceptRef.getCode());
-                        if (validationResult.getIssue().size() > 0) {
-                            String expression = "ValueSet.compose.include.where(system = '" + conceptSet.getSystem() + "'" + ((conceptSet.hasVersion()) ? " and version = '" + conceptSet.getVersion() + "'" : "") + " ).concept.where(code = '" + conceptRef.getCode() + "')";
-                            StringType expession = new StringType(expression);
-                            List<StringType> expressionList = new ArrayList<>();
-                            expressionList.add(expession);
-                            for (OperationOutcomeIssueComponent issue : validationResult.getIssue()) {
-                                issue.setExpression(expressionList);
-                                operationOutcome.addIssue(issue);
-                            }
-                        }
-                    }
+        operationOutcome.setIssue(issues.toIssues());
+        return operationOutcome;
+    }
 
-                }
-            }
+    /**
+     * The code-format check of a compose-only ValueSet. The compose is checked here and the
+     * expansion page by page as the terminology server returns it, see {@link ValueSetExpander}.
+     */
+    private OperationOutcome checkCodeFormatExpanded(ValueSet valueSet, CheckOptions checkOptions) {
+        OperationOutcome operationOutcome = new OperationOutcome();
+        IssueCollector issues = new IssueCollector(checkOptions);
+        for (ValueSet.ConceptSetComponent conceptSet : valueSet.getCompose().getInclude()) {
+            checkComposeConceptFormat(conceptSet, 0, conceptSet.getConcept().size(), issues);
+            checkComposeFilterFormat(conceptSet, issues);
+        }
 
-            if (conceptSet.getFilter() != null) {
-
-                String[] arrayConceptProperties = { "parent", "child", "descendant", "ancestor", "code" };
-
-                for (ValueSet.ConceptSetFilterComponent conceptFilter : conceptSet.getFilter()) {
-                    
-                    // Check if the property is one of the supported properties where the value may indicate a code
-                    if (Utilities.containsIgnoreCase(arrayConceptProperties, conceptFilter.getProperty())) {
-                        
-                        if (conceptSet.getSystem().equals(Utilities.SNOMED_SYSTEM_URI)) {
-                            OperationOutcome validationResult = sctValidationService.validateIdentifierFormat(conceptFilter.getValue());
-                            if (validationResult.getIssue().size() > 0) {
-                                String expression = "ValueSet.compose.include.where(system = '" + conceptSet.getSystem() + "'" + ((conceptSet.hasVersion()) ? " and version = '" + conceptSet.getVersion() + "'" : "") + " ).filter.where(property = '" + conceptFilter.getProperty() + "' and value = '" + conceptFilter.getValue() + "')";
-                                StringType expession = new StringType(expression);
-                                List<StringType> expressionList = new ArrayList<>();
-                                expressionList.add(expession);
-                                for (OperationOutcomeIssueComponent issue : validationResult.getIssue()) {
-                                    issue.setExpression(expressionList);
-                                    operationOutcome.addIssue(issue);
-                                }
-                            }
-                        }
- 
-                    }
+        OperationOutcomeIssueComponent expansionIssue = null;
+        try {
+            valueSetExpander.expand(valueSet, issues, (contains, pageIssues) -> checkExpansionFormat(contains, 0, contains.size(), pageIssues));
+        } catch (RuntimeException e) {
+            expansionIssue = new OperationOutcomeIssueComponent();
+            expansionIssue.setSeverity(IssueSeverity.ERROR);
+            expansionIssue.setCode(IssueType.EXCEPTION);
+            expansionIssue.setDiagnostics("ValueSet could not be expanded by the terminology server: " + e.getMessage());
+        }
 
-                    // Check if the property is 'expression' where the value will indicate an ECL expression
-                    if (conceptFilter.getProperty().equalsIgnoreCase("expression")) {
-                        String ecl = conceptFilter.getValue();
-                        ExpressionConstraint query = eclQueryBuilder.createQuery(ecl);
-                        List<ExpressionConcept> concepts = eclParse(query);
-
-                        for(ExpressionConcept expressionConcept : concepts) {
-                            
-                            if (conceptSet.getSystem().equals(Utilities.SNOMED_SYSTEM_URI)) {
-                                OperationOutcome validationResult = sctValidationService.validateIdentifierFormat(expressionConcept.getConceptId());
-                                if (validationResult.getIssue().size() > 0) {
-                                    String expression = "ValueSet.compose.include.where(system = '" + conceptSet.getSystem() + "'" + ((conceptSet.hasVersion()) ? " and version = '" + conceptSet.getVersion() + "'" : "") + " ).filter.where(property = 'expression')";
-                                    StringType expession = new StringType(expression);
-                                    List<StringType> expressionList = new ArrayList<>();
-                                    expressionList.add(expession);
-                                    for (OperationOutcomeIssueComponent issue : validationResult.getIssue()) {
-                                        issue.setExpression(expressionList);
-                                        operationOutcome.addIssue(issue);
-                                    }
-                                }
-                            }
-
-                        }
+        operationOutcome.setIssue(issues.toIssues());
+        if (expansionIssue != null) {
+            operationOutcome.addIssue(expansionIssue);
+        }
+        return operationOutcome;
+    }
 
-                    }
+    /**
+     * Splits the compose and expansion work into fork-join tasks. Segments are joined in the
+     * order the serial traversal visits them, so the issues come back in exactly the same order.
+     * With failFast the segments stop together, though which codes were checked by then varies.
+     */
+    private IssueCollector checkCodeFormatParallel(List<ValueSet.ConceptSetComponent> includes, List<ValueSet.ValueSetExpansionContainsComponent> contains, int leafSize, IssueCollector collector) {
+        List<RangeCheckTask> segments = new ArrayList<>();
+        for (ValueSet.ConceptSetComponent conceptSet : includes) {
+            segments.add(new RangeCheckTask((from, to, issues) -> checkComposeConceptFormat(conceptSet, from, to, issues), 0, conceptSet.getConcept().size(), leafSize, collector));
+            segments.add(new RangeCheckTask((from, to, issues) -> checkComposeFilterFormat(conceptSet, issues), 0, 1, 1, collector));
+        }
+        segments.add(new RangeCheckTask((from, to, issues) -> checkExpansionFormat(contains, from, to, issues), 0, contains.size(), leafSize, collector));
+
+        return checkPool.invoke(new RecursiveTask<IssueCollector>() {
+            @Override
+            protected IssueCollector compute() {
+                ForkJoinTask.invokeAll(segments);
+                for (RangeCheckTask segment : segments) {
+                    collector.addAll(segment.join());
                 }
-            } 
+                return collector;
+            }
+        });
+    }
+
+    private void checkComposeConceptFormat(ValueSet.ConceptSetComponent conceptSet, int from, int to, IssueCollector issues) {
+        if (!Utilities.SNOMED_SYSTEM_URI.equals(conceptSet.getSystem())) {
+            return;
+        }
+        List<ValueSet.ConceptReferenceComponent> concepts = conceptSet.getConcept();
+        for (int i = from; i < to && !issues.isStopped(); i++) {
+            checkComposeConceptFormat(conceptSet.getSystem(), conceptSet.getVersion(), concepts.get(i).getCode(), issues);
         }
+    }
 
-        // Iterate the ValueSet expansion contains to check each code
-        for (ValueSet.ValueSetExpansionContainsComponent concept : valueSet.getExpansion().getContains()) {
-            
-            if (concept.getSystem()!=null && concept.getCode()!=null) {
+    private void checkComposeFilterFormat(ValueSet.ConceptSetComponent conceptSet, IssueCollector issues) {
+        for (ValueSet.ConceptSetFilterComponent conceptFilter : conceptSet.getFilter()) {
+            if (issues.isStopped()) {
+                return;
+            }
+            checkComposeFilterFormat(conceptSet.getSystem(), conceptSet.getVersion(), conceptFilter.getProperty(), conceptFilter.getValue(), issues);
+        }
+    }
 
-                if (concept.getSystem().equals(Utilities.SNOMED_SYSTEM_URI)) {
-                    OperationOutcome validationResult = sctValidationService.validateIdentifierFormat(concept.getCode());
-                    if (validationResult.getIssue().size() > 0) {
-                        String expression = "ValueSet.expansion.contains.where(system = '" + concept.getSystem() + "' and code = '" + concept.getCode() + "'" + ((concept.hasVersion()) ? " and version = '" + concept.getVersion() + "'" : "") + ")";
-                        StringType expession = new StringType(expression);
-                        List<StringType> expressionList = new ArrayList<>();
-                        expressionList.add(expession);
-                        for (OperationOutcomeIssueComponent issue : validationResult.getIssue()) {
-                            issue.setExpression(expressionList);
-                            operationOutcome.addIssue(issue);
-                        }
-                    }
-                }
+    private void checkExpansionFormat(List<ValueSet.ValueSetExpansionContainsComponent> contains, int from, int to, IssueCollector issues) {
+        for (int i = from; i < to && !issues.isStopped(); i++) {
+            ValueSet.ValueSetExpansionContainsComponent concept = contains.get(i);
 
-            } else if (concept.getContains() != null && concept.getContains().size() > 0) {
+            if (concept.getSystem()!=null && concept.getCode()!=null) {
+                checkExpansionCodeFormat(EXPANSION_CONTAINS_PATH, concept.getSystem(), concept.getVersion(), concept.getCode(), issues);
+            } else if (concept.hasContains()) {
                 for (ValueSet.ValueSetExpansionContainsComponent subConcept : concept.getContains()) {
-
-                    if (subConcept.getSystem().equals(Utilities.SNOMED_SYSTEM_URI)) {
-                        OperationOutcome validationResult = sctValidationService.validateIdentifierFormat(subConcept.getCode());
-                        if (validationResult.getIssue().size() > 0) {
-                            String expression = "ValueSet.expansion.contains.contains.where(system = '" + subConcept.getSystem() + "' and code = '" + subConcept.getCode() + "'" + ((subConcept.hasVersion()) ? " and version = '" + subConcept.getVersion() + "'" : "") + ")";
-                            StringType expession = new StringType(expression);
-                            List<StringType> expressionList = new ArrayList<>();
-                            expressionList.add(expession);
-                            for (OperationOutcomeIssueComponent issue : validationResult.getIssue()) {
-                                issue.setExpression(expressionList);
-                                operationOutcome.addIssue(issue);
-                            }
-                        }
-                    }
-
+                    checkExpansionCodeFormat(EXPANSION_NESTED_CONTAINS_PATH, subConcept.getSystem(), subConcept.getVersion(), subConcept.getCode(), issues);
                 }
             }
+        }
+    }
 
+    // The checks below work on plain values, so they serve both the HAPI model and the streaming parser
+
+    void checkComposeConceptFormat(String system, String version, String code, IssueCollector issues) {
+        SCTValidationService.FormatResult formatResult = sctValidationService.checkIdentifierFormat(code);
+        if (!formatResult.isValid()) {
+            addComposeConceptFormatIssue(system, version, code, formatResult, issues);
         }
+    }
 
-        return operationOutcome;
+    void addComposeConceptFormatIssue(String system, String version, String code, SCTValidationService.FormatResult formatResult, IssueCollector issues) {
+        addFormatIssue(formatResult, code, () -> "ValueSet.compose.include.where(system = '" + system + "'" + ((version != null && !version.isEmpty()) ? " and version = '" + version + "'" : "") + " ).concept.where(code = '" + code + "')", issues);
     }
 
-    private String getToken() {
-        try {
-            return terminologyTokenService.getToken(getTerminologyServer().getAuthenticationEndpoint(), getTerminologyServer().getClientId(), getTerminologyServer().getClientSecret(), true);
-        } catch (JsonProcessingException e) {
-            log.error("Error fetching token " + e.getMessage());
-            throw new RuntimeException("Error fetching token " + e.getMessage(), e);
-        }
+    // The expression is only built for issues the collector keeps
+    private void addFormatIssue(SCTValidationService.FormatResult formatResult, String code, Supplier<String> expression, IssueCollector issues) {
+        issues.add(IssueSeverity.ERROR, formatResult.name(), formatResult.getDetailText(), code, () -> {
+            OperationOutcomeIssueComponent issue = sctValidationService.createIssue(formatResult, code);
+            issue.addExpression(expression.get());
+            return issue;
+        });
     }
 
-    private ConceptValidationResult validateConcept(IGenericClient client, String system, String code, String version, String token) {
-        
-        ConceptValidationResult result = new ConceptValidationResult(true, null);
-        
-        Parameters params = new Parameters();
-        params.addParameter().setName("url").setValue(new UriType(system));
-        params.addParameter().setName("code").setValue(new CodeType(code));
-        if (version!=null) {
-            params.addParameter().setName("version").setValue(new StringType(version));
-        }
+    void checkComposeFilterFormat(String system, String version, String property, String value, IssueCollector issues) {
 
-        // Execute the $validate-code operation
-        Parameters response = client
-                .operation()
-                .onType("CodeSystem")
-                .named("$validate-code")
-                .withParameters(params)
-                .withAdditionalHeader("Authorization", "Bearer " + token)
-                .execute();
+        String[] arrayConceptProperties = { "parent", "child", "descendant", "ancestor", "code" };
+        String versionClause = (version != null && !version.isEmpty()) ? " and version = '" + version + "'" : "";
 
-        // Check the result
-        boolean isValid = response.getParameterBool("result");
-        result.setValid(isValid);
-
-        if (isValid) {
-            log.info("Code is valid in the CodeSystem: " + system);
-        } else {
-            String message = response.getParameter("message").getValue().toString();
-            log.info("Code is NOT valid: " + message);
-            OperationOutcomeIssueComponent invalidCodeIssue = new OperationOutcomeIssueComponent();
-            invalidCodeIssue.setSeverity(IssueSeverity.WARNING);
-            invalidCodeIssue.setCode(IssueType.CODEINVALID);
-            invalidCodeIssue.setDiagnostics(message);
-            result.setIssue(invalidCodeIssue);
-            
-        }
-        return result;
-    }
+        // Check if the property is one of the supported properties where the value may indicate a code
+        if (Utilities.containsIgnoreCase(arrayConceptProperties, property)) {
 
-    public class ConceptValidationResult {
-        private boolean isValid;
-        private OperationOutcomeIssueComponent issue;
+            if (Utilities.SNOMED_SYSTEM_URI.equals(system)) {
+                SCTValidationService.FormatResult formatResult = sctValidationService.checkIdentifierFormat(value);
+                if (!formatResult.isValid()) {
+                    addFormatIssue(formatResult, value, () -> "ValueSet.compose.include.where(system = '" + system + "'" + versionClause + " ).filter.where(property = '" + property + "' and value = '" + value + "')", issues);
+                }
+            }
 
-        public ConceptValidationResult(boolean isValid, OperationOutcomeIssueComponent issue) {
-            this.isValid = isValid;
-            this.issue = issue;
         }
 
-        public boolean getValid() {
-            return isValid;
-        }
-        public void setValid(boolean isValid) {
-            this.isValid = isValid;
+        // Check if the property is 'expression' where the value will indicate an ECL expression
+        if ("expression".equalsIgnoreCase(property)) {
+
+            if (Utilities.SNOMED_SYSTEM_URI.equals(system)) {
+                for (String conceptId : getEclConceptIds(value)) {
+                    if (issues.isStopped()) {
+                        break;
+                    }
+                    SCTValidationService.FormatResult formatResult = sctValidationService.checkIdentifierFormat(conceptId);
+                    if (!formatResult.isValid()) {
+                        addFormatIssue(formatResult, conceptId, () -> "ValueSet.compose.include.where(system = '" + system + "'" + versionClause + " ).filter.where(property = 'expression')", issues);
+                    }
+                }
+            }
+
         }
+    }
 
-        public OperationOutcomeIssueComponent getIssue() {
-            return issue;
+    void checkExpansionCodeFormat(String path, String system, String version, String code, IssueCollector issues) {
+        if (!Utilities.SNOMED_SYSTEM_URI.equals(system)) {
+            return;
         }
-        public void setIssue(OperationOutcomeIssueComponent issue) {
-            this.issue = issue;
+        SCTValidationService.FormatResult formatResult = sctValidationService.checkIdentifierFormat(code);
+        if (!formatResult.isValid()) {
+            addExpansionCodeFormatIssue(path, system, version, code, formatResult, issues);
         }
     }
 
-    public class ExpressionConcept {
-		private String conceptId;
-
-		public ExpressionConcept(String conceptId) {
-			this.conceptId = conceptId;
-		}
+    void addExpansionCodeFormatIssue(String path, String system, String version, String code, SCTValidationService.FormatResult formatResult, IssueCollector issues) {
+        addFormatIssue(formatResult, code, () -> path + ".where(system = '" + system + "' and code = '" + code + "'" + ((version != null && !version.isEmpty()) ? " and version = '" + version + "'" : "") + ")", issues);
+    }
 
-		public String getConceptId() {
-			return conceptId;
-		}
-	}
+    /**
+     * Returns the distinct concept ids the ECL expression references, parsing it only on a cache miss.
+     */
+    public List<String> getEclConceptIds(String ecl) {
+        return eclConceptCache.get(ecl, this::parseEclConceptIds);
+    }
 
-    // Helper method to resolve the ActivityDefinition from a FHIR server
-    public ActivityDefinition resolveActivityDefinition(String canonicalUrl) {
-        // Define the base URL of the FHIR server where you expect to retrieve the resource
-        String fhirServerBaseUrl = getFhirServer().getEndpoint();
+    private List<String> parseEclConceptIds(String ecl) {
+        return EclConceptVisitor.conceptIds(eclQueryBuilder.createQuery(ecl));
+    }
 
-        // Create a FHIR client to communicate with the FHIR server
-        IGenericClient client = fhirContext.newRestfulGenericClient(fhirServerBaseUrl);
+    @FunctionalInterface
+    private interface RangeCheck {
+        void check(int from, int to, IssueCollector issues);
+    }
 
-        log.info("Calling TokenService with " + getFhirServer().getAuthenticationEndpoint() + " " + getFhirServer().getClientId());
-        String token = null;
-        try {
-            token = fhirTokenService.getToken(getFhirServer().getAuthenticationEndpoint(), getFhirServer().getClientId(), getFhirServer().getClientSecret(), false);
-        } catch (JsonProcessingException e) {
-            log.error("Error fetching token " + e.getMessage());
-            throw new RuntimeException("Error fetching token " + e.getMessage(), e);
+    /**
+     * Halves its index range until it is no larger than the leaf size. The left half's issues
+     * always come before the right half's, which keeps the serial ordering. Each leaf collects
+     * into its own fork of the collector.
+     */
+    private static class RangeCheckTask extends RecursiveTask<IssueCollector> {
+        private final RangeCheck rangeCheck;
+        private final int from;
+        private final int to;
+        private final int leafSize;
+        private final IssueCollector collector;
+
+        RangeCheckTask(RangeCheck rangeCheck, int from, int to, int leafSize, IssueCollector collector) {
+            this.rangeCheck = rangeCheck;
+            this.from = from;
+            this.to = to;
+            this.leafSize = Math.max(1, leafSize);
+            this.collector = collector;
         }
-        log.info("Got token " + token);
-
-        // Retrieve the ActivityDefinition using the canonical URL
-        Bundle resultBundle = client
-            .search()
-            .forResource(ActivityDefinition.class)
-            .where(ActivityDefinition.URL.matches().value(canonicalUrl))
-            .withAdditionalHeader("Authorization", "Bearer " + token)
-            .returnBundle(Bundle.class)
-            .execute();
-
-        if (resultBundle.getTotal() == 0) {
-            throw new ActivityDefinitionNotFoundException("ActivityDefinition not found for canonical URL '" + canonicalUrl + "'");
-        } else if (resultBundle.getTotal() > 1) {
-            throw new ActivityDefinitionManyFoundException("Multiple ActivityDefinitions found for canonical URL '" + canonicalUrl + "'");
-        } else {
-            return (ActivityDefinition) resultBundle.getEntry().get(0).getResource();
+
+        @Override
+        protected IssueCollector compute() {
+            if (collector.isStopped()) {
+                return collector.fork();
+            }
+            if (to - from <= leafSize) {
+                IssueCollector issues = collector.fork();
+                rangeCheck.check(from, to, issues);
+                return issues;
+            }
+            int mid = (from + to) >>> 1;
+            RangeCheckTask left = new RangeCheckTask(rangeCheck, from, mid, leafSize, collector);
+            RangeCheckTask right = new RangeCheckTask(rangeCheck, mid, to, leafSize, collector);
+            left.fork();
+            IssueCollector rightIssues = right.compute();
+            IssueCollector issues = left.join();
+            issues.addAll(rightIssues);
+            return issues;
         }
+    }
 
-        
+    // Helper method to resolve the ActivityDefinition, served from the in-memory catalogue
+    public ActivityDefinition resolveActivityDefinition(String canonicalUrl) {
+        return activityDefinitionCatalogue.resolve(canonicalUrl);
     }
 
-    // Helper method to resolve the resource referenced by Task.focus
-    public IBaseResource resolveFocusResource(Task task, IFhirRestServer fhirServer) {
-        // Check if the resource is contained within the Task
-        if (task.getFocus()!=null) {
-            // Get the reference in the focus field
-            String focusReference = task.getFocus().getReference();
-
-            // If the reference starts with '#', it's a contained resource
-            if (focusReference.startsWith("#")) {
-                
-                String containedId = focusReference.substring(1); // Remove the '#' prefix
-                log.info("Focus reference is a contained resource with id " + containedId);
-                // Find the contained resource with the matching ID
-
-                for (Resource resource : task.getContained()) {
-                    log.info(resource.getResourceType() + " " + resource.getId());
-                }
+    /**
+     * The check options of the Task, with checks.issues for anything it does not set.
+     */
+    public CheckOptions getCheckOptions(Task task) {
+        return CheckOptions.fromTask(task, checksConfig.getIssues());
+    }
 
-                return task.getContained().stream()
-                        .filter(resource -> resource.getId().equals(focusReference))
-                        .findFirst()
-                        .orElse(null);
-            } else if (focusReference.contains("/")) {
-                // If the reference starts with 'http', it's an external reference
-                String[] parts = focusReference.split("/");
-                return resolveExternalReference(parts[0], parts[1], fhirServer);
-            }
-        }
+    /**
+     * Starts the per-request context that resolves the Task's references, each at most once.
+     */
+    public ResolutionContext newResolutionContext(Task task, IFhirRestServer fhirServer) {
+        return new ResolutionContext(this, task, fhirServer);
+    }
 
-        // Otherwise, it's an external reference, which would require additional logic (not handled here)
-        return null;
+    // Helper method to resolve the resource referenced by Task.focus
+    public IBaseResource resolveFocusResource(Task task, IFhirRestServer fhirServer) {
+        return newResolutionContext(task, fhirServer).getFocusResource();
     }
 
     // Helper method to resolve the ActivityDefinition from a FHIR server
     public IBaseResource resolveExternalReference(String resource, String id, IFhirRestServer fhirServer) {
-        // Define the base URL of the FHIR server where you expect to retrieve the resource
-        String fhirServerBaseUrl = fhirServer.getEndpoint();
+        // Shared client for the server, connections are pooled and kept alive between requests
+        IGenericClient client = fhirClientProvider.getClient(fhirServer);
 
-        // Create a FHIR client to communicate with the FHIR server
-        IGenericClient client = fhirContext.newRestfulGenericClient(fhirServerBaseUrl);
-
-        String token;
-        try {
-            token = fhirTokenService.getToken(fhirServer.getAuthenticationEndpoint(), fhirServer.getClientId(), fhirServer.getClientSecret(), false);
-        } catch (JsonProcessingException e) {
-            throw new RuntimeException("Error fetching token " + e.getMessage(), e);
-        }
+        String token = tokenManager.getToken(fhirServer);
 
         try {
             // Retrieve the ActivityDefinition using the canonical URL
@@ -402,268 +397,4 @@ public class ChecksService {
             throw new RuntimeException("Error fetching resource type " + resource + " with id '" + id + "' " + e.getMessage(), e);
         }
     }
-
-	private List<ExpressionConcept> parseExpressionConstraint(ExpressionConstraint expressionConstraint) {
-		
-		List<ExpressionConcept> foundConcepts = new ArrayList<>();
-		
-		if (expressionConstraint instanceof CompoundExpressionConstraint) {
-
-			foundConcepts.addAll(parseCompoundExpressionConstraint((CompoundExpressionConstraint) expressionConstraint));
-			
-		} else if (expressionConstraint instanceof DottedExpressionConstraint) {
-
-			foundConcepts.addAll(parseDottedExpressionConstraint((DottedExpressionConstraint) expressionConstraint));
-			
-		} else if (expressionConstraint instanceof SubExpressionConstraint) {
-
-			foundConcepts.addAll(parseSubExpressionConstraint((SubExpressionConstraint) expressionConstraint));
-			
-		} else if (expressionConstraint instanceof RefinedExpressionConstraint) {
-
-			foundConcepts.addAll(parseRefinedExpressionConstraint((RefinedExpressionConstraint) expressionConstraint));
-
-		} else if (expressionConstraint instanceof ExpressionConcept) {
-			
-			foundConcepts.add(parseExpressionConcept((ExpressionConcept) expressionConstraint));
-		} else {
-
-			// This should never happen
-			System.out.println("ExpressionConstraint is not an instance of any known class, it is an instance of: " + expressionConstraint.getClass().getName());
-		}
-
-		
-		return foundConcepts;
-	}
-	private List<ExpressionConcept> parseCompoundExpressionConstraint(CompoundExpressionConstraint expressionConstraint) {
-		List<ExpressionConcept> concepts = new ArrayList<>();
-
-		if (expressionConstraint.getConjunctionExpressionConstraints() != null) {
-			for (SubExpressionConstraint subExpressionConstraint : expressionConstraint.getConjunctionExpressionConstraints()) {
-				concepts.addAll(parseSubExpressionConstraint(subExpressionConstraint));
-			}
-		}
-		if (expressionConstraint.getDisjunctionExpressionConstraints() != null) {
-			for (SubExpressionConstraint subExpressionConstraint : expressionConstraint.getDisjunctionExpressionConstraints()) {
-				concepts.addAll(parseSubExpressionConstraint(subExpressionConstraint));
-			}
-		}
-		if (expressionConstraint.getExclusionExpressionConstraints() != null) {
-			Pair<SubExpressionConstraint> exclusionExpressionConstraints = expressionConstraint.getExclusionExpressionConstraints();
-			if (exclusionExpressionConstraints != null) {
-				if (exclusionExpressionConstraints.getFirst() != null) {
-					concepts.addAll(parseSubExpressionConstraint(exclusionExpressionConstraints.getFirst()));
-				}
-				if (exclusionExpressionConstraints.getSecond() != null) {
-					concepts.addAll(parseSubExpressionConstraint(exclusionExpressionConstraints.getSecond()));
-				}
-			}
-		}
-		return concepts;
-	}	
-	private List<ExpressionConcept> parseDottedExpressionConstraint(DottedExpressionConstraint constraint) {
-		List<ExpressionConcept> concepts = new ArrayList<>();
-		if (constraint.getSubExpressionConstraint() != null) {
-			concepts.addAll(parseSubExpressionConstraint(constraint.getSubExpressionConstraint()));
-		}
-        if (constraint.getDottedAttributes() != null) {
-            for(SubExpressionConstraint dottedAttribute : constraint.getDottedAttributes()) {
-                concepts.addAll(parseSubExpressionConstraint(dottedAttribute));
-            }
-		}
-		return concepts;
-	}
-	private List<ExpressionConcept> parseConceptFilterConstraints(ConceptFilterConstraint conceptFilterConstraint) {
-		
-		List<ExpressionConcept> foundConcepts = new ArrayList<>();
-		
-		if (conceptFilterConstraint.getDefinitionStatusFilters() != null) {
-			for (FieldFilter fieldFilter : conceptFilterConstraint.getDefinitionStatusFilters()) {
-				if (fieldFilter.getConceptReferences() != null) {
-					for(ConceptReference conceptRef : fieldFilter.getConceptReferences()) {
-						if (conceptRef.getConceptId() != null) {
-							foundConcepts.add(new ExpressionConcept(conceptRef.getConceptId()));
-						}
-					}
-				}
-				if (fieldFilter.getSubExpressionConstraint() != null) {
-					foundConcepts.addAll(parseSubExpressionConstraint(fieldFilter.getSubExpressionConstraint()));
-				}
-			}
-		}
-		return foundConcepts;
-	}
-    private List<ExpressionConcept> parseMemberFilterConstraints(MemberFilterConstraint memberFilterConstraint) {
-		
-		List<ExpressionConcept> foundConcepts = new ArrayList<>();
-		
-		if (memberFilterConstraint.getMemberFieldFilters() != null) {
-			for (MemberFieldFilter fieldFilter : memberFilterConstraint.getMemberFieldFilters()) {
-				if (fieldFilter.getSubExpressionConstraint() != null) {
-					foundConcepts.addAll(parseSubExpressionConstraint(fieldFilter.getSubExpressionConstraint()));
-				}
-			}
-		}
-		return foundConcepts;
-	}
-	private List<ExpressionConcept> parseEclAttributeGroup(EclAttributeGroup eclAttributeGroup) {
-		List<ExpressionConcept> concepts = new ArrayList<>();
-		if (eclAttributeGroup.getAttributeSet() != null) {
-			concepts.addAll(parseEclAttributeSet(eclAttributeGroup.getAttributeSet()));
-		}
-		return concepts;
-	}
-	private List<ExpressionConcept> parseEclSubAttributeSet(SubAttributeSet subAttributeSet) {
-		List<ExpressionConcept> concepts = new ArrayList<>();
-		if (subAttributeSet.getAttribute().getAttributeName() != null) {
-			concepts.addAll(parseSubExpressionConstraint(subAttributeSet.getAttribute().getAttributeName()));
-		}
-		if (subAttributeSet.getAttribute().getValue() != null) {
-			concepts.addAll(parseSubExpressionConstraint(subAttributeSet.getAttribute().getValue()));
-		}
-		if (subAttributeSet.getAttributeSet() != null) {
-			concepts.addAll(parseEclAttributeSet(subAttributeSet.getAttributeSet()));
-		}
-		return concepts;
-	}
-	private List<ExpressionConcept> parseEclAttributeSet(EclAttributeSet eclAttributeSet) {
-		List<ExpressionConcept> concepts = new ArrayList<>();
-		
-		if (eclAttributeSet.getSubAttributeSet() != null) {
-			concepts.addAll(parseEclSubAttributeSet(eclAttributeSet.getSubAttributeSet()));
-		}
-
-		if (eclAttributeSet.getConjunctionAttributeSet() != null) {
-			for (SubAttributeSet subAttributeSet : eclAttributeSet.getConjunctionAttributeSet()) {
-				concepts.addAll(parseEclSubAttributeSet(subAttributeSet));
-			}
-		}
-
-		if (eclAttributeSet.getDisjunctionAttributeSet() != null) {
-			for (SubAttributeSet subAttributeSet : eclAttributeSet.getDisjunctionAttributeSet()) {
-				concepts.addAll(parseEclSubAttributeSet(subAttributeSet));
-			}
-		}
-
-		return concepts;
-	}
-	private List<ExpressionConcept> parseEclSubRefinement(SubRefinement subRefinement) {
-		List<ExpressionConcept> concepts = new ArrayList<>();
-
-		if (subRefinement.getEclRefinement() != null) {
-			concepts.addAll(parseEclRefinement(subRefinement.getEclRefinement()));
-		}
-
-		if (subRefinement.getEclAttributeGroup()!=null) {
-			concepts.addAll(parseEclAttributeGroup(subRefinement.getEclAttributeGroup()));
-
-		}
-
-		if (subRefinement.getEclAttributeSet() != null) {
-			concepts.addAll(parseEclAttributeSet(subRefinement.getEclAttributeSet()));
-		}
-
-		return concepts;
-	}
-	private List<ExpressionConcept> parseEclRefinement(EclRefinement refinement) {
-		List<ExpressionConcept> concepts = new ArrayList<>();
-		
-		if (refinement.getSubRefinement() != null) {
-			concepts.addAll(parseEclSubRefinement(refinement.getSubRefinement()));
-		}
-
-		if (refinement.getConjunctionSubRefinements() != null) {
-			for (SubRefinement subRefinement : refinement.getConjunctionSubRefinements()) {
-				concepts.addAll(parseEclSubRefinement(subRefinement));
-			}
-		}
-		if (refinement.getDisjunctionSubRefinements() != null) {
-			for (SubRefinement subRefinement : refinement.getDisjunctionSubRefinements()) {
-				concepts.addAll(parseEclSubRefinement(subRefinement));
-			}
-		}
-		
-		return concepts;
-	}
-	private List<ExpressionConcept> parseRefinedExpressionConstraint(RefinedExpressionConstraint constraint) {
-		List<ExpressionConcept> concepts = new ArrayList<>();
-
-
-		if (constraint.getEclRefinement() != null) {
-			concepts.addAll(parseEclRefinement(constraint.getEclRefinement()));
-		}
-		
-
-		if (constraint.getSubexpressionConstraint() != null) {
-			concepts.addAll(parseExpressionConstraint(constraint.getSubexpressionConstraint()));
-		}
-		return concepts;
-	}
-	private List<ExpressionConcept> parseSubExpressionConstraint(SubExpressionConstraint constraint) {
-		List<ExpressionConcept> concepts = new ArrayList<>();
-		
-		if (constraint.getConceptId() != null) {
-			System.out.println("Concept ID in SubExpressionConstraint: " + constraint.getConceptId());
-			concepts.add(new ExpressionConcept(constraint.getConceptId()));
-		}
-		
-		if (constraint.getNestedExpressionConstraint() != null) {
-			concepts.addAll(parseExpressionConstraint(constraint.getNestedExpressionConstraint()));
-		}
-
-        if (constraint.getMemberFilterConstraints() != null) {
-            for (MemberFilterConstraint subConstraint : constraint.getMemberFilterConstraints()) {
-                concepts.addAll(parseMemberFilterConstraints(subConstraint));
-            }
-        }
-
-		if (constraint.getConceptFilterConstraints() != null) {
-			for (ConceptFilterConstraint subConstraint : constraint.getConceptFilterConstraints()) {
-				concepts.addAll(parseConceptFilterConstraints(subConstraint));
-			}
-		}
-
-        if (constraint.getDescriptionFilterConstraints() != null) {
-			for (DescriptionFilterConstraint subConstraint : constraint.getDescriptionFilterConstraints()) {
-				if (subConstraint.getDialectFilters() != null) {
-                    for (DialectFilter filter : subConstraint.getDialectFilters()) {
-                        if (filter.getSubExpressionConstraint() != null) {
-                            concepts.addAll(parseSubExpressionConstraint(filter.getSubExpressionConstraint()));
-                        }
-                    }
-                }
-                if (subConstraint.getModuleFilters() != null) {
-                    for (FieldFilter filter : subConstraint.getModuleFilters()) {
-                        if (filter.getSubExpressionConstraint() != null) {
-                            concepts.addAll(parseSubExpressionConstraint(filter.getSubExpressionConstraint()));
-                        }
-                    }
-                }
-
-                if (subConstraint.getDescriptionTypeFilters() != null) {
-                    for (DescriptionTypeFilter filter : subConstraint.getDescriptionTypeFilters()) {
-                        if (filter.getSubExpressionConstraint() != null) {
-                            concepts.addAll(parseSubExpressionConstraint(filter.getSubExpressionConstraint()));
-                        }
-                    }
-                }
-			}
-		}
-
-		return concepts;
-	}
-	private ExpressionConcept parseExpressionConcept(ExpressionConcept constraint) {
-		
-		if (constraint.getConceptId() != null) {
-			System.out.println("Concept ID: " + constraint.getConceptId());
-			return new ExpressionConcept(constraint.getConceptId());
-		}
-		return null;
-	}
-	
-
-	public List<ExpressionConcept> eclParse(ExpressionConstraint expressionConstraint) {
-		return parseExpressionConstraint(expressionConstraint);
-	}
-
 }
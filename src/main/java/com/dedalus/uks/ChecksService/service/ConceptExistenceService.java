@@ -0,0 +1,477 @@
+package com.dedalus.uks.ChecksService.service;
+
+import com.dedalus.uks.ChecksService.checks.CheckOptions;
+import com.dedalus.uks.ChecksService.collections.LongHashSet;
+import com.dedalus.uks.ChecksService.config.ChecksConfig;
+import com.dedalus.uks.ChecksService.config.ThreadingConfig;
+import com.dedalus.uks.ChecksService.terminology.LocalConceptIndex;
+import com.dedalus.uks.ChecksService.utils.Utilities;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import lombok.extern.slf4j.Slf4j;
+
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueType;
+import org.hl7.fhir.r4.model.OperationOutcome.OperationOutcomeIssueComponent;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Parameters.ParametersParameterComponent;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Service;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * The code-exists check, every code in a ValueSet is looked up on the terminology server.
+ *
+ * Codes are deduplicated and sent as FHIR batch Bundles of CodeSystem/$lookup entries, which
+ * also return the inactive property, so a single round trip covers many codes. Batches run on
+ * the shared outbound executor, see ThreadingConfig, which bounds the load any number of
+ * requests put on the server. When the local concept index is enabled, SNOMED CT codes are
+ * answered from it instead.
+ *
+ * Otherwise the SNOMED CT outcomes of each check are kept per ValueSet.url, see
+ * ConceptFingerprintStore, and the next check of the same ValueSet only looks up the codes
+ * the previous one did not cover. Codes of other systems are always looked up.
+ */
+@Service
+@Slf4j
+public class ConceptExistenceService {
+
+    public static final String CHECK_CODE = "code-exists";
+
+    public static final String NOT_FOUND_DETAIL_CODE = "CONCEPT_NOT_FOUND";
+    public static final String NOT_FOUND_DETAIL_DESC = "Concept does not exist in the CodeSystem";
+    public static final String INACTIVE_DETAIL_CODE = "CONCEPT_INACTIVE";
+    public static final String INACTIVE_DETAIL_DESC = "Concept is inactive in the CodeSystem";
+
+    /**
+     * What the terminology server said about one code.
+     */
+    public enum ExistenceResult {
+        ACTIVE,
+        INACTIVE,
+        NOT_FOUND,
+        // The server could not be asked, or gave an answer that was not understood
+        UNCHECKED
+    }
+
+    private final ChecksConfig checksConfig;
+    private final TokenManager tokenManager;
+    private final FhirClientProvider fhirClientProvider;
+    private final LocalConceptIndex localConceptIndex;
+    private final ConceptFingerprintStore fingerprintStore;
+    private final CheckMetrics checkMetrics;
+    private final Executor lookupExecutor;
+
+    @Autowired
+    public ConceptExistenceService(ChecksConfig checksConfig, TokenManager tokenManager, FhirClientProvider fhirClientProvider, LocalConceptIndex localConceptIndex, ConceptFingerprintStore fingerprintStore, CheckMetrics checkMetrics, @Qualifier(ThreadingConfig.OUTBOUND_EXECUTOR) Executor lookupExecutor) {
+        this.checksConfig = checksConfig;
+        this.tokenManager = tokenManager;
+        this.fhirClientProvider = fhirClientProvider;
+        this.localConceptIndex = localConceptIndex;
+        this.fingerprintStore = fingerprintStore;
+        this.checkMetrics = checkMetrics;
+        this.lookupExecutor = lookupExecutor;
+    }
+
+    public OperationOutcome checkCodeExists(ValueSet valueSet) {
+        return checkCodeExists(valueSet, CheckOptions.UNLIMITED);
+    }
+
+    /**
+     * As above, reporting issues within the check options. Every code is still looked up, so
+     * failFast bounds the outcome here rather than the work.
+     */
+    public OperationOutcome checkCodeExists(ValueSet valueSet, CheckOptions checkOptions) {
+        log.info("Carrying out check for concept existence");
+
+        List<ConceptToCheck> concepts = collectConcepts(valueSet);
+        ExistenceResult[] results = new ExistenceResult[concepts.size()];
+
+        // The local index is as quick as a fingerprint, and always current
+        boolean incremental = fingerprintStore.isEnabled() && valueSet.hasUrl() && !localConceptIndex.isAvailable();
+        if (incremental) {
+            carryForward(valueSet, concepts, results);
+        }
+        lookup(concepts, results);
+        if (incremental) {
+            fingerprintStore.put(valueSet.getUrl(), fingerprint(valueSet, concepts, results));
+        }
+
+        // Counted per system and result, one counter update each rather than one per code
+        Map<String, long[]> countsBySystem = new HashMap<>();
+        IssueCollector issues = new IssueCollector(checkOptions);
+        for (int i = 0; i < concepts.size(); i++) {
+            ConceptToCheck concept = concepts.get(i);
+            ExistenceResult result = results[i];
+            countsBySystem.computeIfAbsent(concept.getSystem(), system -> new long[ExistenceResult.values().length])[result.ordinal()]++;
+            if (result != ExistenceResult.ACTIVE) {
+                IssueSeverity severity = (result == ExistenceResult.INACTIVE) ? IssueSeverity.WARNING : IssueSeverity.ERROR;
+                issues.add(severity, result.name() + " " + concept.getSystem(), describe(result, concept.getSystem()), concept.getCode(), () -> createIssue(concept, result));
+            }
+        }
+        for (Map.Entry<String, long[]> entry : countsBySystem.entrySet()) {
+            for (ExistenceResult result : ExistenceResult.values()) {
+                if (entry.getValue()[result.ordinal()] > 0) {
+                    checkMetrics.countExistenceResults(entry.getKey(), result.name(), entry.getValue()[result.ordinal()]);
+                }
+            }
+        }
+
+        OperationOutcome operationOutcome = new OperationOutcome();
+        operationOutcome.setIssue(issues.toIssues());
+        return operationOutcome;
+    }
+
+    /**
+     * Distinct codes of the compose and expansion, in the order they first appear. A code that
+     * appears in both is checked once and reported against its first location.
+     */
+    List<ConceptToCheck> collectConcepts(ValueSet valueSet) {
+        ConceptCollector collector = new ConceptCollector();
+
+        for (ValueSet.ConceptSetComponent conceptSet : valueSet.getCompose().getInclude()) {
+            String system = conceptSet.getSystem();
+            String version = conceptSet.getVersion();
+            for (ValueSet.ConceptReferenceComponent concept : conceptSet.getConcept()) {
+                String code = concept.getCode();
+                if (system == null || code == null || !collector.isNew(system, version, code)) {
+                    continue;
+                }
+                String expression = "ValueSet.compose.include.where(system = '" + system + "'" + versionClause(version) + " ).concept.where(code = '" + code + "')";
+                collector.concepts.add(new ConceptToCheck(system, version, code, expression));
+            }
+        }
+
+        for (ValueSet.ValueSetExpansionContainsComponent concept : valueSet.getExpansion().getContains()) {
+            if (concept.getSystem() != null && concept.getCode() != null) {
+                addExpansionConcept(ChecksService.EXPANSION_CONTAINS_PATH, concept, collector);
+            } else if (concept.hasContains()) {
+                for (ValueSet.ValueSetExpansionContainsComponent subConcept : concept.getContains()) {
+                    addExpansionConcept(ChecksService.EXPANSION_NESTED_CONTAINS_PATH, subConcept, collector);
+                }
+            }
+        }
+        return collector.concepts;
+    }
+
+    private void addExpansionConcept(String path, ValueSet.ValueSetExpansionContainsComponent concept, ConceptCollector collector) {
+        String system = concept.getSystem();
+        String version = concept.getVersion();
+        String code = concept.getCode();
+        if (system == null || code == null || !collector.isNew(system, version, code)) {
+            return;
+        }
+        String expression = path + ".where(system = '" + system + "' and code = '" + code + "'" + ((version != null && !version.isEmpty()) ? " and version = '" + version + "'" : "") + ")";
+        collector.concepts.add(new ConceptToCheck(system, version, code, expression));
+    }
+
+    /**
+     * Fills in the outcomes the last check of the same ValueSet.url recorded. Concepts it did not
+     * cover, and codes that are not SNOMED CT, are left null for lookup.
+     */
+    private void carryForward(ValueSet valueSet, List<ConceptToCheck> concepts, ExistenceResult[] results) {
+        ConceptFingerprintStore.Fingerprint previous = fingerprintStore.get(valueSet.getUrl());
+        if (previous == null) {
+            return;
+        }
+        ExistenceResult[] outcomes = ExistenceResult.values();
+        int carried = 0;
+        for (int i = 0; i < concepts.size(); i++) {
+            ConceptToCheck concept = concepts.get(i);
+            long sctId = sctIdOf(concept.getSystem(), concept.getCode());
+            if (sctId < 0) {
+                continue;
+            }
+            int outcome = previous.lookup(concept.getVersion(), sctId);
+            if (outcome >= 0) {
+                results[i] = outcomes[outcome];
+                carried++;
+            }
+        }
+        log.info("Carried forward " + carried + " of " + concepts.size() + " code outcomes from version " + previous.getValueSetVersion() + " of " + valueSet.getUrl());
+    }
+
+    // Unchecked codes are left out, the next check asks the server again
+    private ConceptFingerprintStore.Fingerprint fingerprint(ValueSet valueSet, List<ConceptToCheck> concepts, ExistenceResult[] results) {
+        ConceptFingerprintStore.Builder builder = new ConceptFingerprintStore.Builder();
+        for (int i = 0; i < concepts.size(); i++) {
+            ConceptToCheck concept = concepts.get(i);
+            long sctId = sctIdOf(concept.getSystem(), concept.getCode());
+            if (sctId >= 0 && results[i] != ExistenceResult.UNCHECKED) {
+                builder.add(concept.getVersion(), sctId, results[i].ordinal());
+            }
+        }
+        return builder.build(valueSet.getVersion());
+    }
+
+    /**
+     * Looks up the concepts that have no result yet, SNOMED CT codes in the local index when
+     * there is one and everything else on the terminology server in batches, with at most the
+     * configured number of batches in flight. The results line up with the concepts passed in.
+     */
+    void lookup(List<ConceptToCheck> concepts, ExistenceResult[] results) {
+        List<Integer> remote = new ArrayList<>();
+        boolean local = localConceptIndex.isAvailable();
+        for (int i = 0; i < concepts.size(); i++) {
+            if (results[i] != null) {
+                continue;
+            }
+            ConceptToCheck concept = concepts.get(i);
+            if (local && Utilities.SNOMED_SYSTEM_URI.equals(concept.getSystem())) {
+                int index = localConceptIndex.indexOf(concept.getCode());
+                results[i] = (index < 0) ? ExistenceResult.NOT_FOUND
+                    : localConceptIndex.isActive(index) ? ExistenceResult.ACTIVE : ExistenceResult.INACTIVE;
+            } else {
+                remote.add(i);
+            }
+        }
+        if (remote.isEmpty()) {
+            return;
+        }
+
+        ChecksConfig.TerminologyServer terminologyServer = checksConfig.getTerminologyServer();
+        IGenericClient client = fhirClientProvider.getClient(terminologyServer);
+        String token = tokenManager.getToken(terminologyServer);
+        int batchSize = Math.max(1, checksConfig.getCodeExists().getBatchSize());
+
+        List<CompletableFuture<Void>> batches = new ArrayList<>();
+        for (int from = 0; from < remote.size(); from += batchSize) {
+            List<Integer> batch = remote.subList(from, Math.min(from + batchSize, remote.size()));
+            batches.add(CompletableFuture.runAsync(() -> lookupBatch(client, token, concepts, batch, results), lookupExecutor));
+        }
+
+        try {
+            CompletableFuture.allOf(batches.toArray(new CompletableFuture[0])).join();
+        } catch (CompletionException e) {
+            // Failed batches have already marked their codes as unchecked
+            log.warn("Concept lookup failed for at least one batch: " + e.getCause().getMessage());
+        }
+    }
+
+    private void lookupBatch(IGenericClient client, String token, List<ConceptToCheck> concepts, List<Integer> positions, ExistenceResult[] results) {
+        Bundle batch = new Bundle();
+        batch.setType(Bundle.BundleType.BATCH);
+        for (int position : positions) {
+            batch.addEntry().getRequest()
+                .setMethod(Bundle.HTTPVerb.GET)
+                .setUrl(lookupUrl(concepts.get(position)));
+        }
+
+        Bundle response;
+        try {
+            response = client
+                .transaction()
+                .withBundle(batch)
+                .withAdditionalHeader("Authorization", "Bearer " + token)
+                .execute();
+        } catch (Exception e) {
+            log.error("Batch lookup of " + positions.size() + " codes failed: " + e.getMessage());
+            for (int position : positions) {
+                results[position] = ExistenceResult.UNCHECKED;
+            }
+            throw e;
+        }
+
+        // Batch responses have one entry per request entry, in the same order
+        List<Bundle.BundleEntryComponent> entries = response.getEntry();
+        for (int i = 0; i < positions.size(); i++) {
+            results[positions.get(i)] = (i < entries.size()) ? toResult(concepts.get(positions.get(i)), entries.get(i)) : ExistenceResult.UNCHECKED;
+        }
+    }
+
+    private static String lookupUrl(ConceptToCheck concept) {
+        StringBuilder url = new StringBuilder("CodeSystem/$lookup?system=")
+            .append(URLEncoder.encode(concept.getSystem(), StandardCharsets.UTF_8))
+            .append("&code=")
+            .append(URLEncoder.encode(concept.getCode(), StandardCharsets.UTF_8));
+        if (concept.getVersion() != null && !concept.getVersion().isEmpty()) {
+            url.append("&version=").append(URLEncoder.encode(concept.getVersion(), StandardCharsets.UTF_8));
+        }
+        return url.append("&property=inactive").toString();
+    }
+
+    private static ExistenceResult toResult(ConceptToCheck concept, Bundle.BundleEntryComponent entry) {
+        String status = entry.getResponse().getStatus();
+        if (status == null || !status.startsWith("2")) {
+            // Anything but an unknown code, e.g. a bad version, leaves the code unchecked
+            return (status != null && (status.startsWith("404") || (status.startsWith("4") && isCodeNotFound(concept, entry))))
+                ? ExistenceResult.NOT_FOUND
+                : ExistenceResult.UNCHECKED;
+        }
+        if (!(entry.getResource() instanceof Parameters)) {
+            return ExistenceResult.UNCHECKED;
+        }
+
+        for (ParametersParameterComponent parameter : ((Parameters) entry.getResource()).getParameter()) {
+            if (!"property".equals(parameter.getName())) {
+                continue;
+            }
+            ParametersParameterComponent code = null;
+            ParametersParameterComponent value = null;
+            for (ParametersParameterComponent part : parameter.getPart()) {
+                if ("code".equals(part.getName())) {
+                    code = part;
+                } else if ("value".equals(part.getName())) {
+                    value = part;
+                }
+            }
+            if (code != null && "inactive".equals(code.getValue().primitiveValue())
+                && value != null && value.getValue() instanceof BooleanType
+                && ((BooleanType) value.getValue()).booleanValue()) {
+                return ExistenceResult.INACTIVE;
+            }
+        }
+        return ExistenceResult.ACTIVE;
+    }
+
+    // Servers that answer an unknown code with 400 say so in the OperationOutcome, naming the code
+    private static boolean isCodeNotFound(ConceptToCheck concept, Bundle.BundleEntryComponent entry) {
+        OperationOutcome outcome = null;
+        if (entry.getResponse().getOutcome() instanceof OperationOutcome) {
+            outcome = (OperationOutcome) entry.getResponse().getOutcome();
+        } else if (entry.getResource() instanceof OperationOutcome) {
+            outcome = (OperationOutcome) entry.getResource();
+        }
+        if (outcome == null) {
+            return false;
+        }
+        for (OperationOutcomeIssueComponent issue : outcome.getIssue()) {
+            if (issue.getCode() != IssueType.NOTFOUND && issue.getCode() != IssueType.CODEINVALID) {
+                continue;
+            }
+            String text = (issue.hasDiagnostics() ? issue.getDiagnostics() : "") + " " + (issue.hasDetails() && issue.getDetails().hasText() ? issue.getDetails().getText() : "");
+            if (text.contains(concept.getCode())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static OperationOutcomeIssueComponent createIssue(ConceptToCheck concept, ExistenceResult result) {
+        OperationOutcomeIssueComponent issue = new OperationOutcomeIssueComponent();
+        CodeableConcept issueDetail = new CodeableConcept();
+        Coding issueDetailCode = new Coding();
+        issueDetailCode.setSystem(Utilities.ISSUE_DETAIL_SYSTEM_URI);
+
+        switch (result) {
+            case INACTIVE:
+                issue.setSeverity(IssueSeverity.WARNING);
+                issue.setCode(IssueType.BUSINESSRULE);
+                issue.setDiagnostics("Code " + concept.getCode() + " is inactive in " + concept.getSystem());
+                issueDetailCode.setCode(INACTIVE_DETAIL_CODE);
+                issueDetailCode.setDisplay(INACTIVE_DETAIL_DESC);
+                break;
+            case NOT_FOUND:
+                issue.setSeverity(IssueSeverity.ERROR);
+                issue.setCode(IssueType.CODEINVALID);
+                issue.setDiagnostics("Code " + concept.getCode() + " was not found in " + concept.getSystem());
+                issueDetailCode.setCode(NOT_FOUND_DETAIL_CODE);
+                issueDetailCode.setDisplay(NOT_FOUND_DETAIL_DESC);
+                break;
+            default:
+                issue.setSeverity(IssueSeverity.ERROR);
+                issue.setCode(IssueType.EXCEPTION);
+                issue.setDiagnostics("Code " + concept.getCode() + " in " + concept.getSystem() + " could not be checked against the terminology server");
+                issue.addExpression(concept.getExpression());
+                return issue;
+        }
+
+        issueDetail.addCoding(issueDetailCode);
+        issue.setDetails(issueDetail);
+        issue.addExpression(concept.getExpression());
+        return issue;
+    }
+
+    // The text of an aggregated issue, one per result and system
+    private static String describe(ExistenceResult result, String system) {
+        switch (result) {
+            case INACTIVE:
+                return INACTIVE_DETAIL_DESC + " " + system + ".";
+            case NOT_FOUND:
+                return NOT_FOUND_DETAIL_DESC + " " + system + ".";
+            default:
+                return "Could not be checked against the terminology server for " + system + ".";
+        }
+    }
+
+    private static String versionClause(String version) {
+        return (version != null && !version.isEmpty()) ? " and version = '" + version + "'" : "";
+    }
+
+    // The SNOMED CT concept id as a number, or -1. Leading zeros would make two codes the same number
+    private static long sctIdOf(String system, String code) {
+        if (!Utilities.SNOMED_SYSTEM_URI.equals(system) || code == null || code.isEmpty() || code.charAt(0) == '0') {
+            return -1;
+        }
+        long sctId = Utilities.parseSctId(code);
+        return (sctId > 0) ? sctId : -1;
+    }
+
+    /**
+     * Deduplicates while collecting. SNOMED CT codes are held as numbers in one primitive set
+     * per version, so a 1M code ValueSet does not build a million composite String keys.
+     */
+    private static class ConceptCollector {
+        private final List<ConceptToCheck> concepts = new ArrayList<>();
+        private final Map<String, LongHashSet> sctIdsByVersion = new HashMap<>();
+        private final Set<String> otherKeys = new HashSet<>();
+
+        boolean isNew(String system, String version, String code) {
+            String versionKey = (version == null) ? "" : version;
+            // Codes with leading zeros are not numbers here, those take the String path
+            long sctId = sctIdOf(system, code);
+            if (sctId > 0) {
+                return sctIdsByVersion.computeIfAbsent(versionKey, v -> new LongHashSet(1024)).add(sctId);
+            }
+            return otherKeys.add(system + "|" + versionKey + "|" + code);
+        }
+    }
+
+    static class ConceptToCheck {
+        private final String system;
+        private final String version;
+        private final String code;
+        private final String expression;
+
+        ConceptToCheck(String system, String version, String code, String expression) {
+            this.system = system;
+            this.version = version;
+            this.code = code;
+            this.expression = expression;
+        }
+
+        public String getSystem() {
+            return system;
+        }
+
+        public String getVersion() {
+            return version;
+        }
+
+        public String getCode() {
+            return code;
+        }
+
+        public String getExpression() {
+            return expression;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.dedalus.uks.ChecksService.service;
+
+import com.dedalus.uks.ChecksService.collections.LongHashSet;
+import com.dedalus.uks.ChecksService.collections.SortedLongSet;
+import com.dedalus.uks.ChecksService.config.ChecksConfig;
+
+import lombok.extern.slf4j.Slf4j;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The SNOMED CT codes last checked for each ValueSet.url, with the outcome of each, so the
+ * next version of the ValueSet only has to look up the codes that were not there before.
+ *
+ * A fingerprint is one SortedLongSet per SNOMED CT version. Each long packs the concept id
+ * with a two bit outcome, an SCTID is below 10^18 so the shifted value still fits, and a
+ * code costs 8 bytes. The store holds at most checks.fingerprints.maxCodes codes across all
+ * ValueSets, the least recently used ValueSets are dropped to stay under it, and fingerprints
+ * older than checks.fingerprints.ttlSeconds are not used.
+ */
+@Component
+@Slf4j
+public class ConceptFingerprintStore {
+
+    private static final int OUTCOME_BITS = 2;
+    private static final int OUTCOME_MASK = (1 << OUTCOME_BITS) - 1;
+
+    private final ChecksConfig.Fingerprints config;
+    private final Map<String, Fingerprint> byUrl = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalCodes;
+
+    @Autowired
+    public ConceptFingerprintStore(ChecksConfig checksConfig) {
+        this.config = checksConfig.getFingerprints();
+    }
+
+    public boolean isEnabled() {
+        return config.isEnabled();
+    }
+
+    /**
+     * The fingerprint of the last check of the ValueSet, or null when there is none or it is too old.
+     */
+    public Fingerprint get(String url) {
+        synchronized (byUrl) {
+            Fingerprint fingerprint = byUrl.get(url);
+            if (fingerprint == null) {
+                return null;
+            }
+            if (fingerprint.createdAt + config.getTtlSeconds() * 1000 < System.currentTimeMillis()) {
+                byUrl.remove(url);
+                totalCodes -= fingerprint.codeCount;
+                return null;
+            }
+            return fingerprint;
+        }
+    }
+
+    /**
+     * Replaces the fingerprint of the ValueSet. One bigger than the whole store is not kept.
+     */
+    public void put(String url, Fingerprint fingerprint) {
+        synchronized (byUrl) {
+            Fingerprint previous = byUrl.remove(url);
+            if (previous != null) {
+                totalCodes -= previous.codeCount;
+            }
+            if (fingerprint.codeCount > config.getMaxCodes()) {
+                log.info("Not keeping the fingerprint of " + url + ", " + fingerprint.codeCount + " codes is over the limit of " + config.getMaxCodes());
+                return;
+            }
+            byUrl.put(url, fingerprint);
+            totalCodes += fingerprint.codeCount;
+
+            Iterator<Map.Entry<String, Fingerprint>> eldest = byUrl.entrySet().iterator();
+            while (totalCodes > config.getMaxCodes() && eldest.hasNext()) {
+                Map.Entry<String, Fingerprint> entry = eldest.next();
+                if (entry.getValue() == fingerprint) {
+                    break;
+                }
+                totalCodes -= entry.getValue().codeCount;
+                eldest.remove();
+            }
+        }
+    }
+
+    public long getTotalCodes() {
+        synchronized (byUrl) {
+            return totalCodes;
+        }
+    }
+
+    /**
+     * Outcomes by concept id and SNOMED CT version. Immutable once built.
+     */
+    public static class Fingerprint {
+        private final String valueSetVersion;
+        private final long createdAt = System.currentTimeMillis();
+        private final Map<String, SortedLongSet> packedByVersion;
+        private final int codeCount;
+
+        private Fingerprint(String valueSetVersion, Map<String, SortedLongSet> packedByVersion, int codeCount) {
+            this.valueSetVersion = valueSetVersion;
+            this.packedByVersion = packedByVersion;
+            this.codeCount = codeCount;
+        }
+
+        public String getValueSetVersion() {
+            return valueSetVersion;
+        }
+
+        public int getCodeCount() {
+            return codeCount;
+        }
+
+        /**
+         * The outcome recorded for the concept, or -1 when it was not part of the last check.
+         */
+        public int lookup(String version, long sctId) {
+            SortedLongSet packed = packedByVersion.get((version == null) ? "" : version);
+            if (packed == null) {
+                return -1;
+            }
+            // The lowest packed value for the concept, so the ceiling lands on the concept if it is there
+            int position = packed.ceilingIndex(sctId << OUTCOME_BITS);
+            if (position < packed.size() && (packed.get(position) >>> OUTCOME_BITS) == sctId) {
+                return (int) (packed.get(position) & OUTCOME_MASK);
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Collects outcomes while a check runs. Each concept should be added once per version.
+     */
+    public static class Builder {
+        private final Map<String, LongHashSet> byVersion = new HashMap<>();
+
+        public void add(String version, long sctId, int outcome) {
+            byVersion.computeIfAbsent((version == null) ? "" : version, v -> new LongHashSet(1024)).add((sctId << OUTCOME_BITS) | (outcome & OUTCOME_MASK));
+        }
+
+        public Fingerprint build(String valueSetVersion) {
+            Map<String, SortedLongSet> sorted = new HashMap<>();
+            int codeCount = 0;
+            for (Map.Entry<String, LongHashSet> entry : byVersion.entrySet()) {
+                SortedLongSet packed = SortedLongSet.of(entry.getValue());
+                sorted.put(entry.getKey(), packed);
+                codeCount += packed.size();
+            }
+            return new Fingerprint(valueSetVersion, sorted, codeCount);
+        }
+    }
+}
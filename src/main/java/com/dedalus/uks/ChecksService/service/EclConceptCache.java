@@ -0,0 +1,89 @@
+package com.dedalus.uks.ChecksService.service;
+
+import com.dedalus.uks.ChecksService.config.ChecksConfig;
+
+import lombok.extern.slf4j.Slf4j;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Size bounded, least recently used cache from an ECL expression to the distinct concept ids
+ * it references. ValueSets reuse the same ECL definitions constantly, so repeat checks skip
+ * the ANTLR parse and the tree walk entirely.
+ */
+@Component
+@Slf4j
+public class EclConceptCache {
+
+    private final int maxSize;
+    private final Map<String, List<String>> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    @Autowired
+    public EclConceptCache(ChecksConfig checksConfig) {
+        this.maxSize = checksConfig.getEclCache().getMaxSize();
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<String>> eldest) {
+                if (size() > maxSize) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached concept ids for the expression, or loads, deduplicates and caches them.
+     * Expressions that fail to parse are not cached, the loader's exception is passed on.
+     */
+    public List<String> get(String ecl, Function<String, List<String>> loader) {
+        List<String> conceptIds;
+        synchronized (entries) {
+            conceptIds = entries.get(ecl);
+        }
+        if (conceptIds != null) {
+            hits.incrementAndGet();
+            return conceptIds;
+        }
+
+        misses.incrementAndGet();
+        // Parsed outside the lock, two threads missing on the same expression both parse it
+        conceptIds = List.copyOf(new LinkedHashSet<>(loader.apply(ecl)));
+        synchronized (entries) {
+            entries.put(ecl, conceptIds);
+        }
+        log.debug("Cached {} concept ids for ECL {}", conceptIds.size(), ecl);
+        return conceptIds;
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+}
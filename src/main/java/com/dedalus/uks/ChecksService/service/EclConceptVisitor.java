@@ -0,0 +1,222 @@
+package com.dedalus.uks.ChecksService.service;
+
+import lombok.extern.slf4j.Slf4j;
+
+import org.snomed.langauges.ecl.domain.ConceptReference;
+import org.snomed.langauges.ecl.domain.Pair;
+import org.snomed.langauges.ecl.domain.expressionconstraint.CompoundExpressionConstraint;
+import org.snomed.langauges.ecl.domain.expressionconstraint.DottedExpressionConstraint;
+import org.snomed.langauges.ecl.domain.expressionconstraint.ExpressionConstraint;
+import org.snomed.langauges.ecl.domain.expressionconstraint.RefinedExpressionConstraint;
+import org.snomed.langauges.ecl.domain.expressionconstraint.SubExpressionConstraint;
+import org.snomed.langauges.ecl.domain.filter.ConceptFilterConstraint;
+import org.snomed.langauges.ecl.domain.filter.DescriptionFilterConstraint;
+import org.snomed.langauges.ecl.domain.filter.DescriptionTypeFilter;
+import org.snomed.langauges.ecl.domain.filter.DialectFilter;
+import org.snomed.langauges.ecl.domain.filter.FieldFilter;
+import org.snomed.langauges.ecl.domain.filter.MemberFieldFilter;
+import org.snomed.langauges.ecl.domain.filter.MemberFilterConstraint;
+import org.snomed.langauges.ecl.domain.refinement.EclAttributeGroup;
+import org.snomed.langauges.ecl.domain.refinement.EclAttributeSet;
+import org.snomed.langauges.ecl.domain.refinement.EclRefinement;
+import org.snomed.langauges.ecl.domain.refinement.SubAttributeSet;
+import org.snomed.langauges.ecl.domain.refinement.SubRefinement;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Walks a parsed ECL expression once and passes each concept id it references to a sink, the
+ * first time it is seen. Nothing is collected on the way, so a deeply nested refinement costs
+ * one visit per node rather than a list copied up through every level.
+ *
+ * Every part of the expression that can hold a concept is visited: focus concepts, nested
+ * and compound constraints, dotted attributes, refinement attribute names and values, and the
+ * concept, member and description filters. A visitor is for one expression and one thread.
+ */
+@Slf4j
+public class EclConceptVisitor {
+
+    private final Consumer<String> sink;
+    private final Set<String> seen = new HashSet<>();
+
+    EclConceptVisitor(Consumer<String> sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * The distinct concept ids of the expression, in the order they appear.
+     */
+    public static List<String> conceptIds(ExpressionConstraint expressionConstraint) {
+        List<String> conceptIds = new ArrayList<>();
+        new EclConceptVisitor(conceptIds::add).visit(expressionConstraint);
+        return conceptIds;
+    }
+
+    void visit(ExpressionConstraint expressionConstraint) {
+        if (expressionConstraint instanceof SubExpressionConstraint) {
+            visitSubExpression((SubExpressionConstraint) expressionConstraint);
+        } else if (expressionConstraint instanceof CompoundExpressionConstraint) {
+            visitCompound((CompoundExpressionConstraint) expressionConstraint);
+        } else if (expressionConstraint instanceof DottedExpressionConstraint) {
+            visitDotted((DottedExpressionConstraint) expressionConstraint);
+        } else if (expressionConstraint instanceof RefinedExpressionConstraint) {
+            visitRefined((RefinedExpressionConstraint) expressionConstraint);
+        } else if (expressionConstraint != null) {
+            // This should never happen
+            log.warn("ExpressionConstraint is not an instance of any known class, it is an instance of: " + expressionConstraint.getClass().getName());
+        }
+    }
+
+    private void concept(String conceptId) {
+        if (conceptId != null && seen.add(conceptId)) {
+            sink.accept(conceptId);
+        }
+    }
+
+    private void visitAll(Collection<SubExpressionConstraint> constraints) {
+        if (constraints != null) {
+            for (SubExpressionConstraint constraint : constraints) {
+                visitSubExpression(constraint);
+            }
+        }
+    }
+
+    private void visitCompound(CompoundExpressionConstraint constraint) {
+        visitAll(constraint.getConjunctionExpressionConstraints());
+        visitAll(constraint.getDisjunctionExpressionConstraints());
+        Pair<SubExpressionConstraint> exclusion = constraint.getExclusionExpressionConstraints();
+        if (exclusion != null) {
+            visitSubExpression(exclusion.getFirst());
+            visitSubExpression(exclusion.getSecond());
+        }
+    }
+
+    private void visitDotted(DottedExpressionConstraint constraint) {
+        visitSubExpression(constraint.getSubExpressionConstraint());
+        visitAll(constraint.getDottedAttributes());
+    }
+
+    private void visitRefined(RefinedExpressionConstraint constraint) {
+        visitRefinement(constraint.getEclRefinement());
+        visit(constraint.getSubexpressionConstraint());
+    }
+
+    private void visitSubExpression(SubExpressionConstraint constraint) {
+        if (constraint == null) {
+            return;
+        }
+        concept(constraint.getConceptId());
+        visit(constraint.getNestedExpressionConstraint());
+
+        if (constraint.getMemberFilterConstraints() != null) {
+            for (MemberFilterConstraint memberFilterConstraint : constraint.getMemberFilterConstraints()) {
+                if (memberFilterConstraint.getMemberFieldFilters() != null) {
+                    for (MemberFieldFilter filter : memberFilterConstraint.getMemberFieldFilters()) {
+                        visitSubExpression(filter.getSubExpressionConstraint());
+                    }
+                }
+            }
+        }
+
+        if (constraint.getConceptFilterConstraints() != null) {
+            for (ConceptFilterConstraint conceptFilterConstraint : constraint.getConceptFilterConstraints()) {
+                if (conceptFilterConstraint.getDefinitionStatusFilters() != null) {
+                    for (FieldFilter filter : conceptFilterConstraint.getDefinitionStatusFilters()) {
+                        visitFieldFilter(filter);
+                    }
+                }
+            }
+        }
+
+        if (constraint.getDescriptionFilterConstraints() != null) {
+            for (DescriptionFilterConstraint descriptionFilterConstraint : constraint.getDescriptionFilterConstraints()) {
+                if (descriptionFilterConstraint.getDialectFilters() != null) {
+                    for (DialectFilter filter : descriptionFilterConstraint.getDialectFilters()) {
+                        visitSubExpression(filter.getSubExpressionConstraint());
+                    }
+                }
+                if (descriptionFilterConstraint.getModuleFilters() != null) {
+                    for (FieldFilter filter : descriptionFilterConstraint.getModuleFilters()) {
+                        visitSubExpression(filter.getSubExpressionConstraint());
+                    }
+                }
+                if (descriptionFilterConstraint.getDescriptionTypeFilters() != null) {
+                    for (DescriptionTypeFilter filter : descriptionFilterConstraint.getDescriptionTypeFilters()) {
+                        visitSubExpression(filter.getSubExpressionConstraint());
+                    }
+                }
+            }
+        }
+    }
+
+    private void visitFieldFilter(FieldFilter filter) {
+        if (filter.getConceptReferences() != null) {
+            for (ConceptReference conceptReference : filter.getConceptReferences()) {
+                concept(conceptReference.getConceptId());
+            }
+        }
+        visitSubExpression(filter.getSubExpressionConstraint());
+    }
+
+    private void visitRefinement(EclRefinement refinement) {
+        if (refinement == null) {
+            return;
+        }
+        visitSubRefinement(refinement.getSubRefinement());
+        if (refinement.getConjunctionSubRefinements() != null) {
+            for (SubRefinement subRefinement : refinement.getConjunctionSubRefinements()) {
+                visitSubRefinement(subRefinement);
+            }
+        }
+        if (refinement.getDisjunctionSubRefinements() != null) {
+            for (SubRefinement subRefinement : refinement.getDisjunctionSubRefinements()) {
+                visitSubRefinement(subRefinement);
+            }
+        }
+    }
+
+    private void visitSubRefinement(SubRefinement subRefinement) {
+        if (subRefinement == null) {
+            return;
+        }
+        visitRefinement(subRefinement.getEclRefinement());
+        EclAttributeGroup attributeGroup = subRefinement.getEclAttributeGroup();
+        if (attributeGroup != null) {
+            visitAttributeSet(attributeGroup.getAttributeSet());
+        }
+        visitAttributeSet(subRefinement.getEclAttributeSet());
+    }
+
+    private void visitAttributeSet(EclAttributeSet attributeSet) {
+        if (attributeSet == null) {
+            return;
+        }
+        visitSubAttributeSet(attributeSet.getSubAttributeSet());
+        if (attributeSet.getConjunctionAttributeSet() != null) {
+            for (SubAttributeSet subAttributeSet : attributeSet.getConjunctionAttributeSet()) {
+                visitSubAttributeSet(subAttributeSet);
+            }
+        }
+        if (attributeSet.getDisjunctionAttributeSet() != null) {
+            for (SubAttributeSet subAttributeSet : attributeSet.getDisjunctionAttributeSet()) {
+                visitSubAttributeSet(subAttributeSet);
+            }
+        }
+    }
+
+    private void visitSubAttributeSet(SubAttributeSet subAttributeSet) {
+        if (subAttributeSet == null) {
+            return;
+        }
+        if (subAttributeSet.getAttribute() != null) {
+            visitSubExpression(subAttributeSet.getAttribute().getAttributeName());
+            visitSubExpression(subAttributeSet.getAttribute().getValue());
+        }
+        visitAttributeSet(subAttributeSet.getAttributeSet());
+    }
+}
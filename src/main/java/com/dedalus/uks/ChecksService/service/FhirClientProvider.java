@@ -0,0 +1,37 @@
+package com.dedalus.uks.ChecksService.service;
+
+import com.dedalus.uks.ChecksService.config.ChecksConfig.IFhirRestServer;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import lombok.extern.slf4j.Slf4j;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hands out one long lived IGenericClient per upstream server. Generic clients are thread
+ * safe, and all of them share the FhirContext's pooled HTTP client.
+ */
+@Component
+@Slf4j
+public class FhirClientProvider {
+
+    private final FhirContext fhirContext;
+    private final Map<String, IGenericClient> clients = new ConcurrentHashMap<>();
+
+    @Autowired
+    public FhirClientProvider(FhirContext fhirContext) {
+        this.fhirContext = fhirContext;
+    }
+
+    public IGenericClient getClient(IFhirRestServer fhirServer) {
+        return clients.computeIfAbsent(fhirServer.getEndpoint(), endpoint -> {
+            log.info("Creating FHIR client for " + endpoint);
+            return fhirContext.newRestfulGenericClient(endpoint);
+        });
+    }
+}
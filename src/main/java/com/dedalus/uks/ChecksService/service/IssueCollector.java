@@ -0,0 +1,191 @@
+package com.dedalus.uks.ChecksService.service;
+
+import com.dedalus.uks.ChecksService.checks.CheckOptions;
+
+import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueType;
+import org.hl7.fhir.r4.model.OperationOutcome.OperationOutcomeIssueComponent;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Collects the issues of one check run within the limits of its {@link CheckOptions}.
+ *
+ * Issues are offered with the reason and code they are about, and only built when they are
+ * kept, so a ValueSet full of bad codes does not cost one FHIRPath expression per code.
+ * Beyond maxIssues issues are counted, in aggregate mode there is one issue per reason with a
+ * count and the first few codes. Once failFast errors are in, isStopped() is true and the
+ * checks stop looking.
+ *
+ * A collector belongs to one thread. Parallel segments each fork their own, sharing the error
+ * count so fail-fast stops all of them, and are merged back in order with addAll.
+ */
+public class IssueCollector {
+
+    private final CheckOptions options;
+    private final AtomicInteger errors;
+    private final List<OperationOutcomeIssueComponent> issues = new ArrayList<>();
+    private final Map<String, Group> groups = new LinkedHashMap<>();
+    private final List<String> notices = new ArrayList<>();
+    private long omitted;
+
+    public IssueCollector(CheckOptions options) {
+        this(options, new AtomicInteger());
+    }
+
+    private IssueCollector(CheckOptions options, AtomicInteger errors) {
+        this.options = options;
+        this.errors = errors;
+    }
+
+    public static IssueCollector unlimited() {
+        return new IssueCollector(CheckOptions.UNLIMITED);
+    }
+
+    public IssueCollector fork() {
+        return new IssueCollector(options, errors);
+    }
+
+    public boolean isStopped() {
+        return options.getFailFast() > 0 && errors.get() >= options.getFailFast();
+    }
+
+    /**
+     * Offers an issue. The reason groups issues in aggregate mode and the description is the
+     * text of the aggregated issue, the code is listed as a sample.
+     */
+    public void add(IssueSeverity severity, String reason, String description, String code, Supplier<OperationOutcomeIssueComponent> issue) {
+        if (isStopped()) {
+            return;
+        }
+        if (options.getFailFast() > 0 && isError(severity) && errors.incrementAndGet() > options.getFailFast()) {
+            // Another segment reached the limit first
+            return;
+        }
+
+        if (options.isAggregate()) {
+            Group group = groups.get(reason);
+            if (group == null) {
+                group = new Group(description, issue.get());
+                groups.put(reason, group);
+            }
+            group.add(code, options.getSampleCodes());
+            return;
+        }
+        if (isFull()) {
+            omitted++;
+            return;
+        }
+        issues.add(issue.get());
+    }
+
+    /**
+     * An informational issue about the check itself, e.g. that only part of the ValueSet was
+     * checked. Reported after the issues and never counted against the limits.
+     */
+    public void addNotice(String diagnostics) {
+        notices.add(diagnostics);
+    }
+
+    public void addAll(IssueCollector other) {
+        for (OperationOutcomeIssueComponent issue : other.issues) {
+            if (isFull()) {
+                omitted++;
+            } else {
+                issues.add(issue);
+            }
+        }
+        omitted += other.omitted;
+        notices.addAll(other.notices);
+        for (Map.Entry<String, Group> entry : other.groups.entrySet()) {
+            Group group = groups.get(entry.getKey());
+            if (group == null) {
+                groups.put(entry.getKey(), entry.getValue());
+            } else {
+                group.addAll(entry.getValue(), options.getSampleCodes());
+            }
+        }
+    }
+
+    /**
+     * The issues to report, followed by an informational issue for anything left out.
+     */
+    public List<OperationOutcomeIssueComponent> toIssues() {
+        List<OperationOutcomeIssueComponent> result = new ArrayList<>(issues);
+        for (Group group : groups.values()) {
+            result.add(group.toIssue());
+        }
+        for (String diagnostics : notices) {
+            result.add(notice(diagnostics));
+        }
+        if (omitted > 0) {
+            result.add(notice(omitted + " further issues were not reported, maxIssues is " + options.getMaxIssues() + "."));
+        }
+        if (isStopped()) {
+            result.add(notice("The check stopped after " + options.getFailFast() + " errors (failFast), later codes may not have been checked."));
+        }
+        return result;
+    }
+
+    private boolean isFull() {
+        return options.getMaxIssues() > 0 && issues.size() >= options.getMaxIssues();
+    }
+
+    private static boolean isError(IssueSeverity severity) {
+        return severity == IssueSeverity.ERROR || severity == IssueSeverity.FATAL;
+    }
+
+    private static OperationOutcomeIssueComponent notice(String diagnostics) {
+        OperationOutcomeIssueComponent issue = new OperationOutcomeIssueComponent();
+        issue.setSeverity(IssueSeverity.INFORMATION);
+        issue.setCode(IssueType.TOOCOSTLY);
+        issue.setDiagnostics(diagnostics);
+        return issue;
+    }
+
+    // The first issue of a reason stands for all of them, without its expression
+    private static class Group {
+        private final String description;
+        private final OperationOutcomeIssueComponent first;
+        private final List<String> sampleCodes = new ArrayList<>();
+        private long count;
+
+        Group(String description, OperationOutcomeIssueComponent first) {
+            this.description = description;
+            this.first = first;
+        }
+
+        void add(String code, int maxSamples) {
+            count++;
+            if (sampleCodes.size() < maxSamples) {
+                sampleCodes.add(code);
+            }
+        }
+
+        void addAll(Group other, int maxSamples) {
+            count += other.count;
+            for (String code : other.sampleCodes) {
+                if (sampleCodes.size() >= maxSamples) {
+                    break;
+                }
+                sampleCodes.add(code);
+            }
+        }
+
+        OperationOutcomeIssueComponent toIssue() {
+            OperationOutcomeIssueComponent issue = new OperationOutcomeIssueComponent();
+            issue.setSeverity(first.getSeverity());
+            issue.setCode(first.getCode());
+            if (first.hasDetails()) {
+                issue.setDetails(first.getDetails().copy());
+            }
+            issue.setDiagnostics(count + " codes: " + description + (sampleCodes.isEmpty() ? "" : " For example " + String.join(", ", sampleCodes) + "."));
+            return issue;
+        }
+    }
+}
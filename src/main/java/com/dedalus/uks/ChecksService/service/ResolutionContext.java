@@ -0,0 +1,143 @@
+package com.dedalus.uks.ChecksService.service;
+
+import com.dedalus.uks.ChecksService.checks.CheckOptions;
+import com.dedalus.uks.ChecksService.config.ChecksConfig.IFhirRestServer;
+
+import lombok.extern.slf4j.Slf4j;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.ActivityDefinition;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.Task;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Everything resolved while handling one Task, so each reference costs at most one lookup.
+ *
+ * Contained resources are indexed by id when the context is created, external references and
+ * the ActivityDefinition are fetched on first use and remembered for the rest of the request.
+ * Threads asking for the same reference at once share one fetch, no lock is held while it runs,
+ * so other references are not held up and a virtual thread is not pinned to its carrier.
+ * Create one per request with {@link ChecksService#newResolutionContext}.
+ */
+@Slf4j
+public class ResolutionContext {
+
+    private final ChecksService checksService;
+    private final Task task;
+    private final IFhirRestServer fhirServer;
+    private final Map<String, Resource> containedById = new HashMap<>();
+    private final Map<String, CompletableFuture<IBaseResource>> resolved = new ConcurrentHashMap<>();
+    private final AtomicReference<CompletableFuture<ActivityDefinition>> activityDefinition = new AtomicReference<>();
+    private volatile CheckOptions checkOptions;
+
+    ResolutionContext(ChecksService checksService, Task task, IFhirRestServer fhirServer) {
+        this.checksService = checksService;
+        this.task = task;
+        this.fhirServer = fhirServer;
+        for (Resource resource : task.getContained()) {
+            String id = resource.getId();
+            if (id != null) {
+                containedById.putIfAbsent(id.startsWith("#") ? id.substring(1) : id, resource);
+            }
+        }
+    }
+
+    public Task getTask() {
+        return task;
+    }
+
+    public String getFocusReference() {
+        return (task.hasFocus()) ? task.getFocus().getReference() : null;
+    }
+
+    /**
+     * The resource Task.focus points at, or null when the reference cannot be resolved.
+     */
+    public IBaseResource getFocusResource() {
+        String focusReference = getFocusReference();
+        if (focusReference == null) {
+            return null;
+        }
+        return resolve(focusReference);
+    }
+
+    /**
+     * Resolves a contained (#id) or relative (Type/id) reference. Anything else resolves to null.
+     */
+    public IBaseResource resolve(String reference) {
+        if (reference.startsWith("#")) {
+            Resource contained = containedById.get(reference.substring(1));
+            log.info("Reference " + reference + " resolved to contained " + ((contained == null) ? "nothing" : contained.getResourceType()));
+            return contained;
+        }
+        if (!reference.contains("/")) {
+            return null;
+        }
+        String[] parts = reference.split("/");
+        return once(resolved, reference, () -> checksService.resolveExternalReference(parts[0], parts[1], fhirServer));
+    }
+
+    /**
+     * The ActivityDefinition the Task instantiates. Not found and many found errors are thrown
+     * every time they are asked for, only a successful lookup is remembered.
+     */
+    public ActivityDefinition getActivityDefinition() {
+        CompletableFuture<ActivityDefinition> future = new CompletableFuture<>();
+        CompletableFuture<ActivityDefinition> existing = activityDefinition.compareAndExchange(null, future);
+        if (existing != null) {
+            return await(existing);
+        }
+        return run(future, () -> checksService.resolveActivityDefinition(task.getInstantiatesCanonical()), () -> activityDefinition.compareAndSet(future, null));
+    }
+
+    // The first caller for a key runs the lookup, later ones wait on its future. A failure is not kept
+    private static <T> T once(Map<String, CompletableFuture<T>> results, String key, Supplier<T> lookup) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        CompletableFuture<T> existing = results.putIfAbsent(key, future);
+        if (existing != null) {
+            return await(existing);
+        }
+        return run(future, lookup, () -> results.remove(key, future));
+    }
+
+    private static <T> T run(CompletableFuture<T> future, Supplier<T> lookup, Runnable forget) {
+        try {
+            T result = lookup.get();
+            future.complete(result);
+            return result;
+        } catch (RuntimeException | Error e) {
+            forget.run();
+            future.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    private static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            throw (e.getCause() instanceof RuntimeException) ? (RuntimeException) e.getCause() : e;
+        }
+    }
+
+    /**
+     * The check options from Task.input. An invalid option throws InvalidCheckOptionException.
+     */
+    public CheckOptions getCheckOptions() {
+        // Only reads the Task, two threads that both parse it get equal options
+        CheckOptions options = checkOptions;
+        if (options == null) {
+            options = checksService.getCheckOptions(task);
+            checkOptions = options;
+        }
+        return options;
+    }
+}
@@ -6,6 +6,12 @@ import org.springframework.stereotype.Service;
 
 import com.dedalus.uks.ChecksService.utils.Utilities;
 
+import java.nio.CharBuffer;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
 import org.hl7.fhir.r4.model.CodeableConcept;
 import org.hl7.fhir.r4.model.Coding;
 import org.hl7.fhir.r4.model.OperationOutcome;
@@ -21,183 +27,286 @@ public class SCTValidationService {
     public static final String INVALID_CODE_DETAIL_ERROR_CODE = "INVALID_CONCEPT_IDENTIFIER_FORMAT";
     public static final String INVALID_CODE_DETAIL_ERROR_DESC = "Concept is not in the correct format for the CodeSystem";
 
+    /**
+     * Outcome of the primitive identifier format check. Only failing results
+     * ever turn into OperationOutcome issues, see {@link #createIssue}.
+     */
+    public enum FormatResult {
+        VALID(null),
+        EMPTY(null),
+        INVALID_FORMAT("The provided identifier is not a valid SNOMED CT Concept ID."),
+        TOO_SHORT("The provided identifier is too short."),
+        TOO_LONG("The provided identifier is too long."),
+        DESCRIPTION_IDENTIFIER("The provided identifier is not a valid SNOMED CT Concept ID. The format indicates it is a Description."),
+        RELATIONSHIP_IDENTIFIER("The provided identifier is not a valid SNOMED CT Concept ID. The format indicates it is a SCT Relationship identifier."),
+        EXPRESSION_IDENTIFIER("The provided identifier is not a valid SNOMED CT Concept ID. The format indicates it is a SCT Postcoordinated Expression identifier."),
+        LONG_FORM_TOO_SHORT("The provided identifier is too short for a long-form identifier."),
+        INVALID_PARTITION("The provided identifier is not a valid SNOMED CT Concept ID.");
+
+        private final String detailText;
+
+        FormatResult(String detailText) {
+            this.detailText = detailText;
+        }
+
+        public String getDetailText() {
+            return detailText;
+        }
+
+        public boolean isValid() {
+            return this == VALID;
+        }
+
+        private static final FormatResult[] VALUES = values();
+
+        /** Reverse of the byte codes produced by the bulk validators. */
+        public static FormatResult fromCode(byte code) {
+            return VALUES[code];
+        }
+
+        public byte toCode() {
+            return (byte) ordinal();
+        }
+    }
+
+    // Issue details are identical for every failure of the same kind, so they are built once
+    private static final Map<FormatResult, CodeableConcept> ISSUE_DETAIL_TEMPLATES = buildIssueDetailTemplates();
+
+    // Identifiers checked so far by result, read by CheckMetrics. One uncontended add per identifier
+    private final LongAdder[] resultCounts = new LongAdder[FormatResult.values().length];
+
     @Autowired
     public SCTValidationService() {
+        for (int i = 0; i < resultCounts.length; i++) {
+            resultCounts[i] = new LongAdder();
+        }
+    }
 
+    public long getResultCount(FormatResult result) {
+        return resultCounts[result.ordinal()].sum();
+    }
+
+    private FormatResult count(FormatResult result) {
+        resultCounts[result.ordinal()].increment();
+        return result;
     }
 
     public OperationOutcome validateIdentifierFormat(String sctIdentifier) {
-        log.debug("Validating SCI Identifier: " + sctIdentifier);
+        log.debug("Validating SCT Identifier: {}", sctIdentifier);
         OperationOutcome operationOutcome = new OperationOutcome();
 
-        if (sctIdentifier == null || sctIdentifier.isEmpty()) {
-            OperationOutcomeIssueComponent issue = new OperationOutcomeIssueComponent();
-            issue.setSeverity(IssueSeverity.ERROR);
-            issue.setCode(IssueType.CODEINVALID);
-            issue.setDiagnostics("Identifier is empty");
-            operationOutcome.addIssue(issue);
-            return operationOutcome;
-        }
-        
-        if (!validateSnomedCTIdentifier(sctIdentifier)) {
-            OperationOutcomeIssueComponent issue = new OperationOutcomeIssueComponent();
-            issue.setSeverity(IssueSeverity.ERROR);
-            issue.setCode(IssueType.CODEINVALID);
-            issue.setDiagnostics("Identifier " + sctIdentifier + " is an invalid SCT identifier format");
-            CodeableConcept issueDetail = new CodeableConcept();
-            Coding issueDetailCode = new Coding();
-            issueDetailCode.setSystem(Utilities.ISSUE_DETAIL_SYSTEM_URI);
-            issueDetailCode.setSystem(Utilities.ISSUE_DETAIL_SYSTEM_URI);
-            issueDetailCode.setCode(INVALID_CODE_DETAIL_ERROR_CODE);
-            issueDetailCode.setDisplay(INVALID_CODE_DETAIL_ERROR_DESC);
-            issueDetail.addCoding(issueDetailCode);
-            issueDetail.setText("The provided identifier is not a valid SNOMED CT Concept ID.");
-            issue.setDetails(issueDetail);
-            operationOutcome.addIssue(issue);
-            return operationOutcome;
+        FormatResult result = checkIdentifierFormat(sctIdentifier);
+        if (!result.isValid()) {
+            operationOutcome.addIssue(createIssue(result, sctIdentifier));
         }
+        return operationOutcome;
+    }
 
+    /**
+     * Checks the format of a SNOMED CT concept identifier in a single pass over its characters,
+     * without allocating. Digits, length, the Verhoeff check digit and the partition identifier
+     * are all taken from that one pass.
+     */
+    public FormatResult checkIdentifierFormat(CharSequence sctIdentifier) {
+        if (sctIdentifier == null) {
+            return count(FormatResult.EMPTY);
+        }
+        return checkIdentifierFormat(sctIdentifier, 0, sctIdentifier.length());
+    }
 
-        if (sctIdentifier.length() < 6) {
-            OperationOutcomeIssueComponent issue = new OperationOutcomeIssueComponent();
-            issue.setSeverity(IssueSeverity.ERROR);
-            issue.setCode(IssueType.CODEINVALID);
-            issue.setDiagnostics("Identifier " + sctIdentifier + " too short. It has a length of " + + sctIdentifier.length() + " characters, and the minumum allowed is 6.");
-            CodeableConcept issueDetail = new CodeableConcept();
-            Coding issueDetailCode = new Coding();
-            issueDetailCode.setSystem(Utilities.ISSUE_DETAIL_SYSTEM_URI);
-            issueDetailCode.setSystem(Utilities.ISSUE_DETAIL_SYSTEM_URI);
-            issueDetailCode.setCode(INVALID_CODE_DETAIL_ERROR_CODE);
-            issueDetailCode.setDisplay(INVALID_CODE_DETAIL_ERROR_DESC);
-            issueDetail.addCoding(issueDetailCode);
-            issueDetail.setText("The provided identifier is too short.");
-            issue.setDetails(issueDetail);
-            operationOutcome.addIssue(issue);
-            return operationOutcome;
+    public FormatResult checkIdentifierFormat(CharSequence sctIdentifier, int start, int end) {
+        return count(formatOf(sctIdentifier, start, end));
+    }
+
+    private FormatResult formatOf(CharSequence sctIdentifier, int start, int end) {
+        int len = end - start;
+        if (len <= 0) {
+            return FormatResult.EMPTY;
         }
 
-        if (sctIdentifier.length() > 18) {
-            OperationOutcomeIssueComponent issue = new OperationOutcomeIssueComponent();
-            issue.setSeverity(IssueSeverity.ERROR);
-            issue.setCode(IssueType.CODEINVALID);
-            issue.setDiagnostics("Identifier " + sctIdentifier + " too long. It has a length of " + + sctIdentifier.length() + " characters, and the maximum allowed is 18.");
-            CodeableConcept issueDetail = new CodeableConcept();
-            Coding issueDetailCode = new Coding();
-            issueDetailCode.setSystem(Utilities.ISSUE_DETAIL_SYSTEM_URI);
-            issueDetailCode.setSystem(Utilities.ISSUE_DETAIL_SYSTEM_URI);
-            issueDetailCode.setCode(INVALID_CODE_DETAIL_ERROR_CODE);
-            issueDetailCode.setDisplay(INVALID_CODE_DETAIL_ERROR_DESC);
-            issueDetail.addCoding(issueDetailCode);
-            issueDetail.setText("The provided identifier is too long.");
-            issue.setDetails(issueDetail);
-            operationOutcome.addIssue(issue);
-            return operationOutcome;
+        // Walk from the check digit leftwards, as the Verhoeff algorithm requires
+        int check = 0;
+        int partition = 0;
+        for (int i = 0; i < len; i++) {
+            int digit = sctIdentifier.charAt(end - 1 - i) - '0';
+            if (digit < 0 || digit > 9) {
+                if (log.isDebugEnabled()) {
+                    log.debug("SCT ID {} is not numeric", sctIdentifier.subSequence(start, end));
+                }
+                return FormatResult.INVALID_FORMAT;
+            }
+            check = D[check][P[i & 7][digit]];
+            if (i == 1) {
+                partition = digit;
+            } else if (i == 2) {
+                partition += digit * 10;
+            }
         }
 
-        String partitionIdentifier = sctIdentifier.charAt(sctIdentifier.length() - 3) + "" + sctIdentifier.charAt(sctIdentifier.length() - 2);
+        if (check != 0) {
+            if (log.isDebugEnabled()) {
+                log.debug("SCT ID {} failed Verhoeff check", sctIdentifier.subSequence(start, end));
+            }
+            return FormatResult.INVALID_FORMAT;
+        }
+        return classify(len, partition);
+    }
 
-        boolean longForm = false;
-        if (partitionIdentifier.equals("10")) {
-            longForm = true;
+    /**
+     * Numeric variant for codes that were already parsed to a long. Identifiers with leading
+     * zeros cannot be represented this way and should go through the character based check.
+     */
+    public FormatResult checkIdentifierFormat(long sctIdentifier) {
+        return count(formatOf(sctIdentifier));
+    }
+
+    private FormatResult formatOf(long sctIdentifier) {
+        if (sctIdentifier < 0) {
+            return FormatResult.INVALID_FORMAT;
         }
 
-        if (partitionIdentifier.equals("01") || partitionIdentifier.equals("11")) {
-            OperationOutcomeIssueComponent issue = new OperationOutcomeIssueComponent();
-            issue.setSeverity(IssueSeverity.ERROR);
-            issue.setCode(IssueType.CODEINVALID);
-            issue.setDiagnostics("Identifier " + sctIdentifier + " is an SCT Description identifier format");
-            CodeableConcept issueDetail = new CodeableConcept();
-            Coding issueDetailCode = new Coding();
-            issueDetailCode.setSystem(Utilities.ISSUE_DETAIL_SYSTEM_URI);
-            issueDetailCode.setSystem(Utilities.ISSUE_DETAIL_SYSTEM_URI);
-            issueDetailCode.setCode(INVALID_CODE_DETAIL_ERROR_CODE);
-            issueDetailCode.setDisplay(INVALID_CODE_DETAIL_ERROR_DESC);
-            issueDetail.addCoding(issueDetailCode);
-            issueDetail.setText("The provided identifier is not a valid SNOMED CT Concept ID. The format indicates it is a Description.");
-            issue.setDetails(issueDetail);
-            operationOutcome.addIssue(issue);
-            return operationOutcome;
+        int check = 0;
+        int partition = 0;
+        int len = 0;
+        long remaining = sctIdentifier;
+        do {
+            int digit = (int) (remaining % 10);
+            check = D[check][P[len & 7][digit]];
+            if (len == 1) {
+                partition = digit;
+            } else if (len == 2) {
+                partition += digit * 10;
+            }
+            remaining /= 10;
+            len++;
+        } while (remaining != 0);
+
+        if (check != 0) {
+            log.debug("SCT ID {} failed Verhoeff check", sctIdentifier);
+            return FormatResult.INVALID_FORMAT;
         }
+        return classify(len, partition);
+    }
 
-        if (partitionIdentifier.equals("02") || partitionIdentifier.equals("12")) {
-            OperationOutcomeIssueComponent issue = new OperationOutcomeIssueComponent();
-            issue.setSeverity(IssueSeverity.ERROR);
-            issue.setCode(IssueType.CODEINVALID);
-            issue.setDiagnostics("Identifier " + sctIdentifier + " is an SCT Relationship format");
-            CodeableConcept issueDetail = new CodeableConcept();
-            Coding issueDetailCode = new Coding();
-            issueDetailCode.setSystem(Utilities.ISSUE_DETAIL_SYSTEM_URI);
-            issueDetailCode.setSystem(Utilities.ISSUE_DETAIL_SYSTEM_URI);
-            issueDetailCode.setCode(INVALID_CODE_DETAIL_ERROR_CODE);
-            issueDetailCode.setDisplay(INVALID_CODE_DETAIL_ERROR_DESC);
-            issueDetail.addCoding(issueDetailCode);
-            issueDetail.setText("The provided identifier is not a valid SNOMED CT Concept ID. The format indicates it is a SCT Relationship identifier.");
-            issue.setDetails(issueDetail);
-            operationOutcome.addIssue(issue);
-            return operationOutcome;
+    /**
+     * Validates a batch of identifiers packed back to back in one char buffer. Identifier i
+     * spans {@code buffer[offsets[i]]} up to {@code buffer[offsets[i + 1]]}, so offsets holds
+     * count + 1 entries. The result holds one {@link FormatResult#toCode()} per identifier.
+     */
+    public byte[] validateIdentifierFormats(char[] buffer, int[] offsets, int count) {
+        if (offsets.length < count + 1) {
+            throw new IllegalArgumentException("Expected " + (count + 1) + " offsets but got " + offsets.length);
+        }
+        CharSequence packed = CharBuffer.wrap(buffer);
+        byte[] results = new byte[count];
+        for (int i = 0; i < count; i++) {
+            results[i] = checkIdentifierFormat(packed, offsets[i], offsets[i + 1]).toCode();
         }
+        return results;
+    }
 
-        if (partitionIdentifier.equals("16")) {
-            OperationOutcomeIssueComponent issue = new OperationOutcomeIssueComponent();
-            issue.setSeverity(IssueSeverity.ERROR);
-            issue.setCode(IssueType.CODEINVALID);
-            issue.setDiagnostics("Identifier " + sctIdentifier + " is an SCT Postcoordinated Expression format");
-            CodeableConcept issueDetail = new CodeableConcept();
-            Coding issueDetailCode = new Coding();
-            issueDetailCode.setSystem(Utilities.ISSUE_DETAIL_SYSTEM_URI);
-            issueDetailCode.setSystem(Utilities.ISSUE_DETAIL_SYSTEM_URI);
-            issueDetailCode.setCode(INVALID_CODE_DETAIL_ERROR_CODE);
-            issueDetailCode.setDisplay(INVALID_CODE_DETAIL_ERROR_DESC);
-            issueDetail.addCoding(issueDetailCode);
-            issueDetail.setText("The provided identifier is not a valid SNOMED CT Concept ID. The format indicates it is a SCT Postcoordinated Expression identifier.");
-            issue.setDetails(issueDetail);
-            operationOutcome.addIssue(issue);
-            return operationOutcome;
+    /**
+     * Validates a batch of identifiers that were already parsed to longs.
+     * The result holds one {@link FormatResult#toCode()} per identifier.
+     */
+    public byte[] validateIdentifierFormats(long[] sctIdentifiers) {
+        byte[] results = new byte[sctIdentifiers.length];
+        for (int i = 0; i < sctIdentifiers.length; i++) {
+            results[i] = checkIdentifierFormat(sctIdentifiers[i]).toCode();
         }
+        return results;
+    }
 
-        if (longForm && sctIdentifier.length() < 11) {
-            OperationOutcomeIssueComponent issue = new OperationOutcomeIssueComponent();
-            issue.setSeverity(IssueSeverity.ERROR);
-            issue.setCode(IssueType.CODEINVALID);
-            issue.setDiagnostics("Identifier " + sctIdentifier + " is a 'long-form' identifier. It has a length of " + + sctIdentifier.length() + " characters, and the minumum allowed is 11.");
-            CodeableConcept issueDetail = new CodeableConcept();
-            Coding issueDetailCode = new Coding();
-            issueDetailCode.setSystem(Utilities.ISSUE_DETAIL_SYSTEM_URI);
-            issueDetailCode.setSystem(Utilities.ISSUE_DETAIL_SYSTEM_URI);
-            issueDetailCode.setCode(INVALID_CODE_DETAIL_ERROR_CODE);
-            issueDetailCode.setDisplay(INVALID_CODE_DETAIL_ERROR_DESC);
-            issueDetail.addCoding(issueDetailCode);
-            issueDetail.setText("The provided identifier is too short for a long-form identifier.");
-            issue.setDetails(issueDetail);
-            operationOutcome.addIssue(issue);
-            return operationOutcome;
+    /**
+     * Builds the issue for a failed format check. Diagnostics carry the identifier itself,
+     * the details are copied from the shared template for the failure reason.
+     */
+    public OperationOutcomeIssueComponent createIssue(FormatResult result, String sctIdentifier) {
+        OperationOutcomeIssueComponent issue = new OperationOutcomeIssueComponent();
+        issue.setSeverity(IssueSeverity.ERROR);
+        issue.setCode(IssueType.CODEINVALID);
+        issue.setDiagnostics(diagnostics(result, sctIdentifier));
+
+        CodeableConcept template = ISSUE_DETAIL_TEMPLATES.get(result);
+        if (template != null) {
+            issue.setDetails(template.copy());
+        }
+        return issue;
+    }
+
+    private static FormatResult classify(int len, int partition) {
+        if (len < 6) {
+            return FormatResult.TOO_SHORT;
+        }
+        if (len > 18) {
+            return FormatResult.TOO_LONG;
+        }
+
+        switch (partition) {
+            case 0:
+                return FormatResult.VALID;
+            case 10:
+                // 'long-form' identifier, needs room for the namespace
+                return (len < 11) ? FormatResult.LONG_FORM_TOO_SHORT : FormatResult.VALID;
+            case 1:
+            case 11:
+                return FormatResult.DESCRIPTION_IDENTIFIER;
+            case 2:
+            case 12:
+                return FormatResult.RELATIONSHIP_IDENTIFIER;
+            case 16:
+                return FormatResult.EXPRESSION_IDENTIFIER;
+            default:
+                return FormatResult.INVALID_PARTITION;
+        }
+    }
+
+    private static String diagnostics(FormatResult result, String sctIdentifier) {
+        int len = (sctIdentifier == null) ? 0 : sctIdentifier.length();
+        switch (result) {
+            case EMPTY:
+                return "Identifier is empty";
+            case INVALID_FORMAT:
+                return "Identifier " + sctIdentifier + " is an invalid SCT identifier format";
+            case TOO_SHORT:
+                return "Identifier " + sctIdentifier + " too short. It has a length of " + len + " characters, and the minumum allowed is 6.";
+            case TOO_LONG:
+                return "Identifier " + sctIdentifier + " too long. It has a length of " + len + " characters, and the maximum allowed is 18.";
+            case DESCRIPTION_IDENTIFIER:
+                return "Identifier " + sctIdentifier + " is an SCT Description identifier format";
+            case RELATIONSHIP_IDENTIFIER:
+                return "Identifier " + sctIdentifier + " is an SCT Relationship format";
+            case EXPRESSION_IDENTIFIER:
+                return "Identifier " + sctIdentifier + " is an SCT Postcoordinated Expression format";
+            case LONG_FORM_TOO_SHORT:
+                return "Identifier " + sctIdentifier + " is a 'long-form' identifier. It has a length of " + len + " characters, and the minumum allowed is 11.";
+            case INVALID_PARTITION:
+                return "Identifier " + sctIdentifier + " has an invalid SNOMED CT Concept identifier format";
+            default:
+                return null;
         }
+    }
 
-        if (!partitionIdentifier.equals("00") && !partitionIdentifier.equals("10")) {
-            OperationOutcomeIssueComponent issue = new OperationOutcomeIssueComponent();
-            issue.setSeverity(IssueSeverity.ERROR);
-            issue.setCode(IssueType.CODEINVALID);
-            issue.setDiagnostics("Identifier " + sctIdentifier + " has an invalid SNOMED CT Concept identifier format");
+    private static Map<FormatResult, CodeableConcept> buildIssueDetailTemplates() {
+        Map<FormatResult, CodeableConcept> templates = new EnumMap<>(FormatResult.class);
+        for (FormatResult result : FormatResult.values()) {
+            if (result.getDetailText() == null) {
+                continue;
+            }
             CodeableConcept issueDetail = new CodeableConcept();
             Coding issueDetailCode = new Coding();
             issueDetailCode.setSystem(Utilities.ISSUE_DETAIL_SYSTEM_URI);
-            issueDetailCode.setSystem(Utilities.ISSUE_DETAIL_SYSTEM_URI);
             issueDetailCode.setCode(INVALID_CODE_DETAIL_ERROR_CODE);
             issueDetailCode.setDisplay(INVALID_CODE_DETAIL_ERROR_DESC);
             issueDetail.addCoding(issueDetailCode);
-            issueDetail.setText("The provided identifier is not a valid SNOMED CT Concept ID.");
-            issue.setDetails(issueDetail);
-            
-            operationOutcome.addIssue(issue);
-            return operationOutcome;
+            issueDetail.setText(result.getDetailText());
+            templates.put(result, issueDetail);
         }
-        
-
-        return operationOutcome;
+        return Collections.unmodifiableMap(templates);
     }
 
     // Verhoeff Dihedral table
-    private final int[][] d = {
+    private static final int[][] D = {
         {0, 1, 2, 3, 4, 5, 6, 7, 8, 9},
         {1, 2, 3, 4, 0, 6, 7, 8, 9, 5},
         {2, 3, 4, 0, 1, 7, 8, 9, 5, 6},
@@ -211,7 +320,7 @@ public class SCTValidationService {
     };
 
     // Permutation table
-    private final int[][] p = {
+    private static final int[][] P = {
         {0, 1, 2, 3, 4, 5, 6, 7, 8, 9},
         {1, 5, 7, 6, 2, 8, 3, 0, 9, 4},
         {5, 8, 0, 3, 7, 9, 6, 1, 4, 2},
@@ -222,28 +331,4 @@ public class SCTValidationService {
         {7, 0, 4, 6, 9, 1, 3, 2, 5, 8}
     };
 
-    private boolean validateSnomedCTIdentifier(String sctid) {
-        
-        String sctidPattern = "^[0-9]+$";
-        
-        // First, check if the identifier is numeric and not empty
-        if (!sctid.matches(sctidPattern)) {
-            log.info(sctidPattern + " does not match SCT ID pattern " + sctidPattern);
-            return false;
-        }
-
-        // Apply Verhoeff algorithm for validation
-        int check = 0;
-        int len = sctid.length();
-        for (int i = 0; i < len; i++) {
-            check = d[check][p[(i % 8)][Character.getNumericValue(sctid.charAt(len - i - 1))]];
-        }
-
-        if (check != 0) {
-            log.info("SCT ID " + sctid + " failed Verhoeff check");
-        }
-        
-        return check == 0;
-    }
-
 }
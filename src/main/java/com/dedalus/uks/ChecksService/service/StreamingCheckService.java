@@ -0,0 +1,370 @@
+package com.dedalus.uks.ChecksService.service;
+
+import com.dedalus.uks.ChecksService.utils.Utilities;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import lombok.extern.slf4j.Slf4j;
+
+import org.hl7.fhir.r4.model.OperationOutcome.OperationOutcomeIssueComponent;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the code-format check over a Task JSON stream without building the HAPI model.
+ *
+ * Codes are validated as they pass through the parser and only the failures are kept, so
+ * memory stays flat however large the contained ValueSets are. JSON properties may come in
+ * any order, which is why the few values an issue depends on (system, version, the focus
+ * reference) are buffered until the enclosing object closes.
+ */
+@Service
+@Slf4j
+public class StreamingCheckService {
+
+    private final ChecksService checksService;
+    private final SCTValidationService sctValidationService;
+    private final JsonFactory jsonFactory = new JsonFactory();
+
+    @Autowired
+    public StreamingCheckService(ChecksService checksService, SCTValidationService sctValidationService) {
+        this.checksService = checksService;
+        this.sctValidationService = sctValidationService;
+    }
+
+    public StreamingCheckResult checkCodeFormat(InputStream taskStream) throws IOException {
+        StreamingCheckResult result = new StreamingCheckResult();
+
+        try (JsonParser parser = jsonFactory.createParser(taskStream)) {
+            expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                parser.nextToken();
+                switch (field) {
+                    case "resourceType":
+                        result.resourceType = parser.getValueAsString();
+                        break;
+                    case "instantiatesCanonical":
+                        result.instantiatesCanonical = parser.getValueAsString();
+                        break;
+                    case "focus":
+                        readFocus(parser, result);
+                        break;
+                    case "contained":
+                        expect(parser, parser.currentToken(), JsonToken.START_ARRAY);
+                        while (parser.nextToken() == JsonToken.START_OBJECT) {
+                            readContained(parser, result);
+                        }
+                        break;
+                    default:
+                        parser.skipChildren();
+                }
+            }
+        }
+        return result;
+    }
+
+    private void readFocus(JsonParser parser, StreamingCheckResult result) throws IOException {
+        expect(parser, parser.currentToken(), JsonToken.START_OBJECT);
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            if ("reference".equals(field)) {
+                result.focusReference = parser.getValueAsString();
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    private void readContained(JsonParser parser, StreamingCheckResult result) throws IOException {
+        String resourceType = null;
+        String id = null;
+        // Task.input may come after the contained resources, so check options do not apply here
+        IssueCollector composeIssues = IssueCollector.unlimited();
+        IssueCollector expansionIssues = IssueCollector.unlimited();
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            switch (field) {
+                case "resourceType":
+                    resourceType = parser.getValueAsString();
+                    break;
+                case "id":
+                    id = parser.getValueAsString();
+                    break;
+                case "compose":
+                    if (isSkippable(result, resourceType, id)) {
+                        parser.skipChildren();
+                    } else {
+                        readCompose(parser, composeIssues);
+                    }
+                    break;
+                case "expansion":
+                    if (isSkippable(result, resourceType, id)) {
+                        parser.skipChildren();
+                    } else {
+                        readExpansion(parser, expansionIssues);
+                    }
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+
+        if ("ValueSet".equals(resourceType) && id != null) {
+            // Same order as the model based check, compose first and then expansion
+            composeIssues.addAll(expansionIssues);
+            result.addContainedValueSet(id, composeIssues.toIssues());
+        }
+    }
+
+    // Once the focus and this resource's id are both known, a non-matching resource needs no checking
+    private boolean isSkippable(StreamingCheckResult result, String resourceType, String id) {
+        if (resourceType != null && !"ValueSet".equals(resourceType)) {
+            return true;
+        }
+        return id != null && result.getFocusContainedId() != null && !id.equals(result.getFocusContainedId());
+    }
+
+    private void readCompose(JsonParser parser, IssueCollector issues) throws IOException {
+        expect(parser, parser.currentToken(), JsonToken.START_OBJECT);
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            if ("include".equals(field)) {
+                expect(parser, parser.currentToken(), JsonToken.START_ARRAY);
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    readInclude(parser, issues);
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    private void readInclude(JsonParser parser, IssueCollector issues) throws IOException {
+        String system = null;
+        String version = null;
+        // Failures seen before the system was known, and the filters, are resolved when the include closes
+        List<String> failedCodes = new ArrayList<>();
+        List<SCTValidationService.FormatResult> failedResults = new ArrayList<>();
+        List<String[]> filters = new ArrayList<>();
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            switch (field) {
+                case "system":
+                    system = parser.getValueAsString();
+                    break;
+                case "version":
+                    version = parser.getValueAsString();
+                    break;
+                case "concept":
+                    expect(parser, parser.currentToken(), JsonToken.START_ARRAY);
+                    boolean validate = system == null || Utilities.SNOMED_SYSTEM_URI.equals(system);
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        String code = readCode(parser);
+                        if (validate) {
+                            SCTValidationService.FormatResult formatResult = sctValidationService.checkIdentifierFormat(code);
+                            if (!formatResult.isValid()) {
+                                failedCodes.add(code);
+                                failedResults.add(formatResult);
+                            }
+                        }
+                    }
+                    break;
+                case "filter":
+                    expect(parser, parser.currentToken(), JsonToken.START_ARRAY);
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        filters.add(readFilter(parser));
+                    }
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+
+        if (!Utilities.SNOMED_SYSTEM_URI.equals(system)) {
+            return;
+        }
+        for (int i = 0; i < failedCodes.size(); i++) {
+            checksService.addComposeConceptFormatIssue(system, version, failedCodes.get(i), failedResults.get(i), issues);
+        }
+        for (String[] filter : filters) {
+            checksService.checkComposeFilterFormat(system, version, filter[0], filter[1], issues);
+        }
+    }
+
+    private String readCode(JsonParser parser) throws IOException {
+        String code = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            if ("code".equals(field)) {
+                code = parser.getValueAsString();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return code;
+    }
+
+    private String[] readFilter(JsonParser parser) throws IOException {
+        String[] filter = new String[2];
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            if ("property".equals(field)) {
+                filter[0] = parser.getValueAsString();
+            } else if ("value".equals(field)) {
+                filter[1] = parser.getValueAsString();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return filter;
+    }
+
+    private void readExpansion(JsonParser parser, IssueCollector issues) throws IOException {
+        expect(parser, parser.currentToken(), JsonToken.START_OBJECT);
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            if ("contains".equals(field)) {
+                expect(parser, parser.currentToken(), JsonToken.START_ARRAY);
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    readContains(parser, issues);
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    private void readContains(JsonParser parser, IssueCollector issues) throws IOException {
+        String system = null;
+        String version = null;
+        String code = null;
+        // Nested entries only count when this entry has no code of its own, which is only known at the end
+        IssueCollector nestedIssues = null;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            switch (field) {
+                case "system":
+                    system = parser.getValueAsString();
+                    break;
+                case "version":
+                    version = parser.getValueAsString();
+                    break;
+                case "code":
+                    code = parser.getValueAsString();
+                    break;
+                case "contains":
+                    expect(parser, parser.currentToken(), JsonToken.START_ARRAY);
+                    nestedIssues = IssueCollector.unlimited();
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        readNestedContains(parser, nestedIssues);
+                    }
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+
+        if (system != null && code != null) {
+            checksService.checkExpansionCodeFormat(ChecksService.EXPANSION_CONTAINS_PATH, system, version, code, issues);
+        } else if (nestedIssues != null) {
+            issues.addAll(nestedIssues);
+        }
+    }
+
+    private void readNestedContains(JsonParser parser, IssueCollector issues) throws IOException {
+        String system = null;
+        String version = null;
+        String code = null;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            switch (field) {
+                case "system":
+                    system = parser.getValueAsString();
+                    break;
+                case "version":
+                    version = parser.getValueAsString();
+                    break;
+                case "code":
+                    code = parser.getValueAsString();
+                    break;
+                default:
+                    // Deeper levels are not checked by the model based check either
+                    parser.skipChildren();
+            }
+        }
+        checksService.checkExpansionCodeFormat(ChecksService.EXPANSION_NESTED_CONTAINS_PATH, system, version, code, issues);
+    }
+
+    private static void expect(JsonParser parser, JsonToken actual, JsonToken expected) throws JsonParseException {
+        if (actual != expected) {
+            throw new JsonParseException(parser, "Expected " + expected + " but found " + actual);
+        }
+    }
+
+    /**
+     * What the stream revealed about the Task, and the issues for each contained ValueSet.
+     * Only failures are held, never the codes that passed.
+     */
+    public static class StreamingCheckResult {
+        private String resourceType;
+        private String instantiatesCanonical;
+        private String focusReference;
+        private final List<String> containedValueSetIds = new ArrayList<>();
+        private final List<List<OperationOutcomeIssueComponent>> containedValueSetIssues = new ArrayList<>();
+
+        public String getResourceType() {
+            return resourceType;
+        }
+
+        public String getInstantiatesCanonical() {
+            return instantiatesCanonical;
+        }
+
+        public String getFocusReference() {
+            return focusReference;
+        }
+
+        public String getFocusContainedId() {
+            if (focusReference != null && focusReference.startsWith("#")) {
+                return focusReference.substring(1);
+            }
+            return null;
+        }
+
+        void addContainedValueSet(String id, List<OperationOutcomeIssueComponent> issues) {
+            containedValueSetIds.add(id);
+            containedValueSetIssues.add(issues);
+        }
+
+        /**
+         * Issues for the contained ValueSet the focus points at, or null when there is no such ValueSet.
+         */
+        public List<OperationOutcomeIssueComponent> getFocusIssues() {
+            String focusId = getFocusContainedId();
+            int index = (focusId == null) ? -1 : containedValueSetIds.indexOf(focusId);
+            return (index < 0) ? null : containedValueSetIssues.get(index);
+        }
+    }
+}
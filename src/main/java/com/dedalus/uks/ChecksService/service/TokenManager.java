@@ -0,0 +1,232 @@
+package com.dedalus.uks.ChecksService.service;
+
+import com.dedalus.uks.ChecksService.config.ChecksConfig;
+import com.dedalus.uks.ChecksService.config.ChecksConfig.IFhirRestServer;
+import com.dedalus.uks.ChecksService.config.ThreadingConfig;
+import com.dedalus.uks.ChecksService.exception.TokenUnavailableException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Service;
+import org.springframework.web.client.RestTemplate;
+
+import jakarta.annotation.PreDestroy;
+
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Client credentials tokens for the upstream servers, one per (authentication endpoint, client id).
+ *
+ * Reads are a single volatile load of an immutable token. Tokens are renewed in the background
+ * ahead of expiry, so request threads only wait on the auth server when there is no usable
+ * token at all, e.g. on the very first call when warmup is off. Concurrent callers in that
+ * situation share one in-flight request instead of each calling the auth server.
+ *
+ * The token requests run on the outbound executor, the scheduler only starts them, so a slow
+ * authentication endpoint holds up its own sources and no others.
+ */
+@Service
+@Slf4j
+public class TokenManager {
+
+    private final ChecksConfig checksConfig;
+    private final RestTemplate restTemplate;
+    private final CheckMetrics checkMetrics;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final Map<String, TokenSource> sources = new ConcurrentHashMap<>();
+    private final Executor refreshExecutor;
+    private final TaskScheduler scheduler;
+
+    @Autowired
+    public TokenManager(ChecksConfig checksConfig, RestTemplate restTemplate, CheckMetrics checkMetrics,
+            @Qualifier(ThreadingConfig.OUTBOUND_EXECUTOR) Executor refreshExecutor, @Qualifier(ThreadingConfig.SCHEDULER) TaskScheduler scheduler) {
+        this.checksConfig = checksConfig;
+        this.restTemplate = restTemplate;
+        this.checkMetrics = checkMetrics;
+        this.refreshExecutor = refreshExecutor;
+        this.scheduler = scheduler;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmup() {
+        if (!checksConfig.getTokens().isWarmup()) {
+            return;
+        }
+        for (IFhirRestServer server : new IFhirRestServer[] { checksConfig.getFhirServer(), checksConfig.getTerminologyServer() }) {
+            if (server != null && server.getAuthenticationEndpoint() != null) {
+                // Fetched on the outbound executor, startup does not wait on the auth server
+                refresh(source(server));
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        for (TokenSource source : sources.values()) {
+            synchronized (source) {
+                if (source.scheduled != null) {
+                    source.scheduled.cancel(false);
+                }
+            }
+        }
+    }
+
+    public String getToken(IFhirRestServer server) {
+        TokenSource source = source(server);
+        Token token = source.token;
+        long now = System.currentTimeMillis();
+        if (token != null && now < token.expiresAt) {
+            if (now >= token.refreshAt && now >= source.retryAt) {
+                // The scheduled refresh is late, start it now without waiting for it
+                refresh(source);
+            }
+            return token.value;
+        }
+
+        log.info("No valid token for clientId {} at {}, waiting for refresh", source.clientId, source.tokenEndpoint);
+        Timer.Sample wait = checkMetrics.startTimer();
+        try {
+            return refresh(source).join().value;
+        } catch (CompletionException e) {
+            throw new TokenUnavailableException("Error fetching token " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            checkMetrics.recordTokenWait(wait, source.clientId);
+        }
+    }
+
+    private TokenSource source(IFhirRestServer server) {
+        String key = server.getAuthenticationEndpoint() + "|" + server.getClientId();
+        return sources.computeIfAbsent(key, k -> new TokenSource(server.getAuthenticationEndpoint(), server.getClientId(), server.getClientSecret()));
+    }
+
+    // Single flight, whoever comes first starts the request and everyone else gets the same future
+    private CompletableFuture<Token> refresh(TokenSource source) {
+        CompletableFuture<Token> future = new CompletableFuture<>();
+        CompletableFuture<Token> inFlight = source.inFlight.compareAndExchange(null, future);
+        if (inFlight != null) {
+            return inFlight;
+        }
+
+        try {
+            refreshExecutor.execute(() -> fetchInto(source, future));
+        } catch (RuntimeException e) {
+            // The executor is shutting down or refused the task, nobody else will complete the future
+            source.inFlight.set(null);
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private void fetchInto(TokenSource source, CompletableFuture<Token> future) {
+        Timer.Sample sample = checkMetrics.startTimer();
+        try {
+            Token token = fetch(source);
+            checkMetrics.recordTokenRefresh(sample, source.clientId, true);
+            source.token = token;
+            source.inFlight.set(null);
+            future.complete(token);
+            scheduleRefresh(source, Math.max(0, token.refreshAt - System.currentTimeMillis()));
+        } catch (Exception e) {
+            checkMetrics.recordTokenRefresh(sample, source.clientId, false);
+            log.warn("Token refresh for clientId {} at {} failed: {}", source.clientId, source.tokenEndpoint, e.getMessage());
+            long retryDelay = checksConfig.getTokens().getRetryDelaySeconds() * 1000;
+            source.retryAt = System.currentTimeMillis() + retryDelay;
+            source.inFlight.set(null);
+            future.completeExceptionally(e);
+            scheduleRefresh(source, retryDelay);
+        }
+    }
+
+    // The scheduler only starts the next refresh, which runs on the outbound executor like any other
+    private void scheduleRefresh(TokenSource source, long delayMillis) {
+        synchronized (source) {
+            if (source.scheduled != null) {
+                source.scheduled.cancel(false);
+            }
+            source.scheduled = scheduler.schedule(() -> refresh(source), Instant.now().plusMillis(delayMillis));
+        }
+    }
+
+    private Token fetch(TokenSource source) throws Exception {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_FORM_URLENCODED);
+
+        // Prepare the body for the token request
+        String body = String.format("grant_type=client_credentials&client_id=%s&client_secret=%s", source.clientId, source.clientSecret);
+        HttpEntity<String> requestEntity = new HttpEntity<>(body, headers);
+
+        log.info("Calling tokenEndpoint {} with clientId {}", source.tokenEndpoint, source.clientId);
+        long requestedAt = System.currentTimeMillis();
+        ResponseEntity<String> response = restTemplate.exchange(source.tokenEndpoint, HttpMethod.POST, requestEntity, String.class);
+        log.info("Response from tokenEndpoint {}", response.getStatusCode());
+
+        if (!response.getStatusCode().is2xxSuccessful()) {
+            throw new IllegalStateException("Failed to refresh token: " + response.getStatusCode());
+        }
+
+        // Parse the JSON response to extract the access_token
+        JsonNode jsonNode = objectMapper.readTree(response.getBody());
+        String accessToken = jsonNode.path("access_token").asText();
+        long expiresIn = jsonNode.path("expires_in").asLong() * 1000;
+        if (expiresIn <= 0) {
+            log.warn("Token response for clientId {} has no positive expires_in, assuming {} seconds", source.clientId, checksConfig.getTokens().getDefaultExpiresInSeconds());
+            expiresIn = Math.max(1, checksConfig.getTokens().getDefaultExpiresInSeconds()) * 1000;
+        }
+
+        // Expiry counts from when the request was sent, and the refresh starts well before it.
+        // A very short lifetime does not get refreshed more often than failures are retried
+        long expiresAt = requestedAt + expiresIn;
+        long refreshAhead = Math.min(checksConfig.getTokens().getRefreshAheadSeconds() * 1000, expiresIn / 2);
+        long refreshAt = Math.max(expiresAt - refreshAhead, requestedAt + Math.max(1, checksConfig.getTokens().getRetryDelaySeconds()) * 1000);
+        return new Token(accessToken, expiresAt, refreshAt);
+    }
+
+    private static final class Token {
+        private final String value;
+        private final long expiresAt;
+        private final long refreshAt;
+
+        private Token(String value, long expiresAt, long refreshAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+            this.refreshAt = refreshAt;
+        }
+    }
+
+    private static final class TokenSource {
+        private final String tokenEndpoint;
+        private final String clientId;
+        private final String clientSecret;
+        private final AtomicReference<CompletableFuture<Token>> inFlight = new AtomicReference<>();
+        private volatile Token token;
+        private volatile long retryAt;
+        // Guarded by the source, set by whichever outbound thread finished the last refresh
+        private ScheduledFuture<?> scheduled;
+
+        private TokenSource(String tokenEndpoint, String clientId, String clientSecret) {
+            this.tokenEndpoint = tokenEndpoint;
+            this.clientId = clientId;
+            this.clientSecret = clientSecret;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.dedalus.uks.ChecksService.service;
+
+import com.dedalus.uks.ChecksService.config.ChecksConfig;
+import com.dedalus.uks.ChecksService.config.ThreadingConfig;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import lombok.extern.slf4j.Slf4j;
+
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+
+/**
+ * Expands a compose-only ValueSet on the terminology server, page by page, for checks that
+ * need an expansion.
+ *
+ * The first $expand page gives the total. The remaining pages are requested with offset and
+ * count on their own executor, at most checks.expand.concurrency at a time. Once a page fails
+ * no further pages are requested. Each page is checked as soon as it arrives, into its own fork of the collector, and
+ * then dropped, so the full expansion is never held. The forks are merged in page order, so
+ * the issues come out as they would for a ValueSet sent with its expansion.
+ */
+@Service
+@Slf4j
+public class ValueSetExpander {
+
+    private final ChecksConfig checksConfig;
+    private final TokenManager tokenManager;
+    private final FhirClientProvider fhirClientProvider;
+    private final Executor expandExecutor;
+
+    @Autowired
+    public ValueSetExpander(ChecksConfig checksConfig, TokenManager tokenManager, FhirClientProvider fhirClientProvider, @Qualifier(ThreadingConfig.EXPAND_EXECUTOR) Executor expandExecutor) {
+        this.checksConfig = checksConfig;
+        this.tokenManager = tokenManager;
+        this.fhirClientProvider = fhirClientProvider;
+        this.expandExecutor = expandExecutor;
+    }
+
+    public boolean isEnabled() {
+        return checksConfig.getExpand().isEnabled();
+    }
+
+    /**
+     * Whether a check needing the expansion has to get it from the terminology server. HAPI
+     * creates an empty expansion on access, hasExpansion tells whether one was sent.
+     */
+    public boolean needsExpansion(ValueSet valueSet) {
+        return isEnabled() && !valueSet.hasExpansion() && valueSet.hasCompose();
+    }
+
+    /**
+     * Expands the ValueSet and runs pageCheck over the contains of every page. A page that
+     * cannot be fetched fails the whole expansion with an exception.
+     */
+    public void expand(ValueSet valueSet, IssueCollector collector, BiConsumer<List<ValueSet.ValueSetExpansionContainsComponent>, IssueCollector> pageCheck) {
+        ChecksConfig.Expand config = checksConfig.getExpand();
+        int pageSize = Math.max(1, config.getPageSize());
+        int maxCodes = Math.max(pageSize, config.getMaxCodes());
+
+        ChecksConfig.TerminologyServer terminologyServer = checksConfig.getTerminologyServer();
+        IGenericClient client = fhirClientProvider.getClient(terminologyServer);
+        String token = tokenManager.getToken(terminologyServer);
+
+        // Only what the server needs to expand, every page request carries its own copy
+        ValueSet definition = new ValueSet();
+        definition.setUrl(valueSet.getUrl());
+        definition.setVersion(valueSet.getVersion());
+        definition.setStatus(valueSet.hasStatus() ? valueSet.getStatus() : Enumerations.PublicationStatus.ACTIVE);
+        definition.setCompose(valueSet.getCompose().copy());
+
+        ValueSet.ValueSetExpansionComponent first = fetchPage(client, token, definition, 0, pageSize);
+        IssueCollector firstIssues = collector.fork();
+        pageCheck.accept(first.getContains(), firstIssues);
+        collector.addAll(firstIssues);
+
+        if (!first.hasTotal()) {
+            // Without a total the pages can only be walked one after the other, until one comes back
+            // empty, a short page may only mean the server caps its pages below pageSize
+            int offset = first.getContains().size();
+            boolean more = (offset > 0);
+            while (more && offset < maxCodes && !collector.isStopped()) {
+                int count = Math.min(pageSize, maxCodes - offset);
+                ValueSet.ValueSetExpansionComponent page = fetchPage(client, token, definition, offset, count);
+                int received = page.getContains().size();
+                offset += received;
+                more = (received > 0);
+                IssueCollector pageIssues = collector.fork();
+                pageCheck.accept(page.getContains(), pageIssues);
+                collector.addAll(pageIssues);
+            }
+            if (more && offset >= maxCodes) {
+                collector.addNotice("Only the first " + maxCodes + " codes of the expansion were checked, see checks.expand.maxCodes.");
+            }
+            return;
+        }
+
+        int total = first.getTotal();
+        int end = Math.min(total, maxCodes);
+        if (first.getContains().isEmpty()) {
+            return;
+        }
+        // A server that caps its pages below pageSize sets the page size for the rest
+        int step = Math.min(pageSize, first.getContains().size());
+        log.info("Expanding " + total + " codes in pages of " + step);
+
+        Semaphore inFlight = new Semaphore(Math.max(1, config.getConcurrency()));
+        // Set by the first page to fail, a running fetch cannot be cancelled so no more are started instead
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<CompletableFuture<IssueCollector>> pages = new ArrayList<>();
+        try {
+            for (int offset = first.getContains().size(); offset < end && !collector.isStopped() && failure.get() == null; offset += step) {
+                inFlight.acquire();
+                if (failure.get() != null) {
+                    inFlight.release();
+                    break;
+                }
+                int pageOffset = offset;
+                int count = Math.min(step, end - offset);
+                pages.add(CompletableFuture
+                    .supplyAsync(() -> fetchPage(client, token, definition, pageOffset, count), expandExecutor)
+                    .thenApply(page -> {
+                        IssueCollector pageIssues = collector.fork();
+                        pageCheck.accept(page.getContains(), pageIssues);
+                        if (page.getContains().size() < count) {
+                            pageIssues.addNotice("The terminology server returned " + page.getContains().size() + " of " + count + " codes at offset " + pageOffset + " of the expansion.");
+                        }
+                        return pageIssues;
+                    })
+                    .whenComplete((pageIssues, pageFailure) -> {
+                        if (pageFailure != null) {
+                            failure.compareAndSet(null, pageFailure);
+                        }
+                        inFlight.release();
+                    }));
+            }
+            for (CompletableFuture<IssueCollector> page : pages) {
+                collector.addAll(page.join());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pages.forEach(page -> page.cancel(true));
+            throw new IllegalStateException("Interrupted while expanding the ValueSet", e);
+        } catch (CompletionException e) {
+            pages.forEach(page -> page.cancel(true));
+            throw (e.getCause() instanceof RuntimeException) ? (RuntimeException) e.getCause() : e;
+        }
+
+        if (total > maxCodes) {
+            collector.addNotice("Only the first " + maxCodes + " of " + total + " codes of the expansion were checked, see checks.expand.maxCodes.");
+        }
+    }
+
+    private ValueSet.ValueSetExpansionComponent fetchPage(IGenericClient client, String token, ValueSet definition, int offset, int count) {
+        Parameters parameters = new Parameters();
+        parameters.addParameter().setName("valueSet").setResource(definition.copy());
+        parameters.addParameter().setName("offset").setValue(new IntegerType(offset));
+        parameters.addParameter().setName("count").setValue(new IntegerType(count));
+
+        ValueSet expanded;
+        try {
+            expanded = client
+                .operation()
+                .onType(ValueSet.class)
+                .named("$expand")
+                .withParameters(parameters)
+                .returnResourceType(ValueSet.class)
+                .withAdditionalHeader("Authorization", "Bearer " + token)
+                .execute();
+        } catch (Exception e) {
+            log.error("$expand of " + count + " codes at offset " + offset + " failed: " + e.getMessage());
+            throw new RuntimeException("$expand at offset " + offset + " failed: " + e.getMessage(), e);
+        }
+        return expanded.getExpansion();
+    }
+}
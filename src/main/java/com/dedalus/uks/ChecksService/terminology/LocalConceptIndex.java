@@ -0,0 +1,178 @@
+package com.dedalus.uks.ChecksService.terminology;
+
+import com.dedalus.uks.ChecksService.config.ChecksConfig;
+import com.dedalus.uks.ChecksService.utils.Utilities;
+
+import lombok.extern.slf4j.Slf4j;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import jakarta.annotation.PostConstruct;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Read-only SNOMED CT concept index, memory-mapped from the file built by {@link Rf2SnapshotImporter}.
+ *
+ * Startup only maps the file, nothing is copied onto the heap, so replicas on the same node
+ * share one copy in the page cache. Lookups are a binary search over fixed size records.
+ *
+ * Layout, big-endian:
+ * <pre>
+ * header (32 bytes): magic, format version, record size, record count, build time
+ * record (32 bytes): conceptId (8), moduleId (8), effectiveTime yyyymmdd (4), flags (4),
+ *                    active descriptions (4), active IS-A parents (4)
+ * </pre>
+ */
+@Component
+@Slf4j
+public class LocalConceptIndex {
+
+    static final long MAGIC = 0x5343544944583031L; // "SCTIDX01"
+    static final int FORMAT_VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int RECORD_SIZE = 32;
+
+    public static final int FLAG_ACTIVE = 1;
+    public static final int FLAG_FULLY_DEFINED = 2;
+
+    private static final int MODULE_OFFSET = 8;
+    private static final int EFFECTIVE_TIME_OFFSET = 16;
+    private static final int FLAGS_OFFSET = 20;
+    private static final int DESCRIPTIONS_OFFSET = 24;
+    private static final int PARENTS_OFFSET = 28;
+
+    private final ChecksConfig checksConfig;
+
+    // Absolute reads only, which never touch the buffer position and so are safe to share
+    private volatile MappedByteBuffer records;
+    private volatile int size;
+
+    @Autowired
+    public LocalConceptIndex(ChecksConfig checksConfig) {
+        this.checksConfig = checksConfig;
+    }
+
+    @PostConstruct
+    public void open() throws IOException {
+        ChecksConfig.LocalIndex config = checksConfig.getLocalIndex();
+        if (!config.isEnabled()) {
+            return;
+        }
+        if (config.getIndexFile() == null) {
+            throw new IllegalStateException("checks.localIndex.indexFile must be set when the local index is enabled");
+        }
+
+        Path indexFile = Paths.get(config.getIndexFile());
+        if (config.getRf2SnapshotDirectory() != null && (config.isRebuild() || !Files.exists(indexFile))) {
+            new Rf2SnapshotImporter().importSnapshot(Paths.get(config.getRf2SnapshotDirectory()), indexFile);
+        }
+        map(indexFile);
+    }
+
+    void map(Path indexFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            if (fileSize > Integer.MAX_VALUE) {
+                throw new IOException("Index file " + indexFile + " is too large to map, " + fileSize + " bytes");
+            }
+            // The mapping stays valid after the channel is closed
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+
+            if (fileSize < HEADER_SIZE || buffer.getLong(0) != MAGIC) {
+                throw new IOException(indexFile + " is not a concept index file");
+            }
+            if (buffer.getInt(8) != FORMAT_VERSION || buffer.getInt(12) != RECORD_SIZE) {
+                throw new IOException(indexFile + " has an unsupported format version " + buffer.getInt(8));
+            }
+            long count = buffer.getLong(16);
+            if (HEADER_SIZE + count * RECORD_SIZE != fileSize) {
+                throw new IOException(indexFile + " is truncated, expected " + count + " records");
+            }
+
+            this.records = buffer;
+            this.size = (int) count;
+            log.info("Mapped concept index " + indexFile + " with " + count + " concepts");
+        }
+    }
+
+    public boolean isAvailable() {
+        return records != null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Position of the concept in the index, or -1 when it is not there.
+     */
+    public int indexOf(long conceptId) {
+        MappedByteBuffer buffer = records;
+        if (buffer == null) {
+            return -1;
+        }
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long id = buffer.getLong(HEADER_SIZE + mid * RECORD_SIZE);
+            if (id < conceptId) {
+                low = mid + 1;
+            } else if (id > conceptId) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Position of the concept given as a code, or -1 when the code is not a number or not in the index.
+     */
+    public int indexOf(CharSequence code) {
+        long conceptId = Utilities.parseSctId(code);
+        // An SCTID never has a leading zero, such a code must not match the number it parses to
+        return (conceptId <= 0 || code.charAt(0) == '0') ? -1 : indexOf(conceptId);
+    }
+
+    public boolean isActive(int index) {
+        return (flags(index) & FLAG_ACTIVE) != 0;
+    }
+
+    public boolean isFullyDefined(int index) {
+        return (flags(index) & FLAG_FULLY_DEFINED) != 0;
+    }
+
+    public long getConceptId(int index) {
+        return records.getLong(HEADER_SIZE + index * RECORD_SIZE);
+    }
+
+    public long getModuleId(int index) {
+        return records.getLong(HEADER_SIZE + index * RECORD_SIZE + MODULE_OFFSET);
+    }
+
+    public int getEffectiveTime(int index) {
+        return records.getInt(HEADER_SIZE + index * RECORD_SIZE + EFFECTIVE_TIME_OFFSET);
+    }
+
+    public int getActiveDescriptionCount(int index) {
+        return records.getInt(HEADER_SIZE + index * RECORD_SIZE + DESCRIPTIONS_OFFSET);
+    }
+
+    public int getActiveParentCount(int index) {
+        return records.getInt(HEADER_SIZE + index * RECORD_SIZE + PARENTS_OFFSET);
+    }
+
+    private int flags(int index) {
+        return records.getInt(HEADER_SIZE + index * RECORD_SIZE + FLAGS_OFFSET);
+    }
+}
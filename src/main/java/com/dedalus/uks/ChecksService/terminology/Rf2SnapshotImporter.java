@@ -0,0 +1,284 @@
+package com.dedalus.uks.ChecksService.terminology;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Builds the binary concept index read by {@link LocalConceptIndex} from an RF2 snapshot.
+ *
+ * The concept file gives the records, the description and inferred relationship files add the
+ * number of active descriptions and active IS-A parents of each concept. A concept that is in
+ * more than one concept file, e.g. in an edition and an extension of it, keeps its row with the
+ * latest effectiveTime. Records are written sorted by concept id, see LocalConceptIndex for
+ * the layout. The index is written to a temporary file first and moved into place, so a
+ * running reader never sees half a file.
+ *
+ * Can also be run on its own: Rf2SnapshotImporter &lt;rf2 snapshot directory&gt; &lt;index file&gt;
+ */
+@Slf4j
+public class Rf2SnapshotImporter {
+
+    static final String IS_A_TYPE_ID = "116680003";
+    static final String FULLY_DEFINED_ID = "900000000000073002";
+
+    private static final int WRITE_BUFFER_RECORDS = 8192;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: Rf2SnapshotImporter <rf2 snapshot directory> <index file>");
+            System.exit(2);
+        }
+        new Rf2SnapshotImporter().importSnapshot(Paths.get(args[0]), Paths.get(args[1]));
+    }
+
+    /**
+     * Imports the snapshot under rf2Directory, searching it recursively for the sct2_Concept,
+     * sct2_Description and sct2_Relationship snapshot files. Returns the number of concepts.
+     */
+    public int importSnapshot(Path rf2Directory, Path indexFile) throws IOException {
+        long started = System.currentTimeMillis();
+
+        List<Path> conceptFiles = findFiles(rf2Directory, "sct2_Concept_Snapshot");
+        if (conceptFiles.isEmpty()) {
+            throw new IOException("No sct2_Concept_Snapshot file found under " + rf2Directory);
+        }
+
+        ConceptTable concepts = new ConceptTable();
+        for (Path conceptFile : conceptFiles) {
+            readConcepts(conceptFile, concepts);
+        }
+        concepts.sort();
+
+        for (Path descriptionFile : findFiles(rf2Directory, "sct2_Description_Snapshot")) {
+            readDescriptions(descriptionFile, concepts);
+        }
+        for (Path relationshipFile : findFiles(rf2Directory, "sct2_Relationship_Snapshot")) {
+            readRelationships(relationshipFile, concepts);
+        }
+
+        write(concepts, indexFile);
+        log.info("Imported " + concepts.size + " concepts from " + rf2Directory + " into " + indexFile + " in " + (System.currentTimeMillis() - started) + "ms");
+        return concepts.size;
+    }
+
+    private static List<Path> findFiles(Path rf2Directory, String prefix) throws IOException {
+        try (Stream<Path> files = Files.walk(rf2Directory)) {
+            return files
+                .filter(Files::isRegularFile)
+                .filter(file -> file.getFileName().toString().startsWith(prefix))
+                .sorted()
+                .collect(Collectors.toList());
+        }
+    }
+
+    // id, effectiveTime, active, moduleId, definitionStatusId
+    private static void readConcepts(Path file, ConceptTable concepts) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            reader.readLine(); // header
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] columns = line.split("\t", -1);
+                if (columns.length < 5) {
+                    continue;
+                }
+                int flags = 0;
+                if ("1".equals(columns[2])) {
+                    flags |= LocalConceptIndex.FLAG_ACTIVE;
+                }
+                if (FULLY_DEFINED_ID.equals(columns[4])) {
+                    flags |= LocalConceptIndex.FLAG_FULLY_DEFINED;
+                }
+                concepts.add(Long.parseLong(columns[0]), Long.parseLong(columns[3]), Integer.parseInt(columns[1]), flags);
+            }
+        }
+    }
+
+    // id, effectiveTime, active, moduleId, conceptId, languageCode, typeId, term, caseSignificanceId
+    private static void readDescriptions(Path file, ConceptTable concepts) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            reader.readLine(); // header
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] columns = line.split("\t", 6);
+                if (columns.length < 5 || !"1".equals(columns[2])) {
+                    continue;
+                }
+                int index = concepts.indexOf(Long.parseLong(columns[4]));
+                if (index >= 0) {
+                    concepts.activeDescriptions[index]++;
+                }
+            }
+        }
+    }
+
+    // id, effectiveTime, active, moduleId, sourceId, destinationId, relationshipGroup, typeId, characteristicTypeId, modifierId
+    private static void readRelationships(Path file, ConceptTable concepts) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            reader.readLine(); // header
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] columns = line.split("\t", -1);
+                if (columns.length < 8 || !"1".equals(columns[2]) || !IS_A_TYPE_ID.equals(columns[7])) {
+                    continue;
+                }
+                int index = concepts.indexOf(Long.parseLong(columns[4]));
+                if (index >= 0) {
+                    concepts.activeParents[index]++;
+                }
+            }
+        }
+    }
+
+    private static void write(ConceptTable concepts, Path indexFile) throws IOException {
+        Path parent = indexFile.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Path temporary = Files.createTempFile(parent, indexFile.getFileName().toString(), ".tmp");
+
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(LocalConceptIndex.HEADER_SIZE);
+            header.putLong(LocalConceptIndex.MAGIC);
+            header.putInt(LocalConceptIndex.FORMAT_VERSION);
+            header.putInt(LocalConceptIndex.RECORD_SIZE);
+            header.putLong(concepts.size);
+            header.putLong(System.currentTimeMillis());
+            header.flip();
+            writeFully(channel, header);
+
+            ByteBuffer records = ByteBuffer.allocate(LocalConceptIndex.RECORD_SIZE * WRITE_BUFFER_RECORDS);
+            for (int i = 0; i < concepts.size; i++) {
+                records.putLong(concepts.ids[i]);
+                records.putLong(concepts.modules[i]);
+                records.putInt(concepts.effectiveTimes[i]);
+                records.putInt(concepts.flags[i]);
+                records.putInt(concepts.activeDescriptions[i]);
+                records.putInt(concepts.activeParents[i]);
+                if (!records.hasRemaining()) {
+                    records.flip();
+                    writeFully(channel, records);
+                    records.clear();
+                }
+            }
+            records.flip();
+            writeFully(channel, records);
+            channel.force(true);
+        } catch (IOException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+
+        Files.move(temporary, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * The concepts as parallel primitive arrays, sorted by id once all concepts are read.
+     */
+    private static class ConceptTable {
+        private long[] ids = new long[1 << 16];
+        private long[] modules = new long[1 << 16];
+        private int[] effectiveTimes = new int[1 << 16];
+        private int[] flags = new int[1 << 16];
+        private int[] activeDescriptions;
+        private int[] activeParents;
+        private int size;
+
+        void add(long id, long module, int effectiveTime, int flag) {
+            if (size == ids.length) {
+                int capacity = ids.length * 2;
+                ids = Arrays.copyOf(ids, capacity);
+                modules = Arrays.copyOf(modules, capacity);
+                effectiveTimes = Arrays.copyOf(effectiveTimes, capacity);
+                flags = Arrays.copyOf(flags, capacity);
+            }
+            ids[size] = id;
+            modules[size] = module;
+            effectiveTimes[size] = effectiveTime;
+            flags[size] = flag;
+            size++;
+        }
+
+        // Once ids are unique each record's new position is where its id lands in the sorted ids
+        void sort() {
+            long[] sortedIds = Arrays.copyOf(ids, size);
+            Arrays.sort(sortedIds);
+            Map<Long, Integer> latest = new HashMap<>();
+            for (int i = 1; i < size; i++) {
+                if (sortedIds[i] == sortedIds[i - 1]) {
+                    latest.put(sortedIds[i], -1);
+                }
+            }
+            if (!latest.isEmpty()) {
+                keepLatest(latest);
+                sortedIds = Arrays.copyOf(ids, size);
+                Arrays.sort(sortedIds);
+            }
+
+            long[] sortedModules = new long[size];
+            int[] sortedEffectiveTimes = new int[size];
+            int[] sortedFlags = new int[size];
+            for (int i = 0; i < size; i++) {
+                int position = Arrays.binarySearch(sortedIds, ids[i]);
+                sortedModules[position] = modules[i];
+                sortedEffectiveTimes[position] = effectiveTimes[i];
+                sortedFlags[position] = flags[i];
+            }
+            ids = sortedIds;
+            modules = sortedModules;
+            effectiveTimes = sortedEffectiveTimes;
+            flags = sortedFlags;
+            activeDescriptions = new int[size];
+            activeParents = new int[size];
+        }
+
+        // Drops all but the latest row of each repeated id, a later file wins a tie
+        private void keepLatest(Map<Long, Integer> latest) {
+            for (int i = 0; i < size; i++) {
+                Integer best = latest.get(ids[i]);
+                if (best != null && (best < 0 || effectiveTimes[i] >= effectiveTimes[best])) {
+                    latest.put(ids[i], i);
+                }
+            }
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                Integer best = latest.get(ids[i]);
+                if (best == null || best == i) {
+                    ids[kept] = ids[i];
+                    modules[kept] = modules[i];
+                    effectiveTimes[kept] = effectiveTimes[i];
+                    flags[kept] = flags[i];
+                    kept++;
+                }
+            }
+            log.info("Kept the latest of " + (size - kept + latest.size()) + " rows for " + latest.size() + " concepts found in more than one concept file");
+            size = kept;
+        }
+
+        int indexOf(long id) {
+            int index = Arrays.binarySearch(ids, 0, size, id);
+            return (index < 0) ? -1 : index;
+        }
+    }
+}
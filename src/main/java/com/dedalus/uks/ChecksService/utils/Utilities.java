@@ -20,6 +20,20 @@ public static String ISSUE_DETAIL_SYSTEM_URI = "http://vsmt.dedalus.eu/issue-det
         return Arrays.stream(array)
                  .anyMatch(s -> s.equalsIgnoreCase(target));
     }
-}
-
 
+    // SCTID as a number, or -1 when the code is not all digits or longer than an SCTID can be
+    public static long parseSctId(CharSequence code) {
+        if (code == null || code.length() == 0 || code.length() > 18) {
+            return -1;
+        }
+        long sctId = 0;
+        for (int i = 0; i < code.length(); i++) {
+            char c = code.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            sctId = sctId * 10 + (c - '0');
+        }
+        return sctId;
+    }
+}
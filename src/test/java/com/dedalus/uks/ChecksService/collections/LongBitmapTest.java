@@ -0,0 +1,50 @@
+package com.dedalus.uks.ChecksService.collections;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LongBitmapTest {
+
+    @Test
+    void behavesLikeHashSetAcrossSparseAndDenseChunks() {
+        Random random = new Random(99);
+        LongBitmap bitmap = new LongBitmap();
+        Set<Long> expected = new HashSet<>();
+        // A dense namespace turns its chunks into bitsets, the scattered ids stay as arrays
+        long namespace = 1000000L * 1_000_000_000L;
+        for (int i = 0; i < 30_000; i++) {
+            long value = (i % 2 == 0) ? namespace + random.nextInt(100_000) : random.nextLong() >>> 4;
+            assertEquals(expected.add(value), bitmap.add(value), "add " + value);
+        }
+        assertEquals(expected.size(), bitmap.cardinality());
+        for (long value : expected) {
+            assertTrue(bitmap.contains(value), "contains " + value);
+        }
+        for (int i = 0; i < 30_000; i++) {
+            long value = namespace + random.nextInt(200_000);
+            assertEquals(expected.contains(value), bitmap.contains(value), "contains " + value);
+        }
+    }
+
+    @Test
+    void keepsEveryValueWhenAChunkTurnsIntoABitset() {
+        LongBitmap bitmap = new LongBitmap();
+        // 4096 values fit the array, the next one converts the chunk
+        for (long value = 0; value < 2 * 4097; value += 2) {
+            assertTrue(bitmap.add(value));
+        }
+        assertEquals(4097, bitmap.cardinality());
+        for (long value = 0; value < 2 * 4097; value++) {
+            assertEquals(value % 2 == 0, bitmap.contains(value), "contains " + value);
+        }
+        assertFalse(bitmap.add(0));
+        assertFalse(bitmap.contains(65536));
+    }
+}
@@ -0,0 +1,69 @@
+package com.dedalus.uks.ChecksService.collections;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LongHashSetTest {
+
+    @Test
+    void behavesLikeHashSetOnRandomData() {
+        Random random = new Random(12345);
+        for (int round = 0; round < 20; round++) {
+            LongHashSet set = new LongHashSet(random.nextInt(64));
+            Set<Long> expected = new HashSet<>();
+            // A narrow range gives plenty of repeats, a wide one plenty of probing
+            long range = (round % 2 == 0) ? 5_000 : Long.MAX_VALUE;
+            for (int i = 0; i < 20_000; i++) {
+                long value = (range == Long.MAX_VALUE) ? random.nextLong() : random.nextInt((int) range) - 100;
+                assertEquals(expected.add(value), set.add(value), "add " + value);
+            }
+            assertEquals(expected.size(), set.size());
+            for (long value : expected) {
+                assertTrue(set.contains(value), "contains " + value);
+            }
+            for (int i = 0; i < 20_000; i++) {
+                long value = random.nextLong();
+                assertEquals(expected.contains(value), set.contains(value), "contains " + value);
+            }
+        }
+    }
+
+    @Test
+    void holdsSctIdsWithTheSameLowDigits() {
+        // Same partition and check digit, only the item identifier differs
+        LongHashSet set = new LongHashSet();
+        for (long item = 1; item <= 100_000; item++) {
+            assertTrue(set.add(item * 1000 + 9));
+        }
+        assertEquals(100_000, set.size());
+        for (long item = 1; item <= 100_000; item++) {
+            assertTrue(set.contains(item * 1000 + 9));
+            assertFalse(set.contains(item * 1000 + 8));
+        }
+    }
+
+    @Test
+    void tracksZeroSeparately() {
+        LongHashSet set = new LongHashSet();
+        assertTrue(set.isEmpty());
+        assertFalse(set.contains(0));
+        assertTrue(set.add(0));
+        assertFalse(set.add(0));
+        assertTrue(set.contains(0));
+        assertEquals(1, set.size());
+        assertFalse(set.isEmpty());
+    }
+
+    @Test
+    void rejectsImpossibleSizes() {
+        assertThrows(IllegalArgumentException.class, () -> new LongHashSet(Integer.MAX_VALUE));
+    }
+}
@@ -0,0 +1,56 @@
+package com.dedalus.uks.ChecksService.collections;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LongIntHashMapTest {
+
+    @Test
+    void behavesLikeHashMapOnRandomData() {
+        Random random = new Random(777);
+        LongIntHashMap map = new LongIntHashMap(4);
+        Map<Long, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 50_000; i++) {
+            long key = (i % 3 == 0) ? random.nextLong() : random.nextInt(10_000) - 10;
+            int value = random.nextInt();
+            if (random.nextBoolean()) {
+                map.put(key, value);
+                expected.put(key, value);
+            } else {
+                Integer held = expected.putIfAbsent(key, value);
+                assertEquals((held == null) ? -1 : held, map.putIfAbsent(key, value, -1), "putIfAbsent " + key);
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<Long, Integer> entry : expected.entrySet()) {
+            assertTrue(map.containsKey(entry.getKey()));
+            assertEquals((int) entry.getValue(), map.get(entry.getKey(), -1));
+        }
+        for (int i = 0; i < 10_000; i++) {
+            long key = random.nextLong();
+            assertEquals(expected.containsKey(key), map.containsKey(key));
+        }
+        assertArrayEquals(expected.keySet().stream().mapToLong(Long::longValue).sorted().toArray(), map.toSortedKeys());
+    }
+
+    @Test
+    void tracksZeroKeySeparately() {
+        LongIntHashMap map = new LongIntHashMap();
+        assertFalse(map.containsKey(0));
+        assertEquals(-1, map.get(0, -1));
+        assertEquals(-1, map.putIfAbsent(0, 7, -1));
+        assertEquals(7, map.putIfAbsent(0, 8, -1));
+        map.put(0, 9);
+        assertEquals(9, map.get(0, -1));
+        assertEquals(1, map.size());
+        assertArrayEquals(new long[] {0}, map.toSortedKeys());
+    }
+}
@@ -0,0 +1,91 @@
+package com.dedalus.uks.ChecksService.collections;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SortedLongSetTest {
+
+    @Test
+    void sortsAndDeduplicates() {
+        SortedLongSet set = SortedLongSet.of(5, 3, 9, 3, 5, 1);
+        assertArrayEquals(new long[] {1, 3, 5, 9}, set.toArray());
+        assertEquals(4, set.size());
+        assertTrue(set.contains(9));
+        assertFalse(set.contains(4));
+        assertEquals(3, set.get(1));
+    }
+
+    @Test
+    void findsTheCeiling() {
+        SortedLongSet set = SortedLongSet.of(10, 20, 30);
+        assertEquals(0, set.ceilingIndex(5));
+        assertEquals(0, set.ceilingIndex(10));
+        assertEquals(1, set.ceilingIndex(11));
+        assertEquals(2, set.ceilingIndex(30));
+        assertEquals(3, set.ceilingIndex(31));
+        assertEquals(0, SortedLongSet.empty().ceilingIndex(1));
+    }
+
+    @Test
+    void buildsFromAHashSet() {
+        LongHashSet hashSet = new LongHashSet();
+        for (long value : new long[] {73211009, 0, 22298006, 404684003}) {
+            hashSet.add(value);
+        }
+        assertArrayEquals(new long[] {0, 22298006, 73211009, 404684003}, SortedLongSet.of(hashSet).toArray());
+    }
+
+    @Test
+    void agreesWithTreeSetOnRandomData() {
+        Random random = new Random(2024);
+        // Equal sizes take the merge, very different sizes the binary search
+        int[][] sizes = {{1000, 1000}, {10, 100_000}, {100_000, 10}, {0, 50}, {500, 0}};
+        for (int[] size : sizes) {
+            TreeSet<Long> left = randomSet(random, size[0]);
+            TreeSet<Long> right = randomSet(random, size[1]);
+            SortedLongSet a = SortedLongSet.of(toArray(left));
+            SortedLongSet b = SortedLongSet.of(toArray(right));
+
+            TreeSet<Long> intersection = new TreeSet<>(left);
+            intersection.retainAll(right);
+            TreeSet<Long> difference = new TreeSet<>(left);
+            difference.removeAll(right);
+            TreeSet<Long> union = new TreeSet<>(left);
+            union.addAll(right);
+
+            assertArrayEquals(toArray(intersection), a.intersection(b).toArray());
+            assertArrayEquals(toArray(intersection), b.intersection(a).toArray());
+            assertArrayEquals(toArray(difference), a.difference(b).toArray());
+            assertArrayEquals(toArray(union), a.union(b).toArray());
+        }
+    }
+
+    @Test
+    void sharesTheEmptySet() {
+        SortedLongSet set = SortedLongSet.of(1, 2, 3);
+        assertSame(SortedLongSet.empty(), set.difference(set));
+        assertSame(SortedLongSet.empty(), set.intersection(SortedLongSet.of(4, 5)));
+        assertTrue(SortedLongSet.of().isEmpty());
+    }
+
+    // A narrow range, so the two sets overlap a good deal
+    private static TreeSet<Long> randomSet(Random random, int size) {
+        TreeSet<Long> set = new TreeSet<>();
+        for (int i = 0; i < size; i++) {
+            set.add((long) random.nextInt(200_000) - 1000);
+        }
+        return set;
+    }
+
+    private static long[] toArray(TreeSet<Long> set) {
+        return set.stream().mapToLong(Long::longValue).toArray();
+    }
+}
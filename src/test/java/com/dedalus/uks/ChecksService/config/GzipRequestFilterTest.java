@@ -0,0 +1,91 @@
+package com.dedalus.uks.ChecksService.config;
+
+import com.dedalus.uks.ChecksService.exception.RequestTooLargeException;
+
+import jakarta.servlet.http.HttpServletRequest;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class GzipRequestFilterTest {
+
+    @Test
+    void inflatesBodyAndHidesEncoding() throws Exception {
+        byte[] body = "{\"resourceType\":\"Task\"}".getBytes(StandardCharsets.UTF_8);
+        HttpServletRequest filtered = filter(gzipRequest(body), 1024);
+
+        assertNull(filtered.getHeader(HttpHeaders.CONTENT_ENCODING));
+        assertEquals(-1, filtered.getContentLengthLong());
+        assertArrayEquals(body, filtered.getInputStream().readAllBytes());
+    }
+
+    @Test
+    void acceptsBodyOfExactlyTheLimit() throws Exception {
+        byte[] body = new byte[4096];
+        HttpServletRequest filtered = filter(gzipRequest(body), body.length);
+
+        assertArrayEquals(body, filtered.getInputStream().readAllBytes());
+    }
+
+    @Test
+    void refusesBodyThatInflatesPastTheLimit() throws Exception {
+        // 8 MB of zeros is a few KB of gzip
+        HttpServletRequest filtered = filter(gzipRequest(new byte[8 * 1024 * 1024]), 64 * 1024);
+
+        InputStream in = filtered.getInputStream();
+        assertThrows(RequestTooLargeException.class, () -> in.transferTo(OutputStream.nullOutputStream()));
+    }
+
+    @Test
+    void countsSingleByteReads() throws Exception {
+        HttpServletRequest filtered = filter(gzipRequest(new byte[11]), 10);
+
+        InputStream in = filtered.getInputStream();
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0, in.read());
+        }
+        assertThrows(RequestTooLargeException.class, in::read);
+    }
+
+    @Test
+    void passesPlainRequestsThrough() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/check");
+        request.setContent(new byte[100]);
+
+        HttpServletRequest filtered = filter(request, 10);
+        assertEquals(100, filtered.getInputStream().readAllBytes().length);
+    }
+
+    private static HttpServletRequest filter(MockHttpServletRequest request, long maxInflatedBytes) throws Exception {
+        ChecksConfig checksConfig = new ChecksConfig();
+        checksConfig.getHttp().setMaxInflatedBytes(maxInflatedBytes);
+        HttpServletRequest[] seen = new HttpServletRequest[1];
+        new GzipRequestFilter(checksConfig).doFilter(request, new MockHttpServletResponse(), (req, res) -> seen[0] = (HttpServletRequest) req);
+        return seen[0];
+    }
+
+    private static MockHttpServletRequest gzipRequest(byte[] body) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(body);
+        }
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/check");
+        request.addHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
+        request.setContent(compressed.toByteArray());
+        return request;
+    }
+}
@@ -0,0 +1,352 @@
+package com.dedalus.uks.ChecksService.service;
+
+import com.dedalus.uks.ChecksService.checks.Check;
+import com.dedalus.uks.ChecksService.checks.CheckRequirement;
+import com.dedalus.uks.ChecksService.config.ChecksConfig;
+import com.dedalus.uks.ChecksService.exception.AsyncCapacityException;
+
+import ca.uhn.fhir.context.FhirContext;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueType;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Task;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AsyncCheckServiceTest {
+
+    private final ChecksConfig checksConfig = new ChecksConfig();
+    private final ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+    private ThreadPoolTaskExecutor workers;
+    private AsyncCheckService service;
+
+    AsyncCheckServiceTest() {
+        checksConfig.getResultCache().setEnabled(false);
+        scheduler.initialize();
+    }
+
+    @AfterEach
+    void shutdown() {
+        if (service != null) {
+            service.shutdown();
+        }
+        if (workers != null) {
+            workers.shutdown();
+        }
+        scheduler.shutdown();
+    }
+
+    @Test
+    void acceptsPollsAndCompletes() throws Exception {
+        start(2, 10, 10);
+        CountDownLatch release = new CountDownLatch(1);
+        AsyncCheckService.CheckJob job = service.submit(new BlockingCheck(release), new ValueSet(), resolutionContext());
+
+        Task accepted = job.toTask();
+        assertEquals(job.getId(), accepted.getIdElement().getIdPart());
+        assertTrue(Set.of(Task.TaskStatus.ACCEPTED, Task.TaskStatus.INPROGRESS).contains(accepted.getStatus()));
+        assertEquals("ActivityDefinition/code-format", accepted.getInstantiatesCanonical());
+        assertEquals("#vs", accepted.getFocus().getReference());
+        assertFalse(accepted.hasOutput());
+        assertFalse(accepted.hasContained());
+
+        release.countDown();
+        drain();
+
+        assertSame(job, service.get(job.getId()));
+        Task completed = service.get(job.getId()).toTask();
+        assertEquals(Task.TaskStatus.COMPLETED, completed.getStatus());
+        OperationOutcome outcome = (OperationOutcome) completed.getContained().get(0);
+        assertEquals("outcome", outcome.getIdElement().getIdPart());
+        assertEquals("done", outcome.getIssueFirstRep().getDiagnostics());
+        Reference output = (Reference) completed.getOutputFirstRep().getValue();
+        assertEquals("stub", completed.getOutputFirstRep().getType().getText());
+        assertSame(outcome, output.getResource());
+
+        // Every poll gets its own copy, encoding one cannot disturb another
+        Task polledAgain = job.toTask();
+        assertNotSame(outcome, polledAgain.getContained().get(0));
+        outcome.getIssueFirstRep().setDiagnostics("changed");
+        assertEquals("done", ((OperationOutcome) polledAgain.getContained().get(0)).getIssueFirstRep().getDiagnostics());
+        assertEquals("done", ((OperationOutcome) job.toTask().getContained().get(0)).getIssueFirstRep().getDiagnostics());
+
+        // Cancelling a finished job changes nothing
+        assertSame(job, service.cancel(job.getId()));
+        assertEquals(Task.TaskStatus.COMPLETED, job.getStatus());
+    }
+
+    @Test
+    void cancelStopsARunningJob() throws Exception {
+        start(1, 10, 10);
+        BlockingCheck check = new BlockingCheck(new CountDownLatch(1));
+        AsyncCheckService.CheckJob job = service.submit(check, new ValueSet(), resolutionContext());
+        assertTrue(check.started.await(10, TimeUnit.SECONDS));
+
+        assertSame(job, service.cancel(job.getId()));
+        assertEquals(Task.TaskStatus.CANCELLED, job.getStatus());
+        drain();
+
+        // The worker saw the interrupt and failed, which does not overwrite the cancel
+        assertTrue(check.interrupted.get());
+        Task cancelled = job.toTask();
+        assertEquals(Task.TaskStatus.CANCELLED, cancelled.getStatus());
+        assertFalse(cancelled.hasContained());
+        assertFalse(cancelled.hasOutput());
+    }
+
+    @Test
+    void cancelledQueuedJobNeverRuns() throws Exception {
+        start(1, 10, 10);
+        CountDownLatch release = new CountDownLatch(1);
+        BlockingCheck running = new BlockingCheck(release);
+        BlockingCheck queued = new BlockingCheck(release);
+        service.submit(running, new ValueSet(), resolutionContext());
+        assertTrue(running.started.await(10, TimeUnit.SECONDS));
+        AsyncCheckService.CheckJob job = service.submit(queued, new ValueSet(), resolutionContext());
+
+        service.cancel(job.getId());
+        release.countDown();
+        drain();
+
+        assertEquals(1, queued.started.getCount());
+        assertEquals(Task.TaskStatus.CANCELLED, job.getStatus());
+    }
+
+    @Test
+    void unknownJobs() {
+        start(1, 10, 10);
+        assertNull(service.get("unknown"));
+        assertNull(service.cancel("unknown"));
+    }
+
+    @Test
+    void failedCheckReportsAFatalIssue() throws Exception {
+        start(1, 10, 10);
+        AsyncCheckService.CheckJob job = service.submit(new StubCheck() {
+            @Override
+            public OperationOutcome run(ValueSet valueSet, ResolutionContext resolutionContext) {
+                throw new IllegalStateException("terminology server down");
+            }
+        }, new ValueSet(), resolutionContext());
+        drain();
+
+        Task failed = job.toTask();
+        assertEquals(Task.TaskStatus.FAILED, failed.getStatus());
+        OperationOutcome outcome = (OperationOutcome) failed.getContained().get(0);
+        assertEquals(IssueSeverity.FATAL, outcome.getIssueFirstRep().getSeverity());
+        assertEquals("Check failed: terminology server down", outcome.getIssueFirstRep().getDiagnostics());
+    }
+
+    @Test
+    void refusesJobsBeyondMaxJobsUntilFinishedOnesExpire() throws Exception {
+        start(2, 10, 2);
+        checksConfig.getAsync().setResultTtlSeconds(0);
+        CountDownLatch release = new CountDownLatch(1);
+        AsyncCheckService.CheckJob first = service.submit(new BlockingCheck(release), new ValueSet(), resolutionContext());
+        service.submit(new BlockingCheck(release), new ValueSet(), resolutionContext());
+
+        // Neither has finished, so neither can expire
+        assertThrows(AsyncCapacityException.class, () -> service.submit(new BlockingCheck(release), new ValueSet(), resolutionContext()));
+
+        service.cancel(first.getId());
+        Thread.sleep(5);
+        AsyncCheckService.CheckJob third = service.submit(new BlockingCheck(release), new ValueSet(), resolutionContext());
+        assertNull(service.get(first.getId()));
+        assertNotNull(service.get(third.getId()));
+        release.countDown();
+    }
+
+    @Test
+    void refusesJobsWhenTheQueueIsFullAndGivesTheSlotBack() throws Exception {
+        start(1, 1, 3);
+        CountDownLatch release = new CountDownLatch(1);
+        BlockingCheck running = new BlockingCheck(release);
+        service.submit(running, new ValueSet(), resolutionContext());
+        assertTrue(running.started.await(10, TimeUnit.SECONDS));
+        service.submit(new BlockingCheck(release), new ValueSet(), resolutionContext());
+
+        assertThrows(AsyncCapacityException.class, () -> service.submit(new BlockingCheck(release), new ValueSet(), resolutionContext()));
+        assertThrows(AsyncCapacityException.class, () -> service.submit(new BlockingCheck(release), new ValueSet(), resolutionContext()));
+
+        // The refused jobs did not keep their slots, the third slot is still free
+        release.countDown();
+        waitForIdle();
+        service.submit(new BlockingCheck(release), new ValueSet(), resolutionContext());
+    }
+
+    @Test
+    void concurrentSubmitsNeverTakeMoreThanMaxJobs() throws Exception {
+        start(4, 1000, 50);
+        CountDownLatch release = new CountDownLatch(1);
+        int threads = 16;
+        CyclicBarrier barrier = new CyclicBarrier(threads);
+        AtomicInteger accepted = new AtomicInteger();
+        AtomicInteger refused = new AtomicInteger();
+
+        List<Thread> submitters = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread submitter = new Thread(() -> {
+                try {
+                    barrier.await();
+                    for (int i = 0; i < 10; i++) {
+                        try {
+                            service.submit(new BlockingCheck(release), new ValueSet(), resolutionContext());
+                            accepted.incrementAndGet();
+                        } catch (AsyncCapacityException e) {
+                            refused.incrementAndGet();
+                        }
+                    }
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            submitter.start();
+            submitters.add(submitter);
+        }
+        for (Thread submitter : submitters) {
+            submitter.join();
+        }
+        release.countDown();
+
+        assertEquals(50, accepted.get());
+        assertEquals(threads * 10 - 50, refused.get());
+    }
+
+    @Test
+    void cancelRacingFinishLeavesOneConsistentState() throws Exception {
+        start(8, 1000, 1000);
+        int count = 200;
+        List<AsyncCheckService.CheckJob> jobs = new ArrayList<>();
+        List<CountDownLatch> releases = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            CountDownLatch release = new CountDownLatch(1);
+            releases.add(release);
+            jobs.add(service.submit(new BlockingCheck(release), new ValueSet(), resolutionContext()));
+        }
+
+        // Each job is released and cancelled at the same moment
+        Thread releaser = new Thread(() -> releases.forEach(CountDownLatch::countDown));
+        Thread canceller = new Thread(() -> jobs.forEach(job -> service.cancel(job.getId())));
+        releaser.start();
+        canceller.start();
+        releaser.join();
+        canceller.join();
+        drain();
+
+        for (AsyncCheckService.CheckJob job : jobs) {
+            Task task = job.toTask();
+            if (task.getStatus() == Task.TaskStatus.COMPLETED) {
+                assertEquals("done", ((OperationOutcome) task.getContained().get(0)).getIssueFirstRep().getDiagnostics());
+                assertTrue(task.hasOutput());
+            } else {
+                assertEquals(Task.TaskStatus.CANCELLED, task.getStatus());
+                assertFalse(task.hasContained());
+                assertFalse(task.hasOutput());
+            }
+            // Settled, a later cancel or poll sees the same
+            service.cancel(job.getId());
+            assertEquals(task.getStatus(), job.getStatus());
+        }
+    }
+
+    private void start(int workerCount, int queueCapacity, int maxJobs) {
+        checksConfig.getAsync().setWorkers(workerCount);
+        checksConfig.getAsync().setQueueCapacity(queueCapacity);
+        checksConfig.getAsync().setMaxJobs(maxJobs);
+
+        workers = new ThreadPoolTaskExecutor();
+        workers.setThreadNamePrefix("async-check-test-");
+        workers.setCorePoolSize(workerCount);
+        workers.setMaxPoolSize(workerCount);
+        workers.setQueueCapacity(queueCapacity);
+        workers.initialize();
+
+        CheckResultCache checkResultCache = new CheckResultCache(checksConfig, FhirContext.forR4Cached());
+        CheckMetrics checkMetrics = new CheckMetrics(new SimpleMeterRegistry(), new SCTValidationService(), checkResultCache);
+        service = new AsyncCheckService(checksConfig, checkResultCache, checkMetrics, workers, scheduler);
+    }
+
+    // Waits for every submitted job to finish, the workers are gone afterwards
+    private void drain() throws InterruptedException {
+        workers.getThreadPoolExecutor().shutdown();
+        assertTrue(workers.getThreadPoolExecutor().awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    private void waitForIdle() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (workers.getActiveCount() > 0 || !workers.getThreadPoolExecutor().getQueue().isEmpty()) {
+            assertTrue(System.currentTimeMillis() < deadline, "the workers did not become idle");
+            Thread.sleep(5);
+        }
+    }
+
+    private static ResolutionContext resolutionContext() {
+        Task task = new Task();
+        task.setInstantiatesCanonical("ActivityDefinition/code-format");
+        task.setFocus(new Reference("#vs"));
+        return new ResolutionContext(null, task, null);
+    }
+
+    private abstract static class StubCheck implements Check {
+        @Override
+        public String getCode() {
+            return "stub";
+        }
+
+        @Override
+        public Set<CheckRequirement> getRequirements(ValueSet valueSet) {
+            return EnumSet.noneOf(CheckRequirement.class);
+        }
+    }
+
+    // Runs until released, or fails when interrupted by a cancel
+    private static class BlockingCheck extends StubCheck {
+        private final CountDownLatch release;
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final AtomicBoolean interrupted = new AtomicBoolean();
+
+        BlockingCheck(CountDownLatch release) {
+            this.release = release;
+        }
+
+        @Override
+        public OperationOutcome run(ValueSet valueSet, ResolutionContext resolutionContext) {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                interrupted.set(true);
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted");
+            }
+            OperationOutcome outcome = new OperationOutcome();
+            outcome.addIssue().setSeverity(IssueSeverity.INFORMATION).setCode(IssueType.INFORMATIONAL).setDiagnostics("done");
+            return outcome;
+        }
+    }
+}
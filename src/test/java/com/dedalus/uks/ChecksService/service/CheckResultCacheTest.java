@@ -0,0 +1,240 @@
+package com.dedalus.uks.ChecksService.service;
+
+import com.dedalus.uks.ChecksService.checks.Check;
+import com.dedalus.uks.ChecksService.checks.CheckOptions;
+import com.dedalus.uks.ChecksService.checks.CheckRequirement;
+import com.dedalus.uks.ChecksService.config.ChecksConfig;
+
+import ca.uhn.fhir.context.FhirContext;
+
+import org.hl7.fhir.r4.model.ActivityDefinition;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueType;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Task;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class CheckResultCacheTest {
+
+    private final ChecksConfig checksConfig = new ChecksConfig();
+    private final CheckResultCache cache;
+
+    CheckResultCacheTest() {
+        checksConfig.getResultCache().setEnabled(true);
+        cache = new CheckResultCache(checksConfig, FhirContext.forR4Cached());
+    }
+
+    @Test
+    void keyIgnoresExpansionIdentifierAndTimestamp() {
+        ValueSet first = valueSet();
+        first.getExpansion().setIdentifier("urn:uuid:1").setTimestamp(new Date(1_000_000));
+        ValueSet second = valueSet();
+        second.getExpansion().setIdentifier("urn:uuid:2").setTimestamp(new Date(2_000_000));
+        // Nor anything else outside compose and expansion
+        second.setId("other");
+        second.setName("Renamed");
+
+        ResolutionContext resolutionContext = resolutionContext("1.0", CheckOptions.UNLIMITED);
+        assertEquals(cache.key(new StubCheck("code-format"), first, resolutionContext), cache.key(new StubCheck("code-format"), second, resolutionContext));
+        // The ValueSet is left as it was
+        assertEquals("urn:uuid:2", second.getExpansion().getIdentifier());
+    }
+
+    @Test
+    void keyChangesWithWhatTheOutcomeDependsOn() {
+        Check check = new StubCheck("code-format");
+        ValueSet valueSet = valueSet();
+        String key = cache.key(check, valueSet, resolutionContext("1.0", CheckOptions.UNLIMITED));
+
+        assertEquals(64, key.length());
+        assertNotEquals(key, cache.key(check, valueSet, resolutionContext("1.0", new CheckOptions(10, 0, false, 0))));
+        assertNotEquals(key, cache.key(check, valueSet, resolutionContext("1.0", new CheckOptions(0, 0, true, 5))));
+        assertNotEquals(key, cache.key(check, valueSet, resolutionContext("1.1", CheckOptions.UNLIMITED)));
+        assertNotEquals(key, cache.key(new StubCheck("code-exists"), valueSet, resolutionContext("1.0", CheckOptions.UNLIMITED)));
+
+        ValueSet changed = valueSet();
+        changed.getExpansion().getContainsFirstRep().setCode("22298006");
+        assertNotEquals(key, cache.key(check, changed, resolutionContext("1.0", CheckOptions.UNLIMITED)));
+
+        ValueSet reordered = valueSet();
+        reordered.getExpansion().getContains().add(reordered.getExpansion().getContains().remove(0));
+        assertNotEquals(key, cache.key(check, reordered, resolutionContext("1.0", CheckOptions.UNLIMITED)));
+    }
+
+    @Test
+    void concurrentCallersRunTheCheckOnce() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger runs = new AtomicInteger();
+        Check check = new StubCheck("code-format") {
+            @Override
+            public OperationOutcome run(ValueSet valueSet, ResolutionContext resolutionContext) {
+                runs.incrementAndGet();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.run(valueSet, resolutionContext);
+            }
+        };
+        ValueSet valueSet = valueSet();
+        ResolutionContext resolutionContext = resolutionContext("1.0", CheckOptions.UNLIMITED);
+        String key = cache.key(check, valueSet, resolutionContext);
+
+        int callers = 8;
+        CyclicBarrier barrier = new CyclicBarrier(callers);
+        ExecutorService callerThreads = Executors.newFixedThreadPool(callers);
+        try {
+            List<Future<OperationOutcome>> outcomes = new ArrayList<>();
+            for (int i = 0; i < callers; i++) {
+                outcomes.add(callerThreads.submit(() -> {
+                    barrier.await();
+                    return cache.run(key, check, valueSet, resolutionContext);
+                }));
+            }
+            // Let every caller find the check in flight before it finishes
+            Thread.sleep(200);
+            release.countDown();
+
+            List<OperationOutcome> results = new ArrayList<>();
+            for (Future<OperationOutcome> outcome : outcomes) {
+                results.add(outcome.get(10, TimeUnit.SECONDS));
+            }
+            assertEquals(1, runs.get());
+            assertEquals(callers - 1, cache.getCoalesced() + cache.getHits());
+            assertEquals(1, cache.getMisses());
+            // Each caller has its own copy
+            for (OperationOutcome result : results) {
+                assertEquals("checked", result.getIssueFirstRep().getDiagnostics());
+            }
+            assertNotSame(results.get(0), results.get(1));
+        } finally {
+            callerThreads.shutdownNow();
+        }
+
+        // And later callers are served from the cache
+        assertEquals("checked", cache.run(key, check, valueSet, resolutionContext).getIssueFirstRep().getDiagnostics());
+        assertEquals(1, runs.get());
+    }
+
+    @Test
+    void cachedOutcomeIsNotChangedByItsCallers() {
+        Check check = new StubCheck("code-format");
+        ValueSet valueSet = valueSet();
+        ResolutionContext resolutionContext = resolutionContext("1.0", CheckOptions.UNLIMITED);
+        String key = cache.key(check, valueSet, resolutionContext);
+
+        cache.run(key, check, valueSet, resolutionContext).getIssueFirstRep().setDiagnostics("changed");
+        assertEquals("checked", cache.run(key, check, valueSet, resolutionContext).getIssueFirstRep().getDiagnostics());
+    }
+
+    @Test
+    void failuresAreNotCached() {
+        AtomicInteger runs = new AtomicInteger();
+        Check check = new StubCheck("code-format") {
+            @Override
+            public OperationOutcome run(ValueSet valueSet, ResolutionContext resolutionContext) {
+                if (runs.incrementAndGet() == 1) {
+                    throw new IllegalStateException("terminology server down");
+                }
+                return super.run(valueSet, resolutionContext);
+            }
+        };
+        ValueSet valueSet = valueSet();
+        ResolutionContext resolutionContext = resolutionContext("1.0", CheckOptions.UNLIMITED);
+        String key = cache.key(check, valueSet, resolutionContext);
+
+        assertThrows(IllegalStateException.class, () -> cache.run(key, check, valueSet, resolutionContext));
+        assertEquals(0, cache.size());
+        assertEquals("checked", cache.run(key, check, valueSet, resolutionContext).getIssueFirstRep().getDiagnostics());
+        assertEquals(2, runs.get());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    void remoteTerminologyChecksAreOnlyCachedWhenConfigured() {
+        Check remote = new StubCheck("code-exists", CheckRequirement.REMOTE_TERMINOLOGY);
+        Check local = new StubCheck("code-format");
+
+        assertTrue(cache.isCacheable(local, valueSet()));
+        assertFalse(cache.isCacheable(remote, valueSet()));
+        checksConfig.getResultCache().setIncludeRemoteTerminology(true);
+        assertTrue(cache.isCacheable(remote, valueSet()));
+        checksConfig.getResultCache().setEnabled(false);
+        assertFalse(cache.isCacheable(local, valueSet()));
+    }
+
+    private static ValueSet valueSet() {
+        ValueSet valueSet = new ValueSet();
+        valueSet.setUrl("http://example.org/fhir/ValueSet/cached");
+        valueSet.getCompose().addInclude().setSystem("http://snomed.info/sct").addConcept().setCode("73211009");
+        valueSet.getExpansion().addContains().setSystem("http://snomed.info/sct").setCode("73211009");
+        valueSet.getExpansion().addContains().setSystem("http://snomed.info/sct").setCode("404684003");
+        return valueSet;
+    }
+
+    private static ResolutionContext resolutionContext(String activityDefinitionVersion, CheckOptions options) {
+        Task task = new Task();
+        task.setInstantiatesCanonical("http://example.org/fhir/ActivityDefinition/check");
+        task.setFocus(new Reference("#vs"));
+        ActivityDefinition activityDefinition = new ActivityDefinition();
+        activityDefinition.setVersion(activityDefinitionVersion);
+
+        ChecksService checksService = mock(ChecksService.class);
+        when(checksService.resolveActivityDefinition(any())).thenReturn(activityDefinition);
+        when(checksService.getCheckOptions(any())).thenReturn(options);
+        return new ResolutionContext(checksService, task, null);
+    }
+
+    private static class StubCheck implements Check {
+        private final String code;
+        private final Set<CheckRequirement> requirements;
+
+        StubCheck(String code, CheckRequirement... requirements) {
+            this.code = code;
+            this.requirements = requirements.length == 0 ? EnumSet.noneOf(CheckRequirement.class) : EnumSet.of(requirements[0], requirements);
+        }
+
+        @Override
+        public String getCode() {
+            return code;
+        }
+
+        @Override
+        public Set<CheckRequirement> getRequirements(ValueSet valueSet) {
+            return requirements;
+        }
+
+        @Override
+        public OperationOutcome run(ValueSet valueSet, ResolutionContext resolutionContext) {
+            OperationOutcome outcome = new OperationOutcome();
+            outcome.addIssue().setSeverity(IssueSeverity.INFORMATION).setCode(IssueType.INFORMATIONAL).setDiagnostics("checked");
+            return outcome;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.dedalus.uks.ChecksService.service;
+
+import com.dedalus.uks.ChecksService.checks.CheckOptions;
+import com.dedalus.uks.ChecksService.config.ChecksConfig;
+import com.dedalus.uks.ChecksService.utils.Utilities;
+
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.OperationOutcome.OperationOutcomeIssueComponent;
+import org.hl7.fhir.r4.model.StringType;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChecksServiceTest {
+
+    private final ChecksConfig checksConfig = new ChecksConfig();
+    private final ChecksService checksService;
+
+    ChecksServiceTest() {
+        checksConfig.getParallel().setThreshold(20_000);
+        checksConfig.getParallel().setLeafSize(512);
+        checksConfig.getParallel().setParallelism(4);
+        ValueSetExpander valueSetExpander = new ValueSetExpander(checksConfig, null, null, Runnable::run);
+        checksService = new ChecksService(checksConfig, null, null, new SCTValidationService(), new EclConceptCache(checksConfig), null, null, valueSetExpander);
+    }
+
+    @AfterEach
+    void shutdown() {
+        checksService.shutdown();
+    }
+
+    @Test
+    void parallelPathReportsTheSerialIssuesInOrder() {
+        ValueSet valueSet = valueSet(40_000, 7);
+        List<String> serial = describe(check(valueSet, CheckOptions.UNLIMITED, false));
+        List<String> parallel = describe(check(valueSet, CheckOptions.UNLIMITED, true));
+
+        assertTrue(serial.size() > 1000, "the generated ValueSet should fail often, " + serial.size() + " issues");
+        assertEquals(serial, parallel);
+    }
+
+    @Test
+    void parallelPathKeepsTheSameIssuesWithinMaxIssues() {
+        ValueSet valueSet = valueSet(40_000, 11);
+        CheckOptions options = new CheckOptions(250, 0, false, 0);
+
+        List<String> serial = describe(check(valueSet, options, false));
+        assertEquals(251, serial.size());
+        assertEquals(serial, describe(check(valueSet, options, true)));
+    }
+
+    @Test
+    void parallelPathAggregatesAsTheSerialPathDoes() {
+        ValueSet valueSet = valueSet(40_000, 13);
+        CheckOptions options = new CheckOptions(0, 0, true, 5);
+
+        List<String> serial = describe(check(valueSet, options, false));
+        assertTrue(serial.size() > 1);
+        assertEquals(serial, describe(check(valueSet, options, true)));
+    }
+
+    private OperationOutcome check(ValueSet valueSet, CheckOptions options, boolean parallel) {
+        checksConfig.getParallel().setEnabled(parallel);
+        return checksService.checkCodeFormat(valueSet, "code-format", options);
+    }
+
+    // Everything of an issue that a client sees
+    static List<String> describe(OperationOutcome outcome) {
+        List<String> described = new ArrayList<>();
+        for (OperationOutcomeIssueComponent issue : outcome.getIssue()) {
+            List<String> expressions = new ArrayList<>();
+            for (StringType expression : issue.getExpression()) {
+                expressions.add(expression.getValue());
+            }
+            described.add(issue.getSeverity() + "|" + issue.getCode() + "|" + issue.getDetails().getCodingFirstRep().getCode() + "|" + issue.getDetails().getText() + "|" + issue.getDiagnostics() + "|" + expressions);
+        }
+        return described;
+    }
+
+    /**
+     * Random numeric codes of SCTID lengths, most of which fail the check digit or the partition,
+     * a few that are not numbers, codes of another system, nested contains and filters.
+     */
+    static ValueSet valueSet(int expansionSize, long seed) {
+        Random random = new Random(seed);
+        ValueSet valueSet = new ValueSet();
+        valueSet.setUrl("http://example.org/fhir/ValueSet/parallel");
+
+        ValueSet.ConceptSetComponent include = valueSet.getCompose().addInclude();
+        include.setSystem(Utilities.SNOMED_SYSTEM_URI);
+        for (int i = 0; i < 3000; i++) {
+            include.addConcept().setCode(code(random));
+        }
+        include.addFilter().setProperty("descendant").setOp(ValueSet.FilterOperator.ISA).setValue("73211008");
+        include.addFilter().setProperty("expression").setOp(ValueSet.FilterOperator.EQUAL).setValue("<< 404684003 |Clinical finding| : 363698007 |Finding site| = << 39057008");
+        ValueSet.ConceptSetComponent other = valueSet.getCompose().addInclude();
+        other.setSystem("http://loinc.org");
+        other.addConcept().setCode("8867-4");
+
+        ValueSet.ValueSetExpansionComponent expansion = valueSet.getExpansion();
+        for (int i = 0; i < expansionSize; i++) {
+            if (i % 1000 == 999) {
+                ValueSet.ValueSetExpansionContainsComponent group = expansion.addContains().setDisplay("Group " + i);
+                for (int j = 0; j < 5; j++) {
+                    group.addContains().setSystem(Utilities.SNOMED_SYSTEM_URI).setCode(code(random));
+                }
+            } else if (i % 97 == 0) {
+                expansion.addContains().setSystem("http://loinc.org").setCode("abc-" + i);
+            } else {
+                expansion.addContains().setSystem(Utilities.SNOMED_SYSTEM_URI).setCode(code(random)).setVersion((i % 3 == 0) ? "http://snomed.info/sct/900000000000207008" : null);
+            }
+        }
+        return valueSet;
+    }
+
+    private static String code(Random random) {
+        if (random.nextInt(500) == 0) {
+            return "x" + random.nextInt(1000);
+        }
+        int length = 6 + random.nextInt(13);
+        StringBuilder code = new StringBuilder();
+        code.append((char) ('1' + random.nextInt(9)));
+        while (code.length() < length) {
+            code.append((char) ('0' + random.nextInt(10)));
+        }
+        return code.toString();
+    }
+}
@@ -0,0 +1,219 @@
+package com.dedalus.uks.ChecksService.service;
+
+import com.dedalus.uks.ChecksService.config.ChecksConfig;
+import com.dedalus.uks.ChecksService.service.ConceptExistenceService.ConceptToCheck;
+import com.dedalus.uks.ChecksService.service.ConceptExistenceService.ExistenceResult;
+import com.dedalus.uks.ChecksService.terminology.LocalConceptIndex;
+import com.dedalus.uks.ChecksService.utils.Utilities;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.gclient.ITransaction;
+import ca.uhn.fhir.rest.gclient.ITransactionTyped;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueType;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.StringType;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class ConceptExistenceServiceTest {
+
+    private final List<ConceptToCheck> concepts = new ArrayList<>();
+    private final Bundle response = new Bundle();
+
+    @Test
+    void lookupResultsMapToActiveAndInactive() {
+        respond("73211009", "200 OK", lookupResult(false));
+        respond("22298006", "200", lookupResult(true));
+        respond("404684003", "200 OK", new Parameters());
+
+        assertResults(ExistenceResult.ACTIVE, ExistenceResult.INACTIVE, ExistenceResult.ACTIVE);
+    }
+
+    @Test
+    void notFoundIsOnlyReportedForUnknownCodes() {
+        respond("73211009", "404 Not Found", null);
+        respond("22298006", "404", outcome(IssueType.NOTFOUND, "Unknown code 22298006"));
+        // Servers that answer 400 or 422 must name the code as not found or invalid
+        respondWithOutcome("404684003", "400 Bad Request", outcome(IssueType.NOTFOUND, "Code 404684003 not found in http://snomed.info/sct"));
+        respond("138875005", "422 Unprocessable Entity", outcome(IssueType.CODEINVALID, "Invalid code 138875005"));
+
+        assertResults(ExistenceResult.NOT_FOUND, ExistenceResult.NOT_FOUND, ExistenceResult.NOT_FOUND, ExistenceResult.NOT_FOUND);
+    }
+
+    @Test
+    void otherClientErrorsLeaveTheCodeUnchecked() {
+        // A bad version names something other than the code
+        respondWithOutcome("73211009", "400 Bad Request", outcome(IssueType.NOTFOUND, "Version http://snomed.info/sct/999/version/1 not found"));
+        // The code is named, but not as unknown
+        respond("22298006", "400 Bad Request", outcome(IssueType.INVALID, "Parameter code 22298006 is malformed"));
+        respond("404684003", "400 Bad Request", null);
+        respond("138875005", "401 Unauthorized", null);
+        respond("64572001", "429 Too Many Requests", null);
+
+        assertResults(ExistenceResult.UNCHECKED, ExistenceResult.UNCHECKED, ExistenceResult.UNCHECKED, ExistenceResult.UNCHECKED, ExistenceResult.UNCHECKED);
+    }
+
+    @Test
+    void serverErrorsAndUnexpectedAnswersLeaveTheCodeUnchecked() {
+        respond("73211009", "500 Internal Server Error", null);
+        respond("22298006", "503 Service Unavailable", outcome(IssueType.NOTFOUND, "Code 22298006 not found"));
+        respond("404684003", "200 OK", outcome(IssueType.INFORMATIONAL, "Looked up 404684003"));
+        respond("138875005", null, lookupResult(false));
+        // One entry fewer in the response than in the request
+        concepts.add(concept("64572001"));
+
+        assertResults(ExistenceResult.UNCHECKED, ExistenceResult.UNCHECKED, ExistenceResult.UNCHECKED, ExistenceResult.UNCHECKED, ExistenceResult.UNCHECKED);
+    }
+
+    @Test
+    void failedBatchLeavesEveryCodeUnchecked() {
+        concepts.add(concept("73211009"));
+        concepts.add(concept("22298006"));
+
+        ExistenceResult[] results = new ExistenceResult[concepts.size()];
+        service(request -> {
+            throw new IllegalStateException("terminology server down");
+        }, null).lookup(concepts, results);
+
+        assertEquals(Arrays.asList(ExistenceResult.UNCHECKED, ExistenceResult.UNCHECKED), Arrays.asList(results));
+    }
+
+    @Test
+    void nextVersionOfAValueSetOnlyLooksUpNewAndUncheckedCodes() {
+        ChecksConfig checksConfig = new ChecksConfig();
+        ConceptFingerprintStore fingerprintStore = new ConceptFingerprintStore(checksConfig);
+        List<String> requested = new ArrayList<>();
+        ConceptExistenceService service = service(request -> {
+            Bundle answer = new Bundle();
+            for (Bundle.BundleEntryComponent entry : request.getEntry()) {
+                String code = entry.getRequest().getUrl().replaceAll(".*[?&]code=([^&]*).*", "$1");
+                requested.add(code);
+                switch (code) {
+                    case "22298006":
+                        answer.addEntry().setResource(lookupResult(true)).getResponse().setStatus("200 OK");
+                        break;
+                    case "138875005":
+                        answer.addEntry().getResponse().setStatus("404 Not Found");
+                        break;
+                    case "64572001":
+                        answer.addEntry().getResponse().setStatus("500 Internal Server Error");
+                        break;
+                    default:
+                        answer.addEntry().setResource(lookupResult(false)).getResponse().setStatus("200 OK");
+                }
+            }
+            return answer;
+        }, fingerprintStore);
+
+        OperationOutcome first = service.checkCodeExists(valueSet("1.0", "73211009", "22298006", "138875005", "64572001"));
+        assertEquals(List.of("73211009", "22298006", "138875005", "64572001"), requested);
+        // The unchecked code is not part of the fingerprint
+        assertEquals(3, fingerprintStore.getTotalCodes());
+
+        // The unchecked code is asked again, with the one that is new in 2.0
+        requested.clear();
+        OperationOutcome second = service.checkCodeExists(valueSet("2.0", "73211009", "22298006", "138875005", "64572001", "404684003"));
+        assertEquals(List.of("64572001", "404684003"), requested);
+        assertEquals(diagnostics(first), diagnostics(second));
+        assertEquals(3, first.getIssue().size());
+    }
+
+    private void assertResults(ExistenceResult... expected) {
+        ExistenceResult[] results = new ExistenceResult[concepts.size()];
+        service(request -> response, null).lookup(concepts, results);
+        assertEquals(Arrays.asList(expected), Arrays.asList(results));
+    }
+
+    // The server answers each batch Bundle, the fingerprint store is only needed by checkCodeExists
+    private static ConceptExistenceService service(Function<Bundle, Bundle> server, ConceptFingerprintStore fingerprintStore) {
+        ChecksConfig checksConfig = new ChecksConfig();
+        checksConfig.setTerminologyServer(new ChecksConfig.TerminologyServer());
+
+        IGenericClient client = mock(IGenericClient.class);
+        ITransaction transaction = mock(ITransaction.class);
+        when(client.transaction()).thenReturn(transaction);
+        when(transaction.withBundle(any(Bundle.class))).thenAnswer(invocation -> {
+            Bundle request = invocation.getArgument(0);
+            @SuppressWarnings("unchecked")
+            ITransactionTyped<Bundle> typed = mock(ITransactionTyped.class);
+            when(typed.withAdditionalHeader(anyString(), anyString())).thenReturn(typed);
+            when(typed.execute()).thenAnswer(execution -> server.apply(request));
+            return typed;
+        });
+
+        TokenManager tokenManager = mock(TokenManager.class);
+        when(tokenManager.getToken(any())).thenReturn("token");
+        FhirClientProvider fhirClientProvider = mock(FhirClientProvider.class);
+        when(fhirClientProvider.getClient(any())).thenReturn(client);
+        LocalConceptIndex localConceptIndex = mock(LocalConceptIndex.class);
+        when(localConceptIndex.isAvailable()).thenReturn(false);
+
+        CheckMetrics checkMetrics = new CheckMetrics(new SimpleMeterRegistry(), new SCTValidationService(), new CheckResultCache(checksConfig, null));
+        return new ConceptExistenceService(checksConfig, tokenManager, fhirClientProvider, localConceptIndex, fingerprintStore, checkMetrics, Runnable::run);
+    }
+
+    private void respond(String code, String status, Resource resource) {
+        concepts.add(concept(code));
+        response.addEntry().setResource(resource).getResponse().setStatus(status);
+    }
+
+    // The OperationOutcome in Bundle.entry.response.outcome rather than Bundle.entry.resource
+    private void respondWithOutcome(String code, String status, OperationOutcome outcome) {
+        concepts.add(concept(code));
+        response.addEntry().getResponse().setStatus(status).setOutcome(outcome);
+    }
+
+    private static ConceptToCheck concept(String code) {
+        return new ConceptToCheck(Utilities.SNOMED_SYSTEM_URI, null, code, "ValueSet.expansion.contains.where(code = '" + code + "')");
+    }
+
+    private static ValueSet valueSet(String version, String... codes) {
+        ValueSet valueSet = new ValueSet();
+        valueSet.setUrl("http://example.org/fhir/ValueSet/incremental");
+        valueSet.setVersion(version);
+        for (String code : codes) {
+            valueSet.getExpansion().addContains().setSystem(Utilities.SNOMED_SYSTEM_URI).setCode(code);
+        }
+        return valueSet;
+    }
+
+    private static List<String> diagnostics(OperationOutcome outcome) {
+        List<String> diagnostics = new ArrayList<>();
+        outcome.getIssue().forEach(issue -> diagnostics.add(issue.getSeverity() + " " + issue.getDiagnostics() + " " + issue.getExpression().get(0).getValue()));
+        return diagnostics;
+    }
+
+    private static Parameters lookupResult(boolean inactive) {
+        Parameters parameters = new Parameters();
+        parameters.addParameter().setName("name").setValue(new StringType("SNOMED CT"));
+        Parameters.ParametersParameterComponent property = parameters.addParameter().setName("property");
+        property.addPart().setName("code").setValue(new CodeType("inactive"));
+        property.addPart().setName("value").setValue(new BooleanType(inactive));
+        return parameters;
+    }
+
+    private static OperationOutcome outcome(IssueType type, String diagnostics) {
+        OperationOutcome outcome = new OperationOutcome();
+        outcome.addIssue().setSeverity(IssueSeverity.ERROR).setCode(type).setDiagnostics(diagnostics);
+        return outcome;
+    }
+}
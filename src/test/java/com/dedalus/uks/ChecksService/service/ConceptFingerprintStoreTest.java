@@ -0,0 +1,161 @@
+package com.dedalus.uks.ChecksService.service;
+
+import com.dedalus.uks.ChecksService.config.ChecksConfig;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class ConceptFingerprintStoreTest {
+
+    private static final String INTERNATIONAL = "http://snomed.info/sct/900000000000207008";
+    private static final String UK = "http://snomed.info/sct/83821000000107";
+    // The largest SCTID there can be, 18 digits
+    private static final long LARGEST_SCTID = 999_999_999_999_999_999L;
+
+    private final ChecksConfig checksConfig = new ChecksConfig();
+    private final ConceptFingerprintStore store = new ConceptFingerprintStore(checksConfig);
+
+    @Test
+    void packsEachOutcomeWithItsConcept() {
+        ConceptFingerprintStore.Builder builder = new ConceptFingerprintStore.Builder();
+        // Neighbouring ids, so a packed value never reads as its neighbour's
+        builder.add(INTERNATIONAL, 73211009L, 0);
+        builder.add(INTERNATIONAL, 73211010L, 3);
+        builder.add(INTERNATIONAL, 73211012L, 1);
+        builder.add(INTERNATIONAL, LARGEST_SCTID, 2);
+        ConceptFingerprintStore.Fingerprint fingerprint = builder.build("1.0");
+
+        assertEquals(4, fingerprint.getCodeCount());
+        assertEquals("1.0", fingerprint.getValueSetVersion());
+        assertEquals(0, fingerprint.lookup(INTERNATIONAL, 73211009L));
+        assertEquals(3, fingerprint.lookup(INTERNATIONAL, 73211010L));
+        assertEquals(1, fingerprint.lookup(INTERNATIONAL, 73211012L));
+        assertEquals(2, fingerprint.lookup(INTERNATIONAL, LARGEST_SCTID));
+
+        assertEquals(-1, fingerprint.lookup(INTERNATIONAL, 73211011L));
+        assertEquals(-1, fingerprint.lookup(INTERNATIONAL, 73211008L));
+        assertEquals(-1, fingerprint.lookup(INTERNATIONAL, 73211013L));
+        assertEquals(-1, fingerprint.lookup(INTERNATIONAL, LARGEST_SCTID - 1));
+    }
+
+    @Test
+    void keepsOutcomesApartBySnomedVersion() {
+        ConceptFingerprintStore.Builder builder = new ConceptFingerprintStore.Builder();
+        builder.add(INTERNATIONAL, 22298006L, 0);
+        builder.add(UK, 22298006L, 1);
+        builder.add(null, 404684003L, 2);
+        ConceptFingerprintStore.Fingerprint fingerprint = builder.build("1.0");
+
+        assertEquals(3, fingerprint.getCodeCount());
+        assertEquals(0, fingerprint.lookup(INTERNATIONAL, 22298006L));
+        assertEquals(1, fingerprint.lookup(UK, 22298006L));
+        assertEquals(-1, fingerprint.lookup(null, 22298006L));
+        // No version and an empty one are the same
+        assertEquals(2, fingerprint.lookup(null, 404684003L));
+        assertEquals(2, fingerprint.lookup("", 404684003L));
+        assertEquals(-1, fingerprint.lookup(INTERNATIONAL, 404684003L));
+        assertEquals(-1, fingerprint.lookup("http://snomed.info/sct/999", 22298006L));
+    }
+
+    @Test
+    void carriesOutcomesForwardToTheNextVersion() {
+        ConceptFingerprintStore.Builder first = new ConceptFingerprintStore.Builder();
+        first.add(INTERNATIONAL, 73211009L, 0);
+        first.add(INTERNATIONAL, 22298006L, 1);
+        store.put("http://example.org/ValueSet/a", first.build("1.0"));
+
+        // Version 2.0 of the ValueSet drops one code and adds another, only the new one needs a lookup
+        ConceptFingerprintStore.Fingerprint previous = store.get("http://example.org/ValueSet/a");
+        assertEquals("1.0", previous.getValueSetVersion());
+        assertEquals(0, previous.lookup(INTERNATIONAL, 73211009L));
+        assertEquals(-1, previous.lookup(INTERNATIONAL, 404684003L));
+
+        ConceptFingerprintStore.Builder second = new ConceptFingerprintStore.Builder();
+        second.add(INTERNATIONAL, 73211009L, previous.lookup(INTERNATIONAL, 73211009L));
+        second.add(INTERNATIONAL, 404684003L, 2);
+        store.put("http://example.org/ValueSet/a", second.build("2.0"));
+
+        ConceptFingerprintStore.Fingerprint current = store.get("http://example.org/ValueSet/a");
+        assertEquals("2.0", current.getValueSetVersion());
+        assertEquals(0, current.lookup(INTERNATIONAL, 73211009L));
+        assertEquals(2, current.lookup(INTERNATIONAL, 404684003L));
+        assertEquals(-1, current.lookup(INTERNATIONAL, 22298006L));
+        assertEquals(2, store.getTotalCodes());
+    }
+
+    @Test
+    void expiresFingerprintsAfterTheTtl() throws Exception {
+        checksConfig.getFingerprints().setTtlSeconds(0);
+        store.put("http://example.org/ValueSet/a", fingerprint(3));
+        assertEquals(3, store.getTotalCodes());
+
+        Thread.sleep(5);
+        assertNull(store.get("http://example.org/ValueSet/a"));
+        assertEquals(0, store.getTotalCodes());
+    }
+
+    @Test
+    void keepsFingerprintsWithinTheTtl() {
+        checksConfig.getFingerprints().setTtlSeconds(3600);
+        ConceptFingerprintStore.Fingerprint fingerprint = fingerprint(3);
+        store.put("http://example.org/ValueSet/a", fingerprint);
+
+        assertSame(fingerprint, store.get("http://example.org/ValueSet/a"));
+    }
+
+    @Test
+    void dropsTheLeastRecentlyUsedValueSetsBeyondMaxCodes() {
+        checksConfig.getFingerprints().setMaxCodes(10);
+        store.put("http://example.org/ValueSet/a", fingerprint(4));
+        store.put("http://example.org/ValueSet/b", fingerprint(4));
+        // Reading a makes b the least recently used
+        assertNotNull(store.get("http://example.org/ValueSet/a"));
+
+        store.put("http://example.org/ValueSet/c", fingerprint(4));
+
+        assertNull(store.get("http://example.org/ValueSet/b"));
+        assertNotNull(store.get("http://example.org/ValueSet/a"));
+        assertNotNull(store.get("http://example.org/ValueSet/c"));
+        assertEquals(8, store.getTotalCodes());
+    }
+
+    @Test
+    void replacingAFingerprintGivesBackItsCodes() {
+        checksConfig.getFingerprints().setMaxCodes(10);
+        store.put("http://example.org/ValueSet/a", fingerprint(6));
+        store.put("http://example.org/ValueSet/b", fingerprint(4));
+        store.put("http://example.org/ValueSet/a", fingerprint(5));
+
+        // 9 codes fit, nothing was dropped
+        assertEquals(9, store.getTotalCodes());
+        assertNotNull(store.get("http://example.org/ValueSet/b"));
+    }
+
+    @Test
+    void doesNotKeepAFingerprintLargerThanTheStore() {
+        checksConfig.getFingerprints().setMaxCodes(10);
+        store.put("http://example.org/ValueSet/a", fingerprint(4));
+        store.put("http://example.org/ValueSet/b", fingerprint(11));
+
+        assertNull(store.get("http://example.org/ValueSet/b"));
+        assertNotNull(store.get("http://example.org/ValueSet/a"));
+        assertEquals(4, store.getTotalCodes());
+
+        // And the one it would have replaced is gone, it is out of date
+        store.put("http://example.org/ValueSet/a", fingerprint(11));
+        assertNull(store.get("http://example.org/ValueSet/a"));
+        assertEquals(0, store.getTotalCodes());
+    }
+
+    private static ConceptFingerprintStore.Fingerprint fingerprint(int codes) {
+        ConceptFingerprintStore.Builder builder = new ConceptFingerprintStore.Builder();
+        for (int i = 0; i < codes; i++) {
+            builder.add(INTERNATIONAL, 100_000_000L + i, i % 4);
+        }
+        return builder.build("1.0");
+    }
+}
@@ -0,0 +1,84 @@
+package com.dedalus.uks.ChecksService.service;
+
+import org.junit.jupiter.api.Test;
+import org.snomed.langauges.ecl.ECLObjectFactory;
+import org.snomed.langauges.ecl.ECLQueryBuilder;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The expected sets are what the multi-pass extraction in ChecksService returned before the
+ * visitor replaced it, less its duplicates. The expressions are those of the ECL benchmark.
+ */
+class EclConceptVisitorTest {
+
+    private static final String NESTED_REPEATED =
+        "<< 404684003 |Clinical finding| : { 363698007 |Finding site| = << 39057004 |Pulmonary valve structure|, 116676008 |Associated morphology| = << 415582006 |Stenosis| }, "
+            + "{ 363698007 |Finding site| = << 39057004 |Pulmonary valve structure|, 116676008 |Associated morphology| = << 415582006 |Stenosis| }, "
+            + "47429007 |Associated with| = (<< 404684003 |Clinical finding| : 363698007 |Finding site| = (<< 39057004 |Pulmonary valve structure| : "
+            + "272741003 |Laterality| = << 7771000 |Left|)), 246075003 |Causative agent| = (<< 404684003 |Clinical finding| : 116676008 |Associated morphology| = << 415582006 |Stenosis|)";
+
+    private final ECLQueryBuilder eclQueryBuilder = new ECLQueryBuilder(new ECLObjectFactory());
+
+    @Test
+    void refinement() {
+        assertConcepts("< 71388002 |Procedure| : 363704007 |Procedure site| = << 64033007 |Kidney structure|",
+            "71388002", "363704007", "64033007");
+    }
+
+    @Test
+    void attributeGroup() {
+        assertConcepts("<< 404684003 |Clinical finding| : { 363698007 |Finding site| = << 39057004 |Pulmonary valve structure|, 116676008 |Associated morphology| = << 415582006 |Stenosis| }",
+            "404684003", "363698007", "39057004", "116676008", "415582006");
+    }
+
+    @Test
+    void compoundWithExclusion() {
+        assertConcepts("(<< 19829001 |Disorder of lung| OR << 301867009 |Edema of trunk|) MINUS << 233604007 |Pneumonia|",
+            "19829001", "301867009", "233604007");
+    }
+
+    @Test
+    void memberOfWithConceptFilter() {
+        // The old extraction only looked at definition status in a concept filter, as the visitor does
+        assertConcepts("^ 723264001 |Lateralizable body structure reference set| {{ C moduleId = 900000000000207008 }}",
+            "723264001");
+    }
+
+    @Test
+    void nestedAndRepeatedRefinements() {
+        assertConcepts(NESTED_REPEATED,
+            "404684003", "363698007", "39057004", "116676008", "415582006", "47429007", "272741003", "7771000", "246075003");
+    }
+
+    @Test
+    void repeatedRefinementsListEachConceptOnce() {
+        String group = "{ 363698007 |Finding site| = << 39057004 |Pulmonary valve structure| }";
+        String ecl = "<< 404684003 |Clinical finding| : " + String.join(", ", group, group, group, group);
+
+        assertEquals(List.of("363698007", "39057004", "404684003"), conceptIds(ecl));
+    }
+
+    @Test
+    void dottedAttributes() {
+        assertConcepts("<< 404684003 |Clinical finding| . 363698007 |Finding site|",
+            "404684003", "363698007");
+    }
+
+    private void assertConcepts(String ecl, String... expected) {
+        List<String> conceptIds = conceptIds(ecl);
+        Set<String> distinct = new HashSet<>(conceptIds);
+
+        assertEquals(Set.of(expected), distinct);
+        assertTrue(distinct.size() == conceptIds.size(), "repeated concept ids in " + conceptIds);
+    }
+
+    private List<String> conceptIds(String ecl) {
+        return EclConceptVisitor.conceptIds(eclQueryBuilder.createQuery(ecl));
+    }
+}
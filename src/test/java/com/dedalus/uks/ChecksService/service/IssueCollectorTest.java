@@ -0,0 +1,193 @@
+package com.dedalus.uks.ChecksService.service;
+
+import com.dedalus.uks.ChecksService.checks.CheckOptions;
+
+import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueType;
+import org.hl7.fhir.r4.model.OperationOutcome.OperationOutcomeIssueComponent;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IssueCollectorTest {
+
+    private static final String OMITTED = " further issues were not reported, maxIssues is ";
+    private static final String STOPPED = "The check stopped after 2 errors (failFast), later codes may not have been checked.";
+
+    @Test
+    void keepsMaxIssuesAndCountsTheRest() {
+        AtomicInteger built = new AtomicInteger();
+        IssueCollector collector = new IssueCollector(new CheckOptions(3, 0, false, 0));
+        for (int i = 0; i < 5; i++) {
+            addError(collector, "format", "c" + i, built);
+        }
+
+        List<OperationOutcomeIssueComponent> issues = collector.toIssues();
+        assertEquals(List.of("c0", "c1", "c2", "2" + OMITTED + "3."), diagnostics(issues));
+        assertNotice(issues.get(3));
+        // Issues beyond the limit are never built
+        assertEquals(3, built.get());
+    }
+
+    @Test
+    void noticesFollowTheIssuesAndDoNotCount() {
+        IssueCollector collector = new IssueCollector(new CheckOptions(1, 0, false, 0));
+        collector.addNotice("Only the first page was checked.");
+        addError(collector, "format", "c0", new AtomicInteger());
+
+        List<OperationOutcomeIssueComponent> issues = collector.toIssues();
+        assertEquals(List.of("c0", "Only the first page was checked."), diagnostics(issues));
+        assertNotice(issues.get(1));
+    }
+
+    @Test
+    void stopsAfterFailFastErrors() {
+        IssueCollector collector = new IssueCollector(new CheckOptions(0, 2, false, 0));
+        collector.add(IssueSeverity.WARNING, "inactive", "Inactive.", "w0", issue(IssueSeverity.WARNING, "w0", new AtomicInteger()));
+        addError(collector, "format", "c0", new AtomicInteger());
+        assertFalse(collector.isStopped());
+        addError(collector, "format", "c1", new AtomicInteger());
+        assertTrue(collector.isStopped());
+        addError(collector, "format", "c2", new AtomicInteger());
+        collector.add(IssueSeverity.WARNING, "inactive", "Inactive.", "w1", issue(IssueSeverity.WARNING, "w1", new AtomicInteger()));
+
+        List<OperationOutcomeIssueComponent> issues = collector.toIssues();
+        assertEquals(List.of("w0", "c0", "c1", STOPPED), diagnostics(issues));
+        assertNotice(issues.get(3));
+    }
+
+    @Test
+    void aggregatesOneIssuePerReason() {
+        AtomicInteger built = new AtomicInteger();
+        IssueCollector collector = new IssueCollector(new CheckOptions(0, 0, true, 2));
+        addError(collector, "format", "c0", built);
+        collector.add(IssueSeverity.WARNING, "inactive", "Inactive concept.", "w0", issue(IssueSeverity.WARNING, "w0", built));
+        addError(collector, "format", "c1", built);
+        addError(collector, "format", "c2", built);
+
+        List<OperationOutcomeIssueComponent> issues = collector.toIssues();
+        assertEquals(List.of("3 codes: Bad format. For example c0, c1.", "1 codes: Inactive concept. For example w0."), diagnostics(issues));
+        assertEquals(IssueSeverity.ERROR, issues.get(0).getSeverity());
+        assertEquals(IssueType.INVALID, issues.get(0).getCode());
+        assertFalse(issues.get(0).hasExpression());
+        assertEquals(IssueSeverity.WARNING, issues.get(1).getSeverity());
+        // Only the first issue of each reason is built
+        assertEquals(2, built.get());
+    }
+
+    @Test
+    void aggregateWithoutSamplesHasOnlyTheCount() {
+        IssueCollector collector = new IssueCollector(new CheckOptions(0, 0, true, 0));
+        addError(collector, "format", "c0", new AtomicInteger());
+        addError(collector, "format", "c1", new AtomicInteger());
+
+        assertEquals(List.of("2 codes: Bad format."), diagnostics(collector.toIssues()));
+    }
+
+    @Test
+    void forksShareTheErrorCount() {
+        IssueCollector collector = new IssueCollector(new CheckOptions(0, 2, false, 0));
+        IssueCollector first = collector.fork();
+        IssueCollector second = collector.fork();
+
+        addError(first, "format", "a0", new AtomicInteger());
+        assertFalse(second.isStopped());
+        addError(second, "format", "b0", new AtomicInteger());
+        assertTrue(first.isStopped());
+        assertTrue(second.isStopped());
+        assertTrue(collector.isStopped());
+
+        addError(first, "format", "a1", new AtomicInteger());
+        collector.addAll(first);
+        collector.addAll(second);
+        assertEquals(List.of("a0", "b0", STOPPED), diagnostics(collector.toIssues()));
+    }
+
+    @Test
+    void addAllMergesInOrderWithinMaxIssues() {
+        CheckOptions options = new CheckOptions(3, 0, false, 0);
+        IssueCollector collector = new IssueCollector(options);
+        IssueCollector first = collector.fork();
+        IssueCollector second = collector.fork();
+        IssueCollector third = collector.fork();
+        addError(first, "format", "a0", new AtomicInteger());
+        addError(first, "format", "a1", new AtomicInteger());
+        first.addNotice("first notice");
+        for (int i = 0; i < 5; i++) {
+            addError(second, "format", "b" + i, new AtomicInteger());
+        }
+        addError(third, "format", "c0", new AtomicInteger());
+
+        collector.addAll(first);
+        collector.addAll(second);
+        collector.addAll(third);
+
+        // b1, b2 and c0 do not fit, and second had already counted b3 and b4
+        assertEquals(List.of("a0", "a1", "b0", "first notice", "5" + OMITTED + "3."), diagnostics(collector.toIssues()));
+    }
+
+    @Test
+    void addAllMergesGroupsWithinTheSampleCodes() {
+        IssueCollector collector = new IssueCollector(new CheckOptions(0, 0, true, 3));
+        IssueCollector first = collector.fork();
+        IssueCollector second = collector.fork();
+        addError(first, "format", "a0", new AtomicInteger());
+        addError(first, "format", "a1", new AtomicInteger());
+        addError(second, "format", "b0", new AtomicInteger());
+        addError(second, "format", "b1", new AtomicInteger());
+        addError(second, "check-digit", "b2", new AtomicInteger());
+
+        collector.addAll(first);
+        collector.addAll(second);
+
+        assertEquals(List.of("4 codes: Bad format. For example a0, a1, b0.", "1 codes: Bad format. For example b2."), diagnostics(collector.toIssues()));
+    }
+
+    @Test
+    void unlimitedKeepsEverything() {
+        IssueCollector collector = IssueCollector.unlimited();
+        for (int i = 0; i < 1000; i++) {
+            addError(collector, "format", "c" + i, new AtomicInteger());
+        }
+
+        assertFalse(collector.isStopped());
+        assertEquals(1000, collector.toIssues().size());
+    }
+
+    private static void addError(IssueCollector collector, String reason, String code, AtomicInteger built) {
+        collector.add(IssueSeverity.ERROR, reason, "Bad format.", code, issue(IssueSeverity.ERROR, code, built));
+    }
+
+    // An issue whose diagnostics are its code, counting how often one is built
+    private static Supplier<OperationOutcomeIssueComponent> issue(IssueSeverity severity, String code, AtomicInteger built) {
+        return () -> {
+            built.incrementAndGet();
+            OperationOutcomeIssueComponent issue = new OperationOutcomeIssueComponent();
+            issue.setSeverity(severity);
+            issue.setCode(IssueType.INVALID);
+            issue.setDiagnostics(code);
+            issue.addExpression("ValueSet.expansion.contains.where(code = '" + code + "')");
+            return issue;
+        };
+    }
+
+    private static List<String> diagnostics(List<OperationOutcomeIssueComponent> issues) {
+        List<String> diagnostics = new ArrayList<>();
+        for (OperationOutcomeIssueComponent issue : issues) {
+            diagnostics.add(issue.getDiagnostics());
+        }
+        return diagnostics;
+    }
+
+    private static void assertNotice(OperationOutcomeIssueComponent issue) {
+        assertEquals(IssueSeverity.INFORMATION, issue.getSeverity());
+        assertEquals(IssueType.TOOCOSTLY, issue.getCode());
+    }
+}
@@ -0,0 +1,113 @@
+package com.dedalus.uks.ChecksService.service;
+
+import com.dedalus.uks.ChecksService.service.SCTValidationService.FormatResult;
+
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SCTValidationServiceTest {
+
+    private final SCTValidationService service = new SCTValidationService();
+
+    @Test
+    void acceptsKnownConceptIds() {
+        for (String id : new String[] {"73211009", "22298006", "404684003", "138875005"}) {
+            assertEquals(FormatResult.VALID, service.checkIdentifierFormat(id), id);
+        }
+    }
+
+    @Test
+    void rejectsWrongCheckDigit() {
+        assertEquals(FormatResult.INVALID_FORMAT, service.checkIdentifierFormat("73211008"));
+        assertEquals(FormatResult.INVALID_FORMAT, service.checkIdentifierFormat("404684004"));
+    }
+
+    @Test
+    void rejectsNonNumeric() {
+        assertEquals(FormatResult.INVALID_FORMAT, service.checkIdentifierFormat("7321100X"));
+        assertEquals(FormatResult.INVALID_FORMAT, service.checkIdentifierFormat("abc"));
+        assertEquals(FormatResult.INVALID_FORMAT, service.checkIdentifierFormat(" 73211009"));
+        assertEquals(FormatResult.INVALID_FORMAT, service.checkIdentifierFormat("-73211009"));
+    }
+
+    @Test
+    void reportsEmpty() {
+        assertEquals(FormatResult.EMPTY, service.checkIdentifierFormat((CharSequence) null));
+        assertEquals(FormatResult.EMPTY, service.checkIdentifierFormat(""));
+    }
+
+    @Test
+    void checksLength() {
+        assertEquals(FormatResult.TOO_SHORT, service.checkIdentifierFormat("12340"));
+        assertEquals(FormatResult.TOO_LONG, service.checkIdentifierFormat("1234567890123456706"));
+    }
+
+    @Test
+    void checksLongForm() {
+        assertEquals(FormatResult.VALID, service.checkIdentifierFormat("999000011000000103"));
+        assertEquals(FormatResult.VALID, service.checkIdentifierFormat("999000041000000102"));
+        assertEquals(FormatResult.LONG_FORM_TOO_SHORT, service.checkIdentifierFormat("12345107"));
+    }
+
+    @Test
+    void checksPartition() {
+        assertEquals(FormatResult.DESCRIPTION_IDENTIFIER, service.checkIdentifierFormat("413980011"));
+        assertEquals(FormatResult.RELATIONSHIP_IDENTIFIER, service.checkIdentifierFormat("10000023"));
+        assertEquals(FormatResult.RELATIONSHIP_IDENTIFIER, service.checkIdentifierFormat("10000121"));
+        assertEquals(FormatResult.EXPRESSION_IDENTIFIER, service.checkIdentifierFormat("12345169"));
+        assertEquals(FormatResult.INVALID_PARTITION, service.checkIdentifierFormat("10000034"));
+    }
+
+    @Test
+    void checksRangeOfLargerSequence() {
+        String text = "x73211009,73211008";
+        assertEquals(FormatResult.VALID, service.checkIdentifierFormat(text, 1, 9));
+        assertEquals(FormatResult.INVALID_FORMAT, service.checkIdentifierFormat(text, 10, 18));
+    }
+
+    @Test
+    void numericVariantAgreesWithText() {
+        Random random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            long id = random.nextLong() >>> random.nextInt(64);
+            assertEquals(service.checkIdentifierFormat(Long.toString(id)), service.checkIdentifierFormat(id), Long.toString(id));
+        }
+        assertEquals(FormatResult.INVALID_FORMAT, service.checkIdentifierFormat(-73211009L));
+    }
+
+    @Test
+    void validatesBatches() {
+        String[] ids = {"73211009", "73211008", "413980011", "999000011000000103", "abc"};
+        StringBuilder packed = new StringBuilder();
+        int[] offsets = new int[ids.length + 1];
+        byte[] expected = new byte[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            packed.append(ids[i]);
+            offsets[i + 1] = packed.length();
+            expected[i] = service.checkIdentifierFormat(ids[i]).toCode();
+        }
+        assertArrayEquals(expected, service.validateIdentifierFormats(packed.toString().toCharArray(), offsets, ids.length));
+
+        byte[] numeric = service.validateIdentifierFormats(new long[] {73211009L, 73211008L});
+        assertEquals(FormatResult.VALID, FormatResult.fromCode(numeric[0]));
+        assertEquals(FormatResult.INVALID_FORMAT, FormatResult.fromCode(numeric[1]));
+    }
+
+    @Test
+    void buildsIssuesOnlyForFailures() {
+        assertFalse(service.validateIdentifierFormat("73211009").hasIssue());
+
+        OperationOutcome outcome = service.validateIdentifierFormat("413980011");
+        assertEquals(1, outcome.getIssue().size());
+        assertEquals(SCTValidationService.INVALID_CODE_DETAIL_ERROR_CODE, outcome.getIssueFirstRep().getDetails().getCodingFirstRep().getCode());
+        assertEquals(FormatResult.DESCRIPTION_IDENTIFIER.getDetailText(), outcome.getIssueFirstRep().getDetails().getText());
+        assertTrue(outcome.getIssueFirstRep().getDiagnostics().contains("413980011"));
+    }
+}
@@ -0,0 +1,122 @@
+package com.dedalus.uks.ChecksService.service;
+
+import com.dedalus.uks.ChecksService.checks.CheckOptions;
+import com.dedalus.uks.ChecksService.config.ChecksConfig;
+
+import ca.uhn.fhir.context.FhirContext;
+
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Task;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StreamingCheckServiceTest {
+
+    private final FhirContext fhirContext = FhirContext.forR4Cached();
+    private final ChecksService checksService;
+    private final StreamingCheckService streamingCheckService;
+
+    StreamingCheckServiceTest() {
+        ChecksConfig checksConfig = new ChecksConfig();
+        checksConfig.getParallel().setEnabled(false);
+        SCTValidationService sctValidationService = new SCTValidationService();
+        ValueSetExpander valueSetExpander = new ValueSetExpander(checksConfig, null, null, Runnable::run);
+        checksService = new ChecksService(checksConfig, null, null, sctValidationService, new EclConceptCache(checksConfig), null, null, valueSetExpander);
+        streamingCheckService = new StreamingCheckService(checksService, sctValidationService);
+    }
+
+    @AfterEach
+    void shutdown() {
+        checksService.shutdown();
+    }
+
+    @Test
+    void streamingReportsTheIssuesOfTheModelCheck() throws IOException {
+        ValueSet valueSet = ChecksServiceTest.valueSet(5_000, 17);
+        valueSet.setId("vs");
+        Task task = new Task();
+        task.setInstantiatesCanonical("http://example.org/fhir/ActivityDefinition/code-format");
+        task.setFocus(new Reference("#vs"));
+        task.addContained(valueSet);
+        String json = fhirContext.newJsonParser().encodeResourceToString(task);
+
+        List<String> streamed = assertSameIssues(json);
+        assertTrue(streamed.size() > 100, "the generated ValueSet should fail often, " + streamed.size() + " issues");
+    }
+
+    @Test
+    void streamingDoesNotDependOnPropertyOrder() throws IOException {
+        // The focus comes last, the expansion before the compose and the codes before their system
+        String json = """
+                {
+                  "contained": [
+                    {
+                      "expansion": {
+                        "contains": [
+                          {"code": "73211008", "system": "http://snomed.info/sct"},
+                          {"display": "Group", "contains": [{"code": "x1", "version": "http://snomed.info/sct/900000000000207008", "system": "http://snomed.info/sct"}]},
+                          {"code": "abc-1", "system": "http://loinc.org"}
+                        ]
+                      },
+                      "compose": {
+                        "include": [
+                          {
+                            "concept": [{"code": "123"}, {"code": "73211009"}, {"code": "22298005"}],
+                            "filter": [{"value": "73211008", "op": "is-a", "property": "descendant"}, {"value": "<< 404684003 : 363698007 = << 39057008", "op": "=", "property": "expression"}],
+                            "version": "http://snomed.info/sct/83821000000107",
+                            "system": "http://snomed.info/sct"
+                          },
+                          {"concept": [{"code": "123"}], "system": "http://loinc.org"}
+                        ]
+                      },
+                      "id": "vs",
+                      "resourceType": "ValueSet",
+                      "status": "active"
+                    },
+                    {
+                      "resourceType": "ValueSet",
+                      "id": "other",
+                      "status": "active",
+                      "compose": {"include": [{"system": "http://snomed.info/sct", "concept": [{"code": "99"}]}]}
+                    }
+                  ],
+                  "status": "requested",
+                  "intent": "order",
+                  "instantiatesCanonical": "http://example.org/fhir/ActivityDefinition/code-format",
+                  "resourceType": "Task",
+                  "focus": {"reference": "#vs"}
+                }
+                """;
+
+        List<String> streamed = assertSameIssues(json);
+        assertEquals(5, streamed.size(), streamed.toString());
+    }
+
+    // What /check/streaming returns for the Task must be what /check returns, Task.input is not read in either case
+    private List<String> assertSameIssues(String json) throws IOException {
+        Task task = fhirContext.newJsonParser().parseResource(Task.class, json);
+        ValueSet focus = (ValueSet) new ResolutionContext(checksService, task, null).getFocusResource();
+        List<String> expected = ChecksServiceTest.describe(checksService.checkCodeFormat(focus, "code-format", CheckOptions.UNLIMITED));
+
+        StreamingCheckService.StreamingCheckResult result = streamingCheckService.checkCodeFormat(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+        assertEquals("Task", result.getResourceType());
+        assertEquals(task.getInstantiatesCanonical(), result.getInstantiatesCanonical());
+        assertEquals("vs", result.getFocusContainedId());
+
+        OperationOutcome streamed = new OperationOutcome();
+        streamed.setIssue(result.getFocusIssues());
+        List<String> actual = ChecksServiceTest.describe(streamed);
+        assertEquals(expected, actual);
+        return actual;
+    }
+}
@@ -0,0 +1,172 @@
+package com.dedalus.uks.ChecksService.service;
+
+import com.dedalus.uks.ChecksService.config.ChecksConfig;
+import com.dedalus.uks.ChecksService.exception.TokenUnavailableException;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.web.client.RestTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+class TokenManagerTest {
+
+    private static final String SLOW_ENDPOINT = "https://slow.example.org/token";
+    private static final String FAST_ENDPOINT = "https://fast.example.org/token";
+
+    private final ChecksConfig checksConfig = new ChecksConfig();
+    private final ExecutorService outboundExecutor = Executors.newFixedThreadPool(4);
+    // Never runs what is scheduled, refreshes only start from getToken
+    private final TaskScheduler scheduler = mock(TaskScheduler.class);
+    private final Map<String, AtomicInteger> requests = new ConcurrentHashMap<>();
+
+    @AfterEach
+    void shutdown() {
+        outboundExecutor.shutdownNow();
+    }
+
+    @Test
+    void concurrentCallersDuringExpiryMakeOneRequest() throws Exception {
+        CountDownLatch renewing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        TokenManager tokenManager = tokenManager(endpoint -> {
+            int request = requests.get(endpoint).get();
+            if (request == 1) {
+                return token("first", 1);
+            }
+            renewing.countDown();
+            await(release);
+            return token("second", 3600);
+        });
+        ChecksConfig.TerminologyServer server = server(FAST_ENDPOINT);
+
+        assertEquals("first", tokenManager.getToken(server));
+        // The first token lives one second, and the scheduled refresh never comes
+        Thread.sleep(1100);
+
+        int callers = 16;
+        CyclicBarrier barrier = new CyclicBarrier(callers);
+        ExecutorService callerThreads = Executors.newFixedThreadPool(callers);
+        try {
+            List<Future<String>> tokens = new ArrayList<>();
+            for (int i = 0; i < callers; i++) {
+                tokens.add(callerThreads.submit(() -> {
+                    barrier.await();
+                    return tokenManager.getToken(server);
+                }));
+            }
+            assertTrue(renewing.await(10, TimeUnit.SECONDS));
+            // Give every caller the time to find the expired token and wait on the request in flight
+            Thread.sleep(200);
+            release.countDown();
+
+            for (Future<String> token : tokens) {
+                assertEquals("second", token.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            callerThreads.shutdownNow();
+        }
+        assertEquals(2, requests.get(FAST_ENDPOINT).get());
+    }
+
+    @Test
+    void slowEndpointDoesNotDelayOtherSources() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        TokenManager tokenManager = tokenManager(endpoint -> {
+            if (SLOW_ENDPOINT.equals(endpoint)) {
+                await(release);
+            }
+            return token(endpoint, 3600);
+        });
+
+        ExecutorService caller = Executors.newSingleThreadExecutor();
+        try {
+            Future<String> slow = caller.submit(() -> tokenManager.getToken(server(SLOW_ENDPOINT)));
+            while (requests.get(SLOW_ENDPOINT) == null) {
+                Thread.sleep(5);
+            }
+
+            long start = System.nanoTime();
+            assertEquals(FAST_ENDPOINT, tokenManager.getToken(server(FAST_ENDPOINT)));
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+
+            release.countDown();
+            assertEquals(SLOW_ENDPOINT, slow.get(10, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            caller.shutdownNow();
+        }
+    }
+
+    @Test
+    void failedRequestIsNotShared() {
+        TokenManager tokenManager = tokenManager(endpoint -> {
+            if (requests.get(endpoint).get() == 1) {
+                return new ResponseEntity<>("{}", HttpStatus.UNAUTHORIZED);
+            }
+            return token("second", 3600);
+        });
+        ChecksConfig.TerminologyServer server = server(FAST_ENDPOINT);
+
+        assertThrows(TokenUnavailableException.class, () -> tokenManager.getToken(server));
+        // A caller without a usable token asks again rather than waiting for the retry
+        assertEquals("second", tokenManager.getToken(server));
+    }
+
+    private TokenManager tokenManager(Function<String, ResponseEntity<String>> responses) {
+        RestTemplate restTemplate = new RestTemplate() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public <T> ResponseEntity<T> exchange(String url, HttpMethod method, HttpEntity<?> requestEntity, Class<T> responseType, Object... uriVariables) {
+                requests.computeIfAbsent(url, k -> new AtomicInteger()).incrementAndGet();
+                return (ResponseEntity<T>) responses.apply(url);
+            }
+        };
+        CheckMetrics checkMetrics = new CheckMetrics(new SimpleMeterRegistry(), new SCTValidationService(), new CheckResultCache(checksConfig, null));
+        return new TokenManager(checksConfig, restTemplate, checkMetrics, outboundExecutor, scheduler);
+    }
+
+    private static ChecksConfig.TerminologyServer server(String authenticationEndpoint) {
+        ChecksConfig.TerminologyServer server = new ChecksConfig.TerminologyServer();
+        server.setAuthenticationEndpoint(authenticationEndpoint);
+        server.setClientId("checks");
+        server.setClientSecret("secret");
+        return server;
+    }
+
+    private static ResponseEntity<String> token(String value, long expiresIn) {
+        return ResponseEntity.ok("{\"access_token\":\"" + value + "\",\"expires_in\":" + expiresIn + "}");
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+}
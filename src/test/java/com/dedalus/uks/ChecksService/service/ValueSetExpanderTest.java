@@ -0,0 +1,327 @@
+package com.dedalus.uks.ChecksService.service;
+
+import com.dedalus.uks.ChecksService.config.ChecksConfig;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.gclient.IOperation;
+import ca.uhn.fhir.rest.gclient.IOperationUnnamed;
+import ca.uhn.fhir.rest.gclient.IOperationUntyped;
+import ca.uhn.fhir.rest.gclient.IOperationUntypedWithInput;
+import ca.uhn.fhir.rest.gclient.IOperationUntypedWithInputAndPartialOutput;
+
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueType;
+import org.hl7.fhir.r4.model.OperationOutcome.OperationOutcomeIssueComponent;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.IntPredicate;
+import java.util.function.IntToLongFunction;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class ValueSetExpanderTest {
+
+    private final ChecksConfig checksConfig = new ChecksConfig();
+    // Offset and count of every $expand request, in the order they were made
+    private final List<int[]> requests = Collections.synchronizedList(new ArrayList<>());
+    private final List<String> checked = Collections.synchronizedList(new ArrayList<>());
+
+    @Test
+    void fetchesEveryPageAfterTheTotal() {
+        config(1000, 1000000);
+        IssueCollector collector = expand(new StubServer(2500, 1000, true));
+
+        assertRequests(new int[][] {{0, 1000}, {1000, 1000}, {2000, 500}});
+        assertCodes(2500);
+        assertTrue(collector.toIssues().isEmpty());
+    }
+
+    @Test
+    void walksPagesOneAfterTheOtherWithoutTotal() {
+        config(1000, 1000000);
+        IssueCollector collector = expand(new StubServer(2500, 1000, false));
+
+        assertRequests(new int[][] {{0, 1000}, {1000, 1000}, {2000, 1000}, {2500, 1000}});
+        assertCodes(2500);
+        assertTrue(collector.toIssues().isEmpty());
+    }
+
+    @Test
+    void keepsPagingWithoutTotalWhenTheServerCapsItsPages() {
+        config(1000, 1000000);
+        IssueCollector collector = expand(new StubServer(1000, 300, false));
+
+        assertRequests(new int[][] {{0, 1000}, {300, 1000}, {600, 1000}, {900, 1000}, {1000, 1000}});
+        assertCodes(1000);
+        assertTrue(collector.toIssues().isEmpty());
+    }
+
+    @Test
+    void walksToAnEmptyPageWithoutTotal() {
+        config(1000, 1000000);
+        expand(new StubServer(2000, 1000, false));
+
+        assertRequests(new int[][] {{0, 1000}, {1000, 1000}, {2000, 1000}});
+        assertCodes(2000);
+    }
+
+    @Test
+    void takesThePageSizeOfAServerThatCapsIt() {
+        config(1000, 1000000);
+        IssueCollector collector = expand(new StubServer(1000, 300, true));
+
+        assertRequests(new int[][] {{0, 1000}, {300, 300}, {600, 300}, {900, 100}});
+        assertCodes(1000);
+        assertTrue(collector.toIssues().isEmpty());
+    }
+
+    @Test
+    void reportsAShortPage() {
+        config(100, 1000000);
+        StubServer server = new StubServer(300, 100, true);
+        server.shortAt = offset -> offset == 100;
+        IssueCollector collector = expand(server);
+
+        assertRequests(new int[][] {{0, 100}, {100, 100}, {200, 100}});
+        assertEquals(250, checked.size());
+        assertEquals(List.of("The terminology server returned 50 of 100 codes at offset 100 of the expansion."), diagnostics(collector));
+    }
+
+    @Test
+    void stopsAtMaxCodesWithTotal() {
+        config(1000, 2000);
+        IssueCollector collector = expand(new StubServer(5000, 1000, true));
+
+        assertRequests(new int[][] {{0, 1000}, {1000, 1000}});
+        assertCodes(2000);
+        assertEquals(List.of("Only the first 2000 of 5000 codes of the expansion were checked, see checks.expand.maxCodes."), diagnostics(collector));
+    }
+
+    @Test
+    void stopsAtMaxCodesWithoutTotal() {
+        config(1000, 2500);
+        IssueCollector collector = expand(new StubServer(5000, 1000, false));
+
+        assertRequests(new int[][] {{0, 1000}, {1000, 1000}, {2000, 500}});
+        assertCodes(2500);
+        assertEquals(List.of("Only the first 2500 codes of the expansion were checked, see checks.expand.maxCodes."), diagnostics(collector));
+    }
+
+    @Test
+    void requestsNoMorePagesOnceOneHasFailed() {
+        config(100, 1000000);
+        StubServer server = new StubServer(1000, 100, true);
+        server.failAt = offset -> offset == 200;
+
+        RuntimeException e = assertThrows(RuntimeException.class, () -> expand(server));
+        assertTrue(e.getMessage().contains("offset 200"), e.getMessage());
+        assertRequests(new int[][] {{0, 100}, {100, 100}, {200, 100}});
+    }
+
+    @Test
+    void mergesConcurrentPagesInExpansionOrder() throws Exception {
+        config(100, 1000000);
+        checksConfig.getExpand().setConcurrency(3);
+        StubServer server = new StubServer(2000, 100, true);
+        // Every third page is slow, so the two after it finish first
+        server.delayMillis = offset -> (offset / 100) % 3 == 1 ? 100 : 0;
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        IssueCollector collector;
+        try {
+            collector = expand(server, executor, (contains, pageIssues) -> contains.forEach(code -> pageIssues.add(IssueSeverity.ERROR, "code", "A code.", code.getCode(), () -> issue(code.getCode()))));
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(20, requests.size());
+        List<String> diagnostics = diagnostics(collector);
+        assertEquals(2000, diagnostics.size());
+        for (int i = 0; i < 2000; i++) {
+            assertEquals(Integer.toString(i), diagnostics.get(i));
+        }
+        assertTrue(server.maxInFlight.get() <= 3, "at most 3 pages in flight, was " + server.maxInFlight.get());
+        assertTrue(server.maxInFlight.get() > 1, "pages were fetched one at a time");
+        List<Integer> finished = new ArrayList<>(server.finished);
+        List<Integer> inOrder = new ArrayList<>(finished);
+        Collections.sort(inOrder);
+        assertNotEquals(inOrder, finished, "pages finished in order");
+    }
+
+    @Test
+    void requestsNoMoreConcurrentPagesOnceOneHasFailed() {
+        config(100, 1000000);
+        checksConfig.getExpand().setConcurrency(2);
+        StubServer server = new StubServer(100_000, 100, true);
+        server.failAt = offset -> offset == 300;
+        server.delayMillis = offset -> 20;
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            RuntimeException e = assertThrows(RuntimeException.class, () -> expand(server, executor, (contains, pageIssues) -> { }));
+            assertTrue(e.getMessage().contains("offset 300"), e.getMessage());
+        } finally {
+            executor.shutdownNow();
+        }
+        // Pages up to the failed one, and the few already in flight beside it, but no more
+        assertTrue(requests.size() <= 8, requests.size() + " of 1000 pages were requested");
+    }
+
+    private void config(int pageSize, int maxCodes) {
+        checksConfig.getExpand().setEnabled(true);
+        checksConfig.getExpand().setPageSize(pageSize);
+        checksConfig.getExpand().setConcurrency(1);
+        checksConfig.getExpand().setMaxCodes(maxCodes);
+    }
+
+    // Pages run on the calling thread, so the requests come in a fixed order
+    private IssueCollector expand(StubServer server) {
+        return expand(server, Runnable::run, (contains, pageIssues) -> contains.forEach(code -> checked.add(code.getCode())));
+    }
+
+    private IssueCollector expand(StubServer server, Executor executor, BiConsumer<List<ValueSet.ValueSetExpansionContainsComponent>, IssueCollector> pageCheck) {
+        TokenManager tokenManager = mock(TokenManager.class);
+        when(tokenManager.getToken(any())).thenReturn("token");
+        FhirClientProvider fhirClientProvider = mock(FhirClientProvider.class);
+        IGenericClient client = stubClient(server);
+        when(fhirClientProvider.getClient(any())).thenReturn(client);
+
+        ValueSetExpander expander = new ValueSetExpander(checksConfig, tokenManager, fhirClientProvider, executor);
+        ValueSet valueSet = new ValueSet();
+        valueSet.setUrl("http://example.org/fhir/ValueSet/compose-only");
+        valueSet.getCompose().addInclude().setSystem("http://snomed.info/sct");
+
+        IssueCollector collector = IssueCollector.unlimited();
+        expander.expand(valueSet, collector, pageCheck);
+        return collector;
+    }
+
+    private static OperationOutcomeIssueComponent issue(String code) {
+        OperationOutcomeIssueComponent issue = new OperationOutcomeIssueComponent();
+        issue.setSeverity(IssueSeverity.ERROR);
+        issue.setCode(IssueType.CODEINVALID);
+        issue.setDiagnostics(code);
+        return issue;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private IGenericClient stubClient(StubServer server) {
+        IGenericClient client = mock(IGenericClient.class);
+        IOperation operation = mock(IOperation.class);
+        IOperationUnnamed unnamed = mock(IOperationUnnamed.class);
+        IOperationUntyped untyped = mock(IOperationUntyped.class);
+        when(client.operation()).thenReturn(operation);
+        when(operation.onType(ValueSet.class)).thenReturn(unnamed);
+        when(unnamed.named("$expand")).thenReturn(untyped);
+        when(untyped.withParameters(any())).thenAnswer(invocation -> {
+            Parameters parameters = invocation.getArgument(0);
+            IOperationUntypedWithInputAndPartialOutput withInput = mock(IOperationUntypedWithInputAndPartialOutput.class);
+            IOperationUntypedWithInput typed = mock(IOperationUntypedWithInput.class);
+            when(withInput.returnResourceType(ValueSet.class)).thenReturn(typed);
+            when(typed.withAdditionalHeader(anyString(), anyString())).thenReturn(typed);
+            when(typed.execute()).thenAnswer(execution -> server.expand(intParameter(parameters, "offset"), intParameter(parameters, "count")));
+            return withInput;
+        });
+        return client;
+    }
+
+    private int intParameter(Parameters parameters, String name) {
+        for (Parameters.ParametersParameterComponent parameter : parameters.getParameter()) {
+            if (name.equals(parameter.getName())) {
+                return ((IntegerType) parameter.getValue()).getValue();
+            }
+        }
+        throw new AssertionError("No " + name + " parameter");
+    }
+
+    private void assertRequests(int[][] expected) {
+        assertEquals(expected.length, requests.size(), "requests");
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i][0], requests.get(i)[0], "offset of request " + i);
+            assertEquals(expected[i][1], requests.get(i)[1], "count of request " + i);
+        }
+    }
+
+    private void assertCodes(int count) {
+        assertEquals(count, checked.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(Integer.toString(i), checked.get(i));
+        }
+    }
+
+    private static List<String> diagnostics(IssueCollector collector) {
+        List<String> diagnostics = new ArrayList<>();
+        for (OperationOutcomeIssueComponent issue : collector.toIssues()) {
+            diagnostics.add(issue.getDiagnostics());
+        }
+        return diagnostics;
+    }
+
+    // Codes are their own position in the expansion, a page never holds more than maxPage of them
+    private class StubServer {
+        private final int size;
+        private final int maxPage;
+        private final boolean withTotal;
+        IntPredicate shortAt = offset -> false;
+        IntPredicate failAt = offset -> false;
+        IntToLongFunction delayMillis = offset -> 0;
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        // Offsets of the pages in the order they were answered
+        final List<Integer> finished = Collections.synchronizedList(new ArrayList<>());
+
+        StubServer(int size, int maxPage, boolean withTotal) {
+            this.size = size;
+            this.maxPage = maxPage;
+            this.withTotal = withTotal;
+        }
+
+        ValueSet expand(int offset, int count) throws InterruptedException {
+            requests.add(new int[] {offset, count});
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(delayMillis.applyAsLong(offset));
+                return page(offset, count);
+            } finally {
+                inFlight.decrementAndGet();
+                finished.add(offset);
+            }
+        }
+
+        private ValueSet page(int offset, int count) {
+            if (failAt.test(offset)) {
+                throw new IllegalStateException("HTTP 500 Internal Server Error");
+            }
+            int end = Math.min(size, offset + Math.min(count, maxPage));
+            if (shortAt.test(offset)) {
+                end = offset + (end - offset) / 2;
+            }
+            ValueSet expanded = new ValueSet();
+            if (withTotal) {
+                expanded.getExpansion().setTotal(size);
+            }
+            for (int code = offset; code < end; code++) {
+                expanded.getExpansion().addContains().setSystem("http://snomed.info/sct").setCode(Integer.toString(code));
+            }
+            return expanded;
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package com.dedalus.uks.ChecksService.terminology;
+
+import com.dedalus.uks.ChecksService.config.ChecksConfig;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class Rf2SnapshotImporterTest {
+
+    private static final String CONCEPT_HEADER = "id\teffectiveTime\tactive\tmoduleId\tdefinitionStatusId";
+    private static final String DESCRIPTION_HEADER = "id\teffectiveTime\tactive\tmoduleId\tconceptId\tlanguageCode\ttypeId\tterm\tcaseSignificanceId";
+    private static final String RELATIONSHIP_HEADER = "id\teffectiveTime\tactive\tmoduleId\tsourceId\tdestinationId\trelationshipGroup\ttypeId\tcharacteristicTypeId\tmodifierId";
+
+    private static final String CORE_MODULE = "900000000000207008";
+    private static final String PRIMITIVE = "900000000000074008";
+    private static final String EXTENSION_MODULE = "999000011000000103";
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void writesHeaderAndSortedRecords() throws IOException {
+        Path rf2 = snapshot("International", new String[] {
+            "404684003\t20020131\t1\t" + CORE_MODULE + "\t" + PRIMITIVE,
+            "138875005\t20020131\t1\t" + CORE_MODULE + "\t" + PRIMITIVE,
+            "73211009\t20020131\t1\t" + CORE_MODULE + "\t" + Rf2SnapshotImporter.FULLY_DEFINED_ID,
+        });
+        Path indexFile = directory.resolve("index/sct-concepts.idx");
+
+        assertEquals(3, new Rf2SnapshotImporter().importSnapshot(rf2, indexFile));
+
+        ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(indexFile));
+        assertEquals(LocalConceptIndex.HEADER_SIZE + 3 * LocalConceptIndex.RECORD_SIZE, bytes.limit());
+        assertEquals(LocalConceptIndex.MAGIC, bytes.getLong(0));
+        assertEquals(LocalConceptIndex.FORMAT_VERSION, bytes.getInt(8));
+        assertEquals(LocalConceptIndex.RECORD_SIZE, bytes.getInt(12));
+        assertEquals(3, bytes.getLong(16));
+
+        int record = LocalConceptIndex.HEADER_SIZE;
+        assertEquals(73211009L, bytes.getLong(record));
+        assertEquals(Long.parseLong(CORE_MODULE), bytes.getLong(record + 8));
+        assertEquals(20020131, bytes.getInt(record + 16));
+        assertEquals(LocalConceptIndex.FLAG_ACTIVE | LocalConceptIndex.FLAG_FULLY_DEFINED, bytes.getInt(record + 20));
+        assertEquals(138875005L, bytes.getLong(record + LocalConceptIndex.RECORD_SIZE));
+        assertEquals(404684003L, bytes.getLong(record + 2 * LocalConceptIndex.RECORD_SIZE));
+    }
+
+    @Test
+    void countsActiveDescriptionsAndParents() throws IOException {
+        Path rf2 = snapshot("International", new String[] {
+            "138875005\t20020131\t1\t" + CORE_MODULE + "\t" + PRIMITIVE,
+            "404684003\t20020131\t1\t" + CORE_MODULE + "\t" + PRIMITIVE,
+            "73211009\t20020131\t1\t" + CORE_MODULE + "\t" + PRIMITIVE,
+        });
+        write(rf2.resolve("Terminology/sct2_Description_Snapshot-en_INT_20240101.txt"), DESCRIPTION_HEADER,
+            "1\t20020131\t1\t" + CORE_MODULE + "\t73211009\ten\t900000000000003001\tDiabetes mellitus (disorder)\t900000000000448009",
+            "2\t20020131\t1\t" + CORE_MODULE + "\t73211009\ten\t900000000000013009\tDiabetes mellitus\t900000000000448009",
+            "3\t20020131\t0\t" + CORE_MODULE + "\t73211009\ten\t900000000000013009\tDM\t900000000000448009",
+            "4\t20020131\t1\t" + CORE_MODULE + "\t999999999\ten\t900000000000013009\tUnknown concept\t900000000000448009");
+        write(rf2.resolve("Terminology/sct2_Relationship_Snapshot_INT_20240101.txt"), RELATIONSHIP_HEADER,
+            "10\t20020131\t1\t" + CORE_MODULE + "\t73211009\t404684003\t0\t" + Rf2SnapshotImporter.IS_A_TYPE_ID + "\t900000000000011006\t900000000000451002",
+            "11\t20020131\t0\t" + CORE_MODULE + "\t73211009\t138875005\t0\t" + Rf2SnapshotImporter.IS_A_TYPE_ID + "\t900000000000011006\t900000000000451002",
+            "12\t20020131\t1\t" + CORE_MODULE + "\t73211009\t138875005\t0\t363698007\t900000000000011006\t900000000000451002",
+            "13\t20020131\t1\t" + CORE_MODULE + "\t404684003\t138875005\t0\t" + Rf2SnapshotImporter.IS_A_TYPE_ID + "\t900000000000011006\t900000000000451002");
+
+        LocalConceptIndex index = importAndOpen(rf2);
+
+        int diabetes = index.indexOf(73211009L);
+        assertEquals(2, index.getActiveDescriptionCount(diabetes));
+        assertEquals(1, index.getActiveParentCount(diabetes));
+        assertEquals(1, index.getActiveParentCount(index.indexOf(404684003L)));
+        assertEquals(0, index.getActiveParentCount(index.indexOf(138875005L)));
+        assertEquals(0, index.getActiveDescriptionCount(index.indexOf(138875005L)));
+    }
+
+    @Test
+    void findsHitsAndMissesByBinarySearch() throws IOException {
+        Random random = new Random(7);
+        TreeMap<Long, Integer> concepts = new TreeMap<>();
+        while (concepts.size() < 5000) {
+            concepts.put(100000L + random.nextInt(100_000_000), random.nextBoolean() ? 1 : 0);
+        }
+        String[] rows = concepts.descendingMap().entrySet().stream()
+            .map(entry -> entry.getKey() + "\t20240101\t" + entry.getValue() + "\t" + CORE_MODULE + "\t" + PRIMITIVE)
+            .toArray(String[]::new);
+
+        LocalConceptIndex index = importAndOpen(snapshot("International", rows));
+
+        assertEquals(concepts.size(), index.size());
+        int position = 0;
+        for (long conceptId : concepts.keySet()) {
+            int found = index.indexOf(conceptId);
+            assertEquals(position++, found);
+            assertEquals(conceptId, index.getConceptId(found));
+            assertEquals(concepts.get(conceptId) == 1, index.isActive(found));
+            if (!concepts.containsKey(conceptId + 1)) {
+                assertEquals(-1, index.indexOf(conceptId + 1));
+            }
+        }
+        assertEquals(-1, index.indexOf(concepts.firstKey() - 1));
+        assertEquals(-1, index.indexOf(concepts.lastKey() + 1));
+        assertEquals(-1, index.indexOf(0L));
+    }
+
+    @Test
+    void matchesCodesWithoutLeadingZeros() throws IOException {
+        LocalConceptIndex index = importAndOpen(snapshot("International", new String[] {
+            "73211009\t20020131\t1\t" + CORE_MODULE + "\t" + PRIMITIVE,
+        }));
+
+        assertTrue(index.indexOf("73211009") >= 0);
+        assertEquals(-1, index.indexOf("073211009"));
+        assertEquals(-1, index.indexOf("0"));
+        assertEquals(-1, index.indexOf("7321100X"));
+        assertEquals(-1, index.indexOf(""));
+        assertEquals(-1, index.indexOf("22298006"));
+    }
+
+    @Test
+    void keepsTheLatestRowOfAConceptInSeveralFiles() throws IOException {
+        Path rf2 = snapshot("International", new String[] {
+            "73211009\t20020131\t1\t" + CORE_MODULE + "\t" + PRIMITIVE,
+            "22298006\t20200131\t1\t" + CORE_MODULE + "\t" + PRIMITIVE,
+        });
+        write(rf2.resolve("Extension/Terminology/sct2_Concept_Snapshot_GB1000000_20240101.txt"), CONCEPT_HEADER,
+            "73211009\t20240101\t0\t" + EXTENSION_MODULE + "\t" + Rf2SnapshotImporter.FULLY_DEFINED_ID,
+            "22298006\t20100131\t0\t" + EXTENSION_MODULE + "\t" + PRIMITIVE,
+            "999000041000000102\t20240101\t1\t" + EXTENSION_MODULE + "\t" + PRIMITIVE);
+
+        LocalConceptIndex index = importAndOpen(rf2);
+
+        assertEquals(3, index.size());
+        int diabetes = index.indexOf(73211009L);
+        assertEquals(20240101, index.getEffectiveTime(diabetes));
+        assertEquals(Long.parseLong(EXTENSION_MODULE), index.getModuleId(diabetes));
+        assertFalse(index.isActive(diabetes));
+        assertTrue(index.isFullyDefined(diabetes));
+
+        int infarction = index.indexOf(22298006L);
+        assertEquals(20200131, index.getEffectiveTime(infarction));
+        assertEquals(Long.parseLong(CORE_MODULE), index.getModuleId(infarction));
+        assertTrue(index.isActive(infarction));
+
+        assertTrue(index.indexOf("999000041000000102") >= 0);
+    }
+
+    @Test
+    void replacesTheIndexWithoutDisturbingReaders() throws IOException {
+        Path indexFile = directory.resolve("sct-concepts.idx");
+        new Rf2SnapshotImporter().importSnapshot(snapshot("First", new String[] {
+            "73211009\t20020131\t1\t" + CORE_MODULE + "\t" + PRIMITIVE,
+        }), indexFile);
+        LocalConceptIndex before = new LocalConceptIndex(new ChecksConfig());
+        before.map(indexFile);
+
+        new Rf2SnapshotImporter().importSnapshot(snapshot("Second", new String[] {
+            "22298006\t20020131\t1\t" + CORE_MODULE + "\t" + PRIMITIVE,
+            "404684003\t20020131\t1\t" + CORE_MODULE + "\t" + PRIMITIVE,
+        }), indexFile);
+        LocalConceptIndex after = new LocalConceptIndex(new ChecksConfig());
+        after.map(indexFile);
+
+        // The mapping taken before the move still sees the complete old file
+        assertEquals(1, before.size());
+        assertTrue(before.indexOf(73211009L) >= 0);
+        assertEquals(2, after.size());
+        assertEquals(-1, after.indexOf(73211009L));
+        assertTrue(after.indexOf(404684003L) >= 0);
+
+        try (Stream<Path> files = Files.list(directory)) {
+            assertFalse(files.anyMatch(file -> file.getFileName().toString().endsWith(".tmp")));
+        }
+    }
+
+    @Test
+    void rejectsForeignTruncatedAndNewerFiles() throws IOException {
+        Path indexFile = directory.resolve("sct-concepts.idx");
+        new Rf2SnapshotImporter().importSnapshot(snapshot("International", new String[] {
+            "73211009\t20020131\t1\t" + CORE_MODULE + "\t" + PRIMITIVE,
+            "22298006\t20020131\t1\t" + CORE_MODULE + "\t" + PRIMITIVE,
+        }), indexFile);
+        byte[] bytes = Files.readAllBytes(indexFile);
+        LocalConceptIndex index = new LocalConceptIndex(new ChecksConfig());
+
+        Path truncated = directory.resolve("truncated.idx");
+        Files.write(truncated, Arrays.copyOf(bytes, bytes.length - 1));
+        assertThrows(IOException.class, () -> index.map(truncated));
+
+        Path newer = directory.resolve("newer.idx");
+        byte[] newerBytes = bytes.clone();
+        ByteBuffer.wrap(newerBytes).putInt(8, LocalConceptIndex.FORMAT_VERSION + 1);
+        Files.write(newer, newerBytes);
+        assertThrows(IOException.class, () -> index.map(newer));
+
+        Path foreign = directory.resolve("foreign.idx");
+        Files.write(foreign, "id\teffectiveTime\tactive\tmoduleId\tdefinitionStatusId\n".getBytes(StandardCharsets.UTF_8));
+        assertThrows(IOException.class, () -> index.map(foreign));
+
+        assertFalse(index.isAvailable());
+    }
+
+    @Test
+    void failsWithoutAConceptFile() {
+        assertThrows(IOException.class, () -> new Rf2SnapshotImporter().importSnapshot(directory, directory.resolve("sct-concepts.idx")));
+    }
+
+    // Imports through the same path as startup, with checks.localIndex pointing at the snapshot
+    private LocalConceptIndex importAndOpen(Path rf2) throws IOException {
+        ChecksConfig checksConfig = new ChecksConfig();
+        checksConfig.getLocalIndex().setEnabled(true);
+        checksConfig.getLocalIndex().setIndexFile(directory.resolve("sct-concepts.idx").toString());
+        checksConfig.getLocalIndex().setRf2SnapshotDirectory(rf2.toString());
+        LocalConceptIndex index = new LocalConceptIndex(checksConfig);
+        index.open();
+        assertTrue(index.isAvailable());
+        return index;
+    }
+
+    private Path snapshot(String name, String[] conceptRows) throws IOException {
+        Path rf2 = directory.resolve(name + "/Snapshot");
+        write(rf2.resolve("Terminology/sct2_Concept_Snapshot_INT_20240101.txt"), CONCEPT_HEADER, conceptRows);
+        return rf2;
+    }
+
+    private static void write(Path file, String header, String... rows) throws IOException {
+        Files.createDirectories(file.getParent());
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8))) {
+            // RF2 files use CRLF line endings
+            writer.print(header + "\r\n");
+            for (String row : rows) {
+                writer.print(row + "\r\n");
+            }
+        }
+    }
+}